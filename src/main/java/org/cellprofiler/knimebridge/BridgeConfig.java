@@ -0,0 +1,460 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Context;
+import org.zeromq.ZMQ.Socket;
+
+/**
+ * @author agent
+ *
+ * The ZMQ and timeout settings for the bridges made by a KnimeBridgeFactory.
+ * Use a {@link Builder} to make one, for instance:
+ *
+ *     BridgeConfig config = new BridgeConfig.Builder()
+ *         .setIOThreads(4)
+ *         .setSendBufferSize(4 * 1024 * 1024)
+ *         .build();
+ *     IKnimeBridge bridge = new KnimeBridgeFactory(config).newKnimeBridge();
+ *
+ * Bridges made with the same configuration share one ZMQ context,
+ * which is created when the first bridge is made. Socket options
+ * that are left unset keep ZMQ's defaults.
+ *
+ * If a shared memory directory is set, run() and runGroup() write the
+ * pixels to a file in the directory and send the worker the file's
+ * path instead of the pixels. They only do so if the worker accepts
+ * shared memory requests and its address is on this host. Otherwise
+ * they send the pixels in the message.
+ *
+ * If compression is enabled, a bridge offers to compress image and
+ * measurement data. A worker that accepts compresses its replies
+ * and the bridge compresses its requests whenever it estimates that
+ * compressing is faster than sending the bytes it would save.
+ *
+ * If a heartbeat interval is set, a {@link BridgeEventLoop} sends a
+ * heartbeat to each worker that it has not heard from for that long,
+ * if the worker answers heartbeats while it works on a request, and
+ * tracks whether the worker is alive and how busy it is.
+ *
+ * If float32 pixels are enabled, for all channels or for some of them,
+ * a bridge sends those channels' pixels as 32-bit floats instead of
+ * doubles, halving their size, if the worker accepts floats. Use a
+ * {@link Float32Validator} to check that a pipeline's measurements
+ * are close enough to those made from doubles.
+ */
+public class BridgeConfig {
+	/**
+	 * The value of a socket option that is left at ZMQ's default
+	 */
+	public final static long ZMQ_DEFAULT = -1;
+	/**
+	 * The configuration used by the KnimeBridgeFactory's default constructor:
+	 * one I/O thread, ZMQ's socket defaults and no request timeout.
+	 */
+	public final static BridgeConfig DEFAULT = new Builder().build();
+	/**
+	 * The usual shared memory directory on Linux
+	 */
+	public final static File DEV_SHM = new File("/dev/shm");
+	/**
+	 * The heartbeat interval that turns heartbeats off
+	 */
+	public final static long NO_HEARTBEAT = 0;
+	/**
+	 * The default number of heartbeats in a row that a worker may miss
+	 * before it is considered dead
+	 */
+	public final static int DEFAULT_HEARTBEAT_LIVENESS = 3;
+
+	private final Context sharedContext;
+	private final int ioThreads;
+	private final long sendHWM;
+	private final long receiveHWM;
+	private final long sendBufferSize;
+	private final long receiveBufferSize;
+	private final long linger;
+	private final long requestTimeout;
+	private final int reconnectAttempts;
+	private final File sharedMemoryDirectory;
+	private final boolean compression;
+	private final long heartbeatInterval;
+	private final int heartbeatLiveness;
+	private final boolean float32;
+	private final Set<String> float32Channels;
+	private Context context;
+
+	/**
+	 * @author agent
+	 *
+	 * Builds a BridgeConfig
+	 */
+	public static class Builder {
+		private Context sharedContext;
+		private int ioThreads = 1;
+		private long sendHWM = ZMQ_DEFAULT;
+		private long receiveHWM = ZMQ_DEFAULT;
+		private long sendBufferSize = ZMQ_DEFAULT;
+		private long receiveBufferSize = ZMQ_DEFAULT;
+		private long linger = ZMQ_DEFAULT;
+		private long requestTimeout = KBConstants.NO_TIMEOUT;
+		private int reconnectAttempts = 0;
+		private File sharedMemoryDirectory;
+		private boolean compression = false;
+		private long heartbeatInterval = NO_HEARTBEAT;
+		private int heartbeatLiveness = DEFAULT_HEARTBEAT_LIVENESS;
+		private boolean float32 = false;
+		private Set<String> float32Channels = Collections.emptySet();
+
+		/**
+		 * Use a context owned by the caller, for instance one shared with
+		 * other ZMQ code in the process. The number of I/O threads is
+		 * ignored if a context is supplied.
+		 *
+		 * @param context the context
+		 * @return this builder
+		 */
+		public Builder setContext(Context context) {
+			this.sharedContext = context;
+			return this;
+		}
+
+		/**
+		 * @param ioThreads the number of I/O threads for the configuration's context
+		 * @return this builder
+		 */
+		public Builder setIOThreads(int ioThreads) {
+			if (ioThreads < 1) {
+				throw new IllegalArgumentException("There must be at least one I/O thread");
+			}
+			this.ioThreads = ioThreads;
+			return this;
+		}
+
+		/**
+		 * @param hwm the maximum number of outgoing messages queued per socket
+		 * @return this builder
+		 */
+		public Builder setSendHWM(long hwm) {
+			this.sendHWM = checkOption(hwm);
+			return this;
+		}
+
+		/**
+		 * @param hwm the maximum number of incoming messages queued per socket
+		 * @return this builder
+		 */
+		public Builder setReceiveHWM(long hwm) {
+			this.receiveHWM = checkOption(hwm);
+			return this;
+		}
+
+		/**
+		 * @param size the kernel's TCP send buffer size in bytes
+		 * @return this builder
+		 */
+		public Builder setSendBufferSize(long size) {
+			this.sendBufferSize = checkOption(size);
+			return this;
+		}
+
+		/**
+		 * @param size the kernel's TCP receive buffer size in bytes
+		 * @return this builder
+		 */
+		public Builder setReceiveBufferSize(long size) {
+			this.receiveBufferSize = checkOption(size);
+			return this;
+		}
+
+		/**
+		 * @param linger how long to keep trying to deliver unsent messages
+		 *               after a bridge disconnects, in milliseconds
+		 * @return this builder
+		 */
+		public Builder setLinger(long linger) {
+			this.linger = checkOption(linger);
+			return this;
+		}
+
+		/**
+		 * @param timeoutMs the initial request timeout of each bridge
+		 * @return this builder
+		 * @see IKnimeBridge#setRequestTimeout(long)
+		 */
+		public Builder setRequestTimeout(long timeoutMs) {
+			if ((timeoutMs < 0) && (timeoutMs != KBConstants.NO_TIMEOUT)) {
+				throw new IllegalArgumentException("The request timeout must not be negative");
+			}
+			this.requestTimeout = timeoutMs;
+			return this;
+		}
+
+		/**
+		 * @param attempts the initial number of reconnect attempts of each bridge
+		 * @return this builder
+		 * @see IKnimeBridge#setReconnectAttempts(int)
+		 */
+		public Builder setReconnectAttempts(int attempts) {
+			if (attempts < 0) {
+				throw new IllegalArgumentException("The number of reconnect attempts must not be negative");
+			}
+			this.reconnectAttempts = attempts;
+			return this;
+		}
+
+		/**
+		 * @param directory hand pixels to the worker in files in
+		 *                  this directory, for instance {@link BridgeConfig#DEV_SHM},
+		 *                  or null to send them in the messages (the default).
+		 * @return this builder
+		 */
+		public Builder setSharedMemoryDirectory(File directory) {
+			if ((directory != null) && ! directory.isDirectory()) {
+				throw new IllegalArgumentException(String.format(
+						"%s is not a directory", directory.getPath()));
+			}
+			this.sharedMemoryDirectory = directory;
+			return this;
+		}
+
+		/**
+		 * @param compression true to offer the worker to compress the data
+		 *                    frames of requests and replies. The default is false.
+		 * @return this builder
+		 */
+		public Builder setCompression(boolean compression) {
+			this.compression = compression;
+			return this;
+		}
+
+		/**
+		 * @param intervalMs send a heartbeat to a worker that has not been
+		 *                   heard from for this many milliseconds, or
+		 *                   NO_HEARTBEAT not to (the default).
+		 * @return this builder
+		 */
+		public Builder setHeartbeatInterval(long intervalMs) {
+			if (intervalMs < 0) {
+				throw new IllegalArgumentException("The heartbeat interval must not be negative");
+			}
+			this.heartbeatInterval = intervalMs;
+			return this;
+		}
+
+		/**
+		 * @param missed the number of heartbeats in a row that a worker may
+		 *               miss before it is considered dead. The default is
+		 *               DEFAULT_HEARTBEAT_LIVENESS.
+		 * @return this builder
+		 */
+		public Builder setHeartbeatLiveness(int missed) {
+			if (missed < 1) {
+				throw new IllegalArgumentException("The heartbeat liveness must be at least 1");
+			}
+			this.heartbeatLiveness = missed;
+			return this;
+		}
+
+		/**
+		 * @param float32 true to send the pixels of every channel as 32-bit
+		 *                floats if the worker accepts them. The default is
+		 *                false: pixels are sent as doubles.
+		 * @return this builder
+		 */
+		public Builder setFloat32(boolean float32) {
+			this.float32 = float32;
+			return this;
+		}
+
+		/**
+		 * @param channels the names of the channels whose pixels should be
+		 *                 sent as 32-bit floats if the worker accepts them
+		 * @return this builder
+		 */
+		public Builder setFloat32Channels(Collection<String> channels) {
+			this.float32Channels = Collections.unmodifiableSet(new HashSet<String>(channels));
+			return this;
+		}
+
+		/**
+		 * @return a configuration with the builder's settings
+		 */
+		public BridgeConfig build() {
+			return new BridgeConfig(this);
+		}
+
+		private static long checkOption(long value) {
+			if ((value < 0) && (value != ZMQ_DEFAULT)) {
+				throw new IllegalArgumentException("Socket options must not be negative");
+			}
+			return value;
+		}
+	}
+
+	private BridgeConfig(Builder builder) {
+		sharedContext = builder.sharedContext;
+		ioThreads = builder.ioThreads;
+		sendHWM = builder.sendHWM;
+		receiveHWM = builder.receiveHWM;
+		sendBufferSize = builder.sendBufferSize;
+		receiveBufferSize = builder.receiveBufferSize;
+		linger = builder.linger;
+		requestTimeout = builder.requestTimeout;
+		reconnectAttempts = builder.reconnectAttempts;
+		sharedMemoryDirectory = builder.sharedMemoryDirectory;
+		compression = builder.compression;
+		heartbeatInterval = builder.heartbeatInterval;
+		heartbeatLiveness = builder.heartbeatLiveness;
+		float32 = builder.float32;
+		float32Channels = builder.float32Channels;
+	}
+
+	/**
+	 * Get the context for this configuration's bridges, creating it
+	 * if need be. With one I/O thread, this is the process-wide
+	 * context returned by KnimeBridgeImpl.theContext().
+	 *
+	 * @return the context
+	 */
+	public synchronized Context getContext() {
+		if (context == null) {
+			if (sharedContext != null) {
+				context = sharedContext;
+			} else if (ioThreads == 1) {
+				context = KnimeBridgeImpl.theContext();
+			} else {
+				context = ZMQ.context(ioThreads);
+			}
+		}
+		return context;
+	}
+
+	/**
+	 * @return the number of I/O threads for the configuration's context
+	 */
+	public int getIOThreads() {
+		return ioThreads;
+	}
+
+	/**
+	 * @return the send high-water mark or ZMQ_DEFAULT
+	 */
+	public long getSendHWM() {
+		return sendHWM;
+	}
+
+	/**
+	 * @return the receive high-water mark or ZMQ_DEFAULT
+	 */
+	public long getReceiveHWM() {
+		return receiveHWM;
+	}
+
+	/**
+	 * @return the TCP send buffer size or ZMQ_DEFAULT
+	 */
+	public long getSendBufferSize() {
+		return sendBufferSize;
+	}
+
+	/**
+	 * @return the TCP receive buffer size or ZMQ_DEFAULT
+	 */
+	public long getReceiveBufferSize() {
+		return receiveBufferSize;
+	}
+
+	/**
+	 * @return the linger period in milliseconds or ZMQ_DEFAULT
+	 */
+	public long getLinger() {
+		return linger;
+	}
+
+	/**
+	 * @return the initial request timeout of each bridge
+	 */
+	public long getRequestTimeout() {
+		return requestTimeout;
+	}
+
+	/**
+	 * @return the initial number of reconnect attempts of each bridge
+	 */
+	public int getReconnectAttempts() {
+		return reconnectAttempts;
+	}
+
+	/**
+	 * @return the directory for shared pixel files or null
+	 *         if pixels are sent in the messages
+	 */
+	public File getSharedMemoryDirectory() {
+		return sharedMemoryDirectory;
+	}
+
+	/**
+	 * @return true if bridges offer to compress data frames
+	 */
+	public boolean isCompressionEnabled() {
+		return compression;
+	}
+
+	/**
+	 * @return the heartbeat interval in milliseconds or NO_HEARTBEAT
+	 */
+	public long getHeartbeatInterval() {
+		return heartbeatInterval;
+	}
+
+	/**
+	 * @return the number of heartbeats in a row that a worker may miss
+	 */
+	public int getHeartbeatLiveness() {
+		return heartbeatLiveness;
+	}
+
+	/**
+	 * @return true if the pixels of every channel are sent as 32-bit floats
+	 */
+	public boolean isFloat32Enabled() {
+		return float32;
+	}
+
+	/**
+	 * @return the channels whose pixels are sent as 32-bit floats, if
+	 *         float32 pixels aren't enabled for every channel
+	 */
+	public Set<String> getFloat32Channels() {
+		return float32Channels;
+	}
+
+	/**
+	 * Create a socket in the configuration's context with
+	 * the configuration's socket options.
+	 *
+	 * @param type the socket type, e.g. ZMQ.REQ
+	 * @return the new socket
+	 */
+	Socket createSocket(int type) {
+		final Socket socket = getContext().socket(type);
+		if (sendHWM != ZMQ_DEFAULT) socket.setSndHWM(sendHWM);
+		if (receiveHWM != ZMQ_DEFAULT) socket.setRcvHWM(receiveHWM);
+		if (sendBufferSize != ZMQ_DEFAULT) socket.setSendBufferSize(sendBufferSize);
+		if (receiveBufferSize != ZMQ_DEFAULT) socket.setReceiveBufferSize(receiveBufferSize);
+		if (linger != ZMQ_DEFAULT) socket.setLinger(linger);
+		return socket;
+	}
+}
@@ -0,0 +1,954 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.imagej.ImgPlus;
+
+import org.cellprofiler.knimebridge.message.AbstractReply;
+import org.cellprofiler.knimebridge.message.CancelReq;
+import org.cellprofiler.knimebridge.message.ConnectReply;
+import org.cellprofiler.knimebridge.message.ConnectReq;
+import org.cellprofiler.knimebridge.message.HeartbeatReply;
+import org.cellprofiler.knimebridge.message.HeartbeatReq;
+import org.cellprofiler.knimebridge.message.ImageEncoding;
+import org.cellprofiler.knimebridge.message.PipelineInfoReply;
+import org.cellprofiler.knimebridge.message.PipelineInfoReq;
+import org.cellprofiler.knimebridge.message.RunReply;
+import org.cellprofiler.knimebridge.message.RunReq;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Socket;
+import org.zeromq.ZMsg;
+
+/**
+ * @author agent
+ *
+ * Drives many worker connections from a single thread.
+ *
+ * Each {@link IKnimeBridge} blocks a thread while it waits for its
+ * worker. The event loop instead owns every worker's socket and
+ * waits on all of them with one ZMQ.Poller. Callers encode their
+ * requests on their own threads and submit them through a lock-free
+ * queue, getting a Future for each reply. The loop thread only sends,
+ * receives and parses messages.
+ *
+ * Each connection has one request outstanding at a time, as its
+ * worker expects. Further requests on the connection wait in the
+ * order they were submitted.
+ *
+ * A connection can carry several sessions, each with its own
+ * pipeline, so that a caller can alternate between pipelines on one
+ * worker without reloading them. Requests are tagged with their
+ * session's ID and each reply completes the future of the session
+ * that sent the request.
+ *
+ * If the configuration has a request timeout, a request that times
+ * out fails with a RequestTimeoutException, the connection's socket
+ * is replaced and the worker is sent a cancel request.
+ *
+ * If the configuration has a heartbeat interval, the loop sends a
+ * heartbeat to each worker that it has not heard from for an interval,
+ * on a second socket. Only workers whose capabilities say that they
+ * answer heartbeats while working on a request get them. A worker
+ * that serves one request at a time can't answer until its run is
+ * done, so it gets no heartbeats and only the request timeout
+ * notices if it hangs. A worker that misses a heartbeat is suspect.
+ * One that misses as many in a row as the configuration's heartbeat
+ * liveness is dead: its outstanding requests fail so they can be sent
+ * elsewhere and it is asked to cancel the one it is working on. Any
+ * reply brings a worker back to life. Heartbeat replies carry the
+ * worker's load, which {@link #leastLoaded(Collection)} uses to
+ * choose a connection for the next request.
+ */
+@SuppressWarnings("deprecation")
+public class BridgeEventLoop {
+	/**
+	 * Whether a worker is answering
+	 */
+	public enum Liveness {
+		/**
+		 * The worker answered its last heartbeat or request
+		 */
+		ALIVE,
+		/**
+		 * The worker missed its last heartbeat
+		 */
+		SUSPECT,
+		/**
+		 * The worker missed the configured number of heartbeats in a row
+		 */
+		DEAD
+	}
+
+	/**
+	 * Parses a reply on the loop thread
+	 */
+	private interface ReplyParser<T> {
+		public T parse(ZMsg reply) throws Exception;
+	}
+
+	/**
+	 * Work for the loop thread, failed instead of run if the loop has stopped
+	 */
+	private static abstract class Command {
+		abstract void run();
+		abstract void fail(ProtocolException e);
+	}
+
+	/**
+	 * A future completed by the loop thread. Only the first
+	 * completion counts. A request can't be cancelled
+	 * through its future.
+	 */
+	private static class Reply<T> implements Future<T> {
+		private final CountDownLatch done = new CountDownLatch(1);
+		private final AtomicBoolean completed = new AtomicBoolean(false);
+		private volatile T value;
+		private volatile Throwable error;
+
+		void complete(T value) {
+			if (completed.compareAndSet(false, true)) {
+				this.value = value;
+				done.countDown();
+			}
+		}
+
+		void fail(Throwable e) {
+			if (completed.compareAndSet(false, true)) {
+				error = e;
+				done.countDown();
+			}
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		@Override
+		public boolean isDone() {
+			return done.getCount() == 0;
+		}
+
+		@Override
+		public T get() throws InterruptedException, ExecutionException {
+			done.await();
+			return getValue();
+		}
+
+		@Override
+		public T get(long timeout, TimeUnit unit)
+				throws InterruptedException, ExecutionException, TimeoutException {
+			if (! done.await(timeout, unit)) {
+				throw new TimeoutException();
+			}
+			return getValue();
+		}
+
+		private T getValue() throws ExecutionException {
+			if (error != null) throw new ExecutionException(error);
+			return value;
+		}
+	}
+
+	/**
+	 * A request waiting to be sent, or waiting for its reply
+	 */
+	private static class Exchange<T> {
+		final ZMsg request;
+		final String sessionID;
+		final ReplyParser<T> parser;
+		final Reply<T> reply;
+		Exchange(ZMsg request, ReplyParser<T> parser, Reply<T> reply) {
+			this.request = request;
+			this.sessionID = request.peekFirst().toString();
+			this.parser = parser;
+			this.reply = reply;
+		}
+		void complete(ZMsg msg) {
+			if (reply == null) return;
+			try {
+				final String replySessionID = msg.peekFirst().toString();
+				if (! sessionID.equals(replySessionID)) {
+					throw new ProtocolException(String.format(
+							"Received a reply for session %s while waiting for session %s",
+							replySessionID, sessionID));
+				}
+				reply.complete(parser.parse(msg));
+			} catch (Throwable e) {
+				reply.fail(e);
+			}
+		}
+	}
+
+	/**
+	 * @author agent
+	 *
+	 * A session on a connection, with its own pipeline.
+	 * Its methods may be called from any thread.
+	 */
+	public class Session {
+		private final Connection connection;
+		private volatile String sessionID;
+		private volatile String pipeline;
+		private volatile PipelineInfoReply pipelineInfo;
+
+		Session(Connection connection) {
+			this.connection = connection;
+		}
+
+		/**
+		 * @return the connection that carries the session
+		 */
+		public Connection getConnection() {
+			return connection;
+		}
+
+		/**
+		 * @return the session ID from the worker's connect reply
+		 */
+		public String getSessionID() {
+			return sessionID;
+		}
+
+		/**
+		 * @return the text of the pipeline passed to loadPipeline or null if none
+		 */
+		public String getPipeline() {
+			return pipeline;
+		}
+
+		/**
+		 * @return the worker's description of the loaded pipeline or null
+		 *         if the worker has not yet replied to loadPipeline
+		 */
+		public PipelineInfoReply getPipelineInfo() {
+			return pipelineInfo;
+		}
+
+		/**
+		 * Load a pipeline. Runs submitted after this call use the pipeline.
+		 *
+		 * @param pipeline the pipeline text
+		 * @return the worker's description of the pipeline's inputs and measurements.
+		 *         The future fails with a PipelineException if the pipeline could
+		 *         not be loaded.
+		 */
+		public Future<PipelineInfoReply> loadPipeline(String pipeline) {
+			this.pipeline = pipeline;
+			return submit(connection, PipelineInfoReq.create(sessionID, pipeline), new ReplyParser<PipelineInfoReply>() {
+				@Override
+				public PipelineInfoReply parse(ZMsg reply) throws Exception {
+					pipelineInfo = PipelineInfoReply.recvReply(reply);
+					return pipelineInfo;
+				}
+			});
+		}
+
+		/**
+		 * Run the session's pipeline on an image set. The request is encoded
+		 * on the calling thread, as richly as the worker's capabilities
+		 * and the configuration allow.
+		 *
+		 * @param images a map of channel name to image
+		 * @return the measurements. The future fails with the CellProfilerException,
+		 *         PipelineException or ProtocolException raised by the run.
+		 */
+		public Future<IRunResult> run(Map<String, ImgPlus<?>> images) {
+			return submit(connection, RunReq.create(sessionID, pipeline, images, connection.encoding), new ReplyParser<IRunResult>() {
+				@Override
+				public IRunResult parse(ZMsg reply) throws Exception {
+					final RunReply runReply = new RunReply();
+					runReply.recv(reply);
+					return runReply;
+				}
+			});
+		}
+	}
+
+	/**
+	 * @author agent
+	 *
+	 * A connection to one worker, managed by the event loop. The
+	 * connection's own methods use the session established by
+	 * {@link BridgeEventLoop#connect(URI)}; use {@link #openSession()}
+	 * for more. Its methods may be called from any thread.
+	 */
+	public class Connection {
+		private final URI uri;
+		private final Session session;
+		private volatile WorkerCapabilities capabilities;
+		private volatile ImageEncoding encoding = ImageEncoding.DEFAULT;
+		private volatile Liveness liveness = Liveness.ALIVE;
+		private volatile int missedHeartbeats;
+		private volatile WorkerLoad load;
+		/*
+		 * The state below belongs to the loop thread.
+		 */
+		private Socket socket;
+		private final Deque<Exchange<?>> pending = new ArrayDeque<Exchange<?>>();
+		private Exchange<?> inFlight;
+		private long deadline;
+		private boolean closed;
+		private Socket heartbeatSocket;
+		private boolean heartbeatOutstanding;
+		private long lastHeartbeat;
+		private long lastHeard;
+
+		Connection(URI uri) {
+			this.uri = uri;
+			this.session = new Session(this);
+		}
+
+		/**
+		 * @return the session established when connecting
+		 */
+		public Session getSession() {
+			return session;
+		}
+
+		/**
+		 * @return the protocol features that the worker reported when connecting
+		 */
+		public WorkerCapabilities getCapabilities() {
+			return capabilities;
+		}
+
+		/**
+		 * @return whether the worker is answering. This is always ALIVE
+		 *         if heartbeats are off or the worker doesn't answer them.
+		 */
+		public Liveness getLiveness() {
+			return liveness;
+		}
+
+		/**
+		 * @return the number of heartbeats in a row that the worker has missed
+		 */
+		public int getMissedHeartbeats() {
+			return missedHeartbeats;
+		}
+
+		/**
+		 * @return the load reported in the worker's last heartbeat reply
+		 *         or null if there has been none
+		 */
+		public WorkerLoad getLoad() {
+			return load;
+		}
+
+		/**
+		 * Start another session with the worker on this connection
+		 *
+		 * @return the session, once the worker has replied
+		 */
+		public Future<Session> openSession() {
+			final Session newSession = new Session(this);
+			final ConnectReq req = ConnectReq.create();
+			return submit(this, req, new ReplyParser<Session>() {
+				@Override
+				public Session parse(ZMsg msg) throws Exception {
+					ConnectReply.recvConnectReply(msg);
+					newSession.sessionID = req.getSessionID();
+					return newSession;
+				}
+			});
+		}
+
+		/**
+		 * @return the session ID of the connection's first session
+		 */
+		public String getSessionID() {
+			return session.getSessionID();
+		}
+
+		/**
+		 * Load a pipeline into the connection's first session
+		 *
+		 * @param pipeline the pipeline text
+		 * @return the worker's description of the pipeline
+		 * @see Session#loadPipeline(String)
+		 */
+		public Future<PipelineInfoReply> loadPipeline(String pipeline) {
+			return session.loadPipeline(pipeline);
+		}
+
+		/**
+		 * Run the pipeline of the connection's first session on an image set
+		 *
+		 * @param images a map of channel name to image
+		 * @return the measurements
+		 * @see Session#run(Map)
+		 */
+		public Future<IRunResult> run(Map<String, ImgPlus<?>> images) {
+			return session.run(images);
+		}
+
+		/**
+		 * Close the connection. Requests that have not completed fail.
+		 */
+		public void close() {
+			execute(new Command() {
+				@Override
+				void run() {
+					closeConnection(Connection.this, new ProtocolException("The connection was closed"));
+				}
+
+				@Override
+				void fail(ProtocolException e) {
+				}
+			});
+		}
+	}
+
+	private final BridgeConfig config;
+	private final Queue<Command> commands = new ConcurrentLinkedQueue<Command>();
+	private final Pipe wakePipe;
+	private final AtomicBoolean woken = new AtomicBoolean(false);
+	private final AtomicBoolean stopped = new AtomicBoolean(false);
+	private volatile boolean finished;
+	private final Thread thread;
+	/*
+	 * The connections, owned by the loop thread
+	 */
+	private final List<Connection> connections = new ArrayList<Connection>();
+	/*
+	 * The poller and the sockets registered with it, owned by the
+	 * loop thread. The wake-up pipe is always the first item. The
+	 * sockets are registered again when "socketsChanged" is set.
+	 */
+	private final ZMQ.Poller poller = new ZMQ.Poller(1);
+	private final List<Socket> registered = new ArrayList<Socket>();
+	private final List<Connection> polled = new ArrayList<Connection>();
+	private int [] socketIdx = new int [0];
+	private int [] heartbeatIdx = new int [0];
+	private boolean socketsChanged;
+
+	/**
+	 * Create and start an event loop with the default configuration
+	 *
+	 * @throws IOException if the loop's wake-up pipe could not be created
+	 */
+	public BridgeEventLoop() throws IOException {
+		this(BridgeConfig.DEFAULT);
+	}
+
+	/**
+	 * Create and start an event loop
+	 *
+	 * @param config the context, socket options and request timeout to use
+	 * @throws IOException if the loop's wake-up pipe could not be created
+	 */
+	public BridgeEventLoop(BridgeConfig config) throws IOException {
+		this.config = config;
+		wakePipe = Pipe.open();
+		wakePipe.source().configureBlocking(false);
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				loop();
+			}
+		}, "BridgeEventLoop");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Connect to a worker
+	 *
+	 * @param uri the worker's address
+	 * @return the connection, once the worker has replied
+	 */
+	public Future<Connection> connect(URI uri) {
+		final Connection connection = new Connection(uri);
+		final ConnectReq req = ConnectReq.create();
+		final Reply<Connection> reply = new Reply<Connection>();
+		final Exchange<Connection> exchange = new Exchange<Connection>(req, new ReplyParser<Connection>() {
+			@Override
+			public Connection parse(ZMsg msg) throws Exception {
+				connection.capabilities = ConnectReply.recvConnectReply(msg).getCapabilities();
+				/*
+				 * The loop doesn't offer to compress
+				 */
+				connection.encoding = KnimeBridgeImpl.getEncoding(connection.capabilities, config, null);
+				connection.session.sessionID = req.getSessionID();
+				return connection;
+			}
+		}, reply);
+		execute(new Command() {
+			@Override
+			void run() {
+				connection.socket = newSocket(connection.uri);
+				connection.lastHeard = System.currentTimeMillis();
+				connections.add(connection);
+				enqueue(connection, exchange);
+			}
+
+			@Override
+			void fail(ProtocolException e) {
+				reply.fail(e);
+			}
+		});
+		return reply;
+	}
+
+	/**
+	 * Choose the connection for the next request: one whose worker
+	 * is alive, if any, else one that is suspect, and among those the
+	 * one whose worker reported the least backlog. Workers that have
+	 * not reported their load are chosen after those that have.
+	 *
+	 * @param candidates the connections to choose from
+	 * @return the chosen connection or null if all workers are dead
+	 */
+	public static Connection leastLoaded(Collection<Connection> candidates) {
+		Connection best = null;
+		double bestBacklog = 0;
+		for (Connection candidate:candidates) {
+			final Liveness liveness = candidate.getLiveness();
+			if (liveness == Liveness.DEAD) continue;
+			final WorkerLoad load = candidate.getLoad();
+			final double backlog = ((load == null) || (load.getBacklog() == WorkerLoad.UNKNOWN))?
+					Double.MAX_VALUE : load.getBacklog();
+			if ((best == null) ||
+				(liveness.compareTo(best.getLiveness()) < 0) ||
+				((liveness == best.getLiveness()) && (backlog < bestBacklog))) {
+				best = candidate;
+				bestBacklog = backlog;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Stop the loop, closing all connections. Requests that
+	 * have not completed fail.
+	 */
+	public void close() {
+		if (stopped.compareAndSet(false, true)) {
+			wake();
+		}
+	}
+
+	private <T> Future<T> submit(final Connection connection, ZMsg request, ReplyParser<T> parser) {
+		final Reply<T> reply = new Reply<T>();
+		final Exchange<T> exchange = new Exchange<T>(request, parser, reply);
+		execute(new Command() {
+			@Override
+			void run() {
+				if (connection.closed) {
+					reply.fail(new ProtocolException("The connection is closed"));
+				} else {
+					enqueue(connection, exchange);
+				}
+			}
+
+			@Override
+			void fail(ProtocolException e) {
+				reply.fail(e);
+			}
+		});
+		return reply;
+	}
+
+	/**
+	 * Run a command on the loop thread
+	 *
+	 * @param command
+	 */
+	private void execute(Command command) {
+		commands.add(command);
+		if (finished) {
+			failCommands();
+		} else {
+			wake();
+		}
+	}
+
+	private void failCommands() {
+		final ProtocolException e = new ProtocolException("The event loop was closed");
+		Command command;
+		while ((command = commands.poll()) != null) command.fail(e);
+	}
+
+	private void wake() {
+		if (woken.compareAndSet(false, true)) {
+			try {
+				wakePipe.sink().write(ByteBuffer.wrap(new byte [] { 0 }));
+			} catch (IOException e) {
+				/*
+				 * The loop has closed the pipe on its way out.
+				 */
+			}
+		}
+	}
+
+	private void loop() {
+		final ByteBuffer drain = ByteBuffer.allocate(64);
+		try {
+			poller.register(wakePipe.source(), ZMQ.Poller.POLLIN);
+			while (! stopped.get()) {
+				if (socketsChanged) registerSockets();
+				poller.poll(getPollTimeout());
+				if (poller.pollin(0)) {
+					woken.set(false);
+					drain.clear();
+					while (wakePipe.source().read(drain) > 0) drain.clear();
+				}
+				for (int i=0; i<polled.size(); i++) {
+					if (poller.pollin(socketIdx[i])) receive(polled.get(i));
+					if ((heartbeatIdx[i] >= 0) && poller.pollin(heartbeatIdx[i])) {
+						receiveHeartbeat(polled.get(i));
+					}
+				}
+				Command command;
+				while ((command = commands.poll()) != null) {
+					try {
+						command.run();
+					} catch (RuntimeException e) {
+						/*
+						 * For instance, ZMQ rejected a worker's address.
+						 * Only this command fails, not the loop.
+						 */
+						command.fail(new ProtocolException(e.getMessage()));
+					}
+				}
+				checkDeadlines();
+				checkHeartbeats();
+			}
+		} catch (IOException e) {
+			/*
+			 * The wake-up pipe failed, so the loop can't go on.
+			 */
+		} finally {
+			stopped.set(true);
+			final ProtocolException e = new ProtocolException("The event loop was closed");
+			for (Connection connection:new ArrayList<Connection>(connections)) {
+				closeConnection(connection, e);
+			}
+			failCommands();
+			finished = true;
+			/*
+			 * Commands added before "finished" was set may have missed
+			 * the first pass. Later ones are failed by the caller.
+			 */
+			failCommands();
+			try {
+				wakePipe.sink().close();
+				wakePipe.source().close();
+			} catch (IOException e1) {
+			}
+		}
+	}
+
+	/**
+	 * Register the connections' current sockets with the poller in place
+	 * of the ones registered before. The poller moves its last item into
+	 * the place of one that is removed, so sockets are unregistered in
+	 * reverse order to leave the wake-up pipe first.
+	 */
+	private void registerSockets() {
+		for (int i=registered.size()-1; i>=0; i--) {
+			poller.unregister(registered.get(i));
+		}
+		registered.clear();
+		polled.clear();
+		polled.addAll(connections);
+		socketIdx = new int [polled.size()];
+		heartbeatIdx = new int [polled.size()];
+		for (int i=0; i<polled.size(); i++) {
+			final Connection connection = polled.get(i);
+			socketIdx[i] = poller.register(connection.socket, ZMQ.Poller.POLLIN);
+			registered.add(connection.socket);
+			final Socket heartbeatSocket = connection.heartbeatSocket;
+			if (heartbeatSocket == null) {
+				heartbeatIdx[i] = -1;
+			} else {
+				heartbeatIdx[i] = poller.register(heartbeatSocket, ZMQ.Poller.POLLIN);
+				registered.add(heartbeatSocket);
+			}
+		}
+		socketsChanged = false;
+	}
+
+	/**
+	 * @return the time until the earliest request deadline or heartbeat
+	 *         or -1 if there is none
+	 */
+	private long getPollTimeout() {
+		long earliest = Long.MAX_VALUE;
+		final long interval = config.getHeartbeatInterval();
+		for (Connection connection:connections) {
+			if (connection.inFlight != null) earliest = Math.min(earliest, connection.deadline);
+			if (isHeartbeatTarget(connection, interval)) {
+				earliest = Math.min(earliest, getNextHeartbeat(connection, interval));
+			}
+		}
+		if (earliest == Long.MAX_VALUE) return -1;
+		return Math.max(0, earliest - System.currentTimeMillis());
+	}
+
+	private void enqueue(Connection connection, Exchange<?> exchange) {
+		connection.pending.addLast(exchange);
+		if (connection.inFlight == null) sendNext(connection);
+	}
+
+	private void sendNext(Connection connection) {
+		while (! connection.pending.isEmpty()) {
+			final Exchange<?> exchange = connection.pending.removeFirst();
+			if (connection.capabilities != null) {
+				try {
+					KnimeBridgeImpl.checkFrameSizes(connection.capabilities, exchange.request);
+				} catch (ProtocolException e) {
+					exchange.request.destroy();
+					if (exchange.reply != null) exchange.reply.fail(e);
+					continue;
+				}
+			}
+			if (exchange.request.send(connection.socket)) {
+				connection.inFlight = exchange;
+				final long timeout = config.getRequestTimeout();
+				connection.deadline = (timeout == KBConstants.NO_TIMEOUT)?
+						Long.MAX_VALUE : System.currentTimeMillis() + timeout;
+				return;
+			}
+			if (exchange.reply != null) {
+				exchange.reply.fail(new ProtocolException("Failed to send request"));
+			}
+		}
+	}
+
+	private void receive(Connection connection) {
+		final ZMsg msg = ZMsg.recvMsg(connection.socket);
+		heard(connection);
+		final Exchange<?> exchange = connection.inFlight;
+		connection.inFlight = null;
+		if (exchange != null) exchange.complete(msg);
+		sendNext(connection);
+	}
+
+	private void checkDeadlines() {
+		final long now = System.currentTimeMillis();
+		for (Connection connection:new ArrayList<Connection>(connections)) {
+			final Exchange<?> exchange = connection.inFlight;
+			if ((exchange == null) || (now < connection.deadline)) continue;
+			connection.inFlight = null;
+			if (exchange.reply != null) {
+				exchange.reply.fail(new RequestTimeoutException(String.format(
+						"The worker did not reply within %d ms", config.getRequestTimeout())));
+			}
+			/*
+			 * The REQ socket can't send until it gets the reply, so replace
+			 * it, then ask the worker to drop the work, ignoring its answer.
+			 * A cancel request that times out is not itself cancelled.
+			 */
+			if (! replaceSocket(connection)) continue;
+			if (exchange.reply != null) {
+				connection.pending.addFirst(new Exchange<Object>(
+						CancelReq.create(exchange.sessionID), null, null));
+			}
+			sendNext(connection);
+		}
+	}
+
+	/**
+	 * @param connection a connection
+	 * @param interval the heartbeat interval or NO_HEARTBEAT
+	 * @return true if the worker has replied to connect and answers
+	 *         heartbeats while it works on a request
+	 */
+	private static boolean isHeartbeatTarget(Connection connection, long interval) {
+		return (interval != BridgeConfig.NO_HEARTBEAT) &&
+			   (connection.session.sessionID != null) &&
+			   (connection.capabilities != null) &&
+			   connection.capabilities.isHeartbeatSupported();
+	}
+
+	/**
+	 * @param connection a connection that gets heartbeats
+	 * @param interval the heartbeat interval
+	 * @return when the connection's heartbeat is due or, if one is outstanding,
+	 *         when it will have been missed
+	 */
+	private static long getNextHeartbeat(Connection connection, long interval) {
+		if (connection.heartbeatOutstanding) return connection.lastHeartbeat + interval;
+		return Math.max(connection.lastHeard, connection.lastHeartbeat) + interval;
+	}
+
+	private void receiveHeartbeat(Connection connection) {
+		final ZMsg msg = ZMsg.recvMsg(connection.heartbeatSocket);
+		connection.heartbeatOutstanding = false;
+		heard(connection);
+		try {
+			/*
+			 * The compute time frame comes last, after the load
+			 */
+			if (connection.capabilities.isComputeTimeReported()) AbstractReply.popComputeTime(msg);
+			connection.load = HeartbeatReply.recvReply(msg).getLoad();
+		} catch (ProtocolException e) {
+			/*
+			 * A worker that doesn't know heartbeats still shows that
+			 * it is alive by answering, but reports no load.
+			 */
+		}
+	}
+
+	private static void heard(Connection connection) {
+		connection.lastHeard = System.currentTimeMillis();
+		connection.missedHeartbeats = 0;
+		connection.liveness = Liveness.ALIVE;
+	}
+
+	private void checkHeartbeats() {
+		final long interval = config.getHeartbeatInterval();
+		if (interval == BridgeConfig.NO_HEARTBEAT) return;
+		final long now = System.currentTimeMillis();
+		for (Connection connection:new ArrayList<Connection>(connections)) {
+			if (connection.closed || ! isHeartbeatTarget(connection, interval) ||
+				(now < getNextHeartbeat(connection, interval))) continue;
+			if (connection.heartbeatOutstanding) {
+				/*
+				 * Missed: the REQ socket is stuck waiting, so replace it.
+				 */
+				connection.heartbeatOutstanding = false;
+				connection.heartbeatSocket.setLinger(0);
+				connection.heartbeatSocket.close();
+				connection.heartbeatSocket = null;
+				connection.missedHeartbeats++;
+				if (connection.missedHeartbeats < config.getHeartbeatLiveness()) {
+					connection.liveness = Liveness.SUSPECT;
+				} else if (connection.liveness != Liveness.DEAD) {
+					connection.liveness = Liveness.DEAD;
+					failRequests(connection, new ProtocolException("The worker stopped answering heartbeats"));
+					if (connection.closed) continue;
+				}
+			}
+			if (connection.heartbeatSocket == null) {
+				try {
+					connection.heartbeatSocket = newSocket(connection.uri);
+				} catch (RuntimeException e) {
+					closeConnection(connection, new ProtocolException(String.format(
+							"Failed to reconnect to the worker: %s", e.getMessage())));
+					continue;
+				}
+			}
+			connection.lastHeartbeat = now;
+			connection.heartbeatOutstanding =
+					HeartbeatReq.create(connection.session.sessionID).send(connection.heartbeatSocket);
+		}
+	}
+
+	/**
+	 * Fail a dead worker's requests. If a request is stuck on its
+	 * socket, replace the socket and ask the worker to drop the
+	 * request, so that it doesn't go on with work that nobody
+	 * is waiting for.
+	 *
+	 * @param connection the worker's connection
+	 * @param e the reason for the failure
+	 */
+	private void failRequests(Connection connection, ProtocolException e) {
+		final Exchange<?> abandoned = connection.inFlight;
+		if (abandoned != null) {
+			if (abandoned.reply != null) abandoned.reply.fail(e);
+			connection.inFlight = null;
+			if (! replaceSocket(connection)) return;
+		}
+		for (Exchange<?> exchange:connection.pending) {
+			if (exchange.reply != null) exchange.reply.fail(e);
+		}
+		connection.pending.clear();
+		if ((abandoned != null) && (abandoned.reply != null)) {
+			connection.pending.addFirst(new Exchange<Object>(
+					CancelReq.create(abandoned.sessionID), null, null));
+			sendNext(connection);
+		}
+	}
+
+	private void closeConnection(Connection connection, ProtocolException e) {
+		if (connection.closed) return;
+		connection.closed = true;
+		if ((connection.inFlight != null) && (connection.inFlight.reply != null)) {
+			connection.inFlight.reply.fail(e);
+		}
+		connection.inFlight = null;
+		for (Exchange<?> exchange:connection.pending) {
+			if (exchange.reply != null) exchange.reply.fail(e);
+		}
+		connection.pending.clear();
+		if (connection.socket != null) connection.socket.close();
+		if (connection.heartbeatSocket != null) {
+			connection.heartbeatSocket.setLinger(0);
+			connection.heartbeatSocket.close();
+		}
+		connections.remove(connection);
+		socketsChanged = true;
+	}
+
+	/**
+	 * Replace a connection's socket with a new one to the same worker.
+	 * If that fails, close the connection, failing its requests.
+	 *
+	 * @param connection the connection
+	 * @return true if the socket was replaced, false if the connection was closed
+	 */
+	private boolean replaceSocket(Connection connection) {
+		connection.socket.setLinger(0);
+		connection.socket.close();
+		connection.socket = null;
+		try {
+			connection.socket = newSocket(connection.uri);
+			return true;
+		} catch (RuntimeException e) {
+			closeConnection(connection, new ProtocolException(String.format(
+					"Failed to reconnect to the worker: %s", e.getMessage())));
+			return false;
+		}
+	}
+
+	/**
+	 * Make a socket for a connection. The caller stores it in the
+	 * connection, closing the one it replaces, before the next poll.
+	 *
+	 * @throws RuntimeException if ZMQ can't connect to the address,
+	 *         for instance because it is malformed
+	 */
+	private Socket newSocket(URI uri) {
+		final Socket socket = config.createSocket(ZMQ.REQ);
+		try {
+			socket.connect(uri.toString());
+		} catch (RuntimeException e) {
+			socket.close();
+			throw e;
+		}
+		socketsChanged = true;
+		return socket;
+	}
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.imagej.ImgPlus;
+
+import org.cellprofiler.knimebridge.message.RunReply;
+import org.cellprofiler.knimebridge.message.RunReq;
+
+/**
+ * @author agent
+ *
+ * Runs a stream of image sets across one or more bridges and
+ * returns the measurements as a stream.
+ *
+ * Image sets are pulled from the caller's iterator only when
+ * there is room for them: at most maxInFlight image sets are
+ * held by the executor at any one time, counting those waiting
+ * for a bridge, those being run and those whose results have
+ * not yet been taken from the result stream. Memory use is
+ * therefore bounded regardless of the number of image sets.
+ *
+ * Each bridge should be connected and have the same pipeline loaded.
+ * Results are returned in the order in which they complete; use
+ * {@link Result#getIndex()} to match them to the image sets.
+ */
+@SuppressWarnings("deprecation")
+public class BridgeExecutor {
+	/**
+	 * @author agent
+	 *
+	 * The outcome of running the pipeline on one image set
+	 */
+	public static class Result {
+		private final int index;
+		private final IRunResult result;
+		private final Exception error;
+		Result(int index, IRunResult result, Exception error) {
+			this.index = index;
+			this.result = result;
+			this.error = error;
+		}
+		/**
+		 * @return the index of the image set in the input stream
+		 */
+		public int getIndex() {
+			return index;
+		}
+		/**
+		 * @return the measurements or null if the image set failed to run
+		 */
+		public IRunResult getResult() {
+			return result;
+		}
+		/**
+		 * @return the reason that the image set failed to run or null if it succeeded
+		 */
+		public Exception getError() {
+			return error;
+		}
+	}
+	/**
+	 * An image set waiting for a bridge
+	 */
+	private static class Work {
+		final int index;
+		final Map<String, ImgPlus<?>> imageSet;
+		Work(int index, Map<String, ImgPlus<?>> imageSet) {
+			this.index = index;
+			this.imageSet = imageSet;
+		}
+	}
+	private final static Work NO_MORE_WORK = new Work(-1, null);
+	private final static Result END_OF_RESULTS = new Result(-1, null, null);
+
+	private final List<KnimeBridgeImpl> bridges = new ArrayList<KnimeBridgeImpl>();
+	private final int maxInFlight;
+
+	/**
+	 * Create an executor
+	 *
+	 * @param bridges connected bridges, each with the pipeline loaded
+	 * @param maxInFlight the maximum number of image sets held by the
+	 *        executor at any one time. This should be at least the
+	 *        number of bridges to keep all of them busy.
+	 */
+	public BridgeExecutor(Collection<IKnimeBridge> bridges, int maxInFlight) {
+		if (bridges.isEmpty()) {
+			throw new IllegalArgumentException("The executor needs at least one bridge");
+		}
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("maxInFlight must be at least 1");
+		}
+		this.bridges.addAll(asImpls(bridges));
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * Check that the bridges are ones that the executor can use
+	 *
+	 * @param bridges bridges made by the KnimeBridgeFactory
+	 * @return the bridges as their implementation class
+	 */
+	static List<KnimeBridgeImpl> asImpls(Collection<IKnimeBridge> bridges) {
+		final List<KnimeBridgeImpl> impls = new ArrayList<KnimeBridgeImpl>(bridges.size());
+		for (IKnimeBridge bridge:bridges) {
+			if (! (bridge instanceof KnimeBridgeImpl)) {
+				throw new IllegalArgumentException("The bridges must come from the KnimeBridgeFactory");
+			}
+			impls.add((KnimeBridgeImpl)bridge);
+		}
+		return impls;
+	}
+
+	/**
+	 * Run the bridge's pipeline on one image set
+	 *
+	 * @param bridge run on this bridge
+	 * @param index the index of the image set in its stream
+	 * @param imageSet map of channel name to image
+	 * @return the result, holding the measurements or the error
+	 *         reported by the worker
+	 * @throws RuntimeException if the exchange with the worker failed,
+	 *         leaving the bridge's socket unusable
+	 */
+	static Result run(KnimeBridgeImpl bridge, int index, Map<String, ImgPlus<?>> imageSet) {
+		try {
+			final RunReply reply = new RunReply();
+			reply.recv(bridge.exchange(RunReq.create(
+					bridge.getSessionID(), bridge.getPipeline(), imageSet, bridge.getEncoding())));
+			return new Result(index, reply, null);
+		} catch (CellProfilerException e) {
+			return new Result(index, null, e);
+		} catch (PipelineException e) {
+			return new Result(index, null, e);
+		} catch (ProtocolException e) {
+			return new Result(index, null, e);
+		}
+	}
+
+	/**
+	 * Start running the pipeline on a stream of image sets
+	 *
+	 * @param imageSets the image sets, each a map of channel name to image.
+	 *        The iterator is only used by the executor's feeder thread.
+	 * @return the stream of results
+	 */
+	public ResultStream execute(Iterator<Map<String, ImgPlus<?>>> imageSets) {
+		final ResultStream stream = new ResultStream(imageSets);
+		stream.start();
+		return stream;
+	}
+
+	/**
+	 * Start running the pipeline on a collection of image sets
+	 *
+	 * @param imageSets the image sets, each a map of channel name to image.
+	 * @return the stream of results
+	 */
+	public ResultStream execute(Iterable<Map<String, ImgPlus<?>>> imageSets) {
+		return execute(imageSets.iterator());
+	}
+
+	/**
+	 * @author agent
+	 *
+	 * The results of an execution, in order of completion.
+	 * Taking a result makes room for another image set.
+	 */
+	public class ResultStream implements Iterator<Result> {
+		private final Iterator<Map<String, ImgPlus<?>>> imageSets;
+		private final Semaphore permits = new Semaphore(maxInFlight);
+		private final BlockingQueue<Work> work = new LinkedBlockingQueue<Work>();
+		private final BlockingQueue<Result> results = new LinkedBlockingQueue<Result>();
+		private final AtomicBoolean closed = new AtomicBoolean(false);
+		/*
+		 * The number of threads (feeder and bridge threads) that have
+		 * not finished. The last to finish posts the end of the results.
+		 */
+		private final AtomicInteger running = new AtomicInteger();
+		/*
+		 * The number of bridge threads still accepting work. Guarded by "work".
+		 */
+		private int liveBridges;
+		private final Thread feeder;
+		private final List<Thread> bridgeThreads = new ArrayList<Thread>();
+		private Result nextResult;
+		private boolean done;
+
+		ResultStream(Iterator<Map<String, ImgPlus<?>>> imageSets) {
+			this.imageSets = imageSets;
+			feeder = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						feed();
+					} finally {
+						finish();
+					}
+				}
+			}, "BridgeExecutor feeder");
+			feeder.setDaemon(true);
+			for (final KnimeBridgeImpl bridge:bridges) {
+				final Thread thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							runOn(bridge);
+						} finally {
+							finish();
+						}
+					}
+				}, "BridgeExecutor worker");
+				thread.setDaemon(true);
+				bridgeThreads.add(thread);
+			}
+		}
+
+		void start() {
+			running.set(bridgeThreads.size() + 1);
+			liveBridges = bridgeThreads.size();
+			for (Thread thread:bridgeThreads) thread.start();
+			feeder.start();
+		}
+
+		/**
+		 * Pull image sets from the input as permits become available
+		 */
+		private void feed() {
+			int index = 0;
+			try {
+				while (! closed.get()) {
+					permits.acquire();
+					final Map<String, ImgPlus<?>> imageSet;
+					try {
+						if (! imageSets.hasNext()) break;
+						imageSet = imageSets.next();
+					} catch (RuntimeException e) {
+						results.add(new Result(index, null, e));
+						break;
+					}
+					final Work item = new Work(index++, imageSet);
+					synchronized (work) {
+						if (liveBridges == 0) {
+							results.add(new Result(item.index, null,
+									new ProtocolException("No bridge is available to run the image set")));
+						} else {
+							work.add(item);
+						}
+					}
+				}
+			} catch (InterruptedException e) {
+			} finally {
+				for (int i=0; i<bridgeThreads.size(); i++) work.add(NO_MORE_WORK);
+			}
+		}
+
+		/**
+		 * Run image sets on a bridge until there are no more or
+		 * until the bridge's connection fails.
+		 *
+		 * @param bridge
+		 */
+		private void runOn(KnimeBridgeImpl bridge) {
+			try {
+				while (true) {
+					final Work item = work.take();
+					if (item == NO_MORE_WORK) return;
+					if (closed.get()) {
+						results.add(new Result(item.index, null, new InterruptedException("Execution was closed")));
+						continue;
+					}
+					try {
+						results.add(BridgeExecutor.run(bridge, item.index, item.imageSet));
+					} catch (RuntimeException e) {
+						/*
+						 * A communication failure leaves the socket unusable.
+						 */
+						results.add(new Result(item.index, null, e));
+						return;
+					}
+				}
+			} catch (InterruptedException e) {
+			} finally {
+				synchronized (work) {
+					if (--liveBridges == 0) {
+						Work item;
+						while ((item = work.poll()) != null) {
+							if (item != NO_MORE_WORK) {
+								results.add(new Result(item.index, null,
+										new ProtocolException("No bridge is available to run the image set")));
+							}
+						}
+					}
+				}
+			}
+		}
+
+		private void finish() {
+			if (running.decrementAndGet() == 0) results.add(END_OF_RESULTS);
+		}
+
+		/**
+		 * Wait for the next result
+		 *
+		 * @return true if there is another result, false if all image
+		 *         sets have been run.
+		 * @throws IllegalStateException if the thread was interrupted while waiting.
+		 *         The stream is closed and the thread's interrupt status is set.
+		 */
+		@Override
+		public boolean hasNext() {
+			if (nextResult != null) return true;
+			if (done) return false;
+			final Result result;
+			try {
+				result = results.take();
+			} catch (InterruptedException e) {
+				close();
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting for results");
+			}
+			if (result == END_OF_RESULTS) {
+				done = true;
+				return false;
+			}
+			nextResult = result;
+			return true;
+		}
+
+		@Override
+		public Result next() {
+			if (! hasNext()) throw new NoSuchElementException();
+			final Result result = nextResult;
+			nextResult = null;
+			permits.release();
+			return result;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		/**
+		 * Stop pulling image sets from the input. Image sets that are
+		 * being run complete, the others are reported as failed.
+		 */
+		public void close() {
+			closed.set(true);
+			feeder.interrupt();
+		}
+	}
+}
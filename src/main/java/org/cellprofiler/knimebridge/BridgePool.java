@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.imagej.ImgPlus;
+
+/**
+ * @author agent
+ *
+ * A pool of bridges, each connected to a different worker with the same
+ * pipeline loaded. Each call to {@link #run(Map)} runs the pipeline on
+ * a free bridge, so several threads can share the pool.
+ *
+ * The pool can hedge requests to cut the tail latency caused by stalled
+ * workers. When hedging is enabled and a run takes longer than the
+ * configured percentile of recent run times, the same image set is sent
+ * to a second free worker. Whichever reply arrives first is returned
+ * and the other run is cancelled, after which its bridge goes back into
+ * the pool. A communication failure of one run, for instance a timeout,
+ * does not fail the image set while the other run may still succeed.
+ */
+public class BridgePool {
+	/**
+	 * The number of recent run times used to compute the hedging delay
+	 */
+	public final static int LATENCY_WINDOW = 100;
+	/**
+	 * The number of run times that must be recorded before hedging starts
+	 */
+	public final static int MIN_LATENCY_SAMPLES = 10;
+
+	/*
+	 * The state below is guarded by "this"
+	 */
+	private final Deque<KnimeBridgeImpl> idle = new ArrayDeque<KnimeBridgeImpl>();
+	private int liveBridges;
+	private final long [] latencies = new long[LATENCY_WINDOW];
+	private int nLatencies;
+	private int latencyIdx;
+	private double hedgePercentile;
+	private int nHedged;
+	private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			final Thread thread = new Thread(r, "BridgePool worker");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * Create a pool with hedging disabled
+	 *
+	 * @param bridges connected bridges, each with the same pipeline loaded
+	 */
+	public BridgePool(Collection<IKnimeBridge> bridges) {
+		if (bridges.isEmpty()) {
+			throw new IllegalArgumentException("The pool needs at least one bridge");
+		}
+		idle.addAll(BridgeExecutor.asImpls(bridges));
+		liveBridges = idle.size();
+	}
+
+	/**
+	 * Enable or disable hedging
+	 *
+	 * @param percentile hedge a run if it takes longer than this percentile
+	 *        of recent run times, for instance 95. Use 0 to disable hedging.
+	 */
+	public synchronized void setHedgePercentile(double percentile) {
+		if ((percentile < 0) || (percentile > 100)) {
+			throw new IllegalArgumentException("The percentile must be between 0 and 100");
+		}
+		hedgePercentile = percentile;
+	}
+
+	/**
+	 * @return the percentile of run times after which a run is hedged or 0 if hedging is disabled
+	 */
+	public synchronized double getHedgePercentile() {
+		return hedgePercentile;
+	}
+
+	/**
+	 * @return the number of runs that were sent to a second worker
+	 */
+	public synchronized int getHedgedCount() {
+		return nHedged;
+	}
+
+	/**
+	 * Get a percentile of the recent run times
+	 *
+	 * @param percentile the percentile, for instance 50 for the median
+	 * @return the run time in nanoseconds or -1 if no runs have been recorded
+	 */
+	public synchronized long getLatencyPercentile(double percentile) {
+		if (nLatencies == 0) return -1;
+		final long [] sorted = Arrays.copyOf(latencies, nLatencies);
+		Arrays.sort(sorted);
+		final int idx = (int)Math.ceil(percentile * nLatencies / 100) - 1;
+		return sorted[Math.max(0, Math.min(nLatencies-1, idx))];
+	}
+
+	/**
+	 * Run the pipeline on an image set
+	 *
+	 * @param imageSet map of channel name to image
+	 * @return the measurements
+	 * @throws CellProfilerException if CellProfiler encountered an error
+	 *                               while running the pipeline.
+	 * @throws PipelineException if there was a configuration problem
+	 *                           with the pipeline.
+	 * @throws ProtocolException if the client could not understand the
+	 *                           worker or if no bridge is usable.
+	 * @throws InterruptedException if interrupted while waiting. The run
+	 *                           completes in the background.
+	 */
+	public IRunResult run(Map<String, ImgPlus<?>> imageSet)
+			throws CellProfilerException, PipelineException, ProtocolException, InterruptedException {
+		final BlockingQueue<Attempt> done = new LinkedBlockingQueue<Attempt>();
+		final Attempt first = submit(acquire(), imageSet, done);
+		Attempt second = null;
+		int outstanding = 1;
+		final long delay = getHedgeDelay();
+		Attempt attempt = (delay < 0)? done.take() : done.poll(delay, TimeUnit.NANOSECONDS);
+		if (attempt == null) {
+			final KnimeBridgeImpl bridge = poll();
+			if (bridge != null) {
+				second = submit(bridge, imageSet, done);
+				outstanding++;
+				synchronized (this) {
+					nHedged++;
+				}
+			}
+			attempt = done.take();
+		}
+		/*
+		 * Prefer a reply from the other worker to a communication failure.
+		 */
+		while (isCommunicationFailure(attempt.result.getError()) && (--outstanding > 0)) {
+			attempt = done.take();
+		}
+		if (outstanding > 1) {
+			((attempt == first)? second : first).cancel();
+		}
+		final Exception error = attempt.result.getError();
+		if (error == null) return attempt.result.getResult();
+		if (error instanceof CellProfilerException) throw (CellProfilerException)error;
+		if (error instanceof PipelineException) throw (PipelineException)error;
+		if (error instanceof ProtocolException) throw (ProtocolException)error;
+		throw (RuntimeException)error;
+	}
+
+	/**
+	 * Stop the pool's threads once the runs in progress are done
+	 */
+	public void close() {
+		executor.shutdown();
+	}
+
+	/**
+	 * @param error the error from a run or null if it succeeded
+	 * @return true if the error came from talking to the worker rather
+	 *         than from running the pipeline
+	 */
+	private static boolean isCommunicationFailure(Exception error) {
+		return (error instanceof ProtocolException) || (error instanceof RuntimeException);
+	}
+
+	private Attempt submit(KnimeBridgeImpl bridge, Map<String, ImgPlus<?>> imageSet,
+			BlockingQueue<Attempt> done) {
+		final Attempt attempt = new Attempt(bridge, imageSet, done);
+		executor.execute(attempt);
+		return attempt;
+	}
+
+	/**
+	 * One run of an image set on one of the pool's bridges
+	 */
+	private class Attempt implements Runnable {
+		private final KnimeBridgeImpl bridge;
+		private final Map<String, ImgPlus<?>> imageSet;
+		private final BlockingQueue<Attempt> done;
+		/*
+		 * "finished" and "cancelled" are guarded by "this"
+		 */
+		private boolean finished;
+		private boolean cancelled;
+		BridgeExecutor.Result result;
+
+		Attempt(KnimeBridgeImpl bridge, Map<String, ImgPlus<?>> imageSet, BlockingQueue<Attempt> done) {
+			this.bridge = bridge;
+			this.imageSet = imageSet;
+			this.done = done;
+		}
+
+		@Override
+		public void run() {
+			final long start = System.nanoTime();
+			boolean broken = false;
+			try {
+				result = BridgeExecutor.run(bridge, -1, imageSet);
+			} catch (RuntimeException e) {
+				/*
+				 * A communication failure leaves the socket unusable.
+				 */
+				result = new BridgeExecutor.Result(-1, null, e);
+				broken = true;
+			}
+			final boolean wasCancelled;
+			synchronized (this) {
+				finished = true;
+				wasCancelled = cancelled;
+				/*
+				 * A cancel that came after the run completed would
+				 * cancel the bridge's next run instead.
+				 */
+				if (cancelled) bridge.clearCancel();
+			}
+			release(bridge, broken, wasCancelled? -1 : System.nanoTime() - start);
+			done.add(this);
+		}
+
+		/**
+		 * Cancel the run if it is still in progress
+		 */
+		synchronized void cancel() {
+			if (finished) return;
+			cancelled = true;
+			bridge.cancel();
+		}
+	}
+
+	/**
+	 * Wait for a free bridge
+	 *
+	 * @return the bridge
+	 * @throws ProtocolException if no bridge is usable
+	 * @throws InterruptedException
+	 */
+	private synchronized KnimeBridgeImpl acquire() throws ProtocolException, InterruptedException {
+		while (idle.isEmpty()) {
+			if (liveBridges == 0) {
+				throw new ProtocolException("No bridge is available to run the image set");
+			}
+			wait();
+		}
+		return idle.removeFirst();
+	}
+
+	/**
+	 * @return a free bridge or null if none is free
+	 */
+	private synchronized KnimeBridgeImpl poll() {
+		return idle.pollFirst();
+	}
+
+	/**
+	 * Return a bridge to the pool
+	 *
+	 * @param bridge the bridge
+	 * @param broken true if the bridge's socket is unusable
+	 * @param latency the run time in nanoseconds or -1 not to record it,
+	 *        for instance because the run was cancelled
+	 */
+	private synchronized void release(KnimeBridgeImpl bridge, boolean broken, long latency) {
+		if (broken) {
+			liveBridges--;
+		} else {
+			idle.addLast(bridge);
+			if (latency >= 0) recordLatency(latency);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Add a run time to the window of recent run times
+	 *
+	 * @param latency the run time in nanoseconds
+	 */
+	synchronized void recordLatency(long latency) {
+		latencies[latencyIdx] = latency;
+		latencyIdx = (latencyIdx + 1) % LATENCY_WINDOW;
+		nLatencies = Math.min(nLatencies + 1, LATENCY_WINDOW);
+	}
+
+	/**
+	 * @return the time to wait before hedging in nanoseconds or -1 not to hedge
+	 */
+	private synchronized long getHedgeDelay() {
+		if ((hedgePercentile == 0) || (nLatencies < MIN_LATENCY_SAMPLES)) return -1;
+		return getLatencyPercentile(hedgePercentile);
+	}
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.imagej.ImgPlus;
+
+import org.cellprofiler.knimebridge.message.ImageEncoding;
+import org.cellprofiler.knimebridge.message.RunReply;
+import org.cellprofiler.knimebridge.message.RunReq;
+
+/**
+ * @author agent
+ *
+ * Checks whether sending a pipeline's images as 32-bit floats changes
+ * its measurements by an acceptable amount. The validator runs the
+ * bridge's pipeline on an image set twice, once with the pixels sent
+ * as doubles and once as floats, and compares every measurement.
+ * For instance,
+ *
+ *     Float32Validator.Report report = new Float32Validator(bridge).validate(images);
+ *     if (report.isAcceptable(1E-4)) {
+ *         // use BridgeConfig.Builder.setFloat32(true) for this pipeline
+ *     }
+ *
+ * Integer and string measurements and the number of rows of each
+ * result table must match exactly. Floating-point measurements are
+ * compared by their relative difference.
+ */
+@SuppressWarnings("deprecation")
+public class Float32Validator {
+	private final KnimeBridgeImpl bridge;
+
+	/**
+	 * @author agent
+	 *
+	 * The differences between the measurements made from doubles and
+	 * those made from floats
+	 */
+	public static class Report {
+		private final Map<IFeatureDescription, Double> errors = new LinkedHashMap<IFeatureDescription, Double>();
+		private final List<IFeatureDescription> mismatches = new ArrayList<IFeatureDescription>();
+		private final List<String> rowMismatches = new ArrayList<String>();
+
+		/**
+		 * @return the floating-point features that were compared
+		 */
+		public List<IFeatureDescription> getFeatures() {
+			return Collections.unmodifiableList(new ArrayList<IFeatureDescription>(errors.keySet()));
+		}
+
+		/**
+		 * @param feature a floating-point feature
+		 * @return the largest relative difference between the feature's values
+		 *         or NaN if the feature wasn't compared
+		 */
+		public double getRelativeError(IFeatureDescription feature) {
+			final Double error = errors.get(feature);
+			return (error == null)? Double.NaN : error;
+		}
+
+		/**
+		 * @return the largest relative difference of any floating-point feature
+		 */
+		public double getMaxRelativeError() {
+			double result = 0;
+			for (double error:errors.values()) {
+				result = Math.max(result, error);
+			}
+			return result;
+		}
+
+		/**
+		 * @return the integer and string features whose values differ
+		 *         and the features whose number of values differ
+		 */
+		public List<IFeatureDescription> getMismatches() {
+			return Collections.unmodifiableList(mismatches);
+		}
+
+		/**
+		 * @return the result tables with different numbers of rows,
+		 *         for instance because a different number of objects
+		 *         was segmented
+		 */
+		public List<String> getRowMismatches() {
+			return Collections.unmodifiableList(rowMismatches);
+		}
+
+		/**
+		 * @param tolerance the largest acceptable relative difference
+		 * @return true if the tables and the integer and string measurements
+		 *         match and no floating-point measurement differs by more
+		 *         than the tolerance
+		 */
+		public boolean isAcceptable(double tolerance) {
+			return rowMismatches.isEmpty() && mismatches.isEmpty() && (getMaxRelativeError() <= tolerance);
+		}
+	}
+
+	/**
+	 * Create a validator
+	 *
+	 * @param bridge a bridge that has been connected and has a pipeline loaded
+	 */
+	public Float32Validator(IKnimeBridge bridge) {
+		if (! (bridge instanceof KnimeBridgeImpl)) {
+			throw new IllegalArgumentException("The bridge must come from the KnimeBridgeFactory");
+		}
+		this.bridge = (KnimeBridgeImpl)bridge;
+	}
+
+	/**
+	 * Run the pipeline on an image set with double and with float pixels
+	 * and compare the measurements
+	 *
+	 * @param images a map of channel name to image
+	 * @return the differences between the measurements
+	 * @throws CellProfilerException if CellProfiler encountered an error
+	 *                               while running the pipeline.
+	 * @throws PipelineException if there was a configuration problem
+	 *                           with the pipeline.
+	 * @throws ProtocolException if the worker does not accept float pixels
+	 *                           or if there was a communication problem
+	 */
+	public Report validate(Map<String, ImgPlus<?>> images)
+			throws CellProfilerException, PipelineException, ProtocolException {
+		if (! bridge.getWorkerCapabilities().supportsEncoding(WorkerCapabilities.ENCODING_FLOAT32)) {
+			throw new ProtocolException("The worker does not accept float32 pixels");
+		}
+		final ImageEncoding encoding = bridge.getEncoding();
+		final IRunResult expected = run(images, encoding.withFloat32(false));
+		final IRunResult actual = run(images, encoding.withFloat32(true));
+		final Report report = new Report();
+		for (String table:bridge.getResultTableNames()) {
+			if (expected.getNumberOfRows(table) != actual.getNumberOfRows(table)) {
+				report.rowMismatches.add(table);
+				continue;
+			}
+			for (IFeatureDescription feature:bridge.getFeatures(table)) {
+				compare(feature, expected, actual, report);
+			}
+		}
+		return report;
+	}
+
+	private IRunResult run(Map<String, ImgPlus<?>> images, ImageEncoding encoding)
+			throws CellProfilerException, PipelineException, ProtocolException {
+		final RunReply reply = new RunReply();
+		reply.recv(bridge.exchange(RunReq.create(bridge.getSessionID(), bridge.getPipeline(), images, encoding)));
+		return reply;
+	}
+
+	private static void compare(IFeatureDescription feature, IRunResult expected, IRunResult actual, Report report) {
+		final Class<?> type = feature.getType();
+		if (type.equals(Double.class)) {
+			final double [] a = expected.getDoubleMeasurements(feature);
+			final double [] b = actual.getDoubleMeasurements(feature);
+			if (sizeMismatch(a, b, feature, report)) return;
+			double error = 0;
+			for (int i=0; (a != null) && (i<a.length); i++) {
+				error = Math.max(error, relativeError(a[i], b[i]));
+			}
+			report.errors.put(feature, error);
+		} else if (type.equals(Float.class)) {
+			final float [] a = expected.getFloatMeasurements(feature);
+			final float [] b = actual.getFloatMeasurements(feature);
+			if (sizeMismatch(a, b, feature, report)) return;
+			double error = 0;
+			for (int i=0; (a != null) && (i<a.length); i++) {
+				error = Math.max(error, relativeError(a[i], b[i]));
+			}
+			report.errors.put(feature, error);
+		} else if (type.equals(Integer.class)) {
+			final int [] a = expected.getIntMeasurements(feature);
+			final int [] b = actual.getIntMeasurements(feature);
+			if (! Arrays.equals(a, b)) report.mismatches.add(feature);
+		} else if (type.equals(String.class)) {
+			final String a = expected.getStringMeasurement(feature);
+			final String b = actual.getStringMeasurement(feature);
+			if ((a == null)? (b != null) : ! a.equals(b)) report.mismatches.add(feature);
+		}
+	}
+
+	private static boolean sizeMismatch(Object a, Object b, IFeatureDescription feature, Report report) {
+		final int aLength = (a == null)? -1 : Array.getLength(a);
+		final int bLength = (b == null)? -1 : Array.getLength(b);
+		if (aLength == bLength) return false;
+		report.mismatches.add(feature);
+		return true;
+	}
+
+	/**
+	 * @param a the value measured from doubles
+	 * @param b the value measured from floats
+	 * @return the difference relative to the larger magnitude, 0 if both
+	 *         are NaN or equal and infinite if only one is NaN
+	 */
+	static double relativeError(double a, double b) {
+		if (Double.isNaN(a) || Double.isNaN(b)) {
+			return (Double.isNaN(a) && Double.isNaN(b))? 0 : Double.POSITIVE_INFINITY;
+		}
+		if (a == b) return 0;
+		return Math.abs(a - b) / Math.max(Math.abs(a), Math.abs(b));
+	}
+}
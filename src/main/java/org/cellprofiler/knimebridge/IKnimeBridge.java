@@ -89,6 +89,10 @@ public interface IKnimeBridge {
 	/**
 	 * Remove modules by name from a pipeline
 	 * 
+	 * If the bridge is not connected, the pipeline is cleaned
+	 * locally by {@link PipelineCleaner}, otherwise the worker
+	 * cleans the pipeline.
+	 * 
 	 * @param pipeline the text from a CellProfiler pipeline
 	 * @param moduleNames the names of the modules to be removed as they appear
 	 *                    in CellProfiler.
@@ -154,12 +158,37 @@ public interface IKnimeBridge {
 	/**
 	 * Run one cycle of the pipeline
 	 * 
+	 * An image can be a view of part of a larger image, wrapped with
+	 * {@link ImageViews#wrap(net.imglib2.RandomAccessibleInterval, String, net.imagej.axis.AxisType...)},
+	 * in which case it is encoded without being copied first. An image
+	 * can also be a color (ARGBType) image, which is sent as red, green
+	 * and blue channels.
+	 * 
 	 * @param images the images that will be the inputs, in the same order as for getInputChannels
 	 * @throws ProtocolException 
 	 * @throws PipelineException 
 	 */
 	public void run(Map<String, ImgPlus<?>> images) throws ZMQException, CellProfilerException, PipelineException, ProtocolException;
 	
+	/**
+	 * Run one cycle of the pipeline on the channels of one multichannel image
+	 * 
+	 * The channels' pixels are encoded straight from the image, without
+	 * splitting it into an image per channel first.
+	 * 
+	 * @param image an image with a CHANNEL axis
+	 * @param channelNames a map of the index of a channel on the CHANNEL axis
+	 *                     to the name of the input channel, from getInputChannels,
+	 *                     that it is used for
+	 * @throws ZMQException on network error
+	 * @throws CellProfilerException if CellProfiler encountered an error
+	 *                               while running the pipeline.
+	 * @throws PipelineException if there was a configuration problem
+	 *                           with the pipeline.
+	 * @throws ProtocolException
+	 */
+	public void run(ImgPlus<?> image, Map<Integer, String> channelNames) throws ZMQException, CellProfilerException, PipelineException, ProtocolException;
+	
 	/**
 	 * Run a group of images
 	 * 
@@ -179,6 +208,102 @@ public interface IKnimeBridge {
 	 */
 	public void runGroup(Map<String, ImgPlus<?>> images) throws ZMQException, CellProfilerException, PipelineException, ProtocolException;
 	
+	/**
+	 * Run one cycle of the pipeline on each of several independent
+	 * image sets, sending all of them in a single message.
+	 * 
+	 * This amortizes the cost of the round trip to the worker and
+	 * of transmitting the pipeline over the image sets in the batch.
+	 * After the batch has run, the measurement getters of the bridge
+	 * return the measurements of the last image set.
+	 * 
+	 * If the worker does not support batches, the image sets are
+	 * run one at a time.
+	 * 
+	 * @param imageSets one map of channel name to image per image set
+	 * @return the measurements of each image set, in the order of imageSets
+	 * @throws ZMQException on network error
+	 * @throws CellProfilerException if CellProfiler encountered an error
+	 *                               while running the pipeline.
+	 * @throws PipelineException if there was a configuration problem
+	 *                           with the pipeline.
+	 * @throws ProtocolException if the worker did not support the request
+	 */
+	public List<IRunResult> runBatch(List<Map<String, ImgPlus<?>>> imageSets) 
+			throws ZMQException, CellProfilerException, PipelineException, ProtocolException;
+	
+	/**
+	 * Run one cycle of the pipeline on images that the worker
+	 * loads itself, for instance from storage that it shares with
+	 * the client. No pixels are sent.
+	 * 
+	 * @param images a map of channel name to the location of the image,
+	 *               as seen by the worker
+	 * @throws ZMQException on network error
+	 * @throws CellProfilerException if CellProfiler encountered an error
+	 *                               while running the pipeline, for instance
+	 *                               if it could not read an image.
+	 * @throws PipelineException if there was a configuration problem
+	 *                           with the pipeline.
+	 * @throws ProtocolException if the worker did not support the request
+	 */
+	public void runByReference(Map<String, ImageReference> images)
+			throws ZMQException, CellProfilerException, PipelineException, ProtocolException;
+	
+	/**
+	 * Get the protocol features that the worker reported when connecting.
+	 * The bridge only uses the features that the worker supports.
+	 * 
+	 * @return the worker's capabilities or {@link WorkerCapabilities#LEGACY}
+	 *         for a worker that did not report them or before connecting
+	 */
+	public WorkerCapabilities getWorkerCapabilities();
+	
+	/**
+	 * Set the deadline for each request to the worker. If the worker
+	 * does not reply in time, the request fails with a
+	 * RequestTimeoutException, the worker is asked to cancel the
+	 * request and the bridge is ready for the next request.
+	 * 
+	 * @param timeoutMs the maximum time to wait for a reply in milliseconds
+	 *                  or KBConstants.NO_TIMEOUT to wait forever (the default).
+	 */
+	public void setRequestTimeout(long timeoutMs);
+	
+	/**
+	 * @return the maximum time to wait for a reply in milliseconds
+	 *         or KBConstants.NO_TIMEOUT to wait forever.
+	 */
+	public long getRequestTimeout();
+	
+	/**
+	 * Set the number of times to reconnect when the worker stops
+	 * replying, for instance because it restarted. Reconnecting
+	 * starts a new session on a new socket, reloads the current
+	 * pipeline and resends the request that was in progress.
+	 * 
+	 * A worker is taken to have stopped when a request times out,
+	 * so reconnecting requires a request timeout.
+	 * 
+	 * @param attempts the maximum number of reconnects per request or
+	 *                 zero to fail the request instead (the default).
+	 */
+	public void setReconnectAttempts(int attempts);
+	
+	/**
+	 * @return the maximum number of reconnects per request
+	 */
+	public int getReconnectAttempts();
+	
+	/**
+	 * Cancel the request in progress or, if there is none, the next
+	 * request. This may be called from any thread, for instance while
+	 * a run's images are being encoded. The request fails with a
+	 * RequestCancelledException, the worker is asked to cancel the
+	 * request if it was sent and the bridge is ready for the next request.
+	 */
+	public void cancel();
+	
 	/**
 	 * Get the # of rows to expect for each feature for this result table
 	 * 
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge;
+
+/**
+ * The measurements produced by running the pipeline on one image set
+ * (or one group of image sets).
+ *
+ * @author agent
+ *
+ */
+public interface IRunResult {
+	/**
+	 * Get the # of rows to expect for each feature for this result table
+	 *
+	 * @param resultTableName
+	 * @return
+	 */
+	public int getNumberOfRows(String resultTableName);
+	/**
+	 * If the feature description is of type Integer, return results as an array of ints
+	 *
+	 * @param feature
+	 * @return
+	 */
+	public int [] getIntMeasurements(IFeatureDescription feature);
+	/**
+	 * If the feature description is of type Double, return result as array of doubles
+	 * @param feature
+	 * @return
+	 */
+	public double [] getDoubleMeasurements(IFeatureDescription feature);
+
+	/**
+	 * If the feature description is of type Float, return result
+	 * as an array of floats.
+	 *
+	 * @param feature
+	 * @return
+	 */
+	public float [] getFloatMeasurements(IFeatureDescription feature);
+
+	/**
+	 * If the feature description is of type String, there
+	 * will be just a single string returned, for instance
+	 * some image-wide metadata.
+	 *
+	 * @param feature
+	 * @return
+	 */
+	public String getStringMeasurement(IFeatureDescription feature);
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge;
+
+import java.io.File;
+import java.net.URI;
+
+/**
+ * @author agent
+ *
+ * The location of an image that the worker loads itself, for
+ * instance a file on storage shared by the client and the worker.
+ * The image is the plane at the given index in the given series
+ * of the file, as numbered by the worker's image reader.
+ */
+public class ImageReference {
+	private final URI uri;
+	private final int series;
+	private final int index;
+
+	/**
+	 * Refer to the first plane of the first series of a file
+	 *
+	 * @param uri the location of the file as seen by the worker,
+	 *            for instance file:///data/plate1/A01.tif
+	 */
+	public ImageReference(URI uri) {
+		this(uri, 0, 0);
+	}
+
+	/**
+	 * Refer to one plane of a file
+	 *
+	 * @param uri the location of the file as seen by the worker
+	 * @param series the index of the series within the file
+	 * @param index the index of the plane within the series
+	 */
+	public ImageReference(URI uri, int series, int index) {
+		if (uri == null) {
+			throw new IllegalArgumentException("The image's URI must not be null");
+		}
+		if ((series < 0) || (index < 0)) {
+			throw new IllegalArgumentException("The series and plane indices must not be negative");
+		}
+		this.uri = uri;
+		this.series = series;
+		this.index = index;
+	}
+
+	/**
+	 * Refer to one plane of a file by its path
+	 *
+	 * @param file the file, whose path must be the same for the worker
+	 * @param series the index of the series within the file
+	 * @param index the index of the plane within the series
+	 */
+	public ImageReference(File file, int series, int index) {
+		this(file.getAbsoluteFile().toURI(), series, index);
+	}
+
+	/**
+	 * @return the location of the file
+	 */
+	public URI getURI() {
+		return uri;
+	}
+
+	/**
+	 * @return the index of the series within the file
+	 */
+	public int getSeries() {
+		return series;
+	}
+
+	/**
+	 * @return the index of the plane within the series
+	 */
+	public int getIndex() {
+		return index;
+	}
+}
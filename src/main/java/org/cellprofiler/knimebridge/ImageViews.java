@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.ImgView;
+import net.imglib2.type.numeric.RealType;
+
+import org.cellprofiler.knimebridge.message.ImageSlice;
+
+/**
+ * @author agent
+ *
+ * Wraps views, such as a region of interest made with Views.interval()
+ * or a slice made with Views.hyperSlice(), so that they can be passed
+ * to {@link IKnimeBridge#run(java.util.Map)} without copying them.
+ *
+ * The view's pixels are read when the run request is encoded. The
+ * view may have a non-zero minimum: the worker receives an image whose
+ * first pixel is the view's minimum. For instance,
+ *
+ *     RandomAccessibleInterval<UnsignedShortType> tile = Views.interval(
+ *         plate, new long [] { 512, 512 }, new long [] { 1023, 1023 });
+ *     images.put("DNA", ImageViews.wrap(tile, "DNA", Axes.X, Axes.Y));
+ */
+public class ImageViews {
+	private ImageViews() {
+	}
+
+	/**
+	 * Wrap a view as an ImgPlus without copying its pixels
+	 *
+	 * @param view the view
+	 * @param name the name of the image
+	 * @param axes the type of each of the view's axes
+	 * @return an ImgPlus whose pixels are those of the view. Don't call
+	 *         its factory() or copy() methods.
+	 */
+	public static <T extends RealType<T>> ImgPlus<T> wrap(
+			RandomAccessibleInterval<T> view, String name, AxisType... axes) {
+		if (axes.length != view.numDimensions()) {
+			throw new IllegalArgumentException(String.format(
+					"The view has %d dimensions, but %d axes were given",
+					view.numDimensions(), axes.length));
+		}
+		return new ImgPlus<T>(new ImgView<T>(view, null), name, axes);
+	}
+
+	/**
+	 * Split a multichannel image into one image per pipeline channel
+	 * without copying its pixels. Each channel is encoded straight from
+	 * the multichannel image's storage.
+	 *
+	 * @param image an image with a CHANNEL axis
+	 * @param channelNames a map of the index of a channel on the CHANNEL
+	 *                     axis to the name of the pipeline's input channel
+	 *                     that it should be used for
+	 * @return a map of pipeline channel name to image, as passed to
+	 *         {@link IKnimeBridge#run(java.util.Map)}
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public static Map<String, ImgPlus<?>> splitChannels(ImgPlus<?> image, Map<Integer, String> channelNames) {
+		if (! (image.firstElement() instanceof RealType)) {
+			throw new IllegalArgumentException("The image's pixels must be real numbers");
+		}
+		return splitRealChannels((ImgPlus)image, channelNames);
+	}
+
+	private static <T extends RealType<T>> Map<String, ImgPlus<?>> splitRealChannels(
+			ImgPlus<T> image, Map<Integer, String> channelNames) {
+		final int axis = image.dimensionIndex(Axes.CHANNEL);
+		if (axis < 0) {
+			throw new IllegalArgumentException(String.format(
+					"The image, %s, has no channel axis", image.getName()));
+		}
+		final int n = image.numDimensions();
+		final AxisType [] axes = new AxisType[n-1];
+		for (int d=0; d<n; d++) {
+			if (d != axis) axes[(d < axis)? d : d-1] = image.axis(d).type();
+		}
+		final Map<String, ImgPlus<?>> result = new HashMap<String, ImgPlus<?>>();
+		for (Map.Entry<Integer, String> entry:channelNames.entrySet()) {
+			final int index = entry.getKey();
+			if ((index < 0) || (index >= image.dimension(axis))) {
+				throw new IllegalArgumentException(String.format(
+						"The image, %s, has no channel %d", image.getName(), index));
+			}
+			final ImgPlus<T> channel = new ImgPlus<T>(
+					new ImageSlice<T>(image.getImg(), axis, index), entry.getValue(), axes);
+			channel.setValidBits(image.getValidBits());
+			result.put(entry.getValue(), channel);
+		}
+		return result;
+	}
+}
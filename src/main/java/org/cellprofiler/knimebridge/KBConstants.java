@@ -68,5 +68,10 @@ public class KBConstants {
 	 * The name of the SaveImages module
 	 */
 	public final static String SAVE_IMAGES = "SaveImages";
+	
+	/**
+	 * The request timeout that waits forever for the worker's reply
+	 */
+	public final static long NO_TIMEOUT = -1;
 
 }
@@ -12,11 +12,29 @@ package org.cellprofiler.knimebridge;
  * Creates instances of the Knime bridge.
  */
 public class KnimeBridgeFactory {
+	private final BridgeConfig config;
+	
+	/**
+	 * Create a factory for bridges with the default configuration
+	 */
+	public KnimeBridgeFactory() {
+		this(BridgeConfig.DEFAULT);
+	}
+	
+	/**
+	 * Create a factory for bridges with the given configuration
+	 * 
+	 * @param config the ZMQ and timeout settings for the bridges
+	 */
+	public KnimeBridgeFactory(BridgeConfig config) {
+		this.config = config;
+	}
+	
 	/**
 	 * @return a new Knime bridge.
 	 */
 	public IKnimeBridge newKnimeBridge() {
-		return new KnimeBridgeImpl();
+		return new KnimeBridgeImpl(config);
 	}
 
 }
@@ -7,28 +7,42 @@
 package org.cellprofiler.knimebridge;
 
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.Reader;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
 import net.imagej.ImgPlus;
 
+import org.cellprofiler.knimebridge.message.AbstractReply;
+import org.cellprofiler.knimebridge.message.CancelReply;
+import org.cellprofiler.knimebridge.message.CancelReq;
+import org.cellprofiler.knimebridge.message.CleanPipelineReply;
 import org.cellprofiler.knimebridge.message.CleanPipelineReq;
+import org.cellprofiler.knimebridge.message.ConnectReply;
 import org.cellprofiler.knimebridge.message.ConnectReq;
+import org.cellprofiler.knimebridge.message.FrameCodec;
+import org.cellprofiler.knimebridge.message.ImageEncoding;
 import org.cellprofiler.knimebridge.message.PipelineInfoReply;
 import org.cellprofiler.knimebridge.message.PipelineInfoReq;
+import org.cellprofiler.knimebridge.message.RunBatchReply;
+import org.cellprofiler.knimebridge.message.RunBatchReq;
+import org.cellprofiler.knimebridge.message.RunByReferenceReq;
 import org.cellprofiler.knimebridge.message.RunGroupReq;
 import org.cellprofiler.knimebridge.message.RunReply;
 import org.cellprofiler.knimebridge.message.RunReq;
+import org.cellprofiler.knimebridge.message.SharedMemoryRunReq;
+import org.zeromq.ZFrame;
 import org.zeromq.ZMQ.Context;
 import org.zeromq.ZMQ;
 import org.zeromq.ZMQ.Socket;
 import org.zeromq.ZMQException;
+import org.zeromq.ZMsg;
 
 /**
  * @author Lee Kamentsky
@@ -39,34 +53,146 @@ import org.zeromq.ZMQException;
  */
 @SuppressWarnings("deprecation")
 class KnimeBridgeImpl implements IKnimeBridge {
-	private final static Context context = ZMQ.context(1);
+	/**
+	 * Holds the process-wide context, which is created
+	 * the first time it is used.
+	 */
+	private static class ContextHolder {
+		final static Context context = ZMQ.context(1);
+	}
+	/**
+	 * How often a request waiting for its reply checks its deadline
+	 * and whether it has been cancelled
+	 */
+	private final static long POLL_INTERVAL_MS = 100;
+	/**
+	 * How long to wait for the worker to acknowledge a cancel request
+	 */
+	private final static long CANCEL_TIMEOUT_MS = 1000;
 	
-	private final Socket socket = context.socket(ZMQ.REQ);
+	private final BridgeConfig config;
+	private Socket socket;
+	private URI uri;
+	private volatile long requestTimeout;
+	private volatile int reconnectAttempts;
+	private volatile boolean cancelRequested;
 	private String sessionID;
 	private String pipeline;
 	private PipelineInfoReply piReply;
 	private RunReply runReply;
+	private FrameCodec codec;
+	private ImageEncoding encoding = ImageEncoding.DEFAULT;
+	private WorkerCapabilities capabilities = WorkerCapabilities.LEGACY;
+	/*
+	 * True if run requests hand over their pixels in shared memory.
+	 * Cleared for the rest of the session if writing a file fails.
+	 */
+	private boolean sharedMemory;
 	
 	/**
 	 * @return the ZMQ context that should be used
 	 *         throughout this process.
 	 */
-	public static Context theContext() { return context; }
+	public static Context theContext() { return ContextHolder.context; }
+	
+	KnimeBridgeImpl() {
+		this(BridgeConfig.DEFAULT);
+	}
+	
+	KnimeBridgeImpl(BridgeConfig config) {
+		this.config = config;
+		socket = config.createSocket(ZMQ.REQ);
+		requestTimeout = config.getRequestTimeout();
+		reconnectAttempts = config.getReconnectAttempts();
+	}
 
 	/* (non-Javadoc)
 	 * @see org.cellprofiler.knimebridge.IKnimeBridge#connect(java.net.URI)
 	 */
 	@Override
-	public void connect(URI uri) throws ZMQException, ProtocolException {
+	public synchronized void connect(URI uri) throws ZMQException, ProtocolException {
+		this.uri = uri;
 		socket.connect(uri.toString());
-		sessionID = ConnectReq.connect(socket);
+		handshake();
+	}
+	
+	/**
+	 * Start a session with the worker, agreeing on the codec and
+	 * image encoding to use.
+	 * 
+	 * @throws ProtocolException if the worker did not reply properly
+	 */
+	private void handshake() throws ProtocolException {
+		final Collection<String> codecs = config.isCompressionEnabled()?
+				Collections.singletonList(FrameCodec.SHUFFLE_DEFLATE) : Collections.<String>emptyList();
+		final ConnectReq req = ConnectReq.create(codecs);
+		/*
+		 * The connect reply has no compute time, even on reconnecting
+		 * to a worker that reports it.
+		 */
+		capabilities = WorkerCapabilities.LEGACY;
+		final ConnectReply reply = ConnectReply.recvConnectReply(sendAndWait(req));
+		sessionID = req.getSessionID();
+		capabilities = reply.getCapabilities();
+		codec = FrameCodec.SHUFFLE_DEFLATE.equals(reply.getCodec())? new FrameCodec() : null;
+		encoding = getEncoding(capabilities, config, codec);
+		sharedMemory = (config.getSharedMemoryDirectory() != null) &&
+				capabilities.isSharedMemorySupported() && isLocal(uri);
+	}
+	
+	/**
+	 * Choose how to encode images for a worker
+	 * 
+	 * @param capabilities the worker's capabilities
+	 * @param config the configuration, which says which channels to send as floats
+	 * @param codec the codec agreed with the worker or null if none
+	 * @return the richest encoding that the worker can decode
+	 */
+	static ImageEncoding getEncoding(WorkerCapabilities capabilities, BridgeConfig config, FrameCodec codec) {
+		final boolean float32 = capabilities.supportsEncoding(WorkerCapabilities.ENCODING_FLOAT32);
+		return new ImageEncoding(codec, capabilities.isSharedFramesSupported(),
+				capabilities.supportsEncoding(WorkerCapabilities.ENCODING_PACKED),
+				float32 && config.isFloat32Enabled(),
+				float32? config.getFloat32Channels() : Collections.<String>emptySet());
+	}
+	
+	/**
+	 * @param uri the worker's address
+	 * @return true if the address is on this host, so that the worker
+	 *         can read the files that the bridge writes
+	 */
+	private static boolean isLocal(URI uri) {
+		final String scheme = uri.getScheme();
+		if ("inproc".equals(scheme) || "ipc".equals(scheme)) return true;
+		if (! "tcp".equals(scheme) || (uri.getHost() == null)) return false;
+		try {
+			final InetAddress address = InetAddress.getByName(uri.getHost());
+			return address.isLoopbackAddress() || (NetworkInterface.getByInetAddress(address) != null);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return the codec that compresses frames sent to the worker
+	 *         or null if the worker did not accept compression
+	 */
+	synchronized FrameCodec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * @return how to encode the images sent to the worker
+	 */
+	synchronized ImageEncoding getEncoding() {
+		return encoding;
 	}
 
 	/* (non-Javadoc)
 	 * @see org.cellprofiler.knimebridge.IKnimeBridge#disconnect()
 	 */
 	@Override
-	public void disconnect() {
+	public synchronized void disconnect() {
 		socket.close();
 
 	}
@@ -75,10 +201,10 @@ class KnimeBridgeImpl implements IKnimeBridge {
 	 * @see org.cellprofiler.knimebridge.IKnimeBridge#loadPipeline(java.lang.String)
 	 */
 	@Override
-	public void loadPipeline(String pipeline) throws PipelineException,
+	public synchronized void loadPipeline(String pipeline) throws PipelineException,
 			ZMQException, ProtocolException {
 		this.pipeline = pipeline;
-		piReply = PipelineInfoReq.send(socket, sessionID, pipeline);
+		piReply = PipelineInfoReply.recvReply(request(PipelineInfoReq.create(sessionID, pipeline)));
 	}
 
 	/* (non-Javadoc)
@@ -113,11 +239,63 @@ class KnimeBridgeImpl implements IKnimeBridge {
 	 * @see org.cellprofiler.knimebridge.IKnimeBridge#run(java.util.Map)
 	 */
 	@Override
-	public void run(Map<String, ImgPlus<?>> images) throws ZMQException,
+	public synchronized void run(Map<String, ImgPlus<?>> images) throws ZMQException,
 			CellProfilerException, PipelineException, ProtocolException {
-		runReply = RunReq.run(socket, sessionID, pipeline, images);
+		final RunReply reply = new RunReply();
+		reply.recv(runRequest(images, false));
+		runReply = reply;
 
 	}
+	
+	/* (non-Javadoc)
+	 * @see org.cellprofiler.knimebridge.IKnimeBridge#run(net.imagej.ImgPlus, java.util.Map)
+	 */
+	@Override
+	public void run(ImgPlus<?> image, Map<Integer, String> channelNames) throws ZMQException,
+			CellProfilerException, PipelineException, ProtocolException {
+		run(ImageViews.splitChannels(image, channelNames));
+	}
+	
+	/**
+	 * Send a run or run group request and wait for the reply. If the
+	 * configuration has a shared memory directory and the worker is on
+	 * this host and accepts shared memory requests, hand the pixels over
+	 * in a file there, falling back to sending them in the message if
+	 * the file can't be written.
+	 * 
+	 * The caller must hold the bridge's lock.
+	 * 
+	 * @param images a map of channel name to image
+	 * @param group true to run the images as a group
+	 * @return the reply message
+	 * @throws ProtocolException if the request could not be sent, timed out or was cancelled
+	 */
+	private ZMsg runRequest(Map<String, ImgPlus<?>> images, boolean group) throws ProtocolException {
+		final File directory = config.getSharedMemoryDirectory();
+		if (sharedMemory) {
+			SharedMemoryRunReq req = null;
+			try {
+				req = SharedMemoryRunReq.create(sessionID, pipeline, images, directory, group);
+			} catch (IOException e) {
+				/*
+				 * For instance, the directory is full. The pixels
+				 * still get to the worker through the socket, as
+				 * they will for the rest of the session.
+				 */
+				sharedMemory = false;
+			}
+			if (req != null) {
+				try {
+					return request(req);
+				} finally {
+					req.release();
+				}
+			}
+		}
+		return request(group?
+				RunGroupReq.create(sessionID, pipeline, images, encoding) :
+				RunReq.create(sessionID, pipeline, images, encoding));
+	}
 
 	/* (non-Javadoc)
 	 * @see org.cellprofiler.knimebridge.IKnimeBridge#getMeasurements(org.cellprofiler.knimebridge.IFeatureDescription)
@@ -145,25 +323,306 @@ class KnimeBridgeImpl implements IKnimeBridge {
 	@Override
 	public void loadPipeline(File pipeline) throws PipelineException,
 			IOException, ProtocolException {
-		final char [] buffer = new char[4096];
-		StringBuffer sb = new StringBuffer();
-		Reader rdr = new FileReader(pipeline);
+		loadPipeline(PipelineText.read(pipeline));
+	}
+
+	@Override
+	public synchronized void runGroup(Map<String, ImgPlus<?>> images) throws ZMQException,
+			CellProfilerException, PipelineException, ProtocolException {
+		final RunReply reply = new RunReply();
+		reply.recv(runRequest(images, true));
+		runReply = reply;
+	}
+
+	@Override
+	public synchronized void runByReference(Map<String, ImageReference> images)
+			throws ZMQException, CellProfilerException, PipelineException, ProtocolException {
+		if (! capabilities.isRunByReferenceSupported()) {
+			throw new ProtocolException("The worker does not accept images by reference");
+		}
+		final RunReply reply = new RunReply();
+		reply.recv(request(RunByReferenceReq.create(sessionID, pipeline, images)));
+		runReply = reply;
+	}
+
+	@Override
+	public synchronized List<IRunResult> runBatch(List<Map<String, ImgPlus<?>>> imageSets)
+			throws ZMQException, CellProfilerException, PipelineException, ProtocolException {
+		if (imageSets.isEmpty()) return Collections.emptyList();
+		if (! capabilities.isBatchSupported()) {
+			final List<IRunResult> results = new ArrayList<IRunResult>(imageSets.size());
+			for (Map<String, ImgPlus<?>> imageSet:imageSets) {
+				final RunReply reply = new RunReply();
+				reply.recv(runRequest(imageSet, false));
+				runReply = reply;
+				results.add(reply);
+			}
+			return results;
+		}
+		final List<RunReply> replies = RunBatchReply.recvReply(
+				request(RunBatchReq.create(sessionID, pipeline, imageSets, encoding)), imageSets.size()).getReplies();
+		runReply = replies.get(replies.size()-1);
+		return new ArrayList<IRunResult>(replies);
+	}
+
+	@Override
+	public synchronized WorkerCapabilities getWorkerCapabilities() {
+		return capabilities;
+	}
+
+	/**
+	 * @return the session ID from connect
+	 */
+	synchronized String getSessionID() {
+		return sessionID;
+	}
+	
+	/**
+	 * @return the text of the pipeline loaded by loadPipeline
+	 */
+	synchronized String getPipeline() {
+		return pipeline;
+	}
+	
+	/**
+	 * Send a request to the worker and receive its reply
+	 * without interpreting either.
+	 * 
+	 * @param request the request message
+	 * @return the reply message
+	 * @throws ZMQException on network error
+	 * @throws ProtocolException if the request could not be sent, timed out or was cancelled
+	 */
+	synchronized ZMsg exchange(ZMsg request) throws ZMQException, ProtocolException {
+		return request(request);
+	}
+	
+	/**
+	 * Send a request in the current session and wait for the reply.
+	 * 
+	 * If reconnect attempts are enabled and the worker does not reply
+	 * in time, connect to the worker again, reload the pipeline and
+	 * resend the request in the new session.
+	 * 
+	 * The caller must hold the bridge's lock.
+	 * 
+	 * @param msg the request message. The session ID in its wrapper
+	 *            is replaced by the bridge's current session ID.
+	 * @return the reply message
+	 * @throws RequestTimeoutException if the worker did not reply in time
+	 * @throws RequestCancelledException if the request was cancelled
+	 * @throws ProtocolException if the request could not be sent
+	 */
+	private ZMsg request(ZMsg msg) throws ProtocolException {
+		checkFrameSizes(capabilities, msg);
+		int attemptsLeft = reconnectAttempts;
+		while (true) {
+			if (sessionID != null) {
+				msg.pop();
+				msg.push(new ZFrame(sessionID));
+			}
+			/*
+			 * Sending a message destroys its frames, so keep a
+			 * copy to replay. The copy shares the frames' data.
+			 */
+			final ZMsg replay = (attemptsLeft > 0)? msg.duplicate() : null;
+			try {
+				return sendAndWait(msg);
+			} catch (RequestTimeoutException e) {
+				if (replay == null) throw e;
+			} catch (ZMQException e) {
+				if (replay == null) throw e;
+			}
+			msg = replay;
+			while (true) {
+				attemptsLeft--;
+				try {
+					reconnect();
+					break;
+				} catch (RequestTimeoutException e) {
+					if (attemptsLeft == 0) throw e;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Check that the worker can receive each frame of a request
+	 * 
+	 * @param capabilities the worker's capabilities
+	 * @param msg the request
+	 * @throws ProtocolException if a frame is larger than the worker accepts
+	 */
+	static void checkFrameSizes(WorkerCapabilities capabilities, ZMsg msg) throws ProtocolException {
+		for (ZFrame frame:msg) {
+			if (! capabilities.acceptsFrame(frame.size())) {
+				throw new ProtocolException(String.format(
+						"The request has a frame of %d bytes, larger than the worker's limit of %d bytes",
+						frame.size(), capabilities.getMaxFrameSize()));
+			}
+		}
+	}
+	
+	/**
+	 * Start a new session with the worker on a new socket, for instance
+	 * after the worker restarted, and reload the current pipeline.
+	 * 
+	 * @throws ProtocolException if the worker could not be reached or
+	 *         could no longer load the pipeline.
+	 */
+	private void reconnect() throws ProtocolException {
+		resetSocket();
+		handshake();
+		if (pipeline != null) {
+			try {
+				piReply = PipelineInfoReply.recvReply(sendAndWait(PipelineInfoReq.create(sessionID, pipeline)));
+			} catch (PipelineException e) {
+				throw new ProtocolException(String.format(
+						"Failed to reload the pipeline after reconnecting: %s", e.getMessage()));
+			}
+		}
+	}
+	
+	/**
+	 * Send a request and wait for the reply, giving up if the
+	 * request timeout passes or if the request is cancelled.
+	 * A cancel that arrives before the request is sent, for instance
+	 * while the request is being encoded, cancels this request.
+	 * 
+	 * @param msg the request message
+	 * @return the reply message
+	 * @throws RequestTimeoutException if the worker did not reply in time
+	 * @throws RequestCancelledException if the request was cancelled
+	 * @throws ProtocolException if the request could not be sent
+	 */
+	private ZMsg sendAndWait(ZMsg msg) throws ProtocolException {
 		try {
+			if (cancelRequested) {
+				msg.destroy();
+				throw new RequestCancelledException("The request was cancelled before it was sent");
+			}
+			final long requestSize = msg.contentSize();
+			final long start = System.nanoTime();
+			if (! msg.send(socket)) {
+				throw new ProtocolException("Failed to send request");
+			}
+			final long timeout = requestTimeout;
+			final long deadline = (timeout == KBConstants.NO_TIMEOUT)?
+					Long.MAX_VALUE : System.currentTimeMillis() + timeout;
+			final ZMQ.Poller poller = new ZMQ.Poller(1);
+			poller.register(socket, ZMQ.Poller.POLLIN);
 			while (true) {
-				final int nRead = rdr.read(buffer, 0, buffer.length);
-				if (nRead < 0) break;
-				sb.append(buffer);
+				final long now = System.currentTimeMillis();
+				if (cancelRequested) {
+					abandon();
+					throw new RequestCancelledException("The request was cancelled");
+				}
+				if (now >= deadline) {
+					abandon();
+					throw new RequestTimeoutException(String.format(
+							"The worker did not reply within %d ms", timeout));
+				}
+				poller.poll(Math.min(POLL_INTERVAL_MS, deadline - now));
+				if (poller.pollin(0)) {
+					final long elapsed = System.nanoTime() - start;
+					final ZMsg reply = ZMsg.recvMsg(socket);
+					if ((reply != null) && capabilities.isComputeTimeReported()) {
+						/*
+						 * What's left after the worker's compute time is
+						 * the time spent on the wire.
+						 */
+						final long computeTime = (long)(AbstractReply.popComputeTime(reply) * 1E6);
+						if (codec != null) {
+							codec.recordTransfer(requestSize + reply.contentSize(), elapsed - computeTime);
+						}
+					}
+					return reply;
+				}
 			}
-			loadPipeline(sb.toString());
 		} finally {
-			rdr.close();
+			cancelRequested = false;
 		}
 	}
-
+	
+	/**
+	 * Give up on the request in progress. A REQ socket can't send
+	 * again until it receives the reply to its last request, so
+	 * replace it with a new socket to the same worker. The reply
+	 * to the abandoned request, if it ever comes, goes to the old
+	 * socket and is dropped.
+	 * 
+	 * Then ask the worker to cancel the session's work. This is
+	 * best-effort: if the worker doesn't acknowledge the cancel
+	 * request promptly, the socket is replaced again.
+	 */
+	private void abandon() {
+		resetSocket();
+		if (sessionID == null) return;
+		if (! CancelReq.create(sessionID).send(socket)) {
+			resetSocket();
+			return;
+		}
+		final ZMQ.Poller poller = new ZMQ.Poller(1);
+		poller.register(socket, ZMQ.Poller.POLLIN);
+		poller.poll(CANCEL_TIMEOUT_MS);
+		if (poller.pollin(0)) {
+			try {
+				CancelReply.recvReply(ZMsg.recvMsg(socket));
+			} catch (ProtocolException e) {
+				/*
+				 * A worker that doesn't know the cancel request
+				 * still answers it, leaving the socket usable.
+				 */
+			}
+		} else {
+			resetSocket();
+		}
+	}
+	
+	private void resetSocket() {
+		socket.setLinger(0);
+		socket.close();
+		socket = config.createSocket(ZMQ.REQ);
+		socket.connect(uri.toString());
+	}
+	
 	@Override
-	public void runGroup(Map<String, ImgPlus<?>> images) throws ZMQException,
-			CellProfilerException, PipelineException, ProtocolException {
-		runReply = RunGroupReq.run(socket, sessionID, pipeline, images);
+	public void setRequestTimeout(long timeoutMs) {
+		if ((timeoutMs < 0) && (timeoutMs != KBConstants.NO_TIMEOUT)) {
+			throw new IllegalArgumentException("The request timeout must not be negative");
+		}
+		requestTimeout = timeoutMs;
+	}
+	
+	@Override
+	public long getRequestTimeout() {
+		return requestTimeout;
+	}
+	
+	@Override
+	public void setReconnectAttempts(int attempts) {
+		if (attempts < 0) {
+			throw new IllegalArgumentException("The number of reconnect attempts must not be negative");
+		}
+		reconnectAttempts = attempts;
+	}
+	
+	@Override
+	public int getReconnectAttempts() {
+		return reconnectAttempts;
+	}
+	
+	@Override
+	public void cancel() {
+		cancelRequested = true;
+	}
+	
+	/**
+	 * Forget a cancel that came after the request it was
+	 * meant for completed
+	 */
+	void clearCancel() {
+		cancelRequested = false;
 	}
 
 	@Override
@@ -174,14 +633,7 @@ class KnimeBridgeImpl implements IKnimeBridge {
 	@Override
 	public String cleanPipeline(String pipeline, int flags)
 			throws PipelineException, IOException, ProtocolException {
-		final List<String> moduleNames = new ArrayList<String>();
-		if ((flags & KBConstants.REMOVE_EXPORT_TO_DATABASE) != 0)
-			moduleNames.add(KBConstants.EXPORT_TO_DATABASE);
-		if ((flags & KBConstants.REMOVE_EXPORT_TO_SPREADSHEET) != 0)
-			moduleNames.add(KBConstants.EXPORT_TO_SPREADSHEET);
-		if ((flags & KBConstants.REMOVE_SAVE_IMAGES) != 0)
-			moduleNames.add(KBConstants.SAVE_IMAGES);
-		return cleanPipeline(pipeline, moduleNames);
+		return cleanPipeline(pipeline, PipelineCleaner.getModuleNames(flags));
 	}
 
 	@Override
@@ -191,26 +643,30 @@ class KnimeBridgeImpl implements IKnimeBridge {
 	}
 
 	@Override
-	public String cleanPipeline(String pipeline, Collection<String> moduleNames)
+	public synchronized String cleanPipeline(String pipeline, Collection<String> moduleNames)
 			throws PipelineException, IOException, ProtocolException {
-		return CleanPipelineReq.send(socket, sessionID, pipeline, moduleNames).getPipeline();
+		if (sessionID == null) {
+			return PipelineCleaner.clean(pipeline, moduleNames);
+		}
+		return CleanPipelineReply.recvReply(
+				request(CleanPipelineReq.create(sessionID, pipeline, moduleNames))).getPipeline();
 	}
 
 	@Override
-	public void cleanPipeline() throws PipelineException, IOException,
+	public synchronized void cleanPipeline() throws PipelineException, IOException,
 			ProtocolException {
 		this.pipeline = cleanPipeline(this.pipeline);
 		
 	}
 
 	@Override
-	public void cleanPipeline(int flags) throws PipelineException, IOException,
+	public synchronized void cleanPipeline(int flags) throws PipelineException, IOException,
 			ProtocolException {
 		this.pipeline = cleanPipeline(this.pipeline, flags);
 	}
 
 	@Override
-	public void cleanPipeline(Collection<String> moduleNames)
+	public synchronized void cleanPipeline(Collection<String> moduleNames)
 			throws PipelineException, IOException, ProtocolException {
 		this.pipeline = cleanPipeline(this.pipeline, moduleNames);
 	}
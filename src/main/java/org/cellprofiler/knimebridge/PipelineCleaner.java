@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * @author agent
+ *
+ * Removes modules from a CellProfiler pipeline without
+ * a round trip to the CellProfiler worker.
+ *
+ * The cleaner produces the same modules, in the same order
+ * and with the same settings, as the worker's clean-pipeline
+ * request. The worker regenerates the header (e.g. DateRevision)
+ * when it saves the pipeline, whereas the cleaner leaves the
+ * header untouched apart from the module count.
+ */
+public class PipelineCleaner {
+	/**
+	 * Get the names of the modules selected by a combination of flags
+	 *
+	 * @param flags a combination of {@value KBConstants#REMOVE_EXPORT_TO_DATABASE},
+	 *        {@value KBConstants#REMOVE_EXPORT_TO_SPREADSHEET} and / or
+	 *        {@value KBConstants#REMOVE_SAVE_IMAGES}
+	 * @return the CellProfiler names of the flagged modules
+	 */
+	public static List<String> getModuleNames(int flags) {
+		final List<String> moduleNames = new ArrayList<String>();
+		if ((flags & KBConstants.REMOVE_EXPORT_TO_DATABASE) != 0)
+			moduleNames.add(KBConstants.EXPORT_TO_DATABASE);
+		if ((flags & KBConstants.REMOVE_EXPORT_TO_SPREADSHEET) != 0)
+			moduleNames.add(KBConstants.EXPORT_TO_SPREADSHEET);
+		if ((flags & KBConstants.REMOVE_SAVE_IMAGES) != 0)
+			moduleNames.add(KBConstants.SAVE_IMAGES);
+		return moduleNames;
+	}
+
+	/**
+	 * Remove modules by name from a pipeline
+	 *
+	 * @param pipeline the text of a CellProfiler pipeline
+	 * @param moduleNames the names of the modules to be removed as they appear
+	 *                    in CellProfiler.
+	 * @return the modified pipeline text
+	 * @throws PipelineException if the input pipeline was badly formatted
+	 */
+	public static String clean(String pipeline, Collection<String> moduleNames)
+			throws PipelineException {
+		final PipelineText pipelineText = PipelineText.parse(pipeline);
+		if (pipelineText.removeModules(moduleNames) == 0) return pipeline;
+		return pipelineText.toString();
+	}
+
+	/**
+	 * Remove selected categories of modules from a pipeline
+	 *
+	 * @param pipeline the text of a CellProfiler pipeline
+	 * @param flags the categories of modules to remove
+	 *        (see {@link #getModuleNames(int)})
+	 * @return the modified pipeline text
+	 * @throws PipelineException if the input pipeline was badly formatted
+	 */
+	public static String clean(String pipeline, int flags) throws PipelineException {
+		return clean(pipeline, getModuleNames(flags));
+	}
+
+	/**
+	 * Remove all modules that output to disk (ExportToSpreadsheet,
+	 * ExportToDatabase, SaveImages) from a pipeline
+	 *
+	 * @param pipeline the text of a CellProfiler pipeline
+	 * @return the modified pipeline text
+	 * @throws PipelineException if the input pipeline was badly formatted
+	 */
+	public static String clean(String pipeline) throws PipelineException {
+		return clean(pipeline, KBConstants.REMOVE_ALL);
+	}
+}
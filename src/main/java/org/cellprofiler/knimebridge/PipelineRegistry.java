@@ -0,0 +1,364 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author agent
+ *
+ * The pipeline registry keeps the pipeline files used by a client,
+ * keeps track of which pipeline is loaded on which bridge and
+ * reloads edited pipelines on those bridges.
+ *
+ * Pipeline files are read once, normalised and identified by
+ * the digest of their text. Cleaned variants are computed locally
+ * by the {@link PipelineCleaner} and cached per set of flags.
+ *
+ * Pipelines are loaded onto bridges in the background. The registry
+ * polls the registered files and, if a file's text changes, loads
+ * the new text onto every bridge that had the old text loaded through
+ * the registry. Pipelines loaded onto a bridge directly are not
+ * tracked, and a bridge that has since had another pipeline loaded
+ * directly is left with it.
+ */
+public class PipelineRegistry {
+	/**
+	 * The default interval between checks of the pipeline files for changes
+	 */
+	public final static long DEFAULT_POLL_INTERVAL_MS = 2000;
+	/**
+	 * Preload the pipeline as it is, without cleaning it
+	 */
+	public final static int NO_CLEANING = 0;
+
+	/**
+	 * @author agent
+	 *
+	 * A pipeline file known to the registry
+	 */
+	public static class RegisteredPipeline {
+		private final File file;
+		private String text;
+		private String digest;
+		private long lastModified;
+		private long length;
+		private final Map<Integer, String> cleaned = new Hashtable<Integer, String>();
+
+		RegisteredPipeline(File file) {
+			this.file = file;
+		}
+		/**
+		 * @return the pipeline file
+		 */
+		public File getFile() {
+			return file;
+		}
+		/**
+		 * @return the normalised text of the pipeline
+		 */
+		public synchronized String getText() {
+			return text;
+		}
+		/**
+		 * @return the digest of the normalised text of the pipeline
+		 */
+		public synchronized String getDigest() {
+			return digest;
+		}
+		/**
+		 * Get a cleaned variant of the pipeline
+		 *
+		 * @param flags the categories of modules to remove, see {@link PipelineCleaner#getModuleNames(int)}
+		 * @return the cleaned pipeline text
+		 * @throws PipelineException if the pipeline could not be parsed
+		 */
+		public synchronized String getCleaned(int flags) throws PipelineException {
+			if (flags == NO_CLEANING) return text;
+			String result = cleaned.get(flags);
+			if (result == null) {
+				result = PipelineCleaner.clean(text, flags);
+				cleaned.put(flags, result);
+			}
+			return result;
+		}
+		/**
+		 * Read the pipeline file if it has changed since it was last read
+		 *
+		 * @return true if the text of the pipeline changed
+		 * @throws IOException if the file could not be read
+		 */
+		synchronized boolean refresh() throws IOException {
+			final long newLastModified = file.lastModified();
+			final long newLength = file.length();
+			if ((text != null) && (newLastModified == lastModified) && (newLength == length))
+				return false;
+			final String newText = PipelineText.normalize(PipelineText.read(file));
+			final String newDigest = PipelineText.digest(newText);
+			lastModified = newLastModified;
+			length = newLength;
+			if (newDigest.equals(digest)) return false;
+			text = newText;
+			digest = newDigest;
+			cleaned.clear();
+			return true;
+		}
+	}
+	/**
+	 * The pipeline variant that the registry loaded onto a bridge
+	 */
+	private static class Loaded {
+		final RegisteredPipeline pipeline;
+		final int flags;
+		final String digest;
+		final String text;
+		Loaded(RegisteredPipeline pipeline, int flags, String digest, String text) {
+			this.pipeline = pipeline;
+			this.flags = flags;
+			this.digest = digest;
+			this.text = text;
+		}
+	}
+	private final Map<File, RegisteredPipeline> pipelines =
+			new Hashtable<File, RegisteredPipeline>();
+	private final Map<IKnimeBridge, Loaded> loaded =
+			new Hashtable<IKnimeBridge, Loaded>();
+	private final ExecutorService loader;
+	private final ScheduledExecutorService watcher;
+
+	/**
+	 * Create a registry that checks its files for changes
+	 * every {@value #DEFAULT_POLL_INTERVAL_MS} milliseconds.
+	 */
+	public PipelineRegistry() {
+		this(DEFAULT_POLL_INTERVAL_MS);
+	}
+
+	/**
+	 * Create a registry
+	 *
+	 * @param pollIntervalMs the interval between checks of the files
+	 *        for changes or zero to disable watching.
+	 */
+	public PipelineRegistry(long pollIntervalMs) {
+		final ThreadFactory threadFactory = new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				final Thread thread = new Thread(r, "Pipeline registry");
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		loader = Executors.newCachedThreadPool(threadFactory);
+		if (pollIntervalMs > 0) {
+			watcher = Executors.newSingleThreadScheduledExecutor(threadFactory);
+			watcher.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					checkForChanges();
+				}
+			}, pollIntervalMs, pollIntervalMs, TimeUnit.MILLISECONDS);
+		} else {
+			watcher = null;
+		}
+	}
+
+	/**
+	 * Register a pipeline file, reading it if it has not been registered before
+	 *
+	 * @param file the pipeline file
+	 * @return the registry's record of the pipeline
+	 * @throws IOException if the file could not be read
+	 */
+	public RegisteredPipeline register(File file) throws IOException {
+		final File key = file.getAbsoluteFile();
+		synchronized (pipelines) {
+			RegisteredPipeline pipeline = pipelines.get(key);
+			if (pipeline == null) {
+				pipeline = new RegisteredPipeline(key);
+				pipeline.refresh();
+				pipelines.put(key, pipeline);
+			}
+			return pipeline;
+		}
+	}
+
+	/**
+	 * @param file a pipeline file
+	 * @return the registered pipeline or null if the file was not registered
+	 */
+	public RegisteredPipeline get(File file) {
+		return pipelines.get(file.getAbsoluteFile());
+	}
+
+	/**
+	 * Find a registered pipeline by the digest of its text
+	 *
+	 * @param digest the digest as reported by {@link RegisteredPipeline#getDigest()}
+	 * @return the registered pipeline or null if none has that digest
+	 */
+	public RegisteredPipeline getByDigest(String digest) {
+		for (RegisteredPipeline pipeline:getPipelines()) {
+			if (digest.equals(pipeline.getDigest())) return pipeline;
+		}
+		return null;
+	}
+
+	/**
+	 * @return all registered pipelines
+	 */
+	public List<RegisteredPipeline> getPipelines() {
+		synchronized (pipelines) {
+			return new ArrayList<RegisteredPipeline>(pipelines.values());
+		}
+	}
+
+	/**
+	 * Load a pipeline onto a connected bridge in the background
+	 *
+	 * @param bridge the bridge, which must have been connected
+	 * @param pipeline the pipeline to load
+	 * @param flags the categories of modules to clean from the pipeline
+	 *              before loading or {@value #NO_CLEANING}
+	 * @return a future whose value is the digest of the pipeline text that was loaded
+	 */
+	public Future<String> preload(final IKnimeBridge bridge, final RegisteredPipeline pipeline, final int flags) {
+		return loader.submit(new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				return load(bridge, pipeline, flags);
+			}
+		});
+	}
+
+	/**
+	 * @param bridge a bridge
+	 * @return the digest of the pipeline that the registry loaded onto
+	 *         the bridge or null if none was loaded
+	 */
+	public String getLoadedDigest(IKnimeBridge bridge) {
+		final Loaded l = loaded.get(bridge);
+		return (l == null) ? null : l.digest;
+	}
+
+	/**
+	 * @param bridge a bridge
+	 * @return the registered pipeline that was loaded onto the bridge
+	 *         or null if none was loaded
+	 */
+	public RegisteredPipeline getLoadedPipeline(IKnimeBridge bridge) {
+		final Loaded l = loaded.get(bridge);
+		return (l == null) ? null : l.pipeline;
+	}
+
+	/**
+	 * Stop tracking a bridge, for instance before disconnecting it
+	 *
+	 * @param bridge the bridge to forget
+	 */
+	public void forget(IKnimeBridge bridge) {
+		loaded.remove(bridge);
+	}
+
+	/**
+	 * Stop watching the files and loading pipelines
+	 */
+	public void close() {
+		if (watcher != null) watcher.shutdownNow();
+		loader.shutdownNow();
+	}
+
+	/**
+	 * Check all pipeline files for changes, reloading changed
+	 * pipelines onto the bridges that they were loaded on.
+	 */
+	void checkForChanges() {
+		for (RegisteredPipeline pipeline:getPipelines()) {
+			try {
+				if (! pipeline.refresh()) continue;
+			} catch (IOException e) {
+				/*
+				 * The file may be in the middle of being saved.
+				 * Try again on the next pass.
+				 */
+				continue;
+			}
+			final Map<IKnimeBridge, Loaded> snapshot;
+			synchronized (loaded) {
+				snapshot = new HashMap<IKnimeBridge, Loaded>(loaded);
+			}
+			for (Map.Entry<IKnimeBridge, Loaded> entry:snapshot.entrySet()) {
+				final IKnimeBridge bridge = entry.getKey();
+				final Loaded l = entry.getValue();
+				if (l.pipeline != pipeline) continue;
+				if (! isStillLoaded(bridge, l)) {
+					/*
+					 * Another pipeline was loaded onto the bridge directly
+					 */
+					synchronized (loaded) {
+						if (loaded.get(bridge) == l) loaded.remove(bridge);
+					}
+					continue;
+				}
+				preload(bridge, pipeline, l.flags);
+			}
+		}
+	}
+
+	/**
+	 * @param bridge a bridge that the registry loaded a pipeline onto
+	 * @param l what the registry loaded
+	 * @return false if the bridge now has some other pipeline text. A
+	 *         bridge that doesn't tell its text is assumed to have kept it.
+	 */
+	private static boolean isStillLoaded(IKnimeBridge bridge, Loaded l) {
+		if (! (bridge instanceof KnimeBridgeImpl)) return true;
+		return l.text.equals(((KnimeBridgeImpl)bridge).getPipeline());
+	}
+
+	private String load(IKnimeBridge bridge, RegisteredPipeline pipeline, int flags)
+			throws PipelineException, ProtocolException {
+		while (true) {
+			final String text;
+			final String digest;
+			synchronized (pipeline) {
+				text = pipeline.getCleaned(flags);
+				digest = pipeline.getDigest();
+			}
+			try {
+				bridge.loadPipeline(text);
+			} catch (PipelineException e) {
+				loaded.remove(bridge);
+				throw e;
+			} catch (ProtocolException e) {
+				loaded.remove(bridge);
+				throw e;
+			} catch (RuntimeException e) {
+				loaded.remove(bridge);
+				throw e;
+			}
+			loaded.put(bridge, new Loaded(pipeline, flags, digest, text));
+			/*
+			 * Load again if the file changed while we were loading.
+			 */
+			if (digest.equals(pipeline.getDigest())) return digest;
+		}
+	}
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * @author agent
+ *
+ * A parsed CellProfiler pipeline in the text (.cppipe) format.
+ *
+ * The format is a header block of "key:value" lines, starting
+ * with the "CellProfiler Pipeline:" line, followed by a blank
+ * line and then one block per module. A module block starts with
+ * a line of the form
+ *
+ *     ModuleName:[module_num:1|svn_version:...|...]
+ *
+ * followed by indented setting lines and is terminated by
+ * a blank line or the end of the text.
+ *
+ * Text that is not touched by an edit is rendered exactly as it
+ * was read, including line endings, so the only differences between
+ * the original text and a rewritten pipeline are the removed
+ * module blocks, the module numbers and the module count.
+ */
+public class PipelineText {
+	/**
+	 * The first line of every text-format pipeline starts with this
+	 */
+	public final static String PIPELINE_HEADER = "CellProfiler Pipeline:";
+	private final static String MODULE_COUNT = "ModuleCount";
+	private final static Pattern MODULE_NUM = Pattern.compile("module_num:[0-9]+");
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+	private final static String DIGEST_ALGORITHM = "SHA-1";
+	private final static Pattern MODULE_START = Pattern.compile("^([^\\s:][^:]*):\\[(.*)\\]\\s*$");
+
+	/**
+	 * @author agent
+	 *
+	 * One module block in the pipeline: the header line, the setting lines
+	 * and any blank lines that separate it from the next module.
+	 */
+	public static class Module {
+		private final String name;
+		private String header;
+		private final List<String> settings = new ArrayList<String>();
+		private final List<String> trailer = new ArrayList<String>();
+
+		Module(String name, String header) {
+			this.name = name;
+			this.header = header;
+		}
+		/**
+		 * @return the module's name as it appears in CellProfiler, e.g. "SaveImages"
+		 */
+		public String getName() {
+			return name;
+		}
+		/**
+		 * @return the module's setting lines, stripped of line terminators
+		 */
+		public List<String> getSettings() {
+			final List<String> result = new ArrayList<String>(settings.size());
+			for (String setting:settings) result.add(stripEOL(setting));
+			return Collections.unmodifiableList(result);
+		}
+		/**
+		 * Change the module_num attribute in the module's header line
+		 *
+		 * @param moduleNum the one-based index of the module in the pipeline
+		 */
+		void setModuleNum(int moduleNum) {
+			header = MODULE_NUM.matcher(header).replaceFirst("module_num:" + moduleNum);
+		}
+	}
+	private final List<String> headerLines = new ArrayList<String>();
+	private final List<Module> modules = new ArrayList<Module>();
+
+	protected PipelineText() {
+	}
+
+	/**
+	 * Parse the text of a pipeline
+	 *
+	 * @param pipeline the text of a CellProfiler pipeline file
+	 * @return the parsed pipeline
+	 * @throws PipelineException if the text is not a CellProfiler text-format pipeline
+	 */
+	public static PipelineText parse(String pipeline) throws PipelineException {
+		final PipelineText result = new PipelineText();
+		final List<String> lines = splitLines(pipeline);
+		final Iterator<String> itLines = lines.iterator();
+		if ((! itLines.hasNext()) || ! stripBOM(itLines.next()).startsWith(PIPELINE_HEADER)) {
+			throw new PipelineException("Not a CellProfiler text-format pipeline");
+		}
+		result.headerLines.add(lines.get(0));
+		Module module = null;
+		boolean inHeader = true;
+		while (itLines.hasNext()) {
+			final String line = itLines.next();
+			final String stripped = stripEOL(line);
+			if (stripped.trim().length() == 0) {
+				if (inHeader) {
+					inHeader = false;
+					result.headerLines.add(line);
+				} else if (module == null) {
+					result.headerLines.add(line);
+				} else {
+					module.trailer.add(line);
+				}
+				continue;
+			}
+			if (inHeader) {
+				result.headerLines.add(line);
+				continue;
+			}
+			final Matcher matcher = MODULE_START.matcher(stripped);
+			if ((module == null) || (module.trailer.size() > 0)) {
+				if (! matcher.matches()) {
+					throw new PipelineException(String.format(
+							"Expected the start of a module, but got \"%s\"", stripped));
+				}
+				module = new Module(matcher.group(1), line);
+				result.modules.add(module);
+			} else {
+				module.settings.add(line);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the modules in the order that they appear in the pipeline
+	 */
+	public List<Module> getModules() {
+		return Collections.unmodifiableList(modules);
+	}
+
+	/**
+	 * @return the names of the pipeline's modules in pipeline order
+	 */
+	public List<String> getModuleNames() {
+		final List<String> names = new ArrayList<String>(modules.size());
+		for (Module module:modules) names.add(module.getName());
+		return names;
+	}
+
+	/**
+	 * Remove all modules with the given names from the pipeline,
+	 * renumbering the remaining modules and adjusting the module count.
+	 *
+	 * @param moduleNames the names of the modules to remove as they
+	 *        appear in CellProfiler
+	 * @return the number of modules removed
+	 */
+	public int removeModules(Collection<String> moduleNames) {
+		final Set<String> names = new HashSet<String>(moduleNames);
+		int nRemoved = 0;
+		for (Iterator<Module> it = modules.iterator(); it.hasNext();) {
+			if (names.contains(it.next().getName())) {
+				it.remove();
+				nRemoved++;
+			}
+		}
+		if (nRemoved > 0) {
+			for (int i=0; i<modules.size(); i++) {
+				modules.get(i).setModuleNum(i+1);
+			}
+			for (int i=0; i<headerLines.size(); i++) {
+				final String line = headerLines.get(i);
+				if (stripEOL(line).startsWith(MODULE_COUNT + ":")) {
+					headerLines.set(i, MODULE_COUNT + ":" + modules.size() + getEOL(line));
+				}
+			}
+		}
+		return nRemoved;
+	}
+
+	/**
+	 * @return the pipeline rendered in the text format
+	 */
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder();
+		for (String line:headerLines) sb.append(line);
+		for (Module module:modules) {
+			sb.append(module.header);
+			for (String line:module.settings) sb.append(line);
+			for (String line:module.trailer) sb.append(line);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Read the text of a pipeline file in one pass
+	 *
+	 * @param file a UTF-8 encoded pipeline file
+	 * @return the text of the file
+	 * @throws IOException if the file could not be read
+	 */
+	public static String read(File file) throws IOException {
+		final FileInputStream stream = new FileInputStream(file);
+		try {
+			final FileChannel channel = stream.getChannel();
+			final long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException(String.format("%s is too large to be a pipeline", file.getPath()));
+			}
+			final ByteBuffer buffer = ByteBuffer.allocate((int)size);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0) break;
+			}
+			buffer.flip();
+			return UTF8.decode(buffer).toString();
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Normalise the text of a pipeline so that pipelines that differ
+	 * only in their byte order mark or line endings compare equal.
+	 *
+	 * @param pipeline the text of a pipeline
+	 * @return the text without a byte order mark and with "\n" line endings
+	 */
+	public static String normalize(String pipeline) {
+		return stripBOM(pipeline).replace("\r\n", "\n").replace('\r', '\n');
+	}
+
+	/**
+	 * Compute a digest that identifies the pipeline text
+	 *
+	 * @param pipeline the text of a pipeline, typically normalised
+	 * @return the hexadecimal SHA-1 digest of the UTF-8 encoded text
+	 */
+	public static String digest(String pipeline) {
+		try {
+			final MessageDigest md = MessageDigest.getInstance(DIGEST_ALGORITHM);
+			final StringBuilder sb = new StringBuilder();
+			for (byte b:md.digest(pipeline.getBytes(UTF8))) {
+				sb.append(String.format("%02x", b & 0xFF));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			e.printStackTrace();
+			throw new AssertionError(DIGEST_ALGORITHM + " digest not supported");
+		}
+	}
+
+	/**
+	 * Split text into lines, keeping the line terminators so
+	 * that the text can be reassembled exactly.
+	 */
+	private static List<String> splitLines(String text) {
+		final List<String> lines = new ArrayList<String>();
+		int start = 0;
+		while (start < text.length()) {
+			int end = text.indexOf('\n', start);
+			end = (end < 0) ? text.length() : end + 1;
+			lines.add(text.substring(start, end));
+			start = end;
+		}
+		return lines;
+	}
+
+	private static String getEOL(String line) {
+		return line.substring(stripEOL(line).length());
+	}
+
+	private static String stripEOL(String line) {
+		int end = line.length();
+		while ((end > 0) &&
+			   ((line.charAt(end-1) == '\n') || (line.charAt(end-1) == '\r'))) end--;
+		return line.substring(0, end);
+	}
+
+	private static String stripBOM(String line) {
+		if ((line.length() > 0) && (line.charAt(0) == '\uFEFF')) return line.substring(1);
+		return line;
+	}
+}
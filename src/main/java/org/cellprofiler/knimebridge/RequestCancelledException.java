@@ -0,0 +1,28 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge;
+
+/**
+ * @author agent
+ *
+ * This exception is thrown when a request is cancelled
+ * by {@link IKnimeBridge#cancel()} before the worker
+ * replies. The bridge asks the worker to cancel the
+ * request and is ready for the next request.
+ */
+public class RequestCancelledException extends ProtocolException {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 1L;
+
+	public RequestCancelledException(String message) {
+		super(message);
+	}
+
+}
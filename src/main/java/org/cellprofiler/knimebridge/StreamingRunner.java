@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.imagej.ImgPlus;
+
+import org.cellprofiler.knimebridge.message.ImageEncoding;
+import org.cellprofiler.knimebridge.message.RunReply;
+import org.cellprofiler.knimebridge.message.RunReq;
+import org.zeromq.ZMsg;
+
+/**
+ * @author agent
+ *
+ * Runs the bridge's pipeline on a stream of image sets, overlapping
+ * the encoding of image sets, the exchange of messages with the
+ * worker and the decoding of the measurements.
+ *
+ * There are three stages, connected by bounded queues:
+ *
+ *     encode:   a thread encodes run requests for upcoming image sets
+ *     transfer: a thread sends each request and waits for its reply
+ *     decode:   the calling thread parses each reply and hands the
+ *               measurements to the result handler
+ *
+ * While the worker computes image set N, image set N+1 is being
+ * encoded and the reply for image set N-1 is being decoded, so the
+ * next request is ready to go as soon as the worker replies.
+ */
+@SuppressWarnings("deprecation")
+public class StreamingRunner {
+	/**
+	 * The default capacity of the queues between the stages
+	 */
+	public final static int DEFAULT_QUEUE_DEPTH = 2;
+
+	/**
+	 * @author agent
+	 *
+	 * Receives the measurements for each image set as they are decoded
+	 */
+	public interface ResultHandler {
+		/**
+		 * Handle the measurements of one image set. This is called on
+		 * the thread that called {@link StreamingRunner#run(Iterator, ResultHandler)}
+		 * in the order in which the image sets were supplied.
+		 *
+		 * @param index the index of the image set in the stream
+		 * @param result the measurements for the image set
+		 */
+		public void onResult(int index, IRunResult result);
+	}
+
+	/**
+	 * A message passed between stages. The last item in a queue
+	 * has no message and carries the error, if any, that stopped
+	 * the stage that produced it.
+	 */
+	private static class Item {
+		final int index;
+		final ZMsg msg;
+		final Exception error;
+		Item(int index, ZMsg msg) {
+			this.index = index;
+			this.msg = msg;
+			this.error = null;
+		}
+		Item(Exception error) {
+			this.index = -1;
+			this.msg = null;
+			this.error = error;
+		}
+		boolean isLast() {
+			return msg == null;
+		}
+	}
+
+	private final KnimeBridgeImpl bridge;
+	private final int queueDepth;
+
+	/**
+	 * Create a streaming runner with the default queue depth
+	 *
+	 * @param bridge a bridge that has been connected and has a pipeline loaded
+	 */
+	public StreamingRunner(IKnimeBridge bridge) {
+		this(bridge, DEFAULT_QUEUE_DEPTH);
+	}
+
+	/**
+	 * Create a streaming runner
+	 *
+	 * @param bridge a bridge that has been connected and has a pipeline loaded
+	 * @param queueDepth the maximum number of encoded requests and of undecoded
+	 *        replies to hold between stages.
+	 */
+	public StreamingRunner(IKnimeBridge bridge, int queueDepth) {
+		if (! (bridge instanceof KnimeBridgeImpl)) {
+			throw new IllegalArgumentException("The bridge must come from the KnimeBridgeFactory");
+		}
+		if (queueDepth < 1) {
+			throw new IllegalArgumentException("The queue depth must be at least 1");
+		}
+		this.bridge = (KnimeBridgeImpl)bridge;
+		this.queueDepth = queueDepth;
+	}
+
+	/**
+	 * Run the pipeline on each image set, returning when all image
+	 * sets have been run or after the first error.
+	 *
+	 * @param imageSets the image sets, each a map of channel name to image
+	 * @param handler receives the measurements of each image set in order
+	 * @throws CellProfilerException if CellProfiler encountered an error
+	 *                               while running the pipeline.
+	 * @throws PipelineException if there was a configuration problem
+	 *                           with the pipeline.
+	 * @throws ProtocolException if the client could not understand the worker
+	 * @throws InterruptedException if the calling thread was interrupted. The
+	 *         run stops after the request being processed by the worker completes.
+	 */
+	public void run(final Iterator<Map<String, ImgPlus<?>>> imageSets, ResultHandler handler)
+			throws CellProfilerException, PipelineException, ProtocolException, InterruptedException {
+		final String sessionID = bridge.getSessionID();
+		final String pipeline = bridge.getPipeline();
+		final ImageEncoding encoding = bridge.getEncoding();
+		final BlockingQueue<Item> encoded = new ArrayBlockingQueue<Item>(queueDepth);
+		final BlockingQueue<Item> received = new ArrayBlockingQueue<Item>(queueDepth);
+		final AtomicBoolean stopped = new AtomicBoolean(false);
+		final Thread encoder = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Exception error = null;
+				try {
+					for (int index = 0; (! stopped.get()) && imageSets.hasNext(); index++) {
+						encoded.put(new Item(index, RunReq.create(sessionID, pipeline, imageSets.next(), encoding)));
+					}
+				} catch (InterruptedException e) {
+				} catch (RuntimeException e) {
+					error = e;
+				} finally {
+					final Item last = new Item(error);
+					try {
+						encoded.put(last);
+					} catch (InterruptedException e) {
+						/*
+						 * Only the transfer stage takes from the queue, so there
+						 * is room for the last item after discarding the others.
+						 */
+						encoded.clear();
+						encoded.offer(last);
+					}
+				}
+			}
+		}, "StreamingRunner encoder");
+		final Thread transfer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Item item;
+					Exception error = null;
+					while (true) {
+						item = encoded.take();
+						if (item.isLast()) {
+							error = item.error;
+							break;
+						}
+						if (stopped.get()) break;
+						final ZMsg reply;
+						try {
+							reply = bridge.exchange(item.msg);
+						} catch (ProtocolException e) {
+							error = e;
+							break;
+						} catch (RuntimeException e) {
+							error = e;
+							break;
+						}
+						received.put(new Item(item.index, reply));
+					}
+					stopped.set(true);
+					received.put(new Item(error));
+					/*
+					 * Discard requests until the encoder's last item
+					 * so that the encoder is never left waiting for
+					 * room in a queue that nobody takes from.
+					 */
+					while (! item.isLast()) {
+						item.msg.destroy();
+						item = encoded.take();
+					}
+				} catch (InterruptedException e) {
+				}
+			}
+		}, "StreamingRunner transfer");
+		encoder.setDaemon(true);
+		transfer.setDaemon(true);
+		encoder.start();
+		transfer.start();
+		Throwable error = null;
+		boolean interrupted = false;
+		/*
+		 * Decode until the transfer stage finishes. After an error,
+		 * keep draining so that the request that the worker is working
+		 * on completes and the socket is left ready for the next request.
+		 */
+		while (true) {
+			final Item item;
+			try {
+				item = received.take();
+			} catch (InterruptedException e) {
+				interrupted = true;
+				stopped.set(true);
+				encoder.interrupt();
+				continue;
+			}
+			if (item.isLast()) {
+				if (error == null) error = item.error;
+				break;
+			}
+			if ((error != null) || interrupted) {
+				item.msg.destroy();
+				continue;
+			}
+			try {
+				final RunReply reply = new RunReply();
+				reply.recv(item.msg);
+				handler.onResult(item.index, reply);
+			} catch (Throwable e) {
+				error = e;
+				stopped.set(true);
+				encoder.interrupt();
+			}
+		}
+		stopped.set(true);
+		encoder.interrupt();
+		joinUninterruptibly(encoder);
+		joinUninterruptibly(transfer);
+		if (interrupted) {
+			throw new InterruptedException();
+		}
+		if (error instanceof CellProfilerException) throw (CellProfilerException)error;
+		if (error instanceof PipelineException) throw (PipelineException)error;
+		if (error instanceof ProtocolException) throw (ProtocolException)error;
+		if (error instanceof RuntimeException) throw (RuntimeException)error;
+		if (error instanceof Error) throw (Error)error;
+	}
+
+	private static void joinUninterruptibly(Thread thread) {
+		boolean interrupted = false;
+		while (thread.isAlive()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+
+import org.cellprofiler.knimebridge.message.AbstractReply;
+import org.cellprofiler.knimebridge.message.FrameCodec;
+
+/**
+ * @author agent
+ *
+ * The protocol features that one end of the bridge supports. The client
+ * sends its capabilities in the connect request and the worker answers
+ * with its own in the connect reply. They are exchanged as a Json
+ * dictionary of:
+ *
+ *     "version": the protocol version
+ *     "encodings": array of the pixel encodings that can be decoded,
+ *                  e.g. [ "float64", "packed" ]
+ *     "codecs": array of the frame codecs that can be decoded,
+ *               e.g. [ "shuffle-deflate-1" ]
+ *     "batch": true if run-batch-request-1 is supported
+ *     "max-frame-size": the largest frame, in bytes, that can be
+ *                       received or 0 if there is no limit
+ *     "shared-frames": true if channels with the same image can share
+ *                      one frame of a run request
+ *     "shared-memory": true if shm-run-request-1 and
+ *                      shm-run-group-request-1 are supported, which
+ *                      needs the worker to be on the client's host
+ *     "run-by-reference": true if run-by-reference-request-1 is supported
+ *     "heartbeats": true if heartbeats are answered while a request is
+ *                   being worked on
+ *     "compute-time": true if every reply but the connect reply ends
+ *                     with the time spent working on the request (see
+ *                     {@link AbstractReply})
+ *
+ * Missing entries take the values of {@link #LEGACY}. A worker that
+ * predates the exchange sends nothing and has the legacy capabilities:
+ * the bridge then uses only the features of the original protocol.
+ */
+public class WorkerCapabilities {
+	/**
+	 * The protocol version of this client
+	 */
+	public final static int PROTOCOL_VERSION = 1;
+	/**
+	 * The protocol version of a worker that does not report its capabilities
+	 */
+	public final static int LEGACY_VERSION = 0;
+	/**
+	 * Pixels as little-endian doubles, the original encoding
+	 */
+	public final static String ENCODING_FLOAT64 = "float64";
+	/**
+	 * Integer pixels packed into their valid bits (see
+	 * {@link org.cellprofiler.knimebridge.message.PackedPixels})
+	 */
+	public final static String ENCODING_PACKED = "packed";
+	/**
+	 * Pixels as little-endian 32-bit floats
+	 */
+	public final static String ENCODING_FLOAT32 = "float32";
+	/**
+	 * The maximum frame size of an end that has no limit
+	 */
+	public final static long NO_FRAME_LIMIT = 0;
+	/**
+	 * The capabilities of a worker that predates the exchange
+	 */
+	public final static WorkerCapabilities LEGACY = new Builder().setVersion(LEGACY_VERSION).build();
+	/**
+	 * The capabilities of this client: the requests it can send
+	 * and the replies it can decode
+	 */
+	public final static WorkerCapabilities CLIENT = new Builder()
+			.setCodecs(Collections.singleton(FrameCodec.SHUFFLE_DEFLATE))
+			.setBatch(true)
+			.setSharedFrames(true)
+			.setSharedMemory(true)
+			.setRunByReference(true)
+			.setHeartbeats(true)
+			.setComputeTime(true)
+			.build();
+
+	private final int version;
+	private final Set<String> encodings;
+	private final Set<String> codecs;
+	private final boolean batch;
+	private final long maxFrameSize;
+	private final boolean sharedFrames;
+	private final boolean sharedMemory;
+	private final boolean runByReference;
+	private final boolean heartbeats;
+	private final boolean computeTime;
+
+	/**
+	 * @author agent
+	 *
+	 * Builds a WorkerCapabilities. Unset entries have the values of
+	 * the current protocol version without any optional feature.
+	 */
+	public static class Builder {
+		private int version = PROTOCOL_VERSION;
+		private Collection<String> encodings = Collections.singleton(ENCODING_FLOAT64);
+		private Collection<String> codecs = Collections.emptySet();
+		private boolean batch = false;
+		private long maxFrameSize = NO_FRAME_LIMIT;
+		private boolean sharedFrames = false;
+		private boolean sharedMemory = false;
+		private boolean runByReference = false;
+		private boolean heartbeats = false;
+		private boolean computeTime = false;
+
+		/**
+		 * @param version the protocol version
+		 * @return this builder
+		 */
+		public Builder setVersion(int version) {
+			this.version = version;
+			return this;
+		}
+
+		/**
+		 * @param encodings the pixel encodings that can be decoded
+		 * @return this builder
+		 */
+		public Builder setEncodings(Collection<String> encodings) {
+			this.encodings = encodings;
+			return this;
+		}
+
+		/**
+		 * @param codecs the frame codecs that can be decoded
+		 * @return this builder
+		 */
+		public Builder setCodecs(Collection<String> codecs) {
+			this.codecs = codecs;
+			return this;
+		}
+
+		/**
+		 * @param batch true if batches of image sets can be run in one request
+		 * @return this builder
+		 */
+		public Builder setBatch(boolean batch) {
+			this.batch = batch;
+			return this;
+		}
+
+		/**
+		 * @param maxFrameSize the largest frame that can be received or NO_FRAME_LIMIT
+		 * @return this builder
+		 */
+		public Builder setMaxFrameSize(long maxFrameSize) {
+			if (maxFrameSize < 0) {
+				throw new IllegalArgumentException("The maximum frame size must not be negative");
+			}
+			this.maxFrameSize = maxFrameSize;
+			return this;
+		}
+
+		/**
+		 * @param sharedFrames true if channels with the same image can share a frame
+		 * @return this builder
+		 */
+		public Builder setSharedFrames(boolean sharedFrames) {
+			this.sharedFrames = sharedFrames;
+			return this;
+		}
+
+		/**
+		 * @param sharedMemory true if pixels can be handed over in
+		 *                     files on the worker's host
+		 * @return this builder
+		 */
+		public Builder setSharedMemory(boolean sharedMemory) {
+			this.sharedMemory = sharedMemory;
+			return this;
+		}
+
+		/**
+		 * @param runByReference true if images can be sent as references to files
+		 * @return this builder
+		 */
+		public Builder setRunByReference(boolean runByReference) {
+			this.runByReference = runByReference;
+			return this;
+		}
+
+		/**
+		 * @param heartbeats true if heartbeats are answered during a request
+		 * @return this builder
+		 */
+		public Builder setHeartbeats(boolean heartbeats) {
+			this.heartbeats = heartbeats;
+			return this;
+		}
+
+		/**
+		 * @param computeTime true if replies report the time spent on the request
+		 * @return this builder
+		 */
+		public Builder setComputeTime(boolean computeTime) {
+			this.computeTime = computeTime;
+			return this;
+		}
+
+		/**
+		 * @return the capabilities
+		 */
+		public WorkerCapabilities build() {
+			return new WorkerCapabilities(this);
+		}
+	}
+
+	private WorkerCapabilities(Builder builder) {
+		version = builder.version;
+		encodings = Collections.unmodifiableSet(new LinkedHashSet<String>(builder.encodings));
+		codecs = Collections.unmodifiableSet(new LinkedHashSet<String>(builder.codecs));
+		batch = builder.batch;
+		maxFrameSize = builder.maxFrameSize;
+		sharedFrames = builder.sharedFrames;
+		sharedMemory = builder.sharedMemory;
+		runByReference = builder.runByReference;
+		heartbeats = builder.heartbeats;
+		computeTime = builder.computeTime;
+	}
+
+	/**
+	 * @return the protocol version or LEGACY_VERSION for a worker that
+	 *         did not report its capabilities
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return the pixel encodings that can be decoded
+	 */
+	public Set<String> getEncodings() {
+		return encodings;
+	}
+
+	/**
+	 * @param encoding the name of a pixel encoding, e.g. ENCODING_FLOAT64
+	 * @return true if the encoding can be decoded
+	 */
+	public boolean supportsEncoding(String encoding) {
+		return encodings.contains(encoding);
+	}
+
+	/**
+	 * @return the frame codecs that can be decoded
+	 */
+	public Set<String> getCodecs() {
+		return codecs;
+	}
+
+	/**
+	 * @param codec the name of a frame codec
+	 * @return true if frames compressed with the codec can be decoded
+	 */
+	public boolean supportsCodec(String codec) {
+		return codecs.contains(codec);
+	}
+
+	/**
+	 * @return true if batches of image sets can be run in one request
+	 */
+	public boolean isBatchSupported() {
+		return batch;
+	}
+
+	/**
+	 * @return the largest frame in bytes that can be received or NO_FRAME_LIMIT
+	 */
+	public long getMaxFrameSize() {
+		return maxFrameSize;
+	}
+
+	/**
+	 * @return true if channels with the same image can share one frame
+	 */
+	public boolean isSharedFramesSupported() {
+		return sharedFrames;
+	}
+
+	/**
+	 * @return true if pixels can be handed over in files on the worker's host
+	 */
+	public boolean isSharedMemorySupported() {
+		return sharedMemory;
+	}
+
+	/**
+	 * @return true if images can be sent as references to files
+	 */
+	public boolean isRunByReferenceSupported() {
+		return runByReference;
+	}
+
+	/**
+	 * @return true if heartbeats are answered while a request is being worked on
+	 */
+	public boolean isHeartbeatSupported() {
+		return heartbeats;
+	}
+
+	/**
+	 * @return true if replies report the time spent on the request
+	 */
+	public boolean isComputeTimeReported() {
+		return computeTime;
+	}
+
+	/**
+	 * @param size the size of a frame in bytes
+	 * @return true if a frame of this size can be received
+	 */
+	public boolean acceptsFrame(long size) {
+		return (maxFrameSize == NO_FRAME_LIMIT) || (size <= maxFrameSize);
+	}
+
+	/**
+	 * @return the capabilities as a Json dictionary
+	 */
+	public JsonObject toJson() {
+		final JsonArrayBuilder aEncodings = Json.createArrayBuilder();
+		for (String encoding:encodings) aEncodings.add(encoding);
+		final JsonArrayBuilder aCodecs = Json.createArrayBuilder();
+		for (String codec:codecs) aCodecs.add(codec);
+		return Json.createObjectBuilder()
+				.add("version", version)
+				.add("encodings", aEncodings)
+				.add("codecs", aCodecs)
+				.add("batch", batch)
+				.add("max-frame-size", maxFrameSize)
+				.add("shared-frames", sharedFrames)
+				.add("shared-memory", sharedMemory)
+				.add("run-by-reference", runByReference)
+				.add("heartbeats", heartbeats)
+				.add("compute-time", computeTime)
+				.build();
+	}
+
+	/**
+	 * Read capabilities from their Json dictionary
+	 *
+	 * @param capabilities the dictionary or null if none was sent
+	 * @return the capabilities, with missing entries taken from LEGACY
+	 * @throws ProtocolException if an entry has the wrong type
+	 */
+	public static WorkerCapabilities fromJson(JsonObject capabilities) throws ProtocolException {
+		if (capabilities == null) return LEGACY;
+		try {
+			final long maxFrameSize = capabilities.containsKey("max-frame-size")?
+					capabilities.getJsonNumber("max-frame-size").longValue() : NO_FRAME_LIMIT;
+			if (maxFrameSize < 0) {
+				throw new ProtocolException("The maximum frame size must not be negative");
+			}
+			return new Builder()
+					.setVersion(capabilities.getInt("version", LEGACY_VERSION))
+					.setEncodings(getStrings(capabilities, "encodings", LEGACY.encodings))
+					.setCodecs(getStrings(capabilities, "codecs", LEGACY.codecs))
+					.setBatch(getFlag(capabilities, "batch", LEGACY.batch))
+					.setMaxFrameSize(maxFrameSize)
+					.setSharedFrames(getFlag(capabilities, "shared-frames", LEGACY.sharedFrames))
+					.setSharedMemory(getFlag(capabilities, "shared-memory", LEGACY.sharedMemory))
+					.setRunByReference(getFlag(capabilities, "run-by-reference", LEGACY.runByReference))
+					.setHeartbeats(getFlag(capabilities, "heartbeats", LEGACY.heartbeats))
+					.setComputeTime(getFlag(capabilities, "compute-time", LEGACY.computeTime))
+					.build();
+		} catch (ClassCastException e) {
+			throw new ProtocolException(String.format(
+					"Badly formed capabilities: %s", capabilities.toString()));
+		} catch (JsonException e) {
+			throw new ProtocolException(String.format(
+					"Badly formed capabilities: %s", e.getMessage()));
+		}
+	}
+
+	private static boolean getFlag(JsonObject capabilities, String key, boolean dflt) throws ProtocolException {
+		final JsonValue value = capabilities.get(key);
+		if (value == null) return dflt;
+		if (value.getValueType() == JsonValue.ValueType.TRUE) return true;
+		if (value.getValueType() == JsonValue.ValueType.FALSE) return false;
+		throw new ProtocolException(String.format("The capability, %s, is not true or false", key));
+	}
+
+	private static Collection<String> getStrings(JsonObject capabilities, String key, Collection<String> dflt) {
+		final JsonArray array = capabilities.getJsonArray(key);
+		if (array == null) return dflt;
+		final String [] result = new String[array.size()];
+		for (int i=0; i<result.length; i++) {
+			result[i] = array.getString(i);
+		}
+		return Arrays.asList(result);
+	}
+
+	@Override
+	public String toString() {
+		return toJson().toString();
+	}
+}
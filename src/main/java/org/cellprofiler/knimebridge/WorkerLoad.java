@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge;
+
+/**
+ * @author agent
+ *
+ * The load that a worker reported in its last heartbeat reply.
+ * The compute time is the worker's average over recent image sets,
+ * not the time spent on the heartbeat, which some workers report in
+ * a frame of its own.
+ * A scheduler can use it to send work to the least busy worker.
+ */
+public class WorkerLoad {
+	/**
+	 * The value of a figure that the worker did not report
+	 */
+	public final static int UNKNOWN = -1;
+	private final int queueDepth;
+	private final double computeTime;
+	private final long timestamp;
+
+	/**
+	 * @param queueDepth the number of requests that the worker has
+	 *                   queued or is working on, or UNKNOWN
+	 * @param computeTime the worker's recent average time to run an image
+	 *                    set in milliseconds, or UNKNOWN
+	 * @param timestamp when the figures were received, as System.currentTimeMillis()
+	 */
+	public WorkerLoad(int queueDepth, double computeTime, long timestamp) {
+		this.queueDepth = queueDepth;
+		this.computeTime = computeTime;
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * @return the number of requests that the worker has queued or
+	 *         is working on, or UNKNOWN
+	 */
+	public int getQueueDepth() {
+		return queueDepth;
+	}
+
+	/**
+	 * @return the worker's recent average time to run an image set in
+	 *         milliseconds, or UNKNOWN
+	 */
+	public double getComputeTime() {
+		return computeTime;
+	}
+
+	/**
+	 * @return when the figures were received, as System.currentTimeMillis()
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * @return the estimated time in milliseconds before the worker can start
+	 *         on a new request or UNKNOWN if the worker didn't report enough
+	 */
+	public double getBacklog() {
+		if ((queueDepth == UNKNOWN) || (computeTime == UNKNOWN)) return UNKNOWN;
+		return queueDepth * computeTime;
+	}
+}
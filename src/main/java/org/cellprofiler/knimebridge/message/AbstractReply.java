@@ -6,11 +6,18 @@
  */
 package org.cellprofiler.knimebridge.message;
 
+import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+
 import org.cellprofiler.knimebridge.CellProfilerException;
 import org.cellprofiler.knimebridge.PipelineException;
 import org.cellprofiler.knimebridge.ProtocolException;
+import org.zeromq.ZFrame;
 import org.zeromq.ZMQ.Socket;
 import org.zeromq.ZMsg;
 
@@ -21,6 +28,13 @@ import org.zeromq.ZMsg;
  * The basic protocol for a reply is a "wrapper"
  * composed of a session ID frame and a blank frame
  * followed by the message type.
+ * 
+ * A worker that reports its compute time ends every reply but the
+ * connect reply with a frame holding a Json dictionary of:
+ *     "compute-time": the milliseconds spent on the request, from
+ *                     receiving it to sending the reply
+ * A bridge removes the frame to tell how long the exchange spent
+ * on the wire. The replies' parsers ignore it otherwise.
  */
 public abstract class AbstractReply {
 	protected abstract String getMsgName();
@@ -45,7 +59,21 @@ public abstract class AbstractReply {
 	 * @throws ProtocolException if the client could not parse the server's response
 	 */
 	public void recv(Socket socket) throws CellProfilerException, PipelineException, ProtocolException {
-		ZMsg msg = ZMsg.recvMsg(socket);
+		recv(ZMsg.recvMsg(socket));
+	}
+	/**
+	 * Parse a reply that has already been received
+	 * 
+	 * @param msg the reply message, including the session ID wrapper
+	 * 
+	 * @throws CellProfilerException if CellProfiler encountered an error while running a pipeline
+	 * @throws PipelineException if the pipeline could not be parsed
+	 * @throws ProtocolException if the client could not parse the server's response
+	 */
+	public void recv(ZMsg msg) throws CellProfilerException, PipelineException, ProtocolException {
+		if (msg == null) {
+			throw new ProtocolException("Failed to receive reply");
+		}
 		sessionID = msg.unwrap().toString();
 		final String msgName = msg.popString();
 		if (msgName == null) {
@@ -69,8 +97,20 @@ public abstract class AbstractReply {
 	 * @throws ProtocolException if the client could not understand the server
 	 */
 	public void recvNoCPException(Socket socket) throws PipelineException, ProtocolException {
+		recvNoCPException(ZMsg.recvMsg(socket));
+	}
+	
+	/**
+	 * Parse a message that has already been received, treating CellProfiler
+	 * exceptions as protocol exceptions
+	 * 
+	 * @param msg the reply message, including the session ID wrapper
+	 * @throws PipelineException if the pipeline could not be parsed
+	 * @throws ProtocolException if the client could not understand the server
+	 */
+	public void recvNoCPException(ZMsg msg) throws PipelineException, ProtocolException {
 		try {
-			recv(socket);
+			recv(msg);
 		} catch (CellProfilerException e) {
 			throw new ProtocolException("Unexpected cellprofiler exception");
 		}
@@ -83,8 +123,18 @@ public abstract class AbstractReply {
 	 * @throws ProtocolException if the client could not understand the server
 	 */
 	public void recvNoException(Socket socket) throws ProtocolException {
+		recvNoException(ZMsg.recvMsg(socket));
+	}
+	
+	/**
+	 * Parse a message that has already been received, expecting no server-side exceptions
+	 * 
+	 * @param msg the reply message, including the session ID wrapper
+	 * @throws ProtocolException if the client could not understand the server
+	 */
+	public void recvNoException(ZMsg msg) throws ProtocolException {
 		try {
-			recvNoCPException(socket);
+			recvNoCPException(msg);
 		} catch (PipelineException e) {
 			throw new ProtocolException("Unexpected pipeline exception");
 		}
@@ -108,5 +158,37 @@ public abstract class AbstractReply {
 			throw new AssertionError("UTF-8 encoding not supported");
 		}
 	}
+	
+	/**
+	 * Remove the compute time frame from the end of a reply
+	 * 
+	 * @param msg a reply from a worker that reports its compute time
+	 * 
+	 * @return the compute time in milliseconds
+	 * @throws ProtocolException if the frame is missing or badly formed
+	 */
+	static public double popComputeTime(ZMsg msg) throws ProtocolException {
+		final ZFrame frame = msg.pollLast();
+		if (frame == null) {
+			throw new ProtocolException("Missing compute time frame");
+		}
+		try {
+			final JsonObject timing = Json.createReader(
+					new StringReader(new String(frame.getData(), "UTF-8"))).readObject();
+			final JsonNumber computeTime = timing.getJsonNumber("compute-time");
+			if ((computeTime == null) || (computeTime.doubleValue() < 0)) {
+				throw new ProtocolException("Missing or negative compute time");
+			}
+			return computeTime.doubleValue();
+		} catch (UnsupportedEncodingException e) {
+			e.printStackTrace();
+			throw new AssertionError("UTF-8 encoding not supported");
+		} catch (JsonException e) {
+			throw new ProtocolException(String.format(
+					"Failed to parse the compute time: %s", e.getMessage()));
+		} catch (ClassCastException e) {
+			throw new ProtocolException("The compute time is not a number");
+		}
+	}
 
 }
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge.message;
+
+import org.cellprofiler.knimebridge.ProtocolException;
+import org.zeromq.ZMsg;
+
+/**
+ * @author agent
+ *
+ * The worker's acknowledgement of a CancelReq. The message has no body.
+ */
+public class CancelReply extends AbstractReply {
+	private static final String msgName = "cancel-reply-1";
+
+	protected CancelReply() {
+	}
+
+	/**
+	 * Parse a cancel reply that has already been received
+	 * 
+	 * @param msg the reply message
+	 * @return the parsed reply
+	 * @throws ProtocolException if the message was not a cancel reply
+	 */
+	public static CancelReply recvReply(ZMsg msg) throws ProtocolException {
+		final CancelReply reply = new CancelReply();
+		reply.recvNoException(msg);
+		return reply;
+	}
+
+	@Override
+	protected String getMsgName() {
+		return msgName;
+	}
+
+	@Override
+	protected void parse(ZMsg msg) {
+	}
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge.message;
+
+import org.zeromq.ZFrame;
+import org.zeromq.ZMsg;
+
+/**
+ * @author agent
+ *
+ * A request to cancel the work that the worker is doing or has
+ * queued for a session. The client sends this after abandoning
+ * a request, either because the request's deadline passed or
+ * because the caller cancelled it. The worker can then drop the
+ * work instead of spending time on a reply that nobody will read.
+ *
+ * The message has no body: the session ID in the wrapper identifies
+ * the work to be cancelled. The worker replies with a CancelReply.
+ */
+public class CancelReq extends ZMsg {
+	private static final String msgName = "cancel-request-1";
+
+	protected CancelReq(String sessionID) {
+		add(msgName);
+		wrap(new ZFrame(sessionID));
+	}
+
+	/**
+	 * Create a cancel request to send on a socket managed by the caller
+	 * 
+	 * @param sessionID the session whose work should be cancelled
+	 * @return the request message
+	 */
+	public static CancelReq create(String sessionID) {
+		return new CancelReq(sessionID);
+	}
+}
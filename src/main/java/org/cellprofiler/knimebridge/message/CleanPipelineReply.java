@@ -35,6 +35,21 @@ public class CleanPipelineReply extends AbstractReply {
 		reply.recvNoCPException(socket);
 		return reply;
 	}
+
+	/**
+	 * Parse a CleanPipelineReply that has already been received
+	 * 
+	 * @param msg the reply message
+	 * @return a reply with the pipeline wrapped by the message
+	 * @throws ProtocolException if the clean-pipeline-request was not supported by the server
+	 * @throws PipelineException if the pipeline was in the wrong format.
+	 */
+	public static CleanPipelineReply recvReply(ZMsg msg) 
+			throws ProtocolException, PipelineException {
+		CleanPipelineReply reply = new CleanPipelineReply();
+		reply.recvNoCPException(msg);
+		return reply;
+	}
 	
 	/* (non-Javadoc)
 	 * @see org.cellprofiler.knimebridge.message.AbstractReply#getMsgName()
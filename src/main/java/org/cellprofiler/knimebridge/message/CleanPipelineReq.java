@@ -37,6 +37,17 @@ public class CleanPipelineReq extends ZMsg{
 		add(jsonModuleNames.build().toString());
 		wrap(new ZFrame(sessionID));
 	}
+	/**
+	 * Create a clean pipeline request to send on a socket managed by the caller
+	 * 
+	 * @param sessionID use this session for communication
+	 * @param pipeline the pipeline text to be modified
+	 * @param moduleNames the names of the modules to be removed
+	 * @return the request message
+	 */
+	public static CleanPipelineReq create(String sessionID, String pipeline, Collection<String> moduleNames) {
+		return new CleanPipelineReq(sessionID, pipeline, moduleNames);
+	}
 	/**
 	 * @param socket communicate with the server over this socket
 	 * @param sessionID use this session for communication
@@ -6,7 +6,15 @@
  */
 package org.cellprofiler.knimebridge.message;
 
+import java.io.StringReader;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+
 import org.cellprofiler.knimebridge.ProtocolException;
+import org.cellprofiler.knimebridge.WorkerCapabilities;
 import org.zeromq.ZMQ.Socket;
 import org.zeromq.ZMsg;
 
@@ -15,9 +23,22 @@ import org.zeromq.ZMsg;
  * 
  * @author Lee Kamentsky
  *
+ * Format of a ConnectReply:
+ * 
+ *     msgName
+ *     options (optional): Json string
+ *        Dictionary of
+ *           "capabilities": the worker's capabilities
+ *                           (see {@link WorkerCapabilities})
+ *           "codec": the frame codec that the worker chose from
+ *                    those offered by the client
+ * 
+ * A worker that sends no capabilities has {@link WorkerCapabilities#LEGACY}.
  */
 public class ConnectReply extends AbstractReply {
 	static final private String msgName = "connect-reply-1";
+	private String codec;
+	private WorkerCapabilities capabilities = WorkerCapabilities.LEGACY;
 	protected ConnectReply() {
 	}
 	/**
@@ -32,12 +53,54 @@ public class ConnectReply extends AbstractReply {
 		reply.recvNoException(socket);
 		return reply;
 	}
+	/**
+	 * Parse a connect reply that has already been received
+	 * 
+	 * @param msg the reply message
+	 * @return the parsed reply
+	 * @throws ProtocolException if the message was not a connect reply
+	 */
+	public static ConnectReply recvConnectReply(ZMsg msg) throws ProtocolException {
+		final ConnectReply reply = new ConnectReply();
+		reply.recvNoException(msg);
+		return reply;
+	}
 	@Override
 	protected String getMsgName() {
 		return msgName;
 	}
+	/**
+	 * @return the frame codec chosen by the worker or null if none
+	 */
+	public String getCodec() {
+		return codec;
+	}
+	/**
+	 * @return the capabilities of the worker
+	 */
+	public WorkerCapabilities getCapabilities() {
+		return capabilities;
+	}
 	@Override
-	protected void parse(ZMsg msg) {
-		
+	protected void parse(ZMsg msg) throws ProtocolException {
+		if (msg.isEmpty()) return;
+		final String body = popString(msg);
+		final JsonObject options;
+		try {
+			options = Json.createReader(new StringReader(body)).readObject();
+			codec = options.getString("codec", null);
+		} catch (JsonException e) {
+			throw new ProtocolException(String.format(
+					"Failed to parse the connect reply's options: %s", e.getMessage()));
+		} catch (ClassCastException e) {
+			throw new ProtocolException("The connect reply's codec is not a string");
+		}
+		final JsonValue jCapabilities = options.get("capabilities");
+		if (jCapabilities != null) {
+			if (! (jCapabilities instanceof JsonObject)) {
+				throw new ProtocolException("The connect reply's capabilities are not a dictionary");
+			}
+			capabilities = WorkerCapabilities.fromJson((JsonObject)jCapabilities);
+		}
 	}
 }
@@ -6,9 +6,16 @@
  */
 package org.cellprofiler.knimebridge.message;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.UUID;
 
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObjectBuilder;
+
 import org.cellprofiler.knimebridge.ProtocolException;
+import org.cellprofiler.knimebridge.WorkerCapabilities;
 import org.zeromq.ZFrame;
 import org.zeromq.ZMQ.Socket;
 import org.zeromq.ZMsg;
@@ -19,12 +26,37 @@ import org.zeromq.ZMsg;
  * 
  * @author Lee Kamentsky
  *
+ * Format of a ConnectReq:
+ * 
+ *     msgName
+ *     options: Json string
+ *        Dictionary of
+ *           "capabilities": the client's capabilities
+ *                           (see {@link WorkerCapabilities})
+ *           "codecs": array of the frame codecs the client can use,
+ *                     e.g. [ "shuffle-deflate-1" ]
+ *        Each entry is optional.
+ * 
+ * A worker answers with its own capabilities in its ConnectReply.
+ * A worker that can use one of the codecs answers with the one it
+ * chose. Workers that predate the options frame ignore it.
  */
 public class ConnectReq extends ZMsg {
 	private static final String msgName = "connect-request-1";
 	private final String sessionID = UUID.randomUUID().toString();
 	protected ConnectReq() {
+		this(Collections.<String>emptyList());
+	}
+	protected ConnectReq(Collection<String> codecs) {
 		add(msgName);
+		final JsonObjectBuilder options = Json.createObjectBuilder()
+				.add("capabilities", WorkerCapabilities.CLIENT.toJson());
+		if (! codecs.isEmpty()) {
+			final JsonArrayBuilder aCodecs = Json.createArrayBuilder();
+			for (String codec:codecs) aCodecs.add(codec);
+			options.add("codecs", aCodecs);
+		}
+		add(options.build().toString());
 		wrap(new ZFrame(sessionID));
 	}
 	/**
@@ -43,4 +75,30 @@ public class ConnectReq extends ZMsg {
 		ConnectReply.recvConnectReply(socket);
 		return req.sessionID;
 	}
+	/**
+	 * Create a connect request to send on a socket managed by the caller.
+	 * The reply should be checked with {@link ConnectReply#recvConnectReply(ZMsg)}.
+	 * 
+	 * @return a connect request with a new session ID
+	 */
+	static public ConnectReq create() {
+		return new ConnectReq();
+	}
+	/**
+	 * Create a connect request that offers frame codecs
+	 * 
+	 * @param codecs the frame codecs that the client can use, in order
+	 *               of preference. The one the worker chose, if any, is
+	 *               returned by {@link ConnectReply#getCodec()}.
+	 * @return a connect request with a new session ID
+	 */
+	static public ConnectReq create(Collection<String> codecs) {
+		return new ConnectReq(codecs);
+	}
+	/**
+	 * @return the session ID that this request will establish
+	 */
+	public String getSessionID() {
+		return sessionID;
+	}
 }
@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge.message;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+
+import org.cellprofiler.knimebridge.ProtocolException;
+
+/**
+ * @author agent
+ *
+ * Compresses the data frames of requests and decompresses those of
+ * replies. The codec, "shuffle-deflate-1", groups the bytes of a typed
+ * array by their significance (the first byte of every element, then
+ * the second and so on) and then deflates them at the fastest level.
+ * Shuffling puts the slowly-varying high bytes of pixels and the
+ * mostly-identical bytes of object numbers and NaNs next to each other,
+ * where deflate finds long runs.
+ *
+ * A compressed frame is described in the message's Json by a
+ * dictionary of:
+ *     "codec": "shuffle-deflate-1"
+ *     "length": the number of bytes before compression
+ *     "typesize": the number of bytes per element that were shuffled
+ * The compressed bytes are in zlib format.
+ *
+ * Compression is adaptive. The codec keeps running estimates of how
+ * fast it compresses, how much it saves and how fast the link to the
+ * worker is, and only compresses when the bytes saved take longer to
+ * send than it takes to compress them. While it isn't compressing,
+ * it still compresses a frame now and then to keep its estimates up
+ * to date. The link's speed is only known if the worker reports how
+ * long it spent on each request, so that the time can be left out.
+ * Until then, compression is assumed to pay.
+ */
+public class FrameCodec {
+	/**
+	 * The name of the codec, as negotiated in the connect handshake
+	 */
+	public static final String SHUFFLE_DEFLATE = "shuffle-deflate-1";
+	/**
+	 * Compress every this many frames to refresh the estimates,
+	 * even if compression doesn't pay.
+	 */
+	public static final int PROBE_INTERVAL = 16;
+	/**
+	 * Frames smaller than this are never compressed
+	 */
+	public static final int MIN_FRAME_SIZE = 4096;
+	/**
+	 * The weight of the newest sample in the running estimates
+	 */
+	private static final double SMOOTHING = 0.25;
+	/**
+	 * The factor by which the link bandwidth estimate decays per sample
+	 */
+	private static final double BANDWIDTH_DECAY = 0.95;
+
+	/*
+	 * The running estimates, in bytes per second and compressed
+	 * bytes per raw byte, or 0 if there is no sample yet.
+	 */
+	private double compressionRate;
+	private double ratio;
+	private double bandwidth;
+	private int framesSinceProbe;
+	private long nCompressed;
+	private long nSent;
+
+	/**
+	 * Compress a frame if compression pays
+	 *
+	 * @param data the frame's bytes
+	 * @param typeSize the number of bytes per element of the array in the frame
+	 * @return the compressed bytes or null to send the frame as is
+	 */
+	public byte [] compress(byte [] data, int typeSize) {
+		synchronized (this) {
+			nSent++;
+			if (data.length < MIN_FRAME_SIZE) return null;
+			if (! pays() && (++framesSinceProbe < PROBE_INTERVAL)) return null;
+			framesSinceProbe = 0;
+		}
+		final long start = System.nanoTime();
+		final byte [] compressed = deflate(shuffle(data, typeSize));
+		final long elapsed = Math.max(1, System.nanoTime() - start);
+		synchronized (this) {
+			compressionRate = smooth(compressionRate, data.length * 1E9 / elapsed);
+			ratio = smooth(ratio, (double)compressed.length / data.length);
+			if (compressed.length >= data.length) return null;
+			nCompressed++;
+		}
+		return compressed;
+	}
+
+	/**
+	 * Record the time that an exchange with the worker spent on the wire
+	 *
+	 * @param nBytes the number of bytes sent in the request and reply
+	 * @param nanos the time from sending the request to receiving the
+	 *              reply, less the time that the worker spent on the request
+	 */
+	public synchronized void recordTransfer(long nBytes, long nanos) {
+		if ((nBytes < MIN_FRAME_SIZE) || (nanos <= 0)) return;
+		/*
+		 * The time still includes queueing on both ends, so it
+		 * understates the link's speed. The fastest recent exchange
+		 * is the best estimate, so let the estimate decay rather
+		 * than average it.
+		 */
+		bandwidth = Math.max(nBytes * 1E9 / nanos, bandwidth * BANDWIDTH_DECAY);
+	}
+
+	/**
+	 * @return true if the time to compress a byte is less than the time
+	 *         saved in sending it, or if there are no estimates yet
+	 */
+	public synchronized boolean pays() {
+		if ((compressionRate == 0) || (bandwidth == 0)) return true;
+		return bandwidth < (1 - ratio) * compressionRate;
+	}
+
+	/**
+	 * @return the estimated link bandwidth in bytes per second or 0 if unknown
+	 */
+	public synchronized double getBandwidth() {
+		return bandwidth;
+	}
+
+	/**
+	 * @return the estimated compression speed in bytes per second or 0 if unknown
+	 */
+	public synchronized double getCompressionRate() {
+		return compressionRate;
+	}
+
+	/**
+	 * @return the estimated ratio of compressed to raw size or 0 if unknown
+	 */
+	public synchronized double getRatio() {
+		return ratio;
+	}
+
+	/**
+	 * @return the number of frames that were compressed
+	 */
+	public synchronized long getCompressedCount() {
+		return nCompressed;
+	}
+
+	/**
+	 * @return the number of frames offered for compression
+	 */
+	public synchronized long getFrameCount() {
+		return nSent;
+	}
+
+	private static double smooth(double estimate, double sample) {
+		return (estimate == 0)? sample : estimate + SMOOTHING * (sample - estimate);
+	}
+
+	/**
+	 * Describe a compressed frame
+	 *
+	 * @param length the number of bytes before compression
+	 * @param typeSize the number of bytes per element
+	 * @return the description to put in the message's Json
+	 */
+	public static JsonObject describe(int length, int typeSize) {
+		return Json.createObjectBuilder()
+				.add("codec", SHUFFLE_DEFLATE)
+				.add("length", length)
+				.add("typesize", typeSize)
+				.build();
+	}
+
+	/**
+	 * Decompress a frame
+	 *
+	 * @param description the frame's description from the message's Json
+	 * @param data the compressed bytes
+	 * @return the frame's original bytes
+	 * @throws ProtocolException if the codec is unknown or the data is corrupt
+	 */
+	public static byte [] decompress(JsonObject description, byte [] data) throws ProtocolException {
+		final String codec = description.getString("codec", null);
+		if (! SHUFFLE_DEFLATE.equals(codec)) {
+			throw new ProtocolException(String.format("Unknown frame codec: %s", codec));
+		}
+		final int length = description.getInt("length", -1);
+		final int typeSize = description.getInt("typesize", 1);
+		if ((length < 0) || (typeSize < 1)) {
+			throw new ProtocolException("Bad compressed frame description");
+		}
+		return unshuffle(inflate(data, length), typeSize);
+	}
+
+	/**
+	 * Group the bytes of each element by significance
+	 *
+	 * @param data the elements' bytes
+	 * @param typeSize the number of bytes per element
+	 * @return the shuffled bytes. Trailing bytes that don't make
+	 *         up a whole element are left at the end.
+	 */
+	static byte [] shuffle(byte [] data, int typeSize) {
+		if (typeSize <= 1) return data;
+		final byte [] result = new byte[data.length];
+		final int n = data.length / typeSize;
+		for (int i=0; i<n; i++) {
+			for (int j=0; j<typeSize; j++) {
+				result[j * n + i] = data[i * typeSize + j];
+			}
+		}
+		System.arraycopy(data, n * typeSize, result, n * typeSize, data.length - n * typeSize);
+		return result;
+	}
+
+	/**
+	 * Undo {@link #shuffle(byte[], int)}
+	 *
+	 * @param data the shuffled bytes
+	 * @param typeSize the number of bytes per element
+	 * @return the elements' bytes
+	 */
+	static byte [] unshuffle(byte [] data, int typeSize) {
+		if (typeSize <= 1) return data;
+		final byte [] result = new byte[data.length];
+		final int n = data.length / typeSize;
+		for (int i=0; i<n; i++) {
+			for (int j=0; j<typeSize; j++) {
+				result[i * typeSize + j] = data[j * n + i];
+			}
+		}
+		System.arraycopy(data, n * typeSize, result, n * typeSize, data.length - n * typeSize);
+		return result;
+	}
+
+	private static byte [] deflate(byte [] data) {
+		final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			final ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+			final byte [] buffer = new byte[65536];
+			while (! deflater.finished()) {
+				out.write(buffer, 0, deflater.deflate(buffer));
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static byte [] inflate(byte [] data, int length) throws ProtocolException {
+		final Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data);
+			final byte [] result = new byte[length];
+			int offset = 0;
+			while ((offset < length) && ! inflater.finished()) {
+				final int n = inflater.inflate(result, offset, length - offset);
+				if ((n == 0) && (inflater.needsInput() || inflater.needsDictionary())) break;
+				offset += n;
+			}
+			if ((offset != length) || ! inflater.finished()) {
+				throw new ProtocolException("Compressed frame did not have the described length");
+			}
+			return result;
+		} catch (DataFormatException e) {
+			throw new ProtocolException(String.format("Corrupt compressed frame: %s", e.getMessage()));
+		} finally {
+			inflater.end();
+		}
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge.message;
+
+import java.io.StringReader;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+
+import org.cellprofiler.knimebridge.ProtocolException;
+import org.cellprofiler.knimebridge.WorkerLoad;
+import org.zeromq.ZMsg;
+
+/**
+ * @author agent
+ *
+ * The worker's answer to a HeartbeatReq.
+ * 
+ * Format of a HeartbeatReply:
+ * 
+ *     msgName
+ *     load (optional): Json string
+ *        Dictionary of
+ *           "queue-depth": the number of requests that the worker has
+ *                          queued or is working on
+ *           "mean-compute-time": the worker's recent average time to
+ *                                run an image set, in milliseconds
+ *        Each entry is optional.
+ *     compute time (if the worker reports it): the frame described in
+ *        AbstractReply, which comes after the load. It must be removed
+ *        before the reply is parsed.
+ */
+public class HeartbeatReply extends AbstractReply {
+	private static final String msgName = "heartbeat-reply-1";
+	private WorkerLoad load;
+	protected HeartbeatReply() {
+	}
+	/**
+	 * Parse a heartbeat reply that has already been received
+	 * 
+	 * @param msg the reply message, without its compute time frame
+	 * @return the parsed reply
+	 * @throws ProtocolException if the message was not a heartbeat reply
+	 */
+	public static HeartbeatReply recvReply(ZMsg msg) throws ProtocolException {
+		final HeartbeatReply reply = new HeartbeatReply();
+		reply.recvNoException(msg);
+		return reply;
+	}
+	/**
+	 * @return the load that the worker reported
+	 */
+	public WorkerLoad getLoad() {
+		return load;
+	}
+	@Override
+	protected String getMsgName() {
+		return msgName;
+	}
+	@Override
+	protected void parse(ZMsg msg) throws ProtocolException {
+		int queueDepth = WorkerLoad.UNKNOWN;
+		double computeTime = WorkerLoad.UNKNOWN;
+		if (! msg.isEmpty()) {
+			try {
+				final JsonObject body = Json.createReader(new StringReader(popString(msg))).readObject();
+				queueDepth = body.getInt("queue-depth", WorkerLoad.UNKNOWN);
+				final JsonNumber jComputeTime = body.getJsonNumber("mean-compute-time");
+				if (jComputeTime != null) computeTime = jComputeTime.doubleValue();
+			} catch (JsonException e) {
+				throw new ProtocolException(String.format(
+						"Failed to parse the heartbeat reply's load: %s", e.getMessage()));
+			} catch (ClassCastException e) {
+				throw new ProtocolException("The heartbeat reply's load figures are not numbers");
+			}
+		}
+		load = new WorkerLoad(queueDepth, computeTime, System.currentTimeMillis());
+	}
+}
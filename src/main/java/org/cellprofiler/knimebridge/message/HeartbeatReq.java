@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge.message;
+
+import org.zeromq.ZFrame;
+import org.zeromq.ZMsg;
+
+/**
+ * @author agent
+ *
+ * A request for a sign of life from the worker. The client sends
+ * this on a connection that it has not heard from for a while, on
+ * a socket of its own so that it can be answered while the worker
+ * is busy with a run request.
+ *
+ * The message has no body. The worker replies with a HeartbeatReply.
+ */
+public class HeartbeatReq extends ZMsg {
+	private static final String msgName = "heartbeat-request-1";
+	protected HeartbeatReq(String sessionID) {
+		add(msgName);
+		wrap(new ZFrame(sessionID));
+	}
+	/**
+	 * Create a heartbeat request to send on a socket managed by the caller
+	 * 
+	 * @param sessionID a session on the worker
+	 * @return the request message
+	 */
+	public static HeartbeatReq create(String sessionID) {
+		return new HeartbeatReq(sessionID);
+	}
+}
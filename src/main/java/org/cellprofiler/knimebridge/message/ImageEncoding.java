@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge.message;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * @author agent
+ *
+ * How the images of a run request are encoded, as negotiated
+ * with the worker when connecting.
+ */
+public class ImageEncoding {
+	/**
+	 * The original encoding, which every worker understands
+	 */
+	public static final ImageEncoding DEFAULT = new ImageEncoding(null, false);
+
+	private final FrameCodec codec;
+	private final boolean sharedFrames;
+	private final boolean packed;
+	private final boolean float32;
+	private final Set<String> float32Channels;
+
+	/**
+	 * @param codec compresses the image data if it pays, or null to not compress
+	 * @param sharedFrames true to send the data of an image that is used
+	 *                     for several channels once, false to send it once
+	 *                     per channel
+	 */
+	public ImageEncoding(FrameCodec codec, boolean sharedFrames) {
+		this(codec, sharedFrames, false);
+	}
+
+	/**
+	 * @param codec compresses the image data if it pays, or null to not compress
+	 * @param sharedFrames true to send the data of an image that is used
+	 *                     for several channels once, false to send it once
+	 *                     per channel
+	 * @param packed true to pack the pixels of integer images into their
+	 *               valid bits (see {@link PackedPixels})
+	 */
+	public ImageEncoding(FrameCodec codec, boolean sharedFrames, boolean packed) {
+		this(codec, sharedFrames, packed, false, Collections.<String>emptySet());
+	}
+
+	/**
+	 * @param codec compresses the image data if it pays, or null to not compress
+	 * @param sharedFrames true to send the data of an image that is used
+	 *                     for several channels once, false to send it once
+	 *                     per channel
+	 * @param packed true to pack the pixels of integer images into their
+	 *               valid bits (see {@link PackedPixels})
+	 * @param float32 true to send the pixels of every channel as 32-bit floats
+	 * @param float32Channels the channels whose pixels are sent as 32-bit floats
+	 *                        if not every channel's are
+	 */
+	public ImageEncoding(FrameCodec codec, boolean sharedFrames, boolean packed,
+			boolean float32, Collection<String> float32Channels) {
+		this.codec = codec;
+		this.sharedFrames = sharedFrames;
+		this.packed = packed;
+		this.float32 = float32;
+		this.float32Channels = Collections.unmodifiableSet(new HashSet<String>(float32Channels));
+	}
+
+	/**
+	 * @param float32 true to send the pixels of every channel as 32-bit
+	 *                floats, false to send them all as doubles
+	 * @return this encoding, except for the pixels' precision
+	 */
+	public ImageEncoding withFloat32(boolean float32) {
+		return new ImageEncoding(codec, sharedFrames, packed, float32, Collections.<String>emptySet());
+	}
+
+	/**
+	 * @return the codec that compresses image data or null if none
+	 */
+	public FrameCodec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * @return true if channels with the same image share one frame
+	 */
+	public boolean isSharedFrames() {
+		return sharedFrames;
+	}
+
+	/**
+	 * @return true if the pixels of integer images are packed into their valid bits
+	 */
+	public boolean isPacked() {
+		return packed;
+	}
+
+	/**
+	 * @param channel the name of a channel
+	 * @return true if the channel's pixels are sent as 32-bit floats
+	 *         (unless they are packed)
+	 */
+	public boolean isFloat32(String channel) {
+		return float32 || float32Channels.contains(channel);
+	}
+}
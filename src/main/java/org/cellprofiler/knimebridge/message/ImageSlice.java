@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge.message;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgView;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * @author agent
+ *
+ * A hyperslice of an image, for instance one channel of a multichannel
+ * image. The slice remembers the image it was cut from so that the
+ * run request can copy its pixels straight from the image's storage.
+ */
+public class ImageSlice<T extends RealType<T>> extends ImgView<T> {
+	private final Img<T> source;
+	private final int axis;
+	private final long position;
+
+	/**
+	 * Make a slice of an image
+	 *
+	 * @param source the image
+	 * @param axis the index of the axis that the slice is cut across
+	 * @param position the slice's position on that axis
+	 */
+	public ImageSlice(Img<T> source, int axis, long position) {
+		super(Views.hyperSlice(source, axis, position), null);
+		this.source = source;
+		this.axis = axis;
+		this.position = position;
+	}
+
+	/**
+	 * @return the image that the slice was cut from
+	 */
+	public Img<T> getSource() {
+		return source;
+	}
+
+	/**
+	 * @return the index of the axis that the slice is cut across
+	 */
+	public int getAxis() {
+		return axis;
+	}
+
+	/**
+	 * @return the slice's position on the axis
+	 */
+	public long getPosition() {
+		return position;
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge.message;
+
+import java.util.Map;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+
+import org.cellprofiler.knimebridge.ProtocolException;
+import org.cellprofiler.knimebridge.WorkerCapabilities;
+
+/**
+ * @author agent
+ *
+ * Packs the pixels of integer images into as many bits per pixel as
+ * the image's valid bits, for instance 12 bits for a 12-bit camera
+ * instead of the 64 bits of a double.
+ *
+ * A pixel with the value, v, of an image with b valid bits is sent to
+ * the worker as v / 2^b. Packing sends v itself as a b-bit unsigned
+ * integer. The integers are packed into a stream of bits, the first
+ * pixel in the lowest bits of the first byte, with each pixel's bits
+ * ordered from least to most significant. The worker divides each
+ * integer by 2^b to get the pixel's intensity.
+ *
+ * A packed frame is described in the message's Json by a dictionary of:
+ *     "encoding": "packed"
+ *     "bits": the number of bits per pixel
+ * If the frame is also compressed, the dictionary has the entries of
+ * the compressed frame's description too. The frame is unpacked
+ * after it is decompressed.
+ */
+public final class PackedPixels {
+	/**
+	 * The most bits per pixel that can be packed
+	 */
+	public static final int MAX_BITS = 32;
+
+	private PackedPixels() {
+	}
+
+	/**
+	 * Pack the intensities of an image's pixels
+	 *
+	 * @param chunk the intensities, scaled by 2^-bits
+	 * @param bits the image's valid bits
+	 * @return the packed pixels or null if an intensity is not an integer
+	 *         between 0 and 2^bits - 1 once scaled back, for instance
+	 *         because a pixel's value is negative or has more than the
+	 *         valid bits.
+	 */
+	public static byte [] pack(double [] chunk, int bits) {
+		if ((bits < 1) || (bits > MAX_BITS)) return null;
+		final double scale = 1L << bits;
+		final long limit = 1L << bits;
+		final byte [] result = new byte[(int)(((long)chunk.length * bits + 7) / 8)];
+		long accumulator = 0;
+		int nBits = 0;
+		int offset = 0;
+		for (int i=0; i<chunk.length; i++) {
+			final double scaled = chunk[i] * scale;
+			final long value = (long)scaled;
+			if ((value != scaled) || (value < 0) || (value >= limit)) return null;
+			accumulator |= value << nBits;
+			nBits += bits;
+			while (nBits >= 8) {
+				result[offset++] = (byte)accumulator;
+				accumulator >>>= 8;
+				nBits -= 8;
+			}
+		}
+		if (nBits > 0) result[offset] = (byte)accumulator;
+		return result;
+	}
+
+	/**
+	 * Unpack the intensities of an image's pixels
+	 *
+	 * @param data the packed pixels
+	 * @param bits the number of bits per pixel
+	 * @param count the number of pixels
+	 * @return the intensities, scaled by 2^-bits
+	 * @throws ProtocolException if there are too few bytes for the pixels
+	 */
+	public static double [] unpack(byte [] data, int bits, int count) throws ProtocolException {
+		if ((bits < 1) || (bits > MAX_BITS)) {
+			throw new ProtocolException(String.format("Can't unpack %d bits per pixel", bits));
+		}
+		if (data.length < ((long)count * bits + 7) / 8) {
+			throw new ProtocolException("Too few bytes for the packed pixels");
+		}
+		final double scale = 1.0 / (1L << bits);
+		final long mask = (1L << bits) - 1;
+		final double [] result = new double[count];
+		long accumulator = 0;
+		int nBits = 0;
+		int offset = 0;
+		for (int i=0; i<count; i++) {
+			while (nBits < bits) {
+				accumulator |= (data[offset++] & 0xffL) << nBits;
+				nBits += 8;
+			}
+			result[i] = (accumulator & mask) * scale;
+			accumulator >>>= bits;
+			nBits -= bits;
+		}
+		return result;
+	}
+
+	/**
+	 * Describe a packed frame
+	 *
+	 * @param bits the number of bits per pixel
+	 * @param compression the description of the frame's compression or null
+	 * @return the description to put in the message's Json
+	 */
+	public static JsonObject describe(int bits, JsonObject compression) {
+		final JsonObjectBuilder builder = Json.createObjectBuilder();
+		if (compression != null) {
+			for (Map.Entry<String, JsonValue> entry:compression.entrySet()) {
+				builder.add(entry.getKey(), entry.getValue());
+			}
+		}
+		return builder
+				.add("encoding", WorkerCapabilities.ENCODING_PACKED)
+				.add("bits", bits)
+				.build();
+	}
+}
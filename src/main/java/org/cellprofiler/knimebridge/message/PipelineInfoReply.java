@@ -117,6 +117,20 @@ public class PipelineInfoReply extends AbstractReply {
 		reply.recvNoCPException(socket);
 		return reply;
 	}
+	/**
+	 * Parse a reply to a PipelineInfoReq that has already been received
+	 * 
+	 * @param msg the reply message
+	 * @return a PipelineInfoReply containing the inputs and outputs of the pipeline
+	 * 
+	 * @throws ProtocolException if the client could not understand the server
+	 * @throws PipelineException if the pipeline could not be loaded
+	 */
+	public static PipelineInfoReply recvReply(ZMsg msg) throws ProtocolException, PipelineException {
+		PipelineInfoReply reply = new PipelineInfoReply();
+		reply.recvNoCPException(msg);
+		return reply;
+	}
 	@Override
 	protected void parse(ZMsg reply) throws ProtocolException {
 		final String body = popString(reply);
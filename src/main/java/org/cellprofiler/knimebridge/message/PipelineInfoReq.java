@@ -27,6 +27,17 @@ public class PipelineInfoReq extends ZMsg {
 		wrap(new ZFrame(sessionID));
 	}
 	
+	/**
+	 * Create a pipeline info request to send on a socket managed by the caller
+	 * 
+	 * @param sessionID the session ID from connect
+	 * @param pipeline the pipeline text for the query
+	 * @return the request message
+	 */
+	public static PipelineInfoReq create(String sessionID, String pipeline) {
+		return new PipelineInfoReq(sessionID, pipeline);
+	}
+	
 	/**
 	 * Send a pipeline info request and receive the server's reply
 	 * 
@@ -0,0 +1,352 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge.message;
+
+import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.array.IntArray;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.img.cell.AbstractCell;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * @author agent
+ *
+ * Copies the pixels of the common ImgLib2 images into the array of
+ * doubles sent to the worker, reading the images' primitive arrays
+ * directly instead of calling getRealDouble() on each pixel.
+ *
+ * The images are UnsignedByteType, UnsignedShortType, ShortType,
+ * IntType, FloatType or DoubleType images stored in an ArrayImg,
+ * PlanarImg or CellImg. Each of these stores its pixels in blocks:
+ * one block for an ArrayImg, one per plane of a PlanarImg and one
+ * per cell of a CellImg. Within a block, the pixels are ordered with
+ * the first axis varying fastest. The converter copies each row of
+ * a block along the first axis with a loop written for the pixel type,
+ * chosen once per image.
+ *
+ * The destination has the last axis varying fastest, so the copy is
+ * a transpose. The rows are copied a segment at a time, all rows'
+ * first segments before their second segments, so that the
+ * destination's cache lines are filled while they are still cached.
+ *
+ * The converter can also copy one hyperslice of an image, such as a
+ * channel of a multichannel image, skipping the storage of the others.
+ *
+ * ARGBType images are split into red, green and blue in the same pass:
+ * the three components of a pixel are scaled so that full intensity
+ * is 1 and copied to three consecutive doubles. The alpha component
+ * is dropped.
+ */
+public final class PixelConverter {
+	/*
+	 * The pixel types, by the primitive array that holds them
+	 */
+	private static final int UNSIGNED_BYTE = 0;
+	private static final int UNSIGNED_SHORT = 1;
+	private static final int SHORT = 2;
+	private static final int INT = 3;
+	private static final int FLOAT = 4;
+	private static final int DOUBLE = 5;
+	private static final int ARGB = 6;
+	/**
+	 * The scaling of the 8-bit components of a color image
+	 */
+	static final double COLOR_SCALE = 1.0 / 255.0;
+	/**
+	 * The number of pixels per row copied at a time
+	 */
+	private static final int SEGMENT = 256;
+
+	private PixelConverter() {
+	}
+
+	/**
+	 * Copy an image's pixels if the converter handles the image
+	 *
+	 * @param img the image
+	 * @param data the destination, which holds every pixel. The scaled
+	 *             red, green and blue of an ARGBType pixel are copied to
+	 *             the pixel's offset and the two doubles after it.
+	 * @param strides the distance in data between pixels that are
+	 *                adjacent along each axis of the image
+	 * @return true if the pixels were copied, false if the image's type or
+	 *         storage isn't one of those handled and the caller must copy
+	 *         them some other way.
+	 */
+	public static boolean copy(Img<?> img, double [] data, int [] strides) {
+		return copy(img, -1, 0, data, strides);
+	}
+
+	/**
+	 * Copy one hyperslice of an image if the converter handles the image
+	 *
+	 * @param img the image
+	 * @param axis the index of the axis that the slice is cut across
+	 *             or -1 to copy the whole image
+	 * @param position the slice's position on the axis
+	 * @param data the destination, which holds every pixel of the slice
+	 * @param strides the distance in data between pixels that are
+	 *                adjacent along each axis of the image. The stride
+	 *                of the sliced axis is not used.
+	 * @return true if the pixels were copied, false if the image's type or
+	 *         storage isn't one of those handled and the caller must copy
+	 *         them some other way.
+	 */
+	public static boolean copy(Img<?> img, int axis, long position, double [] data, int [] strides) {
+		while (img instanceof ImgPlus) {
+			img = ((ImgPlus<?>)img).getImg();
+		}
+		final int pixelType = getPixelType(img.firstElement());
+		if (pixelType < 0) return false;
+		final int n = img.numDimensions();
+		if (img instanceof ArrayImg) {
+			final Object array = getArray(((ArrayImg<?, ?>)img).update(null), pixelType);
+			if (array == null) return false;
+			final int [] dims = new int [n];
+			for (int d=0; d<n; d++) dims[d] = (int)img.dimension(d);
+			copyBlock(pixelType, array, dims, new long [n], axis, position, data, strides);
+			return true;
+		} else if (img instanceof PlanarImg) {
+			return copyPlanes(pixelType, (PlanarImg<?, ?>)img, axis, position, data, strides);
+		} else if (img instanceof AbstractCellImg) {
+			return copyCells(pixelType, (AbstractCellImg<?, ?, ?, ?>)img, axis, position, data, strides);
+		}
+		return false;
+	}
+
+	private static int getPixelType(Object t) {
+		if (t instanceof UnsignedByteType) return UNSIGNED_BYTE;
+		if (t instanceof UnsignedShortType) return UNSIGNED_SHORT;
+		if (t instanceof ShortType) return SHORT;
+		if (t instanceof IntType) return INT;
+		if (t instanceof FloatType) return FLOAT;
+		if (t instanceof DoubleType) return DOUBLE;
+		if (t instanceof ARGBType) return ARGB;
+		return -1;
+	}
+
+	/**
+	 * @param access the image's storage for a block
+	 * @param pixelType the image's pixel type
+	 * @return the primitive array that holds the pixels or null if
+	 *         the storage isn't the expected array
+	 */
+	private static Object getArray(Object access, int pixelType) {
+		switch(pixelType) {
+		case UNSIGNED_BYTE:
+			return (access instanceof ByteArray)? ((ByteArray)access).getCurrentStorageArray() : null;
+		case UNSIGNED_SHORT:
+		case SHORT:
+			return (access instanceof ShortArray)? ((ShortArray)access).getCurrentStorageArray() : null;
+		case INT:
+		case ARGB:
+			return (access instanceof IntArray)? ((IntArray)access).getCurrentStorageArray() : null;
+		case FLOAT:
+			return (access instanceof FloatArray)? ((FloatArray)access).getCurrentStorageArray() : null;
+		case DOUBLE:
+			return (access instanceof DoubleArray)? ((DoubleArray)access).getCurrentStorageArray() : null;
+		}
+		return null;
+	}
+
+	private static boolean copyPlanes(int pixelType, PlanarImg<?, ?> img, int axis, long position, double [] data, int [] strides) {
+		final int n = img.numDimensions();
+		final int nSlices = img.numSlices();
+		final Object [] arrays = new Object[nSlices];
+		for (int i=0; i<nSlices; i++) {
+			arrays[i] = getArray(img.getPlane(i), pixelType);
+			if (arrays[i] == null) return false;
+		}
+		/*
+		 * A plane spans the first two axes. The planes are numbered
+		 * with the third axis varying fastest.
+		 */
+		final int [] dims = new int [n];
+		final long [] min = new long [n];
+		for (int d=0; d<n; d++) dims[d] = (d < 2)? (int)img.dimension(d) : 1;
+		for (int i=0; i<nSlices; i++) {
+			int slice = i;
+			for (int d=2; d<n; d++) {
+				min[d] = slice % img.dimension(d);
+				slice /= img.dimension(d);
+			}
+			copyBlock(pixelType, arrays[i], dims, min, axis, position, data, strides);
+		}
+		return true;
+	}
+
+	private static boolean copyCells(int pixelType, AbstractCellImg<?, ?, ?, ?> img, int axis, long position, double [] data, int [] strides) {
+		final int n = img.numDimensions();
+		final int [] dims = new int [n];
+		final long [] min = new long [n];
+		final Cursor<? extends AbstractCell<?>> cells = img.getCells().cursor();
+		/*
+		 * Check the storage of every cell before copying any.
+		 */
+		while (cells.hasNext()) {
+			if (getArray(cells.next().getData(), pixelType) == null) return false;
+		}
+		cells.reset();
+		while (cells.hasNext()) {
+			final AbstractCell<?> cell = cells.next();
+			cell.dimensions(dims);
+			cell.min(min);
+			copyBlock(pixelType, getArray(cell.getData(), pixelType), dims, min, axis, position, data, strides);
+		}
+		return true;
+	}
+
+	/**
+	 * Copy a block of pixels, stored with the first axis varying fastest
+	 *
+	 * @param pixelType the pixel type
+	 * @param array the primitive array holding the block's pixels
+	 * @param dims the block's dimensions
+	 * @param min the position of the block's first pixel in the image
+	 * @param axis the axis of the slice to copy or -1 to copy the whole block
+	 * @param position the slice's position on the axis
+	 * @param data the destination
+	 * @param strides the destination's strides
+	 */
+	private static void copyBlock(int pixelType, Object array, int [] dims, long [] min,
+			int axis, long position, double [] data, int [] strides) {
+		final int n = dims.length;
+		if (n == 0) return;
+		/*
+		 * The block's own strides and, for a slice, the part of
+		 * the block in the slice.
+		 */
+		final int [] srcStrides = new int [n];
+		srcStrides[0] = 1;
+		for (int d=1; d<n; d++) srcStrides[d] = srcStrides[d-1] * dims[d-1];
+		final int [] extent = dims.clone();
+		int srcOrigin = 0;
+		int origin = 0;
+		for (int d=0; d<n; d++) {
+			if (d == axis) {
+				final long offset = position - min[d];
+				if ((offset < 0) || (offset >= dims[d])) return;
+				srcOrigin = (int)offset * srcStrides[d];
+				extent[d] = 1;
+			} else {
+				origin += (int)min[d] * strides[d];
+			}
+		}
+		int nRows = 1;
+		for (int d=1; d<n; d++) nRows *= extent[d];
+		if ((extent[0] == 0) || (nRows == 0)) return;
+		final int rowLength = extent[0];
+		final int stride = (axis == 0)? 0 : strides[0];
+		final int [] pos = new int [n];
+		for (int start=0; start<rowLength; start+=SEGMENT) {
+			final int length = Math.min(SEGMENT, rowLength - start);
+			int dst = origin + start * stride;
+			int src = srcOrigin + start;
+			for (int row=0; row<nRows; row++) {
+				switch(pixelType) {
+				case UNSIGNED_BYTE:
+					copyUnsignedBytes((byte [])array, src, length, data, dst, stride);
+					break;
+				case UNSIGNED_SHORT:
+					copyUnsignedShorts((short [])array, src, length, data, dst, stride);
+					break;
+				case SHORT:
+					copyShorts((short [])array, src, length, data, dst, stride);
+					break;
+				case INT:
+					copyInts((int [])array, src, length, data, dst, stride);
+					break;
+				case FLOAT:
+					copyFloats((float [])array, src, length, data, dst, stride);
+					break;
+				case DOUBLE:
+					copyDoubles((double [])array, src, length, data, dst, stride);
+					break;
+				case ARGB:
+					copyARGB((int [])array, src, length, data, dst, stride);
+					break;
+				}
+				/*
+				 * Advance to the next row, carrying into the higher axes
+				 */
+				for (int d=1; d<n; d++) {
+					if (++pos[d] < extent[d]) {
+						dst += strides[d];
+						src += srcStrides[d];
+						break;
+					}
+					dst -= (extent[d] - 1) * strides[d];
+					src -= (extent[d] - 1) * srcStrides[d];
+					pos[d] = 0;
+				}
+			}
+		}
+	}
+
+	private static void copyUnsignedBytes(byte [] src, int offset, int length, double [] dst, int dstOffset, int stride) {
+		for (int i=offset, j=dstOffset; i<offset+length; i++, j+=stride) {
+			dst[j] = src[i] & 0xff;
+		}
+	}
+
+	private static void copyUnsignedShorts(short [] src, int offset, int length, double [] dst, int dstOffset, int stride) {
+		for (int i=offset, j=dstOffset; i<offset+length; i++, j+=stride) {
+			dst[j] = src[i] & 0xffff;
+		}
+	}
+
+	private static void copyShorts(short [] src, int offset, int length, double [] dst, int dstOffset, int stride) {
+		for (int i=offset, j=dstOffset; i<offset+length; i++, j+=stride) {
+			dst[j] = src[i];
+		}
+	}
+
+	private static void copyInts(int [] src, int offset, int length, double [] dst, int dstOffset, int stride) {
+		for (int i=offset, j=dstOffset; i<offset+length; i++, j+=stride) {
+			dst[j] = src[i];
+		}
+	}
+
+	private static void copyFloats(float [] src, int offset, int length, double [] dst, int dstOffset, int stride) {
+		for (int i=offset, j=dstOffset; i<offset+length; i++, j+=stride) {
+			dst[j] = src[i];
+		}
+	}
+
+	private static void copyARGB(int [] src, int offset, int length, double [] dst, int dstOffset, int stride) {
+		for (int i=offset, j=dstOffset; i<offset+length; i++, j+=stride) {
+			final int value = src[i];
+			dst[j] = ((value >> 16) & 0xff) * COLOR_SCALE;
+			dst[j+1] = ((value >> 8) & 0xff) * COLOR_SCALE;
+			dst[j+2] = (value & 0xff) * COLOR_SCALE;
+		}
+	}
+
+	private static void copyDoubles(double [] src, int offset, int length, double [] dst, int dstOffset, int stride) {
+		if (stride == 1) {
+			System.arraycopy(src, offset, dst, dstOffset, length);
+			return;
+		}
+		for (int i=offset, j=dstOffset; i<offset+length; i++, j+=stride) {
+			dst[j] = src[i];
+		}
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge.message;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonValue;
+
+import org.cellprofiler.knimebridge.CellProfilerException;
+import org.cellprofiler.knimebridge.PipelineException;
+import org.cellprofiler.knimebridge.ProtocolException;
+import org.zeromq.ZFrame;
+import org.zeromq.ZMsg;
+
+/**
+ * @author agent
+ *
+ * The run-batch-reply is sent following a successful run of a batch
+ * of image sets. The format is a frame containing a JsonArray with
+ * one slot per image set. Each slot is a 2-tuple of the index of the
+ * image set in the request and the measurement metadata in the format
+ * of the run-reply.
+ *
+ * This is followed by one data frame per slot, in the same order as
+ * the slots, each in the format of the run-reply's data frame.
+ */
+public class RunBatchReply extends AbstractReply {
+	private final static String msgName = "run-batch-reply-1";
+	private List<RunReply> replies = Collections.emptyList();
+
+	@Override
+	protected String getMsgName() {
+		return msgName;
+	}
+
+	@Override
+	protected void parse(ZMsg msg) throws CellProfilerException,
+			PipelineException, ProtocolException {
+		final String metadata = popString(msg);
+		final JsonArray blocks = Json.createReader(new StringReader(metadata)).readArray();
+		final RunReply [] result = new RunReply[blocks.size()];
+		for (JsonValue block:blocks) {
+			if (! ((block instanceof JsonArray) && (((JsonArray)block).size() == 2))) {
+				throw new ProtocolException("Batch measurement block was not an array of length 2");
+			}
+			final JsonArray aBlock = (JsonArray)block;
+			final int index = aBlock.getInt(0);
+			if ((index < 0) || (index >= result.length) || (result[index] != null)) {
+				throw new ProtocolException(String.format("Bad or duplicate image set index: %d", index));
+			}
+			final ZFrame frame = msg.pop();
+			if (frame == null) {
+				throw new ProtocolException(String.format("Missing data frame for image set %d", index));
+			}
+			final RunReply reply = new RunReply();
+			reply.parse(aBlock.getJsonArray(1), frame.getData());
+			result[index] = reply;
+		}
+		replies = Collections.unmodifiableList(Arrays.asList(result));
+	}
+
+	/**
+	 * Parse the reply to a run batch request
+	 * 
+	 * @param msg the reply message
+	 * @param nImageSets the number of image sets in the request
+	 * @return the parsed reply
+	 * @throws CellProfilerException if CellProfiler encountered a problem
+	 *                 during the course of running the pipeline.
+	 * @throws PipelineException if the pipeline could not be parsed
+	 * @throws ProtocolException if the reply could not be parsed or did not
+	 *                 have measurements for each image set.
+	 */
+	public static RunBatchReply recvReply(ZMsg msg, int nImageSets)
+			throws CellProfilerException, PipelineException, ProtocolException {
+		final RunBatchReply reply = new RunBatchReply();
+		reply.recv(msg);
+		if (reply.getReplies().size() != nImageSets) {
+			throw new ProtocolException(String.format(
+					"Expected measurements for %d image sets, got %d",
+					nImageSets, reply.getReplies().size()));
+		}
+		return reply;
+	}
+
+	/**
+	 * @return the measurements of each image set, in the order of the image
+	 *         sets in the request.
+	 */
+	public List<RunReply> getReplies() {
+		return replies;
+	}
+
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge.message;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+
+import net.imagej.ImgPlus;
+
+import org.cellprofiler.knimebridge.CellProfilerException;
+import org.cellprofiler.knimebridge.PipelineException;
+import org.cellprofiler.knimebridge.ProtocolException;
+import org.zeromq.ZFrame;
+import org.zeromq.ZMQ.Socket;
+import org.zeromq.ZMsg;
+
+/**
+ * @author agent
+ *
+ * A request to run a pipeline on several independent image sets
+ * in one message.
+ *
+ * The format is:
+ *    frame containing the pipeline
+ *    frame containing a JsonArray with one slot per image set. Each slot
+ *          has the same format as the image header of a run request:
+ *          a JsonArray of 2-tuples of channel name and a JsonArray of
+ *          three-tuples of axis name, dimension, and stride
+ *    one frame per image, ordered first by image set and then by channel
+ *          within the image set, in the order they appear above. The data
+ *          are doubles in little-endian format, organized by the strides.
+ *          Compressed and shared frames are described as for a run request.
+ *
+ * The reply is a RunBatchReply with one block of measurements per image set.
+ */
+@SuppressWarnings("deprecation")
+public class RunBatchReq extends ZMsg {
+	private static final String msgName = "run-batch-request-1";
+
+	/**
+	 * Construct a run batch request message
+	 *
+	 * @param sessionID the session ID from connect
+	 * @param pipeline the pipeline to run
+	 * @param imageSets one map per image set of channel name to imgPlus
+	 *                  containing the image to use as input for that channel.
+	 */
+	protected RunBatchReq(String sessionID, String pipeline, List<Map<String, ImgPlus<?>>> imageSets) {
+		this(sessionID, pipeline, imageSets, ImageEncoding.DEFAULT);
+	}
+
+	/**
+	 * Construct a run batch request message, compressing the image data
+	 *
+	 * @param sessionID the session ID from connect
+	 * @param pipeline the pipeline to run
+	 * @param imageSets one map per image set of channel name to imgPlus
+	 *                  containing the image to use as input for that channel.
+	 * @param codec compresses the image data if it pays, or null to not compress
+	 */
+	protected RunBatchReq(String sessionID, String pipeline, List<Map<String, ImgPlus<?>>> imageSets,
+			FrameCodec codec) {
+		this(sessionID, pipeline, imageSets, new ImageEncoding(codec, false));
+	}
+
+	/**
+	 * Construct a run batch request message, encoding the images as
+	 * negotiated with the worker
+	 *
+	 * @param sessionID the session ID from connect
+	 * @param pipeline the pipeline to run
+	 * @param imageSets one map per image set of channel name to imgPlus
+	 *                  containing the image to use as input for that channel.
+	 * @param encoding how to encode the images
+	 */
+	protected RunBatchReq(String sessionID, String pipeline, List<Map<String, ImgPlus<?>>> imageSets,
+			ImageEncoding encoding) {
+		add(msgName);
+		add(pipeline);
+		final JsonArrayBuilder builder = Json.createArrayBuilder();
+		final List<byte []> frames = new ArrayList<byte []>();
+		for (Map<String, ImgPlus<?>> imageMap:imageSets) {
+			builder.add(RunReq.encodeImageSet(imageMap, frames, encoding));
+		}
+		StringWriter sw = new StringWriter();
+		Json.createWriter(sw).writeArray(builder.build());
+		add(sw.toString());
+		for (byte [] frame:frames) {
+			add(frame);
+		}
+		wrap(new ZFrame(sessionID));
+	}
+
+	/**
+	 * Create a run batch request to send on a socket managed by the caller.
+	 * The reply should be parsed with {@link RunBatchReply#recvReply(ZMsg, int)}.
+	 * 
+	 * @param sessionID the session ID from the connect request
+	 * @param pipeline the pipeline to run
+	 * @param imageSets one map per image set of channel name to image
+	 * @return the request message
+	 */
+	static public RunBatchReq create(String sessionID, String pipeline, List<Map<String, ImgPlus<?>>> imageSets) {
+		return new RunBatchReq(sessionID, pipeline, imageSets);
+	}
+
+	/**
+	 * Create a run batch request, compressing the image data
+	 * 
+	 * @param sessionID the session ID from the connect request
+	 * @param pipeline the pipeline to run
+	 * @param imageSets one map per image set of channel name to image
+	 * @param codec compresses the image data if it pays, or null to not compress
+	 * @return the request message
+	 */
+	static public RunBatchReq create(String sessionID, String pipeline, List<Map<String, ImgPlus<?>>> imageSets,
+			FrameCodec codec) {
+		return new RunBatchReq(sessionID, pipeline, imageSets, codec);
+	}
+
+	/**
+	 * Create a run batch request, encoding the images as negotiated with the worker
+	 * 
+	 * @param sessionID the session ID from the connect request
+	 * @param pipeline the pipeline to run
+	 * @param imageSets one map per image set of channel name to image
+	 * @param encoding how to encode the images
+	 * @return the request message
+	 */
+	static public RunBatchReq create(String sessionID, String pipeline, List<Map<String, ImgPlus<?>>> imageSets,
+			ImageEncoding encoding) {
+		return new RunBatchReq(sessionID, pipeline, imageSets, encoding);
+	}
+
+	/**
+	 * Send a request to run a pipeline on a batch of image sets,
+	 * receiving a reply containing the measurements for each.
+	 *
+	 * @param socket communicate over this socket
+	 * @param sessionID the session ID from the connect request
+	 * @param pipeline the pipeline to run
+	 * @param imageSets one map per image set of channel name to the image
+	 *                  that should be used as input to CellProfiler
+	 *                  for that channel.
+	 * @return a RunBatchReply containing the measurements for each image set
+	 * @throws CellProfilerException if CellProfiler encountered a problem
+	 *                 during the course of running the pipeline.
+	 * @throws PipelineException if the pipeline could not be parsed
+	 * @throws ProtocolException if there was a communication problem
+	 *                 between the client and server.
+	 */
+	static public RunBatchReply run(
+			Socket socket, String sessionID,
+			String pipeline, List<Map<String, ImgPlus<?>>> imageSets)
+					throws CellProfilerException, PipelineException, ProtocolException {
+		RunBatchReq req = new RunBatchReq(sessionID, pipeline, imageSets);
+		req.send(socket);
+		return RunBatchReply.recvReply(ZMsg.recvMsg(socket), imageSets.size());
+	}
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge.message;
+
+import java.io.StringWriter;
+import java.util.Map;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+
+import org.cellprofiler.knimebridge.ImageReference;
+import org.zeromq.ZFrame;
+import org.zeromq.ZMsg;
+
+/**
+ * @author agent
+ *
+ * A request to run a pipeline on an image set whose images
+ * the worker loads itself.
+ * 
+ * The format is:
+ *    frame containing the pipeline
+ *    frame containing a JsonArray where each slot of the array
+ *          is a 2-tuple of channel name and a JsonObject:
+ *              "uri": the location of the image file
+ *              "series": the index of the series within the file
+ *              "index": the index of the plane within the series
+ * 
+ * The reply is a RunReply, as for a run request.
+ */
+public class RunByReferenceReq extends ZMsg {
+	private static final String msgName = "run-by-reference-request-1";
+	
+	/**
+	 * Construct a run by reference request message
+	 * 
+	 * @param sessionID the session ID from connect
+	 * @param pipeline the pipeline to run
+	 * @param imageMap a map of channel name to the location of
+	 *                 the image to use as input for that channel.
+	 */
+	protected RunByReferenceReq(String sessionID, String pipeline, Map<String, ImageReference> imageMap) {
+		add(msgName);
+		add(pipeline);
+		final JsonArrayBuilder builder = Json.createArrayBuilder();
+		for (Map.Entry<String, ImageReference> entry:imageMap.entrySet()) {
+			final ImageReference reference = entry.getValue();
+			builder.add(Json.createArrayBuilder()
+					.add(entry.getKey())
+					.add(Json.createObjectBuilder()
+							.add("uri", reference.getURI().toString())
+							.add("series", reference.getSeries())
+							.add("index", reference.getIndex())));
+		}
+		StringWriter sw = new StringWriter();
+		Json.createWriter(sw).writeArray(builder.build());
+		add(sw.toString());
+		wrap(new ZFrame(sessionID));
+	}
+	
+	/**
+	 * Encode a run by reference request without sending it
+	 * 
+	 * @param sessionID the session ID from connect
+	 * @param pipeline the pipeline to run
+	 * @param imageMap a map of channel name to the location of
+	 *                 the image to use as input for that channel.
+	 * @return the encoded request, ready to be sent.
+	 */
+	static public RunByReferenceReq create(String sessionID, String pipeline, Map<String, ImageReference> imageMap) {
+		return new RunByReferenceReq(sessionID, pipeline, imageMap);
+	}
+}
@@ -26,9 +26,58 @@ public class RunGroupReq extends RunReq {
 			Map<String, ImgPlus<?>> imageMap) {
 		super(sessionID, pipeline, imageMap);
 	}
+	protected RunGroupReq(String sessionID, String pipeline,
+			Map<String, ImgPlus<?>> imageMap, FrameCodec codec) {
+		super(sessionID, pipeline, imageMap, codec);
+	}
+	protected RunGroupReq(String sessionID, String pipeline,
+			Map<String, ImgPlus<?>> imageMap, ImageEncoding encoding) {
+		super(sessionID, pipeline, imageMap, encoding);
+	}
 	public String getMessageName() {
 		return msgName;
 	}
+	/**
+	 * Create a run group request to send on a socket managed by the caller
+	 * 
+	 * @param sessionID the session ID from the connect request
+	 * @param pipeline the pipeline to run
+	 * @param imageMap a map of channel name to the image that
+	 *                 should be used as input to CellProfiler
+	 *                 for that channel.
+	 * @return the request message
+	 */
+	static public RunGroupReq create(String sessionID, String pipeline, Map<String, ImgPlus<?>> imageMap) {
+		return new RunGroupReq(sessionID, pipeline, imageMap);
+	}
+	/**
+	 * Create a run group request, compressing the image data
+	 * 
+	 * @param sessionID the session ID from the connect request
+	 * @param pipeline the pipeline to run
+	 * @param imageMap a map of channel name to the image that
+	 *                 should be used as input to CellProfiler
+	 *                 for that channel.
+	 * @param codec compresses the image data if it pays, or null to not compress
+	 * @return the request message
+	 */
+	static public RunGroupReq create(String sessionID, String pipeline, Map<String, ImgPlus<?>> imageMap, FrameCodec codec) {
+		return new RunGroupReq(sessionID, pipeline, imageMap, codec);
+	}
+	/**
+	 * Create a run group request, encoding the images as negotiated with the worker
+	 * 
+	 * @param sessionID the session ID from the connect request
+	 * @param pipeline the pipeline to run
+	 * @param imageMap a map of channel name to the image that
+	 *                 should be used as input to CellProfiler
+	 *                 for that channel.
+	 * @param encoding how to encode the images
+	 * @return the request message
+	 */
+	static public RunGroupReq create(String sessionID, String pipeline, Map<String, ImgPlus<?>> imageMap, ImageEncoding encoding) {
+		return new RunGroupReq(sessionID, pipeline, imageMap, encoding);
+	}
 	/**
 	 * Send a request to run a pipeline to the server,
 	 * receiving a reply containing the computed
@@ -17,6 +17,8 @@ import javax.json.JsonReader;
 import javax.json.JsonValue;
 
 import org.cellprofiler.knimebridge.CellProfilerException;
+import org.cellprofiler.knimebridge.IFeatureDescription;
+import org.cellprofiler.knimebridge.IRunResult;
 import org.cellprofiler.knimebridge.KBConstants;
 import org.cellprofiler.knimebridge.PipelineException;
 import org.cellprofiler.knimebridge.ProtocolException;
@@ -40,9 +42,13 @@ import org.zeromq.ZMsg;
  *          
  * This is followed by a single frame containing all the data in lowendian form
  * in the same order as above.
+ * 
+ * If the worker accepted compression when connecting, it may compress
+ * the data frame. The metadata then has a fifth element, the frame's
+ * description (see {@link FrameCodec}).
  *          
 */
-public class RunReply extends AbstractReply {
+public class RunReply extends AbstractReply implements IRunResult {
 	private final static String msgName = "run-reply-1";
 	private final Map<String, Map<String, double []>> doubleFeatures =
 			new Hashtable<String, Map<String,double[]>>();
@@ -62,11 +68,22 @@ public class RunReply extends AbstractReply {
 		JsonReader rdr = Json.createReader(new StringReader(featureMetadata));
 		ZFrame frame = msg.pop();
 		if (frame == null) throw new ProtocolException("Missing data value frame");
-		byte [] data = frame.getData();
+		parse(rdr.readArray(), frame.getData());
+	}
+	/**
+	 * Parse the measurements of one image set
+	 * 
+	 * @param wrapper the four metadata sections describing the layout
+	 *                of the measurements in the data
+	 * @param data the measurement data
+	 * @throws ProtocolException if the metadata or data could not be parsed
+	 */
+	void parse(JsonArray wrapper, byte [] data) throws ProtocolException {
 		int offset = 0;
-		JsonArray wrapper = rdr.readArray();
 		if (wrapper == null)
 			throw new ProtocolException("Missing or invalid metadata wrapper");
+		else if (wrapper.size() == 5)
+			data = FrameCodec.decompress(wrapper.getJsonObject(4), data);
 		else if (wrapper.size() != 4) 
 			throw new ProtocolException(String.format("Wrong # of metadata sections: expected 4, got %d", wrapper.size()));
 		offset = parseFeatures(wrapper.getJsonArray(0), data, offset, new DoubleHacker(), 
@@ -351,7 +368,7 @@ public class RunReply extends AbstractReply {
 	 */
 	public double[] getDoubleMeasurements(String objectName, String name) {
 		if (objectName == null) objectName = KBConstants.IMAGE;
-		if (! floatFeatures.containsKey(objectName)) return null;
+		if (! doubleFeatures.containsKey(objectName)) return null;
 		return doubleFeatures.get(objectName).get(name);
 	}
 	/**
@@ -368,4 +385,28 @@ public class RunReply extends AbstractReply {
 		return intFeatures.get(resultTableName).get(KBConstants.OBJECT_NUMBER).length;
 	}
 
+	/* (non-Javadoc)
+	 * @see org.cellprofiler.knimebridge.IRunResult#getNumberOfRows(java.lang.String)
+	 */
+	@Override
+	public int getNumberOfRows(String resultTableName) {
+		return getNumberOfObjects(resultTableName);
+	}
+	@Override
+	public int[] getIntMeasurements(IFeatureDescription feature) {
+		return getIntMeasurements(feature.getObjectName(), feature.getName());
+	}
+	@Override
+	public double[] getDoubleMeasurements(IFeatureDescription feature) {
+		return getDoubleMeasurements(feature.getObjectName(), feature.getName());
+	}
+	@Override
+	public float[] getFloatMeasurements(IFeatureDescription feature) {
+		return getFloatMeasurements(feature.getObjectName(), feature.getName());
+	}
+	@Override
+	public String getStringMeasurement(IFeatureDescription feature) {
+		return getStringMeasurement(feature.getObjectName(), feature.getName());
+	}
+
 }
@@ -8,12 +8,26 @@ package org.cellprofiler.knimebridge.message;
 
 import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import javax.json.Json;
+import javax.json.JsonArray;
 import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
 
 import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.util.ImgUtil;
@@ -21,6 +35,7 @@ import net.imglib2.util.ImgUtil;
 import org.cellprofiler.knimebridge.CellProfilerException;
 import org.cellprofiler.knimebridge.PipelineException;
 import org.cellprofiler.knimebridge.ProtocolException;
+import org.cellprofiler.knimebridge.WorkerCapabilities;
 import org.zeromq.ZFrame;
 import org.zeromq.ZMQ.Socket;
 import org.zeromq.ZMsg;
@@ -38,6 +53,31 @@ import org.zeromq.ZMsg;
  *    one frame per image containing the image data of each channel in the
  *          order they appear above. The data are doubles in little-endian
  *          format, organized by the strides.  
+ * 
+ * A color (ARGBType) image is sent with an extra, last "Channel" axis
+ * of red, green and blue, scaled so that full intensity is 1. The
+ * alpha component is not sent.
+ * 
+ * If the worker accepted compression when connecting, the slot of a
+ * channel whose frame is compressed has a third element, the frame's
+ * description (see {@link FrameCodec}).
+ * 
+ * Channels that use the same image share its encoding. If the worker
+ * accepts shared frames, the image is sent once: the slot of each later
+ * channel with that image has a third element, {"same-as": <the name of
+ * the first channel with the image>}, and there is no frame for it.
+ * Otherwise, the image's frame is sent for each channel.
+ * 
+ * If the worker accepts the "packed" encoding, the frame of an integer
+ * image with valid bits is packed into that many bits per pixel, if
+ * every pixel fits. Its slot has a third element, the frame's
+ * description (see {@link PackedPixels}).
+ * 
+ * If the worker accepts the "float32" encoding, the frames of the
+ * channels chosen by the encoding hold little-endian 32-bit floats
+ * instead of doubles, unless they are packed. Their slots have a third
+ * element, {"encoding": "float32"}, with the entries of the frame's
+ * compression description if it is compressed.
  */
 @SuppressWarnings("deprecation")
 public class RunReq extends ZMsg {
@@ -51,49 +91,357 @@ public class RunReq extends ZMsg {
 	 * @param imageMap a map of channel name to imgPlus containing the image
 	 *                 to use as input for that channel.
 	 */
-	@SuppressWarnings({ "unchecked", "rawtypes" })
 	protected RunReq(String sessionID, String pipeline, Map<String, ImgPlus<?>> imageMap) {
+		this(sessionID, pipeline, imageMap, ImageEncoding.DEFAULT);
+	}
+	
+	/**
+	 * Construct a run request message, compressing the image data
+	 * 
+	 * @param sessionID the session ID from connect
+	 * @param pipeline the pipeline to run
+	 * @param imageMap a map of channel name to imgPlus containing the image
+	 *                 to use as input for that channel.
+	 * @param codec compresses the image data if it pays, or null to not compress
+	 */
+	protected RunReq(String sessionID, String pipeline, Map<String, ImgPlus<?>> imageMap, FrameCodec codec) {
+		this(sessionID, pipeline, imageMap, new ImageEncoding(codec, false));
+	}
+	
+	/**
+	 * Construct a run request message, encoding the images as
+	 * negotiated with the worker
+	 * 
+	 * @param sessionID the session ID from connect
+	 * @param pipeline the pipeline to run
+	 * @param imageMap a map of channel name to imgPlus containing the image
+	 *                 to use as input for that channel.
+	 * @param encoding how to encode the images
+	 */
+	protected RunReq(String sessionID, String pipeline, Map<String, ImgPlus<?>> imageMap, ImageEncoding encoding) {
 		add(getMessageName());
 		add(pipeline);
+		final List<byte []> frames = new ArrayList<byte []>();
+		final JsonArray header = encodeImageSet(imageMap, frames, encoding);
+		StringWriter sw = new StringWriter();
+		Json.createWriter(sw).writeArray(header);
+		add(sw.toString());
+		for (byte [] frame:frames) {
+			add(frame);
+		}
+		wrap(new ZFrame(sessionID));
+	}
+	
+	/**
+	 * Encode the images of one image set
+	 * 
+	 * @param imageMap a map of channel name to imgPlus containing the image
+	 *                 to use as input for that channel.
+	 * @param frames the encoded image data of each channel is added to this
+	 *               list in the order that the channels appear in the header
+	 * @return a JsonArray where each slot is a 2-tuple of channel name and
+	 *         a JsonArray of three-tuples of axis name, dimension, and stride
+	 */
+	static protected JsonArray encodeImageSet(Map<String, ImgPlus<?>> imageMap, List<byte []> frames) {
+		return encodeImageSet(imageMap, frames, ImageEncoding.DEFAULT);
+	}
+	
+	/**
+	 * Encode the images of one image set, compressing the image data
+	 * 
+	 * @param imageMap a map of channel name to imgPlus containing the image
+	 *                 to use as input for that channel.
+	 * @param frames the encoded image data of each channel is added to this
+	 *               list in the order that the channels appear in the header
+	 * @param codec compresses the image data if it pays, or null to not compress
+	 * @return a JsonArray where each slot is a 2-tuple of channel name and
+	 *         a JsonArray of three-tuples of axis name, dimension, and stride,
+	 *         followed by the frame's description if it is compressed.
+	 */
+	static protected JsonArray encodeImageSet(Map<String, ImgPlus<?>> imageMap, List<byte []> frames, FrameCodec codec) {
+		return encodeImageSet(imageMap, frames, new ImageEncoding(codec, false));
+	}
+	
+	/**
+	 * Encode the images of one image set as negotiated with the worker.
+	 * Channels with the same image get the same frame, which holds
+	 * 32-bit floats if any of the channels is to be sent as floats.
+	 * 
+	 * @param imageMap a map of channel name to imgPlus containing the image
+	 *                 to use as input for that channel.
+	 * @param frames the encoded image data of each channel is added to this
+	 *               list in the order that the channels appear in the header,
+	 *               except for channels that share an earlier channel's frame.
+	 * @param encoding how to encode the images
+	 * @return a JsonArray where each slot is a 2-tuple of channel name and
+	 *         a JsonArray of three-tuples of axis name, dimension, and stride,
+	 *         followed by the frame's description if it is compressed or
+	 *         shared.
+	 */
+	static protected JsonArray encodeImageSet(Map<String, ImgPlus<?>> imageMap, List<byte []> frames, ImageEncoding encoding) {
+		final List<double []> chunks = new ArrayList<double []>();
+		final JsonArray header = encodeImageData(imageMap, chunks);
+		final FrameCodec codec = encoding.getCodec();
+		final JsonArrayBuilder builder = Json.createArrayBuilder();
+		/*
+		 * The frame and slot of each chunk, to reuse for channels that
+		 * have the same chunk as an earlier channel.
+		 */
+		final byte [][] chunkFrames = new byte [chunks.size()][];
+		final JsonArray [] chunkSlots = new JsonArray[chunks.size()];
+		final List<ImgPlus<?>> images = new ArrayList<ImgPlus<?>>(imageMap.values());
+		/*
+		 * Whether each chunk's frame holds floats, by the index of
+		 * the chunk's first channel
+		 */
+		final boolean [] chunkFloat32 = new boolean [chunks.size()];
+		for (int i=0; i<chunks.size(); i++) {
+			final int same = indexOf(chunks, i);
+			if (encoding.isFloat32(header.getJsonArray(i).getString(0))) {
+				chunkFloat32[(same >= 0)? same : i] = true;
+			}
+		}
+		for (int i=0; i<chunks.size(); i++) {
+			final JsonArray slot = header.getJsonArray(i);
+			final int same = indexOf(chunks, i);
+			if (same >= 0) {
+				if (encoding.isSharedFrames()) {
+					builder.add(Json.createArrayBuilder()
+							.add(slot.get(0))
+							.add(slot.get(1))
+							.add(Json.createObjectBuilder().add("same-as", header.getJsonArray(same).get(0))));
+				} else {
+					frames.add(chunkFrames[same]);
+					builder.add(withDescription(slot, chunkSlots[same]));
+				}
+				continue;
+			}
+			final int bits = encoding.isPacked()? getPackedBits(images.get(i)) : 0;
+			final byte [] packed = (bits == 0)? null : PackedPixels.pack(chunks.get(i), bits);
+			final boolean float32 = (packed == null) && chunkFloat32[i];
+			final byte [] data;
+			final int typeSize;
+			if (packed != null) {
+				data = packed;
+				typeSize = 1;
+			} else if (float32) {
+				data = toFloatBytes(chunks.get(i));
+				typeSize = Float.SIZE / Byte.SIZE;
+			} else {
+				data = toBytes(chunks.get(i));
+				typeSize = Double.SIZE / Byte.SIZE;
+			}
+			final byte [] compressed = (codec == null)? null : codec.compress(data, typeSize);
+			final JsonObject compression = (compressed == null)? null : FrameCodec.describe(data.length, typeSize);
+			chunkFrames[i] = (compressed == null)? data : compressed;
+			final JsonObject description = 
+					(packed != null)? PackedPixels.describe(bits, compression) :
+					float32? describeFloat32(compression) : compression;
+			if (description != null) {
+				chunkSlots[i] = Json.createArrayBuilder()
+						.add(slot.get(0))
+						.add(slot.get(1))
+						.add(description)
+						.build();
+			} else {
+				chunkSlots[i] = slot;
+			}
+			frames.add(chunkFrames[i]);
+			builder.add(chunkSlots[i]);
+		}
+		return builder.build();
+	}
+	
+	/**
+	 * Describe a frame of 32-bit floats
+	 * 
+	 * @param compression the description of the frame's compression or null
+	 * @return the description to put in the message's Json
+	 */
+	static protected JsonObject describeFloat32(JsonObject compression) {
+		final JsonObjectBuilder builder = Json.createObjectBuilder();
+		if (compression != null) {
+			for (Map.Entry<String, JsonValue> entry:compression.entrySet()) {
+				builder.add(entry.getKey(), entry.getValue());
+			}
+		}
+		return builder.add("encoding", WorkerCapabilities.ENCODING_FLOAT32).build();
+	}
+	
+	/**
+	 * @param imgPlus an image
+	 * @return the number of bits per pixel to pack the image's pixels into
+	 *         or 0 if they can't be packed because the image is not an
+	 *         integer image with valid bits.
+	 */
+	static protected int getPackedBits(ImgPlus<?> imgPlus) {
+		if (! (imgPlus.firstElement() instanceof IntegerType)) return 0;
+		final int validBits = imgPlus.getValidBits();
+		return ((validBits > 0) && (validBits <= PackedPixels.MAX_BITS))? validBits : 0;
+	}
+	
+	/**
+	 * @param chunks the chunks of an image set
+	 * @param i the index of a chunk
+	 * @return the index of the first chunk that is the same array as
+	 *         chunk i, if it is before chunk i, otherwise -1
+	 */
+	private static int indexOf(List<double []> chunks, int i) {
+		for (int j=0; j<i; j++) {
+			if (chunks.get(j) == chunks.get(i)) return j;
+		}
+		return -1;
+	}
+	
+	/**
+	 * @param slot a channel's header slot
+	 * @param other the slot of another channel with the same frame
+	 * @return the channel's slot with the other slot's frame description, if any
+	 */
+	private static JsonArray withDescription(JsonArray slot, JsonArray other) {
+		if (other.size() < 3) return slot;
+		return Json.createArrayBuilder()
+				.add(slot.get(0))
+				.add(slot.get(1))
+				.add(other.get(2))
+				.build();
+	}
+	
+	/**
+	 * Encode the header of one image set and extract the images' intensities
+	 * 
+	 * @param imageMap a map of channel name to imgPlus containing the image
+	 *                 to use as input for that channel.
+	 * @param chunks the scaled intensities of each channel are added to this
+	 *               list in the order that the channels appear in the header.
+	 *               Channels with the same image share the same array.
+	 * @return a JsonArray where each slot is a 2-tuple of channel name and
+	 *         a JsonArray of three-tuples of axis name, dimension, and stride
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static protected JsonArray encodeImageData(Map<String, ImgPlus<?>> imageMap, List<double []> chunks) {
 		JsonArrayBuilder builder = Json.createArrayBuilder();
-		ArrayList<double []> dataChunks = new ArrayList<double []>();
+		/*
+		 * The images encoded so far and their header slots, to find
+		 * an image that is used for more than one channel.
+		 */
+		final List<ImgPlus<?>> encoded = new ArrayList<ImgPlus<?>>();
+		final List<JsonArray> slots = new ArrayList<JsonArray>();
+		final int first = chunks.size();
 		for (Map.Entry<String, ImgPlus<?>> entry:imageMap.entrySet()) {
 			ImgPlus<?> imgPlus = entry.getValue();
-			assert imgPlus.firstElement() instanceof RealType;
-			RealType<?> firstElement = (RealType)(imgPlus.firstElement());
 			String key = entry.getKey();
-			double [] chunk = serializeImgPlus(key, (ImgPlus)imgPlus, builder );
-			double scaling = 1;
-			if (firstElement instanceof IntegerType) {
-				int validBits = imgPlus.getValidBits();
-				if (validBits != 0) {
-					scaling = Math.pow(2.0, -validBits);
+			final int same = indexOfSameImage(encoded, imgPlus);
+			final JsonArrayBuilder slotBuilder = Json.createArrayBuilder();
+			if (same >= 0) {
+				slotBuilder.add(Json.createArrayBuilder().add(key).add(slots.get(same).get(1)));
+				chunks.add(chunks.get(first + same));
+			} else if (imgPlus.firstElement() instanceof ARGBType) {
+				chunks.add(serializeColor(key, (ImgPlus<ARGBType>)imgPlus, slotBuilder));
+			} else {
+				chunks.add(serializeRealImgPlus(key, (ImgPlus)imgPlus, slotBuilder));
+			}
+			final JsonArray slot = slotBuilder.build().getJsonArray(0);
+			builder.add(slot);
+			encoded.add(imgPlus);
+			slots.add(slot);
+		}
+		return builder.build();
+	}
+	
+	/**
+	 * Find an image that was already encoded and that is the same as
+	 * an image to be encoded. Images are the same if they are the same
+	 * ImgPlus or if they hold the same Img with the same axes and
+	 * valid bits. Their pixels aren't compared.
+	 * 
+	 * @param encoded the images that were encoded
+	 * @param imgPlus the image to be encoded
+	 * @return the index of the same image in encoded or -1 if none
+	 */
+	static protected int indexOfSameImage(List<ImgPlus<?>> encoded, ImgPlus<?> imgPlus) {
+		for (int i=0; i<encoded.size(); i++) {
+			final ImgPlus<?> other = encoded.get(i);
+			if (other == imgPlus) return i;
+			if ((other.getImg() != imgPlus.getImg()) ||
+				(other.getValidBits() != imgPlus.getValidBits())) continue;
+			boolean sameAxes = true;
+			for (int d=0; d<imgPlus.numDimensions(); d++) {
+				if (! other.axis(d).type().equals(imgPlus.axis(d).type())) {
+					sameAxes = false;
+					break;
 				}
 			}
-			for (int i=0; i<chunk.length; i++) {
-				chunk[i] *= scaling;
+			if (sameAxes) return i;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Serialize the metadata of an image to Json, returning the
+	 * intensities scaled by the image's valid bits
+	 * 
+	 * @param key the name of the pipeline's input channel
+	 * @param imgPlus the image
+	 * @param builder the slot for the channel is added to this header
+	 * @return array of doubles representing the intensities
+	 */
+	static protected <T extends RealType<T>> double [] serializeRealImgPlus(
+			String key, ImgPlus<T> imgPlus, JsonArrayBuilder builder) {
+		RealType<?> firstElement = imgPlus.firstElement();
+		double [] chunk = serializeImgPlus(key, imgPlus, builder );
+		double scaling = 1;
+		if (firstElement instanceof IntegerType) {
+			int validBits = imgPlus.getValidBits();
+			if (validBits != 0) {
+				scaling = Math.pow(2.0, -validBits);
 			}
-			dataChunks.add(chunk);
 		}
-		StringWriter sw = new StringWriter();
-		Json.createWriter(sw).writeArray(builder.build());
-		add(sw.toString());
-		for (double [] chunk:dataChunks) {
-			 byte[] v = new byte[chunk.length * Double.SIZE / Byte.SIZE];
-			 for (int i=0; i<chunk.length; i++) {
-				 long bits = Double.doubleToLongBits(chunk[i]);
-				 v[i*8] = (byte)(bits);
-				 v[i*8+1] = (byte)(bits >> 8);
-				 v[i*8+2] = (byte)(bits >> 16);
-				 v[i*8+3] = (byte)(bits >> 24);
-				 v[i*8+4] = (byte)(bits >> 32);
-				 v[i*8+5] = (byte)(bits >> 40);
-				 v[i*8+6] = (byte)(bits >> 48);
-				 v[i*8+7] = (byte)(bits >> 56);
-			 }
-			 add(v);
+		for (int i=0; i<chunk.length; i++) {
+			chunk[i] *= scaling;
 		}
-		wrap(new ZFrame(sessionID));
+		return chunk;
+	}
+	
+	/**
+	 * Convert an array of doubles to little-endian bytes
+	 * 
+	 * @param chunk the doubles to convert
+	 * @return the doubles' little-endian IEEE 754 representation
+	 */
+	static protected byte [] toBytes(double [] chunk) {
+		 byte[] v = new byte[chunk.length * Double.SIZE / Byte.SIZE];
+		 for (int i=0; i<chunk.length; i++) {
+			 long bits = Double.doubleToLongBits(chunk[i]);
+			 v[i*8] = (byte)(bits);
+			 v[i*8+1] = (byte)(bits >> 8);
+			 v[i*8+2] = (byte)(bits >> 16);
+			 v[i*8+3] = (byte)(bits >> 24);
+			 v[i*8+4] = (byte)(bits >> 32);
+			 v[i*8+5] = (byte)(bits >> 40);
+			 v[i*8+6] = (byte)(bits >> 48);
+			 v[i*8+7] = (byte)(bits >> 56);
+		 }
+		 return v;
+	}
+	
+	/**
+	 * Convert an array of doubles to little-endian 32-bit floats
+	 * 
+	 * @param chunk the doubles to convert
+	 * @return the little-endian IEEE 754 representation of the doubles,
+	 *         rounded to the nearest float
+	 */
+	static protected byte [] toFloatBytes(double [] chunk) {
+		 byte[] v = new byte[chunk.length * Float.SIZE / Byte.SIZE];
+		 for (int i=0; i<chunk.length; i++) {
+			 int bits = Float.floatToIntBits((float)chunk[i]);
+			 v[i*4] = (byte)(bits);
+			 v[i*4+1] = (byte)(bits >> 8);
+			 v[i*4+2] = (byte)(bits >> 16);
+			 v[i*4+3] = (byte)(bits >> 24);
+		 }
+		 return v;
 	}
 	
 	/**
@@ -122,9 +470,212 @@ public class RunReq extends ZMsg {
 		}
 		double [] data = new double[(int)(strides[0] * dimensions[0])];
 		builder.add(Json.createArrayBuilder().add(channel).add(aBuilder).build());
-		ImgUtil.copy(imgPlus.getImg(), data, 0, strides);
+		final Img<T> img = imgPlus.getImg();
+		if (img instanceof ImageSlice) {
+			/*
+			 * Copy the slice from the storage of the image it was cut from
+			 */
+			final ImageSlice<T> slice = (ImageSlice<T>)img;
+			final int axis = slice.getAxis();
+			final int [] sourceStrides = new int [numDimensions + 1];
+			for (int i=0; i<numDimensions; i++) {
+				sourceStrides[(i < axis)? i : i+1] = strides[i];
+			}
+			if (! PixelConverter.copy(slice.getSource(), axis, slice.getPosition(), data, sourceStrides)) {
+				copyView(img, data, strides);
+			}
+			return data;
+		}
+		if (PixelConverter.copy(img, data, strides)) {
+			return data;
+		}
+		if (isStorage(img)) {
+			ImgUtil.copy(img, data, 0, strides);
+		} else {
+			/*
+			 * A view's cursor may not honor its minimum or position,
+			 * even if the minimum is zero.
+			 */
+			copyView(img, data, strides);
+		}
 		return data;
 	}
+	
+	/**
+	 * @param img an image
+	 * @return true if the image is the storage of its pixels, rather than
+	 *         a view of another image's, so that its cursor can be trusted
+	 */
+	static private boolean isStorage(Img<?> img) {
+		while (img instanceof ImgPlus) {
+			img = ((ImgPlus<?>)img).getImg();
+		}
+		return (img instanceof ArrayImg) || (img instanceof PlanarImg) || (img instanceof AbstractCellImg);
+	}
+	
+	/**
+	 * Serialize the metadata of a color image to Json, adding a channel
+	 * axis for red, green and blue, and return the scaled intensities
+	 * 
+	 * @param channel the name of the pipeline's input channel
+	 * @param imgPlus the color image
+	 * @param builder the slot for the channel is added to this header
+	 * @return array of doubles representing the intensities
+	 */
+	static protected double [] serializeColor(
+			String channel, ImgPlus<ARGBType> imgPlus, JsonArrayBuilder builder) {
+		final int numDimensions = imgPlus.numDimensions();
+		final int[] dimensions = new int [numDimensions + 1];
+		for (int i=0; i<numDimensions; i++) {
+			dimensions[i] = (int)imgPlus.dimension(i);
+		}
+		dimensions[numDimensions] = 3;
+		final int[] strides = new int[dimensions.length];
+		strides[numDimensions] = 1;
+		for (int i=numDimensions-1; i>=0; i--) {
+			strides[i] = strides[i+1] * dimensions[i+1];
+		}
+		JsonArrayBuilder aBuilder = Json.createArrayBuilder();
+		for (int i=0; i<=numDimensions; i++) {
+			final AxisType axis = (i < numDimensions)? imgPlus.axis(i).type() : Axes.CHANNEL;
+			aBuilder.add(Json.createArrayBuilder()
+				.add(axis.toString())
+				.add(dimensions[i])
+				.add(strides[i]));
+		}
+		builder.add(Json.createArrayBuilder().add(channel).add(aBuilder).build());
+		final double [] data = new double[strides[0] * dimensions[0]];
+		final Img<ARGBType> img = imgPlus.getImg();
+		if (! PixelConverter.copy(img, data, strides)) {
+			copyColorView(img, data, strides);
+		}
+		return data;
+	}
+	
+	/**
+	 * Copy the red, green and blue components of the pixels of a color view,
+	 * scaled so that full intensity is 1
+	 * 
+	 * @param view the view
+	 * @param data the destination. The components of a pixel are copied
+	 *             to the pixel's offset and the two doubles after it.
+	 * @param strides the distance in data between pixels that are
+	 *                adjacent along each axis of the view
+	 */
+	static protected void copyColorView(
+			RandomAccessibleInterval<ARGBType> view, double [] data, int [] strides) {
+		final int n = view.numDimensions();
+		final long [] dims = new long [n];
+		view.dimensions(dims);
+		long size = 1;
+		for (int d=0; d<n; d++) size *= dims[d];
+		final long [] min = new long [n];
+		view.min(min);
+		final RandomAccess<ARGBType> access = view.randomAccess();
+		access.setPosition(min);
+		final int [] pos = new int [n];
+		int dst = 0;
+		for (long i=0; i<size; i++) {
+			final int value = access.get().get();
+			data[dst] = ARGBType.red(value) * PixelConverter.COLOR_SCALE;
+			data[dst+1] = ARGBType.green(value) * PixelConverter.COLOR_SCALE;
+			data[dst+2] = ARGBType.blue(value) * PixelConverter.COLOR_SCALE;
+			for (int d=0; d<n; d++) {
+				if (++pos[d] < dims[d]) {
+					dst += strides[d];
+					access.fwd(d);
+					break;
+				}
+				dst -= (dims[d] - 1) * strides[d];
+				access.move(1 - dims[d], d);
+				pos[d] = 0;
+			}
+		}
+	}
+	
+	/**
+	 * Copy the pixels of a view, which may have a non-zero minimum,
+	 * without localizing each pixel.
+	 * 
+	 * The pixels are read with a random access rather than a cursor:
+	 * the cursors of some views, such as the hyperslices of a PlanarImg,
+	 * don't honor the view's position in this version of ImgLib2.
+	 * 
+	 * @param view the view, for instance an ImgView of Views.interval()
+	 * @param data the destination. The view's minimum is copied to data[0].
+	 * @param strides the distance in data between pixels that are
+	 *                adjacent along each axis of the view
+	 */
+	static protected <T extends RealType<T>> void copyView(
+			RandomAccessibleInterval<T> view, double [] data, int [] strides) {
+		final int n = view.numDimensions();
+		final long [] dims = new long [n];
+		view.dimensions(dims);
+		long size = 1;
+		for (int d=0; d<n; d++) size *= dims[d];
+		final long [] min = new long [n];
+		view.min(min);
+		final RandomAccess<T> access = view.randomAccess();
+		access.setPosition(min);
+		final int [] pos = new int [n];
+		int dst = 0;
+		/*
+		 * Visit the pixels with the first axis varying fastest.
+		 */
+		for (long i=0; i<size; i++) {
+			data[dst] = access.get().getRealDouble();
+			for (int d=0; d<n; d++) {
+				if (++pos[d] < dims[d]) {
+					dst += strides[d];
+					access.fwd(d);
+					break;
+				}
+				dst -= (dims[d] - 1) * strides[d];
+				access.move(1 - dims[d], d);
+				pos[d] = 0;
+			}
+		}
+	}
+	/**
+	 * Encode a run request without sending it
+	 * 
+	 * @param sessionID the session ID from connect
+	 * @param pipeline the pipeline to run
+	 * @param imageMap a map of channel name to imgPlus containing the image
+	 *                 to use as input for that channel.
+	 * @return the encoded request, ready to be sent.
+	 */
+	static public RunReq create(String sessionID, String pipeline, Map<String, ImgPlus<?>> imageMap) {
+		return new RunReq(sessionID, pipeline, imageMap);
+	}
+	/**
+	 * Encode a run request without sending it, compressing the image data
+	 * 
+	 * @param sessionID the session ID from connect
+	 * @param pipeline the pipeline to run
+	 * @param imageMap a map of channel name to imgPlus containing the image
+	 *                 to use as input for that channel.
+	 * @param codec compresses the image data if it pays, or null to not compress.
+	 *              Only use a codec if the worker accepted it when connecting.
+	 * @return the encoded request, ready to be sent.
+	 */
+	static public RunReq create(String sessionID, String pipeline, Map<String, ImgPlus<?>> imageMap, FrameCodec codec) {
+		return new RunReq(sessionID, pipeline, imageMap, codec);
+	}
+	/**
+	 * Encode a run request without sending it, encoding the images
+	 * as negotiated with the worker
+	 * 
+	 * @param sessionID the session ID from connect
+	 * @param pipeline the pipeline to run
+	 * @param imageMap a map of channel name to imgPlus containing the image
+	 *                 to use as input for that channel.
+	 * @param encoding how to encode the images
+	 * @return the encoded request, ready to be sent.
+	 */
+	static public RunReq create(String sessionID, String pipeline, Map<String, ImgPlus<?>> imageMap, ImageEncoding encoding) {
+		return new RunReq(sessionID, pipeline, imageMap, encoding);
+	}
 	/**
 	 * @return the name that indicates that this
 	 * is a run request
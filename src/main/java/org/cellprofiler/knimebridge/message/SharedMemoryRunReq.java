@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge.message;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+
+import net.imagej.ImgPlus;
+
+import org.zeromq.ZFrame;
+import org.zeromq.ZMsg;
+
+/**
+ * @author agent
+ *
+ * A request to run a pipeline using an image set whose pixels are
+ * handed to the worker in a file, which the worker can map into memory,
+ * rather than in the message. The file must be readable by the worker,
+ * so this is only for workers on the client's host, typically with the
+ * file in /dev/shm.
+ * 
+ * The format is:
+ *    frame containing the pipeline
+ *    frame containing the image header, as for a run request
+ *    frame containing a JsonObject:
+ *        "path": the path of the file holding the pixels
+ *        "segments": one 2-tuple per image of offset and length in bytes
+ *                    within the file, in the order of the header. The data
+ *                    are doubles in little-endian format, organized by the
+ *                    strides, as for a run request.
+ * 
+ * The reply is a RunReply, as for a run request or a run group request.
+ * The file is deleted by {@link #release()}, which should be called once
+ * the reply has arrived.
+ */
+@SuppressWarnings("deprecation")
+public class SharedMemoryRunReq extends ZMsg {
+	private static final String msgName = "shm-run-request-1";
+	private static final String groupMsgName = "shm-run-group-request-1";
+	/**
+	 * The size of the buffer that pixels are written through
+	 */
+	private static final int BUFFER_SIZE = 1 << 20;
+	private final File file;
+
+	/**
+	 * Construct a shared memory run request, writing the pixels to a new file
+	 * 
+	 * @param sessionID the session ID from connect
+	 * @param pipeline the pipeline to run
+	 * @param imageMap a map of channel name to imgPlus containing the image
+	 *                 to use as input for that channel.
+	 * @param directory create the pixel file in this directory
+	 * @param group true to run the images as a group, as for a RunGroupReq
+	 * @throws IOException if the pixel file could not be written
+	 */
+	protected SharedMemoryRunReq(String sessionID, String pipeline, Map<String, ImgPlus<?>> imageMap,
+			File directory, boolean group) throws IOException {
+		add(group? groupMsgName : msgName);
+		add(pipeline);
+		final List<double []> chunks = new ArrayList<double []>();
+		StringWriter sw = new StringWriter();
+		Json.createWriter(sw).writeArray(RunReq.encodeImageData(imageMap, chunks));
+		add(sw.toString());
+		file = File.createTempFile("knimebridge-", ".pixels", directory);
+		final JsonArrayBuilder segments = Json.createArrayBuilder();
+		boolean written = false;
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			final FileChannel channel = raf.getChannel();
+			final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			long offset = 0;
+			/*
+			 * Channels with the same image share its segment
+			 */
+			final Map<double [], Long> offsets = new IdentityHashMap<double [], Long>();
+			for (double [] chunk:chunks) {
+				final long length = (long)chunk.length * Double.SIZE / Byte.SIZE;
+				if (offsets.containsKey(chunk)) {
+					segments.add(Json.createArrayBuilder().add(offsets.get(chunk)).add(length));
+					continue;
+				}
+				write(channel, buffer, offset, chunk);
+				offsets.put(chunk, offset);
+				segments.add(Json.createArrayBuilder().add(offset).add(length));
+				offset += length;
+			}
+			written = true;
+		} finally {
+			raf.close();
+			if (! written) file.delete();
+		}
+		add(Json.createObjectBuilder()
+				.add("path", file.getAbsolutePath())
+				.add("segments", segments)
+				.build().toString());
+		wrap(new ZFrame(sessionID));
+	}
+	
+	/**
+	 * Write doubles to the file. They are converted to little-endian
+	 * bytes a buffer at a time. The file is written rather than mapped
+	 * because the client has no way to unmap a mapping: it would stay
+	 * until the garbage collector got to it.
+	 * 
+	 * @param channel the pixel file's channel
+	 * @param buffer a little-endian buffer to write through
+	 * @param offset the offset of the doubles in the file
+	 * @param chunk the doubles to write
+	 * @throws IOException
+	 */
+	private static void write(FileChannel channel, ByteBuffer buffer, long offset, double [] chunk)
+			throws IOException {
+		buffer.clear();
+		final DoubleBuffer doubles = buffer.asDoubleBuffer();
+		final int doublesPerBuffer = doubles.capacity();
+		for (int start = 0; start < chunk.length; start += doublesPerBuffer) {
+			final int count = Math.min(doublesPerBuffer, chunk.length - start);
+			doubles.clear();
+			doubles.put(chunk, start, count);
+			buffer.clear();
+			buffer.limit(count * Double.SIZE / Byte.SIZE);
+			long position = offset + (long)start * Double.SIZE / Byte.SIZE;
+			while (buffer.hasRemaining()) {
+				position += channel.write(buffer, position);
+			}
+		}
+	}
+	
+	/**
+	 * Encode a shared memory run request without sending it
+	 * 
+	 * @param sessionID the session ID from connect
+	 * @param pipeline the pipeline to run
+	 * @param imageMap a map of channel name to imgPlus containing the image
+	 *                 to use as input for that channel.
+	 * @param directory create the pixel file in this directory, for instance /dev/shm
+	 * @param group true to run the images as a group, as for a RunGroupReq
+	 * @return the encoded request, ready to be sent.
+	 * @throws IOException if the pixel file could not be written
+	 */
+	static public SharedMemoryRunReq create(String sessionID, String pipeline, Map<String, ImgPlus<?>> imageMap,
+			File directory, boolean group) throws IOException {
+		return new SharedMemoryRunReq(sessionID, pipeline, imageMap, directory, group);
+	}
+	
+	/**
+	 * @return the file holding the request's pixels
+	 */
+	public File getFile() {
+		return file;
+	}
+	
+	/**
+	 * Delete the file holding the pixels. The worker is done
+	 * with the file once it has replied to the request.
+	 */
+	public void release() {
+		file.delete();
+	}
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge;
+
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadFactory;
+
+import net.imagej.ImgPlus;
+
+/**
+ * @author agent
+ *
+ * A reactive-streams processor that runs the pipeline on the image sets
+ * it receives and publishes the results.
+ *
+ * Subscribe the processor to a publisher of image sets (maps of channel
+ * name to image) and subscribe a consumer of {@link BridgeExecutor.Result}
+ * to the processor. Image sets are requested from upstream only when the
+ * downstream subscriber has asked for results and a bridge is free to
+ * run them, so the number of run requests outstanding to the workers
+ * never exceeds the outstanding demand or the number of bridges.
+ *
+ * Each bridge has one thread which sends its run requests and waits for
+ * the replies. Results are published in the order in which they complete;
+ * use {@link BridgeExecutor.Result#getIndex()} to match them to the image sets.
+ *
+ * The processor has a single subscriber and can be used for one stream.
+ * This class is only available on Java 9 and later.
+ */
+public class BridgeProcessor implements Flow.Processor<Map<String, ImgPlus<?>>, BridgeExecutor.Result> {
+	private final Map<KnimeBridgeImpl, ExecutorService> runners =
+			new IdentityHashMap<KnimeBridgeImpl, ExecutorService>();
+	/*
+	 * The state below is guarded by "this"
+	 */
+	private final List<KnimeBridgeImpl> idle;
+	private int liveBridges;
+	private Flow.Subscription upstream;
+	private Flow.Subscriber<? super BridgeExecutor.Result> downstream;
+	/*
+	 * The number of results requested downstream and not yet published
+	 */
+	private long demand;
+	/*
+	 * The number of image sets requested upstream and not yet received
+	 */
+	private long requested;
+	/*
+	 * The number of image sets being run
+	 */
+	private int inFlight;
+	private int nextIndex;
+	private boolean upstreamDone;
+	private Throwable upstreamError;
+	private boolean terminated;
+	/*
+	 * Serializes the signals to the downstream subscriber.
+	 * "signalled" is guarded by this lock.
+	 */
+	private final Object signalLock = new Object();
+	private boolean signalled;
+
+	/**
+	 * Create a processor
+	 *
+	 * @param bridges connected bridges, each with the same pipeline loaded
+	 */
+	public BridgeProcessor(Collection<IKnimeBridge> bridges) {
+		if (bridges.isEmpty()) {
+			throw new IllegalArgumentException("The processor needs at least one bridge");
+		}
+		idle = BridgeExecutor.asImpls(bridges);
+		liveBridges = idle.size();
+		final ThreadFactory threadFactory = new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				final Thread thread = new Thread(r, "BridgeProcessor worker");
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		for (KnimeBridgeImpl bridge:idle) {
+			runners.put(bridge, Executors.newSingleThreadExecutor(threadFactory));
+		}
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super BridgeExecutor.Result> subscriber) {
+		if (subscriber == null) throw new NullPointerException();
+		synchronized (this) {
+			if (downstream == null) {
+				downstream = subscriber;
+				subscriber = null;
+			}
+		}
+		if (subscriber != null) {
+			subscriber.onSubscribe(new Flow.Subscription() {
+				@Override
+				public void request(long n) {
+				}
+
+				@Override
+				public void cancel() {
+				}
+			});
+			subscriber.onError(new IllegalStateException("The processor already has a subscriber"));
+			return;
+		}
+		downstream.onSubscribe(new Flow.Subscription() {
+			@Override
+			public void request(long n) {
+				if (n <= 0) {
+					fail(new IllegalArgumentException("The number of results requested must be positive"));
+					return;
+				}
+				synchronized (BridgeProcessor.this) {
+					demand = (demand + n < 0)? Long.MAX_VALUE : demand + n;
+				}
+				pump();
+			}
+
+			@Override
+			public void cancel() {
+				final Flow.Subscription subscription = terminate();
+				synchronized (signalLock) {
+					signalled = true;
+				}
+				if (subscription != null) subscription.cancel();
+			}
+		});
+		pump();
+	}
+
+	@Override
+	public void onSubscribe(Flow.Subscription subscription) {
+		synchronized (this) {
+			if ((upstream == null) && ! terminated) {
+				upstream = subscription;
+				subscription = null;
+			}
+		}
+		if (subscription != null) {
+			subscription.cancel();
+			return;
+		}
+		pump();
+	}
+
+	@Override
+	public void onNext(final Map<String, ImgPlus<?>> imageSet) {
+		if (imageSet == null) throw new NullPointerException();
+		final KnimeBridgeImpl bridge;
+		final int index;
+		synchronized (this) {
+			if (terminated) return;
+			if (idle.isEmpty()) {
+				bridge = null;
+				index = -1;
+			} else {
+				bridge = idle.remove(idle.size()-1);
+				index = nextIndex++;
+				requested--;
+				inFlight++;
+			}
+		}
+		if (bridge == null) {
+			fail(new IllegalStateException("Received an image set that was not requested"));
+			return;
+		}
+		runners.get(bridge).execute(new Runnable() {
+			@Override
+			public void run() {
+				runImageSet(bridge, index, imageSet);
+			}
+		});
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		synchronized (this) {
+			upstreamDone = true;
+			upstreamError = throwable;
+		}
+		maybeComplete();
+	}
+
+	@Override
+	public void onComplete() {
+		synchronized (this) {
+			upstreamDone = true;
+		}
+		maybeComplete();
+	}
+
+	private void runImageSet(KnimeBridgeImpl bridge, int index, Map<String, ImgPlus<?>> imageSet) {
+		BridgeExecutor.Result result;
+		boolean broken = false;
+		try {
+			result = BridgeExecutor.run(bridge, index, imageSet);
+		} catch (RuntimeException e) {
+			/*
+			 * A communication failure leaves the socket unusable.
+			 */
+			result = new BridgeExecutor.Result(index, null, e);
+			broken = true;
+		}
+		boolean noBridges = false;
+		synchronized (this) {
+			if (broken) {
+				noBridges = (--liveBridges == 0);
+				runners.get(bridge).shutdown();
+			} else {
+				idle.add(bridge);
+			}
+			if (demand != Long.MAX_VALUE) demand--;
+		}
+		synchronized (signalLock) {
+			if (! signalled) downstream.onNext(result);
+		}
+		synchronized (this) {
+			inFlight--;
+		}
+		if (noBridges) {
+			fail(new ProtocolException("No bridge is available to run the image sets"));
+			return;
+		}
+		pump();
+		maybeComplete();
+	}
+
+	/**
+	 * Request as many image sets from upstream as there is
+	 * downstream demand and free bridges to run them.
+	 */
+	private void pump() {
+		final Flow.Subscription subscription;
+		final long n;
+		synchronized (this) {
+			if (terminated || upstreamDone || (upstream == null) || (downstream == null)) return;
+			n = Math.min(demand - inFlight - requested, idle.size() - requested);
+			if (n <= 0) return;
+			requested += n;
+			subscription = upstream;
+		}
+		subscription.request(n);
+	}
+
+	/**
+	 * Publish the end of the stream once upstream has finished
+	 * and all image sets have been run.
+	 */
+	private void maybeComplete() {
+		final Throwable error;
+		synchronized (this) {
+			if (terminated || ! upstreamDone || (inFlight > 0)) return;
+			error = upstreamError;
+		}
+		terminate();
+		if (error != null) {
+			signalError(error);
+		} else {
+			synchronized (signalLock) {
+				if (signalled || (downstream == null)) return;
+				signalled = true;
+				downstream.onComplete();
+			}
+		}
+	}
+
+	/**
+	 * Stop the stream because of an error
+	 *
+	 * @param error the error to report downstream
+	 */
+	private void fail(Throwable error) {
+		final Flow.Subscription subscription = terminate();
+		if (subscription != null) subscription.cancel();
+		signalError(error);
+	}
+
+	/**
+	 * Stop accepting image sets. Image sets that are being run complete.
+	 *
+	 * @return the upstream subscription if it should be cancelled
+	 */
+	private Flow.Subscription terminate() {
+		synchronized (this) {
+			final boolean wasTerminated = terminated;
+			terminated = true;
+			for (ExecutorService runner:runners.values()) runner.shutdown();
+			return (wasTerminated || upstreamDone)? null : upstream;
+		}
+	}
+
+	private void signalError(Throwable error) {
+		synchronized (signalLock) {
+			if (signalled || (downstream == null)) return;
+			signalled = true;
+			downstream.onError(error);
+		}
+	}
+}
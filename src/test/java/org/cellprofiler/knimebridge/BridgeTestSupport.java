@@ -0,0 +1,336 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge;
+
+import static org.junit.Assert.*;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonWriter;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.type.numeric.real.DoubleType;
+
+import org.cellprofiler.knimebridge.MockClientServerPair.RunWithBridge;
+import org.cellprofiler.knimebridge.MockClientServerPair.RunWithSockets;
+import org.cellprofiler.knimebridge.message.AbstractReply;
+import org.junit.Assert;
+import org.zeromq.ZFrame;
+import org.zeromq.ZMQ.Socket;
+import org.zeromq.ZMsg;
+
+/**
+ * The worker's side of the conversations that the tests of the
+ * bridge have with a mock worker, and the images they send.
+ */
+final class BridgeTestSupport {
+	static final String PIPELINE = "Not a pipeline";
+	static final String [] CHANNELS = { "Foo", "Bar" };
+	static final AxisType [] XY = { Axes.X, Axes.Y };
+
+	private BridgeTestSupport() {
+	}
+
+	/**
+	 * Answer a pipeline-info request for a pipeline with the given channels,
+	 * an "Image" table and a "Nucleus" table.
+	 */
+	static Future<Object> handlePipelineReq(MockClientServerPair mock,
+			final String pipeline, final String[] channels) {
+		return mock.runOnServer(new RunWithSockets() {
+
+			@Override
+			public void run(Socket socket) {
+				ZMsg msg = ZMsg.recvMsg(socket);
+				ZFrame client = msg.unwrap();
+				String messageType = AbstractReply.popString(msg);
+				assertEquals("pipeline-info-req-1", messageType);
+				String recievedPipeline = AbstractReply.popString(msg);
+				assertEquals(pipeline, recievedPipeline);
+				ZMsg msgOut = makePipelineInfoReply(channels);
+				msgOut.wrap(client);
+				msgOut.send(socket);
+			}});
+	}
+
+	/**
+	 * Make the reply to a pipeline-info request, without its session ID
+	 */
+	static ZMsg makePipelineInfoReply(String [] channels) {
+		ZMsg msgOut = new ZMsg();
+		msgOut.add("pipeline-info-response-1");
+		StringWriter sw = new StringWriter();
+		JsonWriter writer = Json.createWriter(sw);
+		writer.writeArray(Json.createArrayBuilder()
+				.add(Json.createArrayBuilder().add(channels[0]).add(channels[1]).build())
+				.add(Json.createArrayBuilder()
+						.add("java.lang.Integer")
+						.add("java.lang.Float")
+						.add("java.lang.Double")
+						.add("java.lang.String").build())
+				.add(Json.createObjectBuilder()
+						.add(KBConstants.IMAGE, Json.createArrayBuilder()
+								.add(Json.createArrayBuilder().add("ImageNumber").add(0).build())
+								.add(Json.createArrayBuilder().add("FileName_DNA").add(3).build())
+								.build())
+						.add("Nucleus", Json.createArrayBuilder()
+								.add(Json.createArrayBuilder().add("ObjectNumber").add(0).build())
+								.add(Json.createArrayBuilder().add("Location_CenterX").add(2).build())
+								.build())
+						.build())
+				.build());
+		writer.close();
+		msgOut.add(sw.toString());
+		return msgOut;
+	}
+
+	/**
+	 * Load a pipeline into the mock's bridge
+	 */
+	static void loadPipeline(MockClientServerPair mock, final String pipeline, String [] channels) {
+		final Future<Object> client = mock.runOnClient(new RunWithBridge() {
+
+			@Override
+			public void run(IKnimeBridge bridge) {
+				try {
+					bridge.loadPipeline(pipeline);
+				} catch (Exception e) {
+					e.printStackTrace();
+					Assert.fail();
+				}
+			}
+		});
+		runMockPair(mock, client, handlePipelineReq(mock, pipeline, channels), false);
+	}
+
+	/**
+	 * Run a mock client-server pair and stop the mock afterwards.
+	 *
+	 * @param mock the mock framework.
+	 * @param client the client end of the mock
+	 * @param server the server end of the mock.
+	 */
+	static void runMockPair(MockClientServerPair mock,
+			Future<Object> client, Future<Object> server) {
+		runMockPair(mock, client, server, true);
+	}
+
+	/**
+	 * Run a mock client-server pair.
+	 *
+	 * @param mock the mock framework.
+	 * @param client the client end of the mock
+	 * @param server the server end of the mock.
+	 * @param stop true to stop the mock afterwards
+	 */
+	static void runMockPair(MockClientServerPair mock,
+			Future<Object> client, Future<Object> server, boolean stop) {
+		try {
+			server.get();
+			client.get();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			Assert.fail();
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+		if (stop) mock.stop();
+	}
+
+	/**
+	 * Have the mock's worker answer the next connect request without
+	 * reporting any capabilities, for instance one from an event loop
+	 */
+	static Future<Object> acceptConnect(MockClientServerPair mock) {
+		return acceptConnect(mock, null);
+	}
+
+	/**
+	 * Have the mock's worker answer the next connect request
+	 *
+	 * @param capabilities the capabilities to report or null for none
+	 */
+	static Future<Object> acceptConnect(MockClientServerPair mock, final WorkerCapabilities capabilities) {
+		return mock.runOnServer(new RunWithSockets() {
+
+			@Override
+			public void run(Socket socket) {
+				acceptConnect(socket, capabilities);
+			}
+		});
+	}
+
+	/**
+	 * Answer a connect request without reporting any capabilities
+	 */
+	static void acceptConnect(Socket socket) {
+		acceptConnect(socket, null);
+	}
+
+	/**
+	 * Answer a connect request
+	 *
+	 * @param capabilities the capabilities to report or null for none
+	 */
+	static void acceptConnect(Socket socket, WorkerCapabilities capabilities) {
+		ZMsg msg = ZMsg.recvMsg(socket);
+		ZFrame client = msg.unwrap();
+		assertEquals("connect-request-1", AbstractReply.popString(msg));
+		ZMsg msgOut = new ZMsg();
+		msgOut.add("connect-reply-1");
+		if (capabilities != null) {
+			msgOut.add(Json.createObjectBuilder()
+					.add("capabilities", capabilities.toJson()).build().toString());
+		}
+		msgOut.wrap(client);
+		msgOut.send(socket);
+	}
+
+	/**
+	 * Answer a run request, checking that every channel's pixels
+	 * were sent as 32-bit floats
+	 *
+	 * @param mock the mock framework
+	 * @param nPixels the number of pixels in each channel's image
+	 */
+	static Future<Object> answerFloat32Run(MockClientServerPair mock, final int nPixels) {
+		return mock.runOnServer(new RunWithSockets() {
+
+			@Override
+			public void run(Socket socket) {
+				ZMsg msg = ZMsg.recvMsg(socket);
+				ZFrame client = msg.unwrap();
+				assertEquals("run-request-1", AbstractReply.popString(msg));
+				assertEquals(PIPELINE, AbstractReply.popString(msg));
+				final JsonArray header = popArray(msg);
+				for (int i=0; i<header.size(); i++) {
+					final JsonArray slot = header.getJsonArray(i);
+					assertEquals(3, slot.size());
+					assertEquals("float32", slot.getJsonObject(2).getString("encoding"));
+					assertEquals(nPixels * 4, msg.pop().getData().length);
+				}
+				assertTrue(msg.isEmpty());
+				sendRunReply(socket, client, 1, 1);
+			}
+		});
+	}
+
+	/**
+	 * Send the reply to a run request with an image number and some nuclei
+	 *
+	 * @param socket the worker's socket
+	 * @param client the session ID frame of the request
+	 * @param imageNumber the image number
+	 * @param nNuclei the number of nuclei
+	 */
+	static void sendRunReply(Socket socket, ZFrame client, int imageNumber, int nNuclei) {
+		ZMsg msgOut = new ZMsg();
+		msgOut.add("run-reply-1");
+		msgOut.add(makeMeasurementMetadata(nNuclei).toString());
+		msgOut.add(makeMeasurementData(imageNumber, nNuclei));
+		msgOut.wrap(client);
+		msgOut.send(socket);
+	}
+
+	/**
+	 * Pop a Json array, for instance a run request's image header
+	 */
+	static JsonArray popArray(ZMsg msg) {
+		return Json.createReader(new StringReader(AbstractReply.popString(msg))).readArray();
+	}
+
+	/**
+	 * Make an X/Y image of random doubles
+	 */
+	static ImgPlus<DoubleType> makeImgPlus(long [] dims, String name, AxisType [] axes) {
+		final Random rnd = new Random( 1241234 );
+		final Img<DoubleType>img = new PlanarImgFactory<DoubleType>().create(dims, new DoubleType());
+		final Cursor< DoubleType > cursor = img.cursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			cursor.get().set( rnd.nextDouble() );
+		}
+		return new ImgPlus<DoubleType>(img, name, axes);
+	}
+
+	/**
+	 * Make an image set with a width x height image per channel
+	 */
+	static Map<String, ImgPlus<?>> makeImageSet(long width, long height, String... channels) {
+		final Map<String, ImgPlus<?>> map = new Hashtable<String, ImgPlus<?>>();
+		for (String channel:channels) {
+			map.put(channel, makeImgPlus(new long [] { width, height }, channel, XY));
+		}
+		return map;
+	}
+
+	/**
+	 * Make the metadata for a run reply with an image number
+	 * and object numbers for some nuclei.
+	 *
+	 * @param nNuclei the number of nuclei
+	 * @return the four metadata sections of a run reply
+	 */
+	static JsonArray makeMeasurementMetadata(int nNuclei) {
+		return Json.createArrayBuilder()
+			.add(Json.createArrayBuilder())
+			.add(Json.createArrayBuilder())
+			.add(Json.createArrayBuilder()
+				.add(Json.createArrayBuilder()
+					.add(KBConstants.IMAGE)
+					.add(Json.createArrayBuilder()
+						.add(Json.createArrayBuilder().add(KBConstants.IMAGE_NUMBER).add(1))))
+				.add(Json.createArrayBuilder()
+					.add("Nuclei")
+					.add(Json.createArrayBuilder()
+						.add(Json.createArrayBuilder().add(KBConstants.OBJECT_NUMBER).add(nNuclei)))))
+			.add(Json.createArrayBuilder())
+			.build();
+	}
+
+	/**
+	 * Make the data for a run reply with the metadata from makeMeasurementMetadata
+	 *
+	 * @param imageNumber the image number
+	 * @param nNuclei the number of nuclei
+	 * @return the data frame
+	 */
+	static byte [] makeMeasurementData(int imageNumber, int nNuclei) {
+		final int [] values = new int [nNuclei+1];
+		values[0] = imageNumber;
+		for (int j=0; j<nNuclei; j++) values[j+1] = j+1;
+		return intsToBytes(values);
+	}
+
+	/**
+	 * Convert integers to little-endian bytes as the worker would
+	 */
+	static byte [] intsToBytes(int [] values) {
+		final byte [] result = new byte [values.length * Integer.SIZE / Byte.SIZE];
+		for (int i=0; i<values.length; i++) {
+			for (int j=0; j<4; j++) {
+				result[i*4+j] = (byte)(values[i] >> (8*j));
+			}
+		}
+		return result;
+	}
+}
@@ -6,14 +6,27 @@
  */
 package org.cellprofiler.knimebridge;
 
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.SynchronousQueue;
 
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+
+import org.cellprofiler.knimebridge.message.FrameCodec;
+import org.cellprofiler.knimebridge.message.PackedPixels;
+
 import org.zeromq.ZFrame;
 import org.zeromq.ZMQ;
 import org.zeromq.ZMQ.Context;
@@ -29,16 +42,70 @@ public class MockClientServerPair {
 		public void run(IKnimeBridge bridge);
 	}
 	private final boolean [] die = { false };
-	private final IKnimeBridge bridge = new KnimeBridgeFactory().newKnimeBridge();
+	private final IKnimeBridge bridge;
 	private final Socket serverSocket;
 	private final SynchronousQueue<Runnable> serverQueue = new SynchronousQueue<Runnable>();
 	private final SynchronousQueue<Runnable> clientQueue = new SynchronousQueue<Runnable>();
 	private final Thread serverThread;
 	private final Thread clientThread;
 	private final String addr = "inproc:" + UUID.randomUUID().toString();
+	/**
+	 * The capabilities that the mock server reports
+	 */
+	public static final WorkerCapabilities CAPABILITIES = new WorkerCapabilities.Builder()
+			.setEncodings(Arrays.asList(WorkerCapabilities.ENCODING_FLOAT64, WorkerCapabilities.ENCODING_PACKED,
+					WorkerCapabilities.ENCODING_FLOAT32))
+			.setCodecs(Collections.singleton(FrameCodec.SHUFFLE_DEFLATE))
+			.setBatch(true)
+			.setMaxFrameSize(1L << 30)
+			.setSharedMemory(true)
+			.setRunByReference(true)
+			.build();
 	public String error = null;
 	public String sessionID;
+	/**
+	 * Decode the pixels of a channel of a run request, as the worker would
+	 * 
+	 * @param slot the channel's slot in the request's image header
+	 * @param frame the channel's frame
+	 * @return the pixel intensities, organized by the slot's strides
+	 * @throws ProtocolException if the frame can't be decoded
+	 */
+	public static double [] decodeImage(JsonArray slot, byte [] frame) throws ProtocolException {
+		int count = 1;
+		for (JsonArray axis:slot.getJsonArray(1).getValuesAs(JsonArray.class)) {
+			count *= axis.getInt(1);
+		}
+		byte [] bytes = frame;
+		if (slot.size() > 2) {
+			final JsonObject description = slot.getJsonObject(2);
+			if (description.containsKey("codec")) {
+				bytes = FrameCodec.decompress(description, bytes);
+			}
+			final String encoding = description.getString("encoding", null);
+			if (WorkerCapabilities.ENCODING_PACKED.equals(encoding)) {
+				return PackedPixels.unpack(bytes, description.getInt("bits"), count);
+			}
+			if (WorkerCapabilities.ENCODING_FLOAT32.equals(encoding)) {
+				final float [] floats = new float[count];
+				ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(floats);
+				final double [] result = new double[count];
+				for (int i=0; i<count; i++) result[i] = floats[i];
+				return result;
+			}
+		}
+		final double [] result = new double[count];
+		ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().get(result);
+		return result;
+	}
 	public MockClientServerPair() {
+		this(BridgeConfig.DEFAULT);
+	}
+	public MockClientServerPair(BridgeConfig config) {
+		this(config, CAPABILITIES);
+	}
+	public MockClientServerPair(BridgeConfig config, final WorkerCapabilities capabilities) {
+		bridge = new KnimeBridgeFactory(config).newKnimeBridge();
 		final Context context = KnimeBridgeImpl.theContext();
 		final SynchronousQueue<Socket> socketQueue = new SynchronousQueue<Socket>();
 		serverThread = new Thread(
@@ -100,10 +167,22 @@ public class MockClientServerPair {
 					ZFrame client = msg.unwrap();
 					final String msgType = msg.popString();
 					assert msgType.equals("connect-request-1");
+					/*
+					 * Accept the client's first codec, if it offers any,
+					 * and report the capabilities of a current worker.
+					 */
+					final JsonObject options = Json.createReader(
+							new StringReader(msg.popString())).readObject();
+					assert options.containsKey("capabilities");
+					final JsonObjectBuilder reply = Json.createObjectBuilder()
+							.add("capabilities", capabilities.toJson());
+					final JsonArray codecs = options.getJsonArray("codecs");
+					if ((codecs != null) && (codecs.size() > 0)) reply.add("codec", codecs.getString(0));
 					msg.destroy();
 					ZMsg msgOut = new ZMsg();
 					msgOut.add(client);
 					msgOut.add("connect-reply-1");
+					msgOut.add(reply.build().toString());
 					msgOut.send(socket);
 				}});
 			Future<Object> connectReq = runOnClient(new RunWithBridge() {
@@ -161,6 +240,12 @@ public class MockClientServerPair {
 		}
 		return future;		
 	}
+	/**
+	 * @return the address of the mock server, for connecting other clients to it
+	 */
+	String getAddress() {
+		return addr;
+	}
 	void stop() {
 		die[0] = true;
 		try {
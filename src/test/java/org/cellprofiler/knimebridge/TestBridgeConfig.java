@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Context;
+import org.zeromq.ZMQ.Socket;
+
+public class TestBridgeConfig {
+
+	@Test
+	public void testDefaults() {
+		final BridgeConfig config = BridgeConfig.DEFAULT;
+		assertEquals(1, config.getIOThreads());
+		assertEquals(BridgeConfig.ZMQ_DEFAULT, config.getSendHWM());
+		assertEquals(BridgeConfig.ZMQ_DEFAULT, config.getLinger());
+		assertEquals(KBConstants.NO_TIMEOUT, config.getRequestTimeout());
+		assertEquals(0, config.getReconnectAttempts());
+		assertEquals(BridgeConfig.NO_HEARTBEAT, config.getHeartbeatInterval());
+		assertEquals(BridgeConfig.DEFAULT_HEARTBEAT_LIVENESS, config.getHeartbeatLiveness());
+		assertSame(KnimeBridgeImpl.theContext(), config.getContext());
+		assertFalse(config.isFloat32Enabled());
+		assertTrue(config.getFloat32Channels().isEmpty());
+		final IKnimeBridge bridge = new KnimeBridgeFactory().newKnimeBridge();
+		assertEquals(KBConstants.NO_TIMEOUT, bridge.getRequestTimeout());
+		bridge.disconnect();
+	}
+
+	@Test
+	public void testSocketOptions() {
+		final BridgeConfig config = new BridgeConfig.Builder()
+			.setSendHWM(3)
+			.setReceiveHWM(4)
+			.setSendBufferSize(1 << 20)
+			.setReceiveBufferSize(1 << 21)
+			.setLinger(50)
+			.setRequestTimeout(1000)
+			.setReconnectAttempts(2)
+			.build();
+		final Socket socket = config.createSocket(ZMQ.REQ);
+		try {
+			assertEquals(3, socket.getSndHWM());
+			assertEquals(4, socket.getRcvHWM());
+			assertEquals(1 << 20, socket.getSendBufferSize());
+			assertEquals(1 << 21, socket.getReceiveBufferSize());
+			assertEquals(50, socket.getLinger());
+		} finally {
+			socket.close();
+		}
+		final IKnimeBridge bridge = new KnimeBridgeFactory(config).newKnimeBridge();
+		assertEquals(1000, bridge.getRequestTimeout());
+		assertEquals(2, bridge.getReconnectAttempts());
+		bridge.disconnect();
+	}
+
+	@Test
+	public void testSharedContext() {
+		final BridgeConfig config = new BridgeConfig.Builder().setIOThreads(2).build();
+		final Context context = config.getContext();
+		assertNotSame(KnimeBridgeImpl.theContext(), context);
+		assertSame(context, config.getContext());
+		final Context mine = ZMQ.context(1);
+		try {
+			assertSame(mine, new BridgeConfig.Builder().setContext(mine).build().getContext());
+		} finally {
+			mine.term();
+		}
+		context.term();
+	}
+
+	@Test
+	public void testFloat32() {
+		assertTrue(new BridgeConfig.Builder().setFloat32(true).build().isFloat32Enabled());
+		final BridgeConfig config = new BridgeConfig.Builder()
+			.setFloat32Channels(Arrays.asList("Foo", "Bar"))
+			.build();
+		assertFalse(config.isFloat32Enabled());
+		assertEquals(2, config.getFloat32Channels().size());
+		assertTrue(config.getFloat32Channels().contains("Foo"));
+	}
+}
@@ -0,0 +1,384 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge;
+
+import static org.cellprofiler.knimebridge.BridgeTestSupport.*;
+import static org.junit.Assert.*;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.json.Json;
+
+import net.imagej.ImgPlus;
+
+import org.cellprofiler.knimebridge.MockClientServerPair.RunWithSockets;
+import org.cellprofiler.knimebridge.message.AbstractReply;
+import org.junit.Assert;
+import org.junit.Test;
+import org.zeromq.ZFrame;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Socket;
+import org.zeromq.ZMsg;
+
+public class TestBridgeEventLoop {
+	@Test
+	public void testBridgeEventLoop() {
+		final String pipeline = "Not a pipeline";
+		final String [] channels = { "Foo", "Bar" };
+		final int nRuns = 2;
+		final MockClientServerPair [] mocks = { new MockClientServerPair(), new MockClientServerPair() };
+		final Map<String, ImgPlus<?>> map = makeImageSet(16, 16, "Foo", "Bar");
+		BridgeEventLoop loop = null;
+		try {
+			loop = new BridgeEventLoop();
+			final List<BridgeEventLoop.Connection> connections = new ArrayList<BridgeEventLoop.Connection>();
+			for (MockClientServerPair mock:mocks) {
+				assertNull(mock.error);
+				Future<Object> server = acceptConnect(mock);
+				final BridgeEventLoop.Connection connection = loop.connect(new URI(mock.getAddress())).get();
+				server.get();
+				assertNotNull(connection.getSessionID());
+				server = handlePipelineReq(mock, pipeline, channels);
+				assertEquals(2, connection.loadPipeline(pipeline).get().getChannels().size());
+				server.get();
+				connections.add(connection);
+			}
+			final List<Future<Object>> servers = new ArrayList<Future<Object>>();
+			for (int i=0; i<mocks.length; i++) {
+				final int nNuclei = i+1;
+				servers.add(mocks[i].runOnServer(new RunWithSockets() {
+					
+					@Override
+					public void run(Socket socket) {
+						for (int j=0; j<nRuns; j++) {
+							ZMsg msg = ZMsg.recvMsg(socket);
+							ZFrame client = msg.unwrap();
+							assertEquals("run-request-1", AbstractReply.popString(msg));
+							assertEquals(pipeline, AbstractReply.popString(msg));
+							sendRunReply(socket, client, j+1, nNuclei);
+						}
+					}
+				}));
+			}
+			/*
+			 * Queue all of the runs before waiting for any
+			 */
+			final List<List<Future<IRunResult>>> results = new ArrayList<List<Future<IRunResult>>>();
+			for (BridgeEventLoop.Connection connection:connections) {
+				final List<Future<IRunResult>> connectionResults = new ArrayList<Future<IRunResult>>();
+				for (int j=0; j<nRuns; j++) connectionResults.add(connection.run(map));
+				results.add(connectionResults);
+			}
+			for (int i=0; i<mocks.length; i++) {
+				for (int j=0; j<nRuns; j++) {
+					final IRunResult result = results.get(i).get(j).get();
+					assertEquals(i+1, result.getNumberOfRows("Nuclei"));
+					int [] imageNumber = result.getIntMeasurements(
+							new FeatureDescriptionImpl(KBConstants.IMAGE, KBConstants.IMAGE_NUMBER, Integer.class));
+					assertEquals(j+1, imageNumber[0]);
+				}
+			}
+			for (Future<Object> server:servers) server.get();
+		} catch (Exception e) {
+			e.printStackTrace();
+			Assert.fail();
+		} finally {
+			if (loop != null) loop.close();
+			for (MockClientServerPair mock:mocks) mock.stop();
+		}
+	}
+
+	@Test
+	public void testBridgeEventLoopSessions() {
+		final String [] pipelines = { "Not a pipeline", "Not another pipeline" };
+		final String [] channels = { "Foo", "Bar" };
+		final int nRuns = 4;
+		final MockClientServerPair mock = new MockClientServerPair();
+		final Map<String, ImgPlus<?>> map = makeImageSet(16, 16, "Foo", "Bar");
+		BridgeEventLoop loop = null;
+		try {
+			assertNull(mock.error);
+			loop = new BridgeEventLoop();
+			Future<Object> server = acceptConnect(mock);
+			final BridgeEventLoop.Connection connection = loop.connect(new URI(mock.getAddress())).get();
+			server.get();
+			server = acceptConnect(mock);
+			final BridgeEventLoop.Session [] sessions = {
+					connection.getSession(), connection.openSession().get() };
+			server.get();
+			assertSame(connection, sessions[1].getConnection());
+			assertFalse(sessions[0].getSessionID().equals(sessions[1].getSessionID()));
+			final Map<String, String> sessionPipelines = new HashMap<String, String>();
+			for (int i=0; i<sessions.length; i++) {
+				server = handlePipelineReq(mock, pipelines[i], channels);
+				sessions[i].loadPipeline(pipelines[i]).get();
+				server.get();
+				assertEquals(pipelines[i], sessions[i].getPipeline());
+				assertEquals(2, sessions[i].getPipelineInfo().getChannels().size());
+				sessionPipelines.put(sessions[i].getSessionID(), pipelines[i]);
+			}
+			/*
+			 * The worker replies with a number of nuclei that
+			 * identifies the pipeline of the request's session.
+			 */
+			server = mock.runOnServer(new RunWithSockets() {
+				
+				@Override
+				public void run(Socket socket) {
+					for (int j=0; j<nRuns; j++) {
+						ZMsg msg = ZMsg.recvMsg(socket);
+						ZFrame client = msg.unwrap();
+						assertEquals("run-request-1", AbstractReply.popString(msg));
+						final String pipeline = AbstractReply.popString(msg);
+						assertEquals(sessionPipelines.get(client.toString()), pipeline);
+						final int nNuclei = pipeline.equals(pipelines[0])? 1 : 2;
+						sendRunReply(socket, client, j+1, nNuclei);
+					}
+				}
+			});
+			final List<Future<IRunResult>> results = new ArrayList<Future<IRunResult>>();
+			for (int j=0; j<nRuns; j++) results.add(sessions[j % 2].run(map));
+			for (int j=0; j<nRuns; j++) {
+				final IRunResult result = results.get(j).get();
+				assertEquals((j % 2) + 1, result.getNumberOfRows("Nuclei"));
+			}
+			server.get();
+		} catch (Exception e) {
+			e.printStackTrace();
+			Assert.fail();
+		} finally {
+			if (loop != null) loop.close();
+			mock.stop();
+		}
+	}
+
+	@Test
+	public void testHeartbeat() throws Exception {
+		final BridgeConfig config = new BridgeConfig.Builder()
+				.setHeartbeatInterval(100).setHeartbeatLiveness(2).build();
+		/*
+		 * A ROUTER socket, so that the worker can ignore requests
+		 * and still answer later ones.
+		 */
+		final Socket server = KnimeBridgeImpl.theContext().socket(ZMQ.ROUTER);
+		final String endpoint = String.format(
+				"tcp://127.0.0.1:%d", server.bindToRandomPort("tcp://127.0.0.1"));
+		final boolean [] answering = { true };
+		final boolean [] stop = { false };
+		final BlockingQueue<String> received = new LinkedBlockingQueue<String>();
+		final Thread serverThread = new Thread(new Runnable() {
+			
+			@Override
+			public void run() {
+				final ZMQ.Poller poller = new ZMQ.Poller(1);
+				poller.register(server, ZMQ.Poller.POLLIN);
+				while (! stop[0]) {
+					poller.poll(10);
+					if (! poller.pollin(0)) continue;
+					final ZMsg msg = ZMsg.recvMsg(server);
+					final ZFrame identity = msg.unwrap();
+					final ZFrame client = msg.unwrap();
+					final String msgType = AbstractReply.popString(msg);
+					received.add(msgType);
+					if (! answering[0]) continue;
+					final ZMsg msgOut = new ZMsg();
+					if (msgType.equals("connect-request-1")) {
+						msgOut.add("connect-reply-1");
+						msgOut.add(Json.createObjectBuilder()
+								.add("capabilities", new WorkerCapabilities.Builder()
+										.setHeartbeats(true).setComputeTime(true).build().toJson()).build().toString());
+					} else if (msgType.equals("heartbeat-request-1")) {
+						msgOut.add("heartbeat-reply-1");
+						msgOut.add(Json.createObjectBuilder()
+								.add("queue-depth", 4).add("mean-compute-time", 250.0).build().toString());
+						msgOut.add(Json.createObjectBuilder()
+								.add("compute-time", 1.0).build().toString());
+					} else {
+						continue;
+					}
+					msgOut.wrap(client);
+					msgOut.wrap(identity);
+					msgOut.send(server);
+				}
+			}
+		});
+		serverThread.start();
+		final BridgeEventLoop loop = new BridgeEventLoop(config);
+		try {
+			final BridgeEventLoop.Connection connection = loop.connect(new URI(endpoint)).get();
+			final long deadline = System.currentTimeMillis() + 5000;
+			while ((connection.getLoad() == null) && (System.currentTimeMillis() < deadline)) {
+				Thread.sleep(10);
+			}
+			assertNotNull(connection.getLoad());
+			assertEquals(4, connection.getLoad().getQueueDepth());
+			assertEquals(250.0, connection.getLoad().getComputeTime(), 0);
+			assertEquals(1000.0, connection.getLoad().getBacklog(), 0);
+			assertEquals(BridgeEventLoop.Liveness.ALIVE, connection.getLiveness());
+			assertSame(connection, BridgeEventLoop.leastLoaded(Collections.singletonList(connection)));
+			/*
+			 * A hung worker is found dead and its requests fail
+			 */
+			answering[0] = false;
+			final Future<?> stranded = connection.loadPipeline("Not a pipeline");
+			try {
+				stranded.get();
+				fail();
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof ProtocolException);
+			}
+			assertEquals(BridgeEventLoop.Liveness.DEAD, connection.getLiveness());
+			assertTrue(connection.getMissedHeartbeats() >= 2);
+			assertNull(BridgeEventLoop.leastLoaded(Collections.singletonList(connection)));
+			/*
+			 * The worker is asked to drop the abandoned request
+			 */
+			String msgType;
+			do {
+				msgType = received.poll(5, TimeUnit.SECONDS);
+			} while ((msgType != null) && ! msgType.equals("cancel-request-1"));
+			assertEquals("cancel-request-1", msgType);
+			/*
+			 * ... and comes back to life when it answers again
+			 */
+			answering[0] = true;
+			while ((connection.getLiveness() != BridgeEventLoop.Liveness.ALIVE) &&
+				   (System.currentTimeMillis() < deadline + 5000)) {
+				Thread.sleep(10);
+			}
+			assertEquals(BridgeEventLoop.Liveness.ALIVE, connection.getLiveness());
+			assertEquals(0, connection.getMissedHeartbeats());
+		} finally {
+			loop.close();
+			stop[0] = true;
+			serverThread.join();
+			server.setLinger(0);
+			server.close();
+		}
+	}
+
+	@Test
+	public void testEncoding() throws Exception {
+		/*
+		 * Runs are encoded as the worker's capabilities and
+		 * the configuration allow
+		 */
+		final MockClientServerPair mock = new MockClientServerPair();
+		final BridgeEventLoop loop = new BridgeEventLoop(new BridgeConfig.Builder().setFloat32(true).build());
+		try {
+			assertNull(mock.error);
+			Future<Object> server = acceptConnect(mock, MockClientServerPair.CAPABILITIES);
+			final BridgeEventLoop.Connection connection = loop.connect(new URI(mock.getAddress())).get();
+			server.get();
+			server = handlePipelineReq(mock, PIPELINE, CHANNELS);
+			connection.loadPipeline(PIPELINE).get();
+			server.get();
+			server = answerFloat32Run(mock, 16 * 8);
+			assertEquals(1, connection.run(makeImageSet(16, 8, CHANNELS)).get().getNumberOfRows("Nuclei"));
+			server.get();
+		} finally {
+			loop.close();
+			mock.stop();
+		}
+	}
+
+	@Test
+	public void testNoHeartbeats() throws Exception {
+		/*
+		 * A worker that doesn't report that it answers heartbeats
+		 * gets none, so a run longer than the heartbeat liveness
+		 * doesn't make it dead.
+		 */
+		final BridgeConfig config = new BridgeConfig.Builder()
+				.setHeartbeatInterval(50).setHeartbeatLiveness(2).build();
+		final MockClientServerPair mock = new MockClientServerPair();
+		final BridgeEventLoop loop = new BridgeEventLoop(config);
+		try {
+			assertNull(mock.error);
+			Future<Object> server = acceptConnect(mock);
+			final BridgeEventLoop.Connection connection = loop.connect(new URI(mock.getAddress())).get();
+			server.get();
+			assertFalse(connection.getCapabilities().isHeartbeatSupported());
+			server = handlePipelineReq(mock, PIPELINE, CHANNELS);
+			connection.loadPipeline(PIPELINE).get();
+			server.get();
+			server = mock.runOnServer(new RunWithSockets() {
+
+				@Override
+				public void run(Socket socket) {
+					final ZMsg msg = ZMsg.recvMsg(socket);
+					final ZFrame client = msg.unwrap();
+					assertEquals("run-request-1", AbstractReply.popString(msg));
+					try {
+						Thread.sleep(500);
+					} catch (InterruptedException e) {
+						Assert.fail();
+					}
+					sendRunReply(socket, client, 1, 2);
+				}
+			});
+			assertEquals(2, connection.run(makeImageSet(16, 16, CHANNELS)).get().getNumberOfRows("Nuclei"));
+			server.get();
+			assertEquals(BridgeEventLoop.Liveness.ALIVE, connection.getLiveness());
+			assertEquals(0, connection.getMissedHeartbeats());
+			assertNull(connection.getLoad());
+		} finally {
+			loop.close();
+			mock.stop();
+		}
+	}
+
+	@Test
+	public void testBadAddress() throws Exception {
+		/*
+		 * An address that ZMQ rejects fails its own connect,
+		 * not the loop or the other connections.
+		 */
+		final MockClientServerPair mock = new MockClientServerPair();
+		final BridgeEventLoop loop = new BridgeEventLoop();
+		try {
+			assertNull(mock.error);
+			try {
+				loop.connect(new URI("bogus://nowhere")).get();
+				Assert.fail();
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof ProtocolException);
+			}
+			Future<Object> server = acceptConnect(mock);
+			final BridgeEventLoop.Connection connection = loop.connect(new URI(mock.getAddress())).get();
+			server.get();
+			server = handlePipelineReq(mock, PIPELINE, CHANNELS);
+			assertEquals(2, connection.loadPipeline(PIPELINE).get().getChannels().size());
+			server.get();
+			server = mock.runOnServer(new RunWithSockets() {
+
+				@Override
+				public void run(Socket socket) {
+					final ZMsg msg = ZMsg.recvMsg(socket);
+					final ZFrame client = msg.unwrap();
+					assertEquals("run-request-1", AbstractReply.popString(msg));
+					sendRunReply(socket, client, 1, 3);
+				}
+			});
+			assertEquals(3, connection.run(makeImageSet(16, 16, CHANNELS)).get().getNumberOfRows("Nuclei"));
+			server.get();
+		} finally {
+			loop.close();
+			mock.stop();
+		}
+	}
+}
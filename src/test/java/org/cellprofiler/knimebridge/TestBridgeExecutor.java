@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge;
+
+import static org.cellprofiler.knimebridge.BridgeTestSupport.*;
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+
+import org.cellprofiler.knimebridge.MockClientServerPair.RunWithBridge;
+import org.cellprofiler.knimebridge.MockClientServerPair.RunWithSockets;
+import org.cellprofiler.knimebridge.message.AbstractReply;
+import org.junit.Test;
+import org.zeromq.ZFrame;
+import org.zeromq.ZMQ.Socket;
+import org.zeromq.ZMsg;
+
+public class TestBridgeExecutor {
+	@Test
+	public void testBridgeExecutor() {
+		MockClientServerPair mock = new MockClientServerPair();
+		assertNull(mock.error);
+		final String pipeline = "Not a pipeline";
+		final String [] channels = { "Foo", "Bar" };
+		loadPipeline(mock, pipeline, channels);
+		final int nImageSets = 6;
+		final int failingImageSet = 2;
+		final AxisType [] axes = new AxisType[] { Axes.X, Axes.Y };
+		final Future<Object> client = mock.runOnClient(new RunWithBridge() {
+			
+			@Override
+			public void run(IKnimeBridge bridge) {
+				final Iterator<Map<String, ImgPlus<?>>> imageSets = new Iterator<Map<String, ImgPlus<?>>>() {
+					int index = 0;
+					@Override
+					public boolean hasNext() {
+						return index < nImageSets;
+					}
+
+					@Override
+					public Map<String, ImgPlus<?>> next() {
+						final Map<String, ImgPlus<?>> map = new Hashtable<String, ImgPlus<?>>();
+						map.put("Foo", makeImgPlus(new long[] {16, 16+index}, "Foo", axes));
+						map.put("Bar", makeImgPlus(new long[] {16, 16+index++}, "Bar", axes));
+						return map;
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+				final BridgeExecutor executor = new BridgeExecutor(Collections.singletonList(bridge), 2);
+				final Iterator<BridgeExecutor.Result> results = executor.execute(imageSets);
+				final boolean [] seen = new boolean[nImageSets];
+				while (results.hasNext()) {
+					final BridgeExecutor.Result result = results.next();
+					final int index = result.getIndex();
+					assertFalse(seen[index]);
+					seen[index] = true;
+					if (index == failingImageSet) {
+						assertNull(result.getResult());
+						assertTrue(result.getError() instanceof CellProfilerException);
+					} else {
+						assertNull(result.getError());
+						assertEquals(index+1, result.getResult().getNumberOfRows("Nuclei"));
+					}
+				}
+				for (boolean s:seen) assertTrue(s);
+			}
+		});
+		final Future<Object> server = mock.runOnServer(new RunWithSockets() {
+			
+			@Override
+			public void run(Socket socket) {
+				for (int i=0; i<nImageSets; i++) {
+					ZMsg msg = ZMsg.recvMsg(socket);
+					ZFrame client = msg.unwrap();
+					assertEquals("run-request-1", AbstractReply.popString(msg));
+					ZMsg msgOut = new ZMsg();
+					if (i == failingImageSet) {
+						msgOut.add("cellprofiler-exception-1");
+						msgOut.add("Something went wrong");
+					} else {
+						msgOut.add("run-reply-1");
+						msgOut.add(makeMeasurementMetadata(i+1).toString());
+						msgOut.add(makeMeasurementData(i+1, i+1));
+					}
+					msgOut.wrap(client);
+					msgOut.send(socket);
+				}
+			}
+		});
+		runMockPair(mock, client, server);
+	}
+
+	@Test
+	public void testEncoding() {
+		/*
+		 * Image sets are encoded as the bridge would encode them
+		 */
+		MockClientServerPair mock = new MockClientServerPair(new BridgeConfig.Builder().setFloat32(true).build());
+		assertNull(mock.error);
+		loadPipeline(mock, PIPELINE, CHANNELS);
+		final Future<Object> client = mock.runOnClient(new RunWithBridge() {
+
+			@Override
+			public void run(IKnimeBridge bridge) {
+				final BridgeExecutor.Result result =
+						BridgeExecutor.run((KnimeBridgeImpl)bridge, 0, makeImageSet(16, 8, CHANNELS));
+				assertNull(result.getError());
+				assertEquals(1, result.getResult().getNumberOfRows("Nuclei"));
+			}
+		});
+		runMockPair(mock, client, answerFloat32Run(mock, 16 * 8));
+	}
+}
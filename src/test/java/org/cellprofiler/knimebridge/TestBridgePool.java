@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge;
+
+import static org.cellprofiler.knimebridge.BridgeTestSupport.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import net.imagej.ImgPlus;
+
+import org.cellprofiler.knimebridge.MockClientServerPair.RunWithBridge;
+import org.cellprofiler.knimebridge.MockClientServerPair.RunWithSockets;
+import org.cellprofiler.knimebridge.message.AbstractReply;
+import org.junit.Assert;
+import org.junit.Test;
+import org.zeromq.ZFrame;
+import org.zeromq.ZMQ.Socket;
+import org.zeromq.ZMsg;
+
+public class TestBridgePool {
+	/**
+	 * Load the pipeline into each mock's bridge
+	 *
+	 * @return the bridges in the order of the mocks
+	 */
+	private static List<IKnimeBridge> loadPipelines(MockClientServerPair [] mocks) {
+		final List<IKnimeBridge> bridges = new ArrayList<IKnimeBridge>();
+		for (MockClientServerPair mock:mocks) {
+			assertNull(mock.error);
+			Future<Object> client = mock.runOnClient(new RunWithBridge() {
+				
+				@Override
+				public void run(IKnimeBridge bridge) {
+					try {
+						bridge.loadPipeline(PIPELINE);
+					} catch (Exception e) {
+						e.printStackTrace();
+						Assert.fail();
+					}
+					bridges.add(bridge);
+				}
+			});
+			Future<Object> server = handlePipelineReq(mock, PIPELINE, CHANNELS);
+			runMockPair(mock, client, server, false);
+		}
+		return bridges;
+	}
+
+	/**
+	 * Answer a run request after a delay
+	 *
+	 * @param mock the worker's mock
+	 * @param delay the delay in milliseconds
+	 * @param nNuclei the number of nuclei in the reply
+	 * @param cancelled true if the client cancels the request before the reply
+	 */
+	private static Future<Object> answerRun(MockClientServerPair mock,
+			final long delay, final int nNuclei, final boolean cancelled) {
+		return mock.runOnServer(new RunWithSockets() {
+			
+			@Override
+			public void run(Socket socket) {
+				ZMsg msg = ZMsg.recvMsg(socket);
+				ZFrame client = msg.unwrap();
+				assertEquals("run-request-1", AbstractReply.popString(msg));
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					Assert.fail();
+				}
+				sendRunReply(socket, client, 1, nNuclei);
+				if (cancelled) {
+					msg = ZMsg.recvMsg(socket);
+					client = msg.unwrap();
+					assertEquals("cancel-request-1", AbstractReply.popString(msg));
+					ZMsg msgOut = new ZMsg();
+					msgOut.add("cancel-reply-1");
+					msgOut.wrap(client);
+					msgOut.send(socket);
+				}
+			}
+		});
+	}
+
+	private static BridgePool makeHedgingPool(List<IKnimeBridge> bridges) {
+		final BridgePool pool = new BridgePool(bridges);
+		pool.setHedgePercentile(95);
+		for (int i=0; i<BridgePool.MIN_LATENCY_SAMPLES; i++) pool.recordLatency(10000000L);
+		assertEquals(10000000L, pool.getLatencyPercentile(95));
+		return pool;
+	}
+
+	private static void finish(BridgePool pool, List<Future<Object>> servers, MockClientServerPair [] mocks) {
+		for (Future<Object> server:servers) {
+			try {
+				server.get();
+			} catch (Exception e) {
+				e.printStackTrace();
+				Assert.fail();
+			}
+		}
+		pool.close();
+		for (MockClientServerPair mock:mocks) mock.stop();
+	}
+
+	@Test
+	public void testBridgePoolHedging() {
+		final MockClientServerPair [] mocks = { new MockClientServerPair(), new MockClientServerPair() };
+		final List<IKnimeBridge> bridges = loadPipelines(mocks);
+		/*
+		 * The pool asks the slow worker to cancel once the prompt one replies
+		 */
+		final List<Future<Object>> servers = new ArrayList<Future<Object>>();
+		servers.add(answerRun(mocks[0], 500, 1, true));
+		servers.add(answerRun(mocks[1], 0, 2, false));
+		final BridgePool pool = makeHedgingPool(bridges);
+		final Map<String, ImgPlus<?>> map = makeImageSet(16, 16, CHANNELS);
+		try {
+			final long start = System.currentTimeMillis();
+			final IRunResult result = pool.run(map);
+			assertTrue(System.currentTimeMillis() - start < 500);
+			/*
+			 * The second, prompt worker's reply wins
+			 */
+			assertEquals(2, result.getNumberOfRows("Nuclei"));
+			assertEquals(1, pool.getHedgedCount());
+		} catch (Exception e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+		finish(pool, servers, mocks);
+	}
+
+	@Test
+	public void testBridgePoolHedgeAfterTimeout() {
+		final MockClientServerPair [] mocks = { new MockClientServerPair(), new MockClientServerPair() };
+		final List<IKnimeBridge> bridges = loadPipelines(mocks);
+		/*
+		 * The first run times out before the hedged run replies.
+		 * The timeout does not fail the image set.
+		 */
+		bridges.get(0).setRequestTimeout(300);
+		final List<Future<Object>> servers = new ArrayList<Future<Object>>();
+		servers.add(answerRun(mocks[0], 500, 1, true));
+		servers.add(answerRun(mocks[1], 800, 2, false));
+		final BridgePool pool = makeHedgingPool(bridges);
+		final Map<String, ImgPlus<?>> map = makeImageSet(16, 16, CHANNELS);
+		try {
+			final IRunResult result = pool.run(map);
+			assertEquals(2, result.getNumberOfRows("Nuclei"));
+			assertEquals(1, pool.getHedgedCount());
+		} catch (Exception e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+		finish(pool, servers, mocks);
+	}
+}
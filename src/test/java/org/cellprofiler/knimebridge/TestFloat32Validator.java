@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge;
+
+import static org.cellprofiler.knimebridge.BridgeTestSupport.*;
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+
+import org.cellprofiler.knimebridge.MockClientServerPair.RunWithBridge;
+import org.cellprofiler.knimebridge.MockClientServerPair.RunWithSockets;
+import org.cellprofiler.knimebridge.message.AbstractReply;
+import org.junit.Assert;
+import org.junit.Test;
+import org.zeromq.ZFrame;
+import org.zeromq.ZMQ.Socket;
+import org.zeromq.ZMsg;
+
+public class TestFloat32Validator {
+	@Test
+	public void testFloat32Validator() throws Exception {
+		assertEquals(0, Float32Validator.relativeError(Double.NaN, Double.NaN), 0);
+		assertEquals(Double.POSITIVE_INFINITY, Float32Validator.relativeError(1, Double.NaN), 0);
+		assertEquals(0.5, Float32Validator.relativeError(-2, -1), 0);
+		final MockClientServerPair mock = new MockClientServerPair();
+		try {
+			assertNull(mock.error);
+			final String pipeline = "Not a pipeline";
+			final String [] channels = { "Foo", "Bar" };
+			final AxisType [] axes = new AxisType[] { Axes.X, Axes.Y };
+			final Map<String, ImgPlus<?>> map = new Hashtable<String, ImgPlus<?>>();
+			map.put("Foo", makeImgPlus(new long[] {33, 20}, "Foo", axes));
+			map.put("Bar", makeImgPlus(new long[] {33, 20}, "Bar", axes));
+			Future<Object> client = mock.runOnClient(new RunWithBridge() {
+				
+				@Override
+				public void run(IKnimeBridge bridge) {
+					try {
+						bridge.loadPipeline(pipeline);
+						final Float32Validator.Report report = new Float32Validator(bridge).validate(map);
+						assertTrue(report.getMismatches().isEmpty());
+						assertTrue(report.getRowMismatches().isEmpty());
+						assertEquals(1, report.getFeatures().size());
+						final IFeatureDescription feature = report.getFeatures().get(0);
+						assertEquals("Location_CenterX", feature.getName());
+						assertEquals(0.001 / 10.001, report.getRelativeError(feature), 1E-12);
+						assertEquals(report.getRelativeError(feature), report.getMaxRelativeError(), 0);
+						assertTrue(report.isAcceptable(1E-3));
+						assertFalse(report.isAcceptable(1E-5));
+					} catch (Exception e) {
+						e.printStackTrace();
+						Assert.fail();
+					}
+				}
+			});
+			handlePipelineReq(mock, pipeline, channels).get();
+			Future<Object> server = mock.runOnServer(new RunWithSockets() {
+				
+				@Override
+				public void run(Socket socket) {
+					/*
+					 * The first request sends doubles, the second floats.
+					 */
+					for (int i=0; i<2; i++) {
+						ZMsg msg = ZMsg.recvMsg(socket);
+						ZFrame client = msg.unwrap();
+						assertEquals("run-request-1", AbstractReply.popString(msg));
+						assertEquals(pipeline, AbstractReply.popString(msg));
+						final JsonArray header = popArray(msg);
+						assertEquals(2, header.size());
+						for (int j=0; j<header.size(); j++) {
+							final JsonArray slot = header.getJsonArray(j);
+							final byte [] frame = msg.pop().getData();
+							if (i == 0) {
+								assertEquals(2, slot.size());
+								assertEquals(33 * 20 * 8, frame.length);
+							} else {
+								assertEquals("float32", slot.getJsonObject(2).getString("encoding"));
+								assertEquals(33 * 20 * 4, frame.length);
+							}
+						}
+						assertTrue(msg.isEmpty());
+						/*
+						 * Nuclei found a little to the right with floats
+						 */
+						final byte [] fileName = "foo.tif".getBytes();
+						final ByteBuffer data = ByteBuffer.allocate(2 * 8 + 3 * 4 + fileName.length)
+								.order(ByteOrder.LITTLE_ENDIAN);
+						data.putDouble((i == 0)? 10.0 : 10.001).putDouble(20.0);
+						data.putInt(1).putInt(1).putInt(2);
+						data.put(fileName);
+						ZMsg msgOut = new ZMsg();
+						msgOut.add("run-reply-1");
+						msgOut.add(Json.createArrayBuilder()
+							.add(Json.createArrayBuilder()
+								.add(Json.createArrayBuilder().add("Nucleus").add(Json.createArrayBuilder()
+									.add(Json.createArrayBuilder().add("Location_CenterX").add(2)))))
+							.add(Json.createArrayBuilder())
+							.add(Json.createArrayBuilder()
+								.add(Json.createArrayBuilder().add(KBConstants.IMAGE).add(Json.createArrayBuilder()
+									.add(Json.createArrayBuilder().add(KBConstants.IMAGE_NUMBER).add(1))))
+								.add(Json.createArrayBuilder().add("Nucleus").add(Json.createArrayBuilder()
+									.add(Json.createArrayBuilder().add(KBConstants.OBJECT_NUMBER).add(2)))))
+							.add(Json.createArrayBuilder()
+								.add(Json.createArrayBuilder().add(KBConstants.IMAGE).add(Json.createArrayBuilder()
+									.add(Json.createArrayBuilder().add("FileName_DNA").add(fileName.length)))))
+							.build().toString());
+						msgOut.add(data.array());
+						msgOut.wrap(client);
+						msgOut.send(socket);
+					}
+				}
+			});
+			runMockPair(mock, client, server, false);
+		} finally {
+			mock.stop();
+		}
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge;
+
+import static org.cellprofiler.knimebridge.BridgeTestSupport.*;
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import javax.json.Json;
+
+import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
+import net.imglib2.type.numeric.real.DoubleType;
+
+import org.cellprofiler.knimebridge.MockClientServerPair.RunWithBridge;
+import org.cellprofiler.knimebridge.MockClientServerPair.RunWithSockets;
+import org.cellprofiler.knimebridge.message.AbstractReply;
+import org.cellprofiler.knimebridge.message.FrameCodec;
+import org.junit.Assert;
+import org.junit.Test;
+import org.zeromq.ZFrame;
+import org.zeromq.ZMQ.Socket;
+import org.zeromq.ZMsg;
+
+public class TestFrameCodec {
+	@Test
+	public void testFrameCodec() throws Exception {
+		final double [] values = new double[4096];
+		for (int i=0; i<values.length; i++) values[i] = (i % 64) * 0.5;
+		final ByteBuffer buffer = ByteBuffer.allocate(values.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.asDoubleBuffer().put(values);
+		final byte [] data = buffer.array();
+		final FrameCodec codec = new FrameCodec();
+		final byte [] compressed = codec.compress(data, 8);
+		assertNotNull(compressed);
+		assertTrue(compressed.length < data.length);
+		assertArrayEquals(data, FrameCodec.decompress(FrameCodec.describe(data.length, 8), compressed));
+		assertEquals(1, codec.getCompressedCount());
+		assertTrue(codec.getCompressionRate() > 0);
+		/*
+		 * Small frames are sent as they are
+		 */
+		assertNull(codec.compress(new byte [100], 8));
+		/*
+		 * Compression stops paying on a link faster than the compressor,
+		 * except to probe now and then.
+		 */
+		codec.recordTransfer(1L << 40, 1000000000L);
+		assertFalse(codec.pays());
+		int nCompressed = 0;
+		for (int i=0; i<FrameCodec.PROBE_INTERVAL; i++) {
+			if (codec.compress(data, 8) != null) nCompressed++;
+		}
+		assertEquals(1, nCompressed);
+		/*
+		 * ... and pays again on a slow one, once the estimate decays
+		 */
+		for (int i=0; (i < 1000) && ! codec.pays(); i++) {
+			codec.recordTransfer(data.length, 1000000000L);
+		}
+		assertTrue(codec.pays());
+		assertNotNull(codec.compress(data, 8));
+		try {
+			FrameCodec.decompress(FrameCodec.describe(data.length + 1, 8), compressed);
+			fail();
+		} catch (ProtocolException e) {
+		}
+	}
+
+	/**
+	 * Answer requests after a delay as a slow worker would,
+	 * reporting the delay as the compute time.
+	 */
+	private static Future<Object> answerSlowly(MockClientServerPair mock, final String msgType,
+			final String [] channels, final long delay) {
+		return mock.runOnServer(new RunWithSockets() {
+
+			@Override
+			public void run(Socket socket) {
+				final ZMsg msg = ZMsg.recvMsg(socket);
+				final long start = System.nanoTime();
+				final ZFrame client = msg.unwrap();
+				assertEquals(msgType, AbstractReply.popString(msg));
+				msg.destroy();
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					Assert.fail();
+				}
+				final ZMsg msgOut;
+				if (msgType.equals("pipeline-info-req-1")) {
+					msgOut = makePipelineInfoReply(channels);
+				} else {
+					msgOut = new ZMsg();
+					msgOut.add("run-reply-1");
+					msgOut.add(makeMeasurementMetadata(1).toString());
+					msgOut.add(makeMeasurementData(1, 1));
+				}
+				msgOut.add(Json.createObjectBuilder()
+						.add("compute-time", (System.nanoTime() - start) / 1E6).build().toString());
+				msgOut.wrap(client);
+				msgOut.send(socket);
+			}
+		});
+	}
+
+	@Test
+	public void testSlowWorkerOnFastLink() throws Exception {
+		/*
+		 * The worker takes far longer to run the pipeline than the
+		 * request takes to send, so compression stops paying once
+		 * the worker's compute time is left out of the link's speed.
+		 */
+		final WorkerCapabilities capabilities = new WorkerCapabilities.Builder()
+				.setCodecs(Collections.singleton(FrameCodec.SHUFFLE_DEFLATE))
+				.setComputeTime(true).build();
+		final MockClientServerPair mock = new MockClientServerPair(
+				new BridgeConfig.Builder().setCompression(true).build(), capabilities);
+		try {
+			assertNull(mock.error);
+			/*
+			 * Pixels of an 8-bit camera, which compress well
+			 */
+			final Map<String, ImgPlus<?>> map = makeImageSet(512, 512, CHANNELS);
+			for (ImgPlus<?> imgPlus:map.values()) {
+				@SuppressWarnings("unchecked")
+				final Cursor<DoubleType> cursor = ((ImgPlus<DoubleType>)imgPlus).cursor();
+				while (cursor.hasNext()) {
+					final DoubleType pixel = cursor.next();
+					pixel.set(Math.floor(pixel.get() * 256));
+				}
+			}
+			final FrameCodec [] codec = new FrameCodec[1];
+			final long [] compressed = new long[1];
+			final int nRuns = 4;
+			final Future<Object> client = mock.runOnClient(new RunWithBridge() {
+
+				@Override
+				public void run(IKnimeBridge bridge) {
+					try {
+						codec[0] = ((KnimeBridgeImpl)bridge).getCodec();
+						bridge.loadPipeline(PIPELINE);
+						for (int i=0; i<nRuns; i++) {
+							bridge.run(map);
+							if (i == 0) compressed[0] = codec[0].getCompressedCount();
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+						Assert.fail();
+					}
+				}
+			});
+			answerSlowly(mock, "pipeline-info-req-1", CHANNELS, 0).get();
+			for (int i=0; i<nRuns; i++) answerSlowly(mock, "run-request-1", CHANNELS, 300).get();
+			client.get();
+			/*
+			 * The first run compresses, having no estimates yet. The
+			 * link's speed then shows that compression doesn't pay.
+			 */
+			assertTrue(compressed[0] > 0);
+			assertFalse(codec[0].pays());
+			assertEquals(nRuns * CHANNELS.length, codec[0].getFrameCount());
+			assertEquals(compressed[0], codec[0].getCompressedCount());
+		} finally {
+			mock.stop();
+		}
+	}
+}
@@ -6,6 +6,7 @@
  */
 package org.cellprofiler.knimebridge;
 
+import static org.cellprofiler.knimebridge.BridgeTestSupport.*;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
@@ -18,7 +19,6 @@ import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
@@ -31,9 +31,6 @@ import javax.json.JsonWriter;
 import net.imagej.ImgPlus;
 import net.imagej.axis.Axes;
 import net.imagej.axis.AxisType;
-import net.imglib2.Cursor;
-import net.imglib2.img.Img;
-import net.imglib2.img.planar.PlanarImgFactory;
 import net.imglib2.type.numeric.real.DoubleType;
 
 import org.cellprofiler.knimebridge.MockClientServerPair.RunWithBridge;
@@ -85,52 +82,6 @@ public class TestKnimeBridge {
 		runMockPair(mock, client, server);
 	}
 
-	/**
-	 * @param mock
-	 * @param pipeline
-	 * @param channels
-	 */
-	private Future<Object> handlePipelineReq(MockClientServerPair mock,
-			final String pipeline, final String[] channels) {
-		return mock.runOnServer(new RunWithSockets() {
-
-			@Override
-			public void run(Socket socket) {
-				ZMsg msg = ZMsg.recvMsg(socket);
-				ZFrame client = msg.unwrap();
-				String messageType = AbstractReply.popString(msg);
-				assertEquals("pipeline-info-req-1", messageType);
-				String recievedPipeline = AbstractReply.popString(msg);
-				assertEquals(pipeline, recievedPipeline);
-				ZMsg msgOut = new ZMsg();
-				msgOut.add("pipeline-info-response-1");
-				StringWriter sw = new StringWriter();
-				JsonWriter writer = Json.createWriter(sw);
-				writer.writeArray(Json.createArrayBuilder()
-						.add(Json.createArrayBuilder().add(channels[0]).add(channels[1]).build())
-						.add(Json.createArrayBuilder()
-								.add("java.lang.Integer")
-								.add("java.lang.Float")
-								.add("java.lang.Double")
-								.add("java.lang.String").build())
-						.add(Json.createObjectBuilder()
-								.add(KBConstants.IMAGE, Json.createArrayBuilder()
-										.add(Json.createArrayBuilder().add("ImageNumber").add(0).build())
-										.add(Json.createArrayBuilder().add("FileName_DNA").add(3).build())
-										.build())
-								.add("Nucleus", Json.createArrayBuilder()
-										.add(Json.createArrayBuilder().add("ObjectNumber").add(0).build())
-										.add(Json.createArrayBuilder().add("Location_CenterX").add(2).build())
-										.build())
-								.build())
-						.build());
-				writer.close();
-				msgOut.add(sw.toString());
-				msgOut.wrap(client);
-				msgOut.send(socket);
-			}});
-	}
-
 	@Test
 	public void testGetInputChannels() {
 		MockClientServerPair mock = new MockClientServerPair();
@@ -254,28 +205,6 @@ public class TestKnimeBridge {
 
 	}
 
-	/**
-	 * Run a mock client-server pair.
-	 * 
-	 * @param mock the mock framework.
-	 * @param client the client end of the mock
-	 * @param server the server end of the mock.
-	 */
-	protected void runMockPair(MockClientServerPair mock,
-			Future<Object> client, Future<Object> server) {
-		try {
-			server.get();
-			client.get();
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		Assert.fail();
-		} catch (ExecutionException e) {
-			e.printStackTrace();
-		Assert.fail();
-		}
-		mock.stop();
-	}
-	
 	@Test
 	public void testCleanPipelineS() {
 		MockClientServerPair mock = new MockClientServerPair();
@@ -583,32 +512,6 @@ public class TestKnimeBridge {
 			}});
 	}
 
-	private ImgPlus<DoubleType> makeImgPlus(long [] dims, String name, AxisType [] axes) {
-		// use a random number generator
-		final Random rnd = new Random( 1241234 );
-		
-		Img<DoubleType>img = new PlanarImgFactory<DoubleType>().create(dims, new DoubleType());
-		
-
-		// create reference array
-		final double[] reference = new double[ ( int ) img.size() ];
-
-		// iterate over image and reference array and fill with data
-		final Cursor< DoubleType > cursor = img.cursor();
-		int i = 0;
-
-		while ( cursor.hasNext() )
-		{
-			cursor.fwd();
-
-			final double value = rnd.nextDouble();
-			reference[ i++ ] = value;
-			cursor.get().set( value );
-		}
-
-		return new ImgPlus<DoubleType>(img, name, axes);
-	}
-
 	@Test
 	public void testRun() {
 		MockClientServerPair mock = new MockClientServerPair();
@@ -1102,7 +1005,7 @@ public class TestKnimeBridge {
 		});
 		runMockPair(mock, client, server);
 	}
-
+	
 	/**
 	 * @param pipelineOut
 	 * @param bridge
@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge;
+
+import static org.cellprofiler.knimebridge.BridgeTestSupport.*;
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.cellprofiler.knimebridge.message.PackedPixels;
+import org.junit.Test;
+
+public class TestPackedPixels {
+	@Test
+	public void testPackedPixels() throws Exception {
+		final Random rnd = new Random(4321);
+		for (int bits:new int [] { 1, 5, 8, 12, 14, 16, 31, 32 }) {
+			for (int count:new int [] { 0, 1, 7, 100 }) {
+				final double [] chunk = new double[count];
+				for (int i=0; i<count; i++) {
+					chunk[i] = (rnd.nextLong() & ((1L << bits) - 1)) / (double)(1L << bits);
+				}
+				final byte [] packed = PackedPixels.pack(chunk, bits);
+				assertEquals((count * bits + 7) / 8, packed.length);
+				assertArrayEquals(chunk, PackedPixels.unpack(packed, bits, count), 0);
+			}
+		}
+		/*
+		 * Values that don't fit
+		 */
+		assertNull(PackedPixels.pack(new double [] { 0, 4096.0 / 4096 }, 12));
+		assertNull(PackedPixels.pack(new double [] { -1.0 / 4096 }, 12));
+		assertNull(PackedPixels.pack(new double [] { 0.5 / 4096 }, 12));
+		assertNull(PackedPixels.pack(new double [] { Double.NaN }, 12));
+		try {
+			PackedPixels.unpack(new byte [2], 12, 2);
+			fail();
+		} catch (ProtocolException e) {
+		}
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestPipelineCleaner {
+	static final String PIPELINE =
+			"CellProfiler Pipeline: http://www.cellprofiler.org\n" +
+			"Version:3\n" +
+			"DateRevision:20140723174500\n" +
+			"GitHash:6c2d896\n" +
+			"ModuleCount:5\n" +
+			"HasImagePlaneDetails:False\n" +
+			"\n" +
+			"Images:[module_num:1|svn_version:\\'Unknown\\'|variable_revision_number:2|show_window:False|notes:\\x5B\\x5D|batch_state:array(\\x5B\\x5D, dtype=uint8)|enabled:True]\n" +
+			"    :\n" +
+			"    Filter images?:Images only\n" +
+			"\n" +
+			"IdentifyPrimaryObjects:[module_num:2|svn_version:\\'Unknown\\'|variable_revision_number:10|show_window:False|notes:\\x5B\\x5D|batch_state:array(\\x5B\\x5D, dtype=uint8)|enabled:True]\n" +
+			"    Select the input image:DNA\n" +
+			"    Name the primary objects to be identified:Nuclei\n" +
+			"\n" +
+			"SaveImages:[module_num:3|svn_version:\\'Unknown\\'|variable_revision_number:11|show_window:False|notes:\\x5B\\x5D|batch_state:array(\\x5B\\x5D, dtype=uint8)|enabled:True]\n" +
+			"    Select the type of image to save:Image\n" +
+			"    Select the image to save:DNA\n" +
+			"\n" +
+			"MeasureObjectSizeShape:[module_num:4|svn_version:\\'Unknown\\'|variable_revision_number:1|show_window:False|notes:\\x5B\\x5D|batch_state:array(\\x5B\\x5D, dtype=uint8)|enabled:True]\n" +
+			"    Select objects to measure:Nuclei\n" +
+			"\n" +
+			"ExportToSpreadsheet:[module_num:5|svn_version:\\'Unknown\\'|variable_revision_number:11|show_window:False|notes:\\x5B\\x5D|batch_state:array(\\x5B\\x5D, dtype=uint8)|enabled:True]\n" +
+			"    Select the column delimiter:Comma (\",\")\n";
+	/*
+	 * A synthetic fixture, written by hand rather than captured from a
+	 * worker: PIPELINE without its output modules, laid out the way
+	 * CellProfiler saves a pipeline, with the modules renumbered and the
+	 * header regenerated. It checks that the local cleaner removes the
+	 * same modules and keeps the same settings; it says nothing about
+	 * what a particular CellProfiler version actually writes.
+	 */
+	static final String SYNTHETIC_CLEANED =
+			"CellProfiler Pipeline: http://www.cellprofiler.org\n" +
+			"Version:3\n" +
+			"DateRevision:20150205101530\n" +
+			"GitHash:\n" +
+			"ModuleCount:3\n" +
+			"HasImagePlaneDetails:False\n" +
+			"\n" +
+			"Images:[module_num:1|svn_version:\\'Unknown\\'|variable_revision_number:2|show_window:False|notes:\\x5B\\x5D|batch_state:array(\\x5B\\x5D, dtype=uint8)|enabled:True]\n" +
+			"    :\n" +
+			"    Filter images?:Images only\n" +
+			"\n" +
+			"IdentifyPrimaryObjects:[module_num:2|svn_version:\\'Unknown\\'|variable_revision_number:10|show_window:False|notes:\\x5B\\x5D|batch_state:array(\\x5B\\x5D, dtype=uint8)|enabled:True]\n" +
+			"    Select the input image:DNA\n" +
+			"    Name the primary objects to be identified:Nuclei\n" +
+			"\n" +
+			"MeasureObjectSizeShape:[module_num:3|svn_version:\\'Unknown\\'|variable_revision_number:1|show_window:False|notes:\\x5B\\x5D|batch_state:array(\\x5B\\x5D, dtype=uint8)|enabled:True]\n" +
+			"    Select objects to measure:Nuclei\n" +
+			"\n";
+
+	@Test
+	public void testParse() throws PipelineException {
+		final PipelineText pipeline = PipelineText.parse(PIPELINE);
+		assertEquals(Arrays.asList(
+				"Images", "IdentifyPrimaryObjects", KBConstants.SAVE_IMAGES,
+				"MeasureObjectSizeShape", KBConstants.EXPORT_TO_SPREADSHEET),
+				pipeline.getModuleNames());
+		assertEquals(Arrays.asList(
+				"    Select the input image:DNA",
+				"    Name the primary objects to be identified:Nuclei"),
+				pipeline.getModules().get(1).getSettings());
+		assertEquals(PIPELINE, pipeline.toString());
+	}
+
+	@Test
+	public void testRoundTripCRLF() throws PipelineException {
+		final String crlf = PIPELINE.replace("\n", "\r\n");
+		assertEquals(crlf, PipelineText.parse(crlf).toString());
+		assertEquals(crlf, PipelineCleaner.clean(crlf, KBConstants.REMOVE_EXPORT_TO_DATABASE));
+	}
+
+	@Test
+	public void testNotAPipeline() {
+		try {
+			PipelineCleaner.clean("Not a pipeline");
+			fail();
+		} catch (PipelineException e) {
+		}
+	}
+
+	@Test
+	public void testCleanMatchesSynthetic() throws PipelineException {
+		final PipelineText local = PipelineText.parse(PipelineCleaner.clean(PIPELINE));
+		final PipelineText expected = PipelineText.parse(SYNTHETIC_CLEANED);
+		assertEquals(expected.getModuleNames(), local.getModuleNames());
+		for (int i=0; i<expected.getModules().size(); i++) {
+			assertEquals(expected.getModules().get(i).getSettings(),
+					local.getModules().get(i).getSettings());
+		}
+		final String cleaned = PipelineCleaner.clean(PIPELINE);
+		assertTrue(cleaned.contains("ModuleCount:3\n"));
+		assertTrue(cleaned.contains("MeasureObjectSizeShape:[module_num:3|"));
+	}
+
+	@Test
+	public void testCleanFlags() throws PipelineException {
+		for (int flags=1; flags<8; flags++) {
+			final List<String> removed = PipelineCleaner.getModuleNames(flags);
+			final List<String> names = PipelineText.parse(
+					PipelineCleaner.clean(PIPELINE, flags)).getModuleNames();
+			assertTrue(names.contains("IdentifyPrimaryObjects"));
+			assertEquals(! removed.contains(KBConstants.SAVE_IMAGES),
+					names.contains(KBConstants.SAVE_IMAGES));
+			assertEquals(! removed.contains(KBConstants.EXPORT_TO_SPREADSHEET),
+					names.contains(KBConstants.EXPORT_TO_SPREADSHEET));
+		}
+	}
+
+	@Test
+	public void testCleanDisconnectedBridge() throws Exception {
+		final IKnimeBridge bridge = new KnimeBridgeFactory().newKnimeBridge();
+		final String cleaned = bridge.cleanPipeline(PIPELINE, Arrays.asList(KBConstants.SAVE_IMAGES));
+		assertEquals(Arrays.asList(
+				"Images", "IdentifyPrimaryObjects",
+				"MeasureObjectSizeShape", KBConstants.EXPORT_TO_SPREADSHEET),
+				PipelineText.parse(cleaned).getModuleNames());
+		bridge.disconnect();
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.Future;
+
+import javax.json.Json;
+import javax.json.JsonWriter;
+
+import org.cellprofiler.knimebridge.MockClientServerPair.RunWithBridge;
+import org.cellprofiler.knimebridge.MockClientServerPair.RunWithSockets;
+import org.cellprofiler.knimebridge.PipelineRegistry.RegisteredPipeline;
+import org.cellprofiler.knimebridge.message.AbstractReply;
+import org.junit.Test;
+import org.zeromq.ZFrame;
+import org.zeromq.ZMQ.Socket;
+import org.zeromq.ZMsg;
+
+public class TestPipelineRegistry {
+	private static File writePipeline(File file, String text) throws IOException {
+		final FileOutputStream stream = new FileOutputStream(file);
+		try {
+			stream.write(text.getBytes("UTF-8"));
+		} finally {
+			stream.close();
+		}
+		return file;
+	}
+
+	@Test
+	public void testRegister() throws Exception {
+		final File lf = writePipeline(
+				File.createTempFile("pipeline", ".cppipe"), TestPipelineCleaner.PIPELINE);
+		final File crlf = writePipeline(
+				File.createTempFile("pipeline", ".cppipe"),
+				"\uFEFF" + TestPipelineCleaner.PIPELINE.replace("\n", "\r\n"));
+		final PipelineRegistry registry = new PipelineRegistry(0);
+		try {
+			final RegisteredPipeline p1 = registry.register(lf);
+			final RegisteredPipeline p2 = registry.register(crlf);
+			assertSame(p1, registry.register(lf));
+			assertEquals(TestPipelineCleaner.PIPELINE, p1.getText());
+			assertEquals(p1.getDigest(), p2.getDigest());
+			assertEquals(40, p1.getDigest().length());
+			assertEquals(PipelineCleaner.clean(TestPipelineCleaner.PIPELINE),
+					p1.getCleaned(KBConstants.REMOVE_ALL));
+			assertSame(p1.getCleaned(KBConstants.REMOVE_ALL), p1.getCleaned(KBConstants.REMOVE_ALL));
+		} finally {
+			registry.close();
+			lf.delete();
+			crlf.delete();
+		}
+	}
+
+	@Test
+	public void testReloadOnChange() throws Exception {
+		final File file = writePipeline(
+				File.createTempFile("pipeline", ".cppipe"), TestPipelineCleaner.PIPELINE);
+		final PipelineRegistry registry = new PipelineRegistry(0);
+		final MockClientServerPair mock = new MockClientServerPair();
+		assertNull(mock.error);
+		try {
+			final RegisteredPipeline pipeline = registry.register(file);
+			final IKnimeBridge [] bridge = new IKnimeBridge[1];
+			mock.runOnClient(new RunWithBridge() {
+				@Override
+				public void run(IKnimeBridge b) {
+					bridge[0] = b;
+				}
+			}).get();
+			Future<Object> server = handlePipelineInfoReq(
+					mock, pipeline.getCleaned(KBConstants.REMOVE_ALL));
+			final String digest = registry.preload(
+					bridge[0], pipeline, KBConstants.REMOVE_ALL).get();
+			server.get();
+			assertEquals(pipeline.getDigest(), digest);
+			assertEquals(digest, registry.getLoadedDigest(bridge[0]));
+			assertSame(pipeline, registry.getLoadedPipeline(bridge[0]));
+			/*
+			 * Nothing changed - no reload
+			 */
+			registry.checkForChanges();
+			/*
+			 * Edit the file: the cleaned variant of the new text should be loaded.
+			 */
+			final String edited = TestPipelineCleaner.PIPELINE.replace("Nuclei", "Cells");
+			writePipeline(file, edited);
+			file.setLastModified(file.lastModified() + 2000);
+			server = handlePipelineInfoReq(mock, PipelineCleaner.clean(edited));
+			registry.checkForChanges();
+			server.get();
+			assertEquals(PipelineText.digest(edited), pipeline.getDigest());
+			for (int i=0; i<100; i++) {
+				if (pipeline.getDigest().equals(registry.getLoadedDigest(bridge[0]))) break;
+				Thread.sleep(10);
+			}
+			assertEquals(pipeline.getDigest(), registry.getLoadedDigest(bridge[0]));
+			/*
+			 * Load another pipeline directly: a later edit leaves it loaded.
+			 */
+			server = handlePipelineInfoReq(mock, "Not a pipeline");
+			bridge[0].loadPipeline("Not a pipeline");
+			server.get();
+			writePipeline(file, TestPipelineCleaner.PIPELINE);
+			file.setLastModified(file.lastModified() + 4000);
+			registry.checkForChanges();
+			assertEquals(PipelineText.digest(TestPipelineCleaner.PIPELINE), pipeline.getDigest());
+			assertNull(registry.getLoadedDigest(bridge[0]));
+			assertNull(registry.getLoadedPipeline(bridge[0]));
+		} finally {
+			registry.close();
+			mock.stop();
+			file.delete();
+		}
+	}
+
+	private Future<Object> handlePipelineInfoReq(
+			MockClientServerPair mock, final String expectedPipeline) {
+		return mock.runOnServer(new RunWithSockets() {
+			@Override
+			public void run(Socket socket) {
+				ZMsg msg = ZMsg.recvMsg(socket);
+				ZFrame client = msg.unwrap();
+				assertEquals("pipeline-info-req-1", AbstractReply.popString(msg));
+				assertEquals(expectedPipeline, AbstractReply.popString(msg));
+				ZMsg msgOut = new ZMsg();
+				msgOut.add("pipeline-info-reply-1");
+				StringWriter sw = new StringWriter();
+				JsonWriter writer = Json.createWriter(sw);
+				writer.writeArray(Json.createArrayBuilder()
+						.add(Json.createArrayBuilder().add("DNA").build())
+						.add(Json.createArrayBuilder().add("java.lang.Integer").build())
+						.add(Json.createObjectBuilder().build())
+						.build());
+				writer.close();
+				msgOut.add(sw.toString());
+				msgOut.wrap(client);
+				msgOut.send(socket);
+			}
+		});
+	}
+}
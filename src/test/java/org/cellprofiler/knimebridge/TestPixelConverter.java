@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.ImgUtil;
+
+import org.cellprofiler.knimebridge.message.PixelConverter;
+import org.junit.Test;
+
+public class TestPixelConverter {
+	private static final long [][] DIMENSIONS = {
+		{ 17 }, { 9, 4 }, { 7, 6, 3 }, { 5, 4, 3, 2 }, { 600, 5, 2 }
+	};
+
+	@Test
+	public void testUnsignedByte() {
+		checkAllContainers(new UnsignedByteType(), 0, 255);
+	}
+
+	@Test
+	public void testUnsignedShort() {
+		checkAllContainers(new UnsignedShortType(), 0, 65535);
+	}
+
+	@Test
+	public void testShort() {
+		checkAllContainers(new ShortType(), -32768, 32767);
+	}
+
+	@Test
+	public void testInt() {
+		checkAllContainers(new IntType(), -1000000, 1000000);
+	}
+
+	@Test
+	public void testFloat() {
+		checkAllContainers(new FloatType(), -1, 1);
+	}
+
+	@Test
+	public void testDouble() {
+		checkAllContainers(new DoubleType(), -1, 1);
+	}
+
+	@Test
+	public void testARGB() {
+		checkARGB(new ArrayImgFactory<ARGBType>());
+		checkARGB(new PlanarImgFactory<ARGBType>());
+		checkARGB(new CellImgFactory<ARGBType>(3));
+	}
+
+	@Test
+	public void testFallback() {
+		final Img<ByteType> img = new ArrayImgFactory<ByteType>().create(new long [] { 3, 4 }, new ByteType());
+		assertFalse(PixelConverter.copy(img, new double [12], new int [] { 4, 1 }));
+	}
+
+	private <T extends RealType<T> & NativeType<T>> void checkAllContainers(T type, double lo, double hi) {
+		check(new ArrayImgFactory<T>(), type, lo, hi);
+		check(new PlanarImgFactory<T>(), type, lo, hi);
+		/*
+		 * Cells that don't divide the image evenly
+		 */
+		check(new CellImgFactory<T>(3), type, lo, hi);
+	}
+
+	/**
+	 * Check that the converter splits each color pixel into red, green
+	 * and blue at the pixel's offset, scaled so that full intensity is 1.
+	 */
+	private void checkARGB(ImgFactory<ARGBType> factory) {
+		final Random rnd = new Random(1234);
+		for (long [] dims:DIMENSIONS) {
+			final Img<ARGBType> img = factory.create(dims, new ARGBType());
+			final int n = dims.length;
+			final int [] strides = new int [n];
+			strides[n-1] = 3;
+			for (int d=n-2; d>=0; d--) strides[d] = strides[d+1] * (int)dims[d+1];
+			final double [] expected = new double[3 * (int)img.size()];
+			final Cursor<ARGBType> cursor = img.localizingCursor();
+			while (cursor.hasNext()) {
+				final int value = rnd.nextInt();
+				cursor.next().set(value);
+				int offset = 0;
+				for (int d=0; d<n; d++) offset += cursor.getIntPosition(d) * strides[d];
+				expected[offset] = ARGBType.red(value) / 255.0;
+				expected[offset+1] = ARGBType.green(value) / 255.0;
+				expected[offset+2] = ARGBType.blue(value) / 255.0;
+			}
+			final double [] actual = new double[expected.length];
+			assertTrue(PixelConverter.copy(img, actual, strides));
+			assertArrayEquals(expected, actual, 1E-12);
+		}
+	}
+
+	/**
+	 * Check that the converter copies the same values to the same
+	 * places as ImgUtil.copy.
+	 */
+	private <T extends RealType<T> & NativeType<T>> void check(ImgFactory<T> factory, T type, double lo, double hi) {
+		final Random rnd = new Random(1234);
+		for (long [] dims:DIMENSIONS) {
+			final Img<T> img = factory.create(dims, type);
+			final Cursor<T> cursor = img.cursor();
+			while (cursor.hasNext()) {
+				cursor.next().setReal(lo + Math.floor(rnd.nextDouble() * (hi - lo + 1)));
+			}
+			final int n = dims.length;
+			final int [] strides = new int [n];
+			strides[n-1] = 1;
+			for (int d=n-2; d>=0; d--) strides[d] = strides[d+1] * (int)dims[d+1];
+			final double [] expected = new double[(int)img.size()];
+			ImgUtil.copy(img, expected, 0, strides);
+			final double [] actual = new double[(int)img.size()];
+			assertTrue(PixelConverter.copy(img, actual, strides));
+			assertArrayEquals(expected, actual, 0);
+			if (n > 1) checkSlices(img, dims, expected, strides);
+		}
+	}
+
+	/**
+	 * Check that the converter copies the first and last slices across
+	 * each axis to the same places as the slice's pixels in a copy of
+	 * the whole image.
+	 *
+	 * @param all the copy of the whole image
+	 * @param allStrides the strides of the copy
+	 */
+	private <T extends RealType<T> & NativeType<T>> void checkSlices(Img<T> img, long [] dims, double [] all, int [] allStrides) {
+		final int n = dims.length;
+		for (int axis=0; axis<n; axis++) {
+			for (long position:new long [] { 0, dims[axis] - 1 }) {
+				/*
+				 * The slice's strides, with the sliced axis' stride left at 0
+				 */
+				final int [] strides = new int [n];
+				int size = 1;
+				for (int d=n-1; d>=0; d--) {
+					if (d == axis) continue;
+					strides[d] = size;
+					size *= (int)dims[d];
+				}
+				final double [] expected = new double[size];
+				for (int i=0; i<all.length; i++) {
+					if ((i / allStrides[axis]) % dims[axis] != position) continue;
+					int j = 0;
+					for (int d=0; d<n; d++) j += ((i / allStrides[d]) % (int)dims[d]) * strides[d];
+					expected[j] = all[i];
+				}
+				final double [] actual = new double[size];
+				assertTrue(PixelConverter.copy(img, axis, position, actual, strides));
+				assertArrayEquals(expected, actual, 0);
+			}
+		}
+	}
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge;
+
+import static org.cellprofiler.knimebridge.BridgeTestSupport.*;
+import static org.junit.Assert.*;
+
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import net.imagej.ImgPlus;
+
+import org.cellprofiler.knimebridge.MockClientServerPair.RunWithBridge;
+import org.cellprofiler.knimebridge.MockClientServerPair.RunWithSockets;
+import org.cellprofiler.knimebridge.message.AbstractReply;
+import org.junit.Assert;
+import org.junit.Test;
+import org.zeromq.ZFrame;
+import org.zeromq.ZMQ.Socket;
+import org.zeromq.ZMsg;
+
+/**
+ * Tests of request deadlines, cancellation and reconnection
+ */
+public class TestRequestRecovery {
+	@Test
+	public void testRequestTimeoutAndCancel() {
+		MockClientServerPair mock = new MockClientServerPair();
+		assertNull(mock.error);
+		final String pipeline = "Not a pipeline";
+		final String [] channels = { "Foo", "Bar" };
+		loadPipeline(mock, pipeline, channels);
+		final Map<String, ImgPlus<?>> map = makeImageSet(16, 16, "Foo", "Bar");
+		final Future<Object> client = mock.runOnClient(new RunWithBridge() {
+			
+			@Override
+			public void run(final IKnimeBridge bridge) {
+				bridge.setRequestTimeout(200);
+				try {
+					bridge.run(map);
+					Assert.fail();
+				} catch (RequestTimeoutException e) {
+				} catch (Exception e) {
+					e.printStackTrace();
+					Assert.fail();
+				}
+				bridge.setRequestTimeout(KBConstants.NO_TIMEOUT);
+				final Thread canceller = new Thread() {
+					@Override
+					public void run() {
+						try {
+							Thread.sleep(200);
+						} catch (InterruptedException e) {
+						}
+						bridge.cancel();
+					}
+				};
+				canceller.start();
+				try {
+					bridge.run(map);
+					Assert.fail();
+				} catch (RequestCancelledException e) {
+				} catch (Exception e) {
+					e.printStackTrace();
+					Assert.fail();
+				}
+				try {
+					bridge.run(map);
+					assertEquals(1, bridge.getNumberOfRows("Nuclei"));
+				} catch (Exception e) {
+					e.printStackTrace();
+					Assert.fail();
+				}
+			}
+		});
+		final Future<Object> server = mock.runOnServer(new RunWithSockets() {
+			
+			@Override
+			public void run(Socket socket) {
+				for (int i=0; i<3; i++) {
+					ZMsg msg = ZMsg.recvMsg(socket);
+					ZFrame client = msg.unwrap();
+					assertEquals("run-request-1", AbstractReply.popString(msg));
+					ZMsg msgOut = new ZMsg();
+					msgOut.add("run-reply-1");
+					msgOut.add(makeMeasurementMetadata(1).toString());
+					msgOut.add(makeMeasurementData(1, 1));
+					msgOut.wrap(client);
+					if (i < 2) {
+						/*
+						 * Reply too late. The reply is dropped and
+						 * the client asks to cancel the request.
+						 */
+						try {
+							Thread.sleep(400);
+						} catch (InterruptedException e) {
+							Assert.fail();
+						}
+						final String sessionID = client.toString();
+						msgOut.send(socket);
+						msg = ZMsg.recvMsg(socket);
+						client = msg.unwrap();
+						assertEquals(sessionID, client.toString());
+						assertEquals("cancel-request-1", AbstractReply.popString(msg));
+						msgOut = new ZMsg();
+						msgOut.add("cancel-reply-1");
+						msgOut.wrap(client);
+					}
+					msgOut.send(socket);
+				}
+			}
+		});
+		runMockPair(mock, client, server);
+	}
+
+	@Test
+	public void testCancelBeforeSend() {
+		MockClientServerPair mock = new MockClientServerPair();
+		assertNull(mock.error);
+		loadPipeline(mock, PIPELINE, CHANNELS);
+		final Map<String, ImgPlus<?>> map = makeImageSet(16, 16, CHANNELS);
+		final Future<Object> client = mock.runOnClient(new RunWithBridge() {
+			
+			@Override
+			public void run(IKnimeBridge bridge) {
+				/*
+				 * A cancel before the run, as if it came while the
+				 * images were being encoded, cancels that run and
+				 * only that run.
+				 */
+				bridge.cancel();
+				try {
+					bridge.run(map);
+					Assert.fail();
+				} catch (RequestCancelledException e) {
+				} catch (Exception e) {
+					e.printStackTrace();
+					Assert.fail();
+				}
+				try {
+					bridge.run(map);
+					assertEquals(2, bridge.getNumberOfRows("Nuclei"));
+				} catch (Exception e) {
+					e.printStackTrace();
+					Assert.fail();
+				}
+			}
+		});
+		final Future<Object> server = mock.runOnServer(new RunWithSockets() {
+			
+			@Override
+			public void run(Socket socket) {
+				ZMsg msg = ZMsg.recvMsg(socket);
+				ZFrame client = msg.unwrap();
+				assertEquals("run-request-1", AbstractReply.popString(msg));
+				sendRunReply(socket, client, 1, 2);
+			}
+		});
+		runMockPair(mock, client, server);
+	}
+
+	@Test
+	public void testReconnect() {
+		MockClientServerPair mock = new MockClientServerPair();
+		assertNull(mock.error);
+		final String pipeline = "Not a pipeline";
+		final String [] channels = { "Foo", "Bar" };
+		loadPipeline(mock, pipeline, channels);
+		final Map<String, ImgPlus<?>> map = makeImageSet(16, 16, "Foo", "Bar");
+		final Future<Object> client = mock.runOnClient(new RunWithBridge() {
+			
+			@Override
+			public void run(IKnimeBridge bridge) {
+				bridge.setRequestTimeout(200);
+				bridge.setReconnectAttempts(1);
+				try {
+					bridge.run(map);
+					assertEquals(2, bridge.getNumberOfRows("Nuclei"));
+				} catch (Exception e) {
+					e.printStackTrace();
+					Assert.fail();
+				}
+			}
+		});
+		final String [] sessionIDs = new String[2];
+		Future<Object> server = mock.runOnServer(new RunWithSockets() {
+			
+			@Override
+			public void run(Socket socket) {
+				/*
+				 * The worker "restarts" while running the first request:
+				 * its reply comes too late and it forgets the session.
+				 */
+				ZMsg msg = ZMsg.recvMsg(socket);
+				ZFrame client = msg.unwrap();
+				sessionIDs[0] = client.toString();
+				assertEquals("run-request-1", AbstractReply.popString(msg));
+				try {
+					Thread.sleep(400);
+				} catch (InterruptedException e) {
+					Assert.fail();
+				}
+				sendRunReply(socket, client, 1, 1);
+				msg = ZMsg.recvMsg(socket);
+				client = msg.unwrap();
+				assertEquals("cancel-request-1", AbstractReply.popString(msg));
+				ZMsg msgOut = new ZMsg();
+				msgOut.add("cancel-reply-1");
+				msgOut.wrap(client);
+				msgOut.send(socket);
+				acceptConnect(socket);
+			}
+		});
+		try {
+			server.get();
+		} catch (Exception e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+		server = handlePipelineReq(mock, pipeline, channels);
+		try {
+			server.get();
+		} catch (Exception e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+		server = mock.runOnServer(new RunWithSockets() {
+			
+			@Override
+			public void run(Socket socket) {
+				ZMsg msg = ZMsg.recvMsg(socket);
+				ZFrame client = msg.unwrap();
+				sessionIDs[1] = client.toString();
+				assertEquals("run-request-1", AbstractReply.popString(msg));
+				sendRunReply(socket, client, 1, 2);
+			}
+		});
+		runMockPair(mock, client, server);
+		assertFalse(sessionIDs[0].equals(sessionIDs[1]));
+	}
+}
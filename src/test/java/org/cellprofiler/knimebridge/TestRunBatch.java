@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge;
+
+import static org.cellprofiler.knimebridge.BridgeTestSupport.*;
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Field;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+
+import org.cellprofiler.knimebridge.MockClientServerPair.RunWithBridge;
+import org.cellprofiler.knimebridge.MockClientServerPair.RunWithSockets;
+import org.cellprofiler.knimebridge.message.AbstractReply;
+import org.junit.Assert;
+import org.junit.Test;
+import org.zeromq.ZFrame;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Socket;
+import org.zeromq.ZMsg;
+
+/**
+ * Tests of running several image sets in one request
+ */
+public class TestRunBatch {
+	@Test
+	public void testRunBatch() {
+		MockClientServerPair mock = new MockClientServerPair();
+		assertNull(mock.error);
+		final String pipeline = "Not a pipeline";
+		final String [] channels = { "Foo", "Bar" };
+		loadPipeline(mock, pipeline, channels);
+		final int nImageSets = 3;
+		final List<Map<String, ImgPlus<?>>> imageSets = new ArrayList<Map<String, ImgPlus<?>>>();
+		for (int i=0; i<nImageSets; i++) {
+			imageSets.add(makeImageSet(16, 16+i, "Foo", "Bar"));
+		}
+		final Future<Object> client = mock.runOnClient(new RunWithBridge() {
+			
+			@Override
+			public void run(IKnimeBridge bridge) {
+				try {
+					List<IRunResult> results = bridge.runBatch(imageSets);
+					assertEquals(nImageSets, results.size());
+					for (int i=0; i<nImageSets; i++) {
+						final IRunResult result = results.get(i);
+						assertEquals(1, result.getNumberOfRows(KBConstants.IMAGE));
+						assertEquals(i+1, result.getNumberOfRows("Nuclei"));
+						int [] imageNumber = result.getIntMeasurements(
+								new FeatureDescriptionImpl(KBConstants.IMAGE, KBConstants.IMAGE_NUMBER, Integer.class));
+						assertEquals(i+1, imageNumber[0]);
+					}
+					assertEquals(nImageSets, bridge.getNumberOfRows("Nuclei"));
+				} catch (Exception e) {
+					e.printStackTrace();
+					Assert.fail();
+				}
+			}
+		});
+		final Future<Object> server = mock.runOnServer(new RunWithSockets() {
+			
+			@Override
+			public void run(Socket socket) {
+				ZMsg msg = ZMsg.recvMsg(socket);
+				ZFrame client = msg.unwrap();
+				assertEquals("run-batch-request-1", AbstractReply.popString(msg));
+				assertEquals(pipeline, AbstractReply.popString(msg));
+				JsonArray batch = popArray(msg);
+				assertEquals(nImageSets, batch.size());
+				for (int i=0; i<nImageSets; i++) {
+					JsonArray images = batch.getJsonArray(i);
+					assertEquals(2, images.size());
+					for (int j=0; j<2; j++) {
+						JsonArray imageAxes = images.getJsonArray(j).getJsonArray(1);
+						assertEquals(16+i, imageAxes.getJsonArray(1).getInt(1));
+						assertEquals(16*(16+i)*Double.SIZE / Byte.SIZE, msg.pop().getData().length);
+					}
+				}
+				assertEquals(0, msg.size());
+				/*
+				 * Reply in reverse order to check that the index is honored.
+				 */
+				ZMsg msgOut = new ZMsg();
+				msgOut.add("run-batch-reply-1");
+				JsonArrayBuilder blocks = Json.createArrayBuilder();
+				List<byte []> frames = new ArrayList<byte []>();
+				for (int i=nImageSets-1; i>=0; i--) {
+					blocks.add(Json.createArrayBuilder()
+						.add(i)
+						.add(makeMeasurementMetadata(i+1)));
+					frames.add(makeMeasurementData(i+1, i+1));
+				}
+				msgOut.add(blocks.build().toString());
+				for (byte [] frame:frames) msgOut.add(frame);
+				msgOut.wrap(client);
+				msgOut.send(socket);
+			}
+		});
+		runMockPair(mock, client, server);
+	}
+
+	@Test
+	public void testRunBatchLegacyWorker() throws Exception {
+		/*
+		 * A worker that doesn't report capabilities gets one run request per image set
+		 */
+		final Socket server = KnimeBridgeImpl.theContext().socket(ZMQ.REP);
+		final KnimeBridgeImpl bridge = new KnimeBridgeImpl(BridgeConfig.DEFAULT);
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		final String pipeline = "Not a pipeline";
+		final AxisType [] axes = new AxisType[] { Axes.X, Axes.Y };
+		final List<Map<String, ImgPlus<?>>> imageSets = new ArrayList<Map<String, ImgPlus<?>>>();
+		for (int i=0; i<3; i++) {
+			final Map<String, ImgPlus<?>> map = new Hashtable<String, ImgPlus<?>>();
+			map.put("Foo", makeImgPlus(new long[] {10, 15}, "Foo", axes));
+			imageSets.add(map);
+		}
+		try {
+			final String endpoint = String.format(
+					"tcp://127.0.0.1:%d", server.bindToRandomPort("tcp://127.0.0.1"));
+			final Future<?> serverTask = executor.submit(new Runnable() {
+				
+				@Override
+				public void run() {
+					ZMsg msg = ZMsg.recvMsg(server);
+					ZFrame client = msg.unwrap();
+					assertEquals("connect-request-1", AbstractReply.popString(msg));
+					ZMsg msgOut = new ZMsg();
+					msgOut.add("connect-reply-1");
+					msgOut.wrap(client);
+					msgOut.send(server);
+					for (int i=0; i<imageSets.size(); i++) {
+						msg = ZMsg.recvMsg(server);
+						client = msg.unwrap();
+						assertEquals("run-request-1", AbstractReply.popString(msg));
+						assertEquals(pipeline, AbstractReply.popString(msg));
+						msgOut = new ZMsg();
+						msgOut.add("run-reply-1");
+						msgOut.add(makeMeasurementMetadata(i+1).toString());
+						msgOut.add(makeMeasurementData(i+1, i+1));
+						msgOut.wrap(client);
+						msgOut.send(server);
+					}
+				}
+			});
+			bridge.connect(new URI(endpoint));
+			assertSame(WorkerCapabilities.LEGACY, bridge.getWorkerCapabilities());
+			/*
+			 * Set the pipeline without asking the worker for its description
+			 */
+			final Field field = KnimeBridgeImpl.class.getDeclaredField("pipeline");
+			field.setAccessible(true);
+			field.set(bridge, pipeline);
+			final List<IRunResult> results = bridge.runBatch(imageSets);
+			serverTask.get();
+			assertEquals(3, results.size());
+			for (int i=0; i<results.size(); i++) {
+				assertEquals(i+1, results.get(i).getNumberOfRows("Nuclei"));
+			}
+			assertEquals(3, bridge.getNumberOfRows("Nuclei"));
+		} finally {
+			bridge.disconnect();
+			executor.shutdownNow();
+			server.setLinger(0);
+			server.close();
+		}
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge;
+
+import static org.cellprofiler.knimebridge.BridgeTestSupport.*;
+import static org.junit.Assert.*;
+
+import java.net.URI;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+
+import org.cellprofiler.knimebridge.MockClientServerPair.RunWithBridge;
+import org.cellprofiler.knimebridge.MockClientServerPair.RunWithSockets;
+import org.cellprofiler.knimebridge.message.AbstractReply;
+import org.junit.Assert;
+import org.junit.Test;
+import org.zeromq.ZFrame;
+import org.zeromq.ZMQ.Socket;
+import org.zeromq.ZMsg;
+
+public class TestRunByReferenceReq {
+	@Test
+	public void testRunByReference() throws Exception {
+		final MockClientServerPair mock = new MockClientServerPair();
+		assertNull(mock.error);
+		final String pipeline = "Not a pipeline";
+		final String [] channels = { "Foo", "Bar" };
+		final Map<String, ImageReference> map = new Hashtable<String, ImageReference>();
+		map.put("Foo", new ImageReference(new URI("file:///data/plate1/A01.tif")));
+		map.put("Bar", new ImageReference(new URI("http://example.org/plate1/A01.ome.tif"), 2, 5));
+		Future<Object> client = mock.runOnClient(new RunWithBridge() {
+			
+			@Override
+			public void run(IKnimeBridge bridge) {
+				try {
+					bridge.loadPipeline(pipeline);
+					bridge.runByReference(map);
+					assertEquals(2, bridge.getNumberOfRows("Nuclei"));
+				} catch (Exception e) {
+					e.printStackTrace();
+					Assert.fail();
+				}
+			}
+		});
+		handlePipelineReq(mock, pipeline, channels).get();
+		Future<Object> server = mock.runOnServer(new RunWithSockets() {
+			
+			@Override
+			public void run(Socket socket) {
+				ZMsg msg = ZMsg.recvMsg(socket);
+				ZFrame client = msg.unwrap();
+				assertEquals("run-by-reference-request-1", AbstractReply.popString(msg));
+				assertEquals(pipeline, AbstractReply.popString(msg));
+				final JsonArray images = popArray(msg);
+				assertTrue(msg.isEmpty());
+				assertEquals(2, images.size());
+				for (int i=0; i<images.size(); i++) {
+					final ImageReference expected = map.get(images.getJsonArray(i).getString(0));
+					final JsonObject reference = images.getJsonArray(i).getJsonObject(1);
+					assertEquals(expected.getURI().toString(), reference.getString("uri"));
+					assertEquals(expected.getSeries(), reference.getInt("series"));
+					assertEquals(expected.getIndex(), reference.getInt("index"));
+				}
+				sendRunReply(socket, client, 1, 2);
+			}
+		});
+		runMockPair(mock, client, server);
+	}
+}
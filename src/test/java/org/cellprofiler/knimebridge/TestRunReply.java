@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+
+import org.cellprofiler.knimebridge.message.RunReply;
+import org.junit.Test;
+import org.zeromq.ZFrame;
+import org.zeromq.ZMsg;
+
+public class TestRunReply {
+	/**
+	 * A reply whose "Nucleus" table has only double features and whose
+	 * "Cell" table has only float features
+	 */
+	private static RunReply makeReply() throws Exception {
+		final JsonArray metadata = Json.createArrayBuilder()
+			.add(Json.createArrayBuilder()
+				.add(Json.createArrayBuilder().add("Nucleus").add(Json.createArrayBuilder()
+					.add(Json.createArrayBuilder().add("Location_CenterX").add(2)))))
+			.add(Json.createArrayBuilder()
+				.add(Json.createArrayBuilder().add("Cell").add(Json.createArrayBuilder()
+					.add(Json.createArrayBuilder().add("AreaShape_Area").add(1)))))
+			.add(Json.createArrayBuilder())
+			.add(Json.createArrayBuilder())
+			.build();
+		final ByteBuffer data = ByteBuffer.allocate(2 * 8 + 4).order(ByteOrder.LITTLE_ENDIAN);
+		data.putDouble(10.5).putDouble(20.25).putFloat(3.5f);
+		final ZMsg msg = new ZMsg();
+		msg.add("run-reply-1");
+		msg.add(metadata.toString());
+		msg.add(data.array());
+		msg.wrap(new ZFrame("session"));
+		final RunReply reply = new RunReply();
+		reply.recv(msg);
+		return reply;
+	}
+
+	@Test
+	public void testDoubleMeasurements() throws Exception {
+		final RunReply reply = makeReply();
+		assertArrayEquals(new double [] { 10.5, 20.25 }, reply.getDoubleMeasurements("Nucleus", "Location_CenterX"), 0);
+		assertNull(reply.getDoubleMeasurements("Cell", "AreaShape_Area"));
+		assertNull(reply.getDoubleMeasurements(null, "Location_CenterX"));
+	}
+
+	@Test
+	public void testFloatMeasurements() throws Exception {
+		final RunReply reply = makeReply();
+		assertArrayEquals(new float [] { 3.5f }, reply.getFloatMeasurements("Cell", "AreaShape_Area"), 0);
+		assertNull(reply.getFloatMeasurements("Nucleus", "Location_CenterX"));
+	}
+}
@@ -0,0 +1,551 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge;
+
+import static org.cellprofiler.knimebridge.BridgeTestSupport.*;
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Future;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgView;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.view.Views;
+
+import org.cellprofiler.knimebridge.MockClientServerPair.RunWithBridge;
+import org.cellprofiler.knimebridge.MockClientServerPair.RunWithSockets;
+import org.cellprofiler.knimebridge.message.AbstractReply;
+import org.cellprofiler.knimebridge.message.FrameCodec;
+import org.cellprofiler.knimebridge.message.ImageEncoding;
+import org.cellprofiler.knimebridge.message.RunReq;
+import org.junit.Assert;
+import org.junit.Test;
+import org.zeromq.ZFrame;
+import org.zeromq.ZMQ.Socket;
+import org.zeromq.ZMsg;
+
+/**
+ * Tests of how run requests encode images
+ */
+public class TestRunReq {
+	@Test
+	public void testRunView() throws Exception {
+		/*
+		 * A region of interest of a 3-d image and a plane of that region
+		 */
+		final Img<DoubleType> img = new ArrayImgFactory<DoubleType>().create(new long [] { 20, 30, 4 }, new DoubleType());
+		final Cursor<DoubleType> cursor = img.localizingCursor();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			cursor.get().set(cursor.getLongPosition(0) + 100 * cursor.getLongPosition(1) + 10000 * cursor.getLongPosition(2));
+		}
+		final RandomAccessibleInterval<DoubleType> roi = Views.interval(img, new long [] { 3, 5, 0 }, new long [] { 12, 20, 3 });
+		final Map<String, ImgPlus<?>> map = new HashMap<String, ImgPlus<?>>();
+		map.put("ROI", ImageViews.wrap(roi, "ROI", Axes.X, Axes.Y, Axes.Z));
+		map.put("Plane", ImageViews.wrap(Views.hyperSlice(roi, 2, 2), "Plane", Axes.X, Axes.Y));
+		final ZMsg msg = RunReq.create("session", "Not a pipeline", map);
+		msg.unwrap();
+		assertEquals("run-request-1", AbstractReply.popString(msg));
+		AbstractReply.popString(msg);
+		final JsonArray header = popArray(msg);
+		for (int i=0; i<header.size(); i++) {
+			final String channel = header.getJsonArray(i).getString(0);
+			final JsonArray axes = header.getJsonArray(i).getJsonArray(1);
+			final DoubleBuffer data = ByteBuffer.wrap(msg.pop().getData()).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+			final boolean isROI = channel.equals("ROI");
+			assertEquals(isROI? 3 : 2, axes.size());
+			assertEquals(10, axes.getJsonArray(0).getInt(1));
+			assertEquals(16, axes.getJsonArray(1).getInt(1));
+			assertEquals(isROI? 10 * 16 * 4 : 10 * 16, data.remaining());
+			for (int x=0; x<10; x++) {
+				for (int y=0; y<16; y++) {
+					for (int z=0; z<(isROI? 4 : 1); z++) {
+						final int idx = isROI? x * 64 + y * 4 + z : x * 16 + y;
+						assertEquals(x + 3 + 100 * (y + 5) + 10000 * (isROI? z : 2), data.get(idx), 0);
+					}
+				}
+			}
+		}
+		assertTrue(msg.isEmpty());
+	}
+
+	@Test
+	public void testRunPlanarSlice() throws Exception {
+		/*
+		 * A plane of a PlanarImg, cut out with Views. The view's minimum
+		 * is zero, but its cursor doesn't honor the plane's position.
+		 */
+		final Img<DoubleType> img = new PlanarImgFactory<DoubleType>().create(new long [] { 7, 5, 3 }, new DoubleType());
+		final Cursor<DoubleType> cursor = img.localizingCursor();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			cursor.get().set(cursor.getLongPosition(0) + 10 * cursor.getLongPosition(1) + 100 * cursor.getLongPosition(2));
+		}
+		final Map<String, ImgPlus<?>> map = new HashMap<String, ImgPlus<?>>();
+		map.put("Plane", new ImgPlus<DoubleType>(new ImgView<DoubleType>(Views.hyperSlice(img, 2, 2), null),
+				"Plane", new AxisType [] { Axes.X, Axes.Y }));
+		final ZMsg msg = RunReq.create("session", "Not a pipeline", map);
+		msg.unwrap();
+		assertEquals("run-request-1", AbstractReply.popString(msg));
+		AbstractReply.popString(msg);
+		popArray(msg);
+		final DoubleBuffer data = ByteBuffer.wrap(msg.pop().getData()).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+		assertEquals(7 * 5, data.remaining());
+		for (int x=0; x<7; x++) {
+			for (int y=0; y<5; y++) {
+				assertEquals(x + 10 * y + 200, data.get(x * 5 + y), 0);
+			}
+		}
+		assertTrue(msg.isEmpty());
+	}
+
+	@Test
+	public void testRunColor() throws Exception {
+		final Img<ARGBType> img = new ArrayImgFactory<ARGBType>().create(new long [] { 8, 6 }, new ARGBType());
+		final Cursor<ARGBType> cursor = img.localizingCursor();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			cursor.get().set(ARGBType.rgba(cursor.getIntPosition(0), cursor.getIntPosition(1), 255, 128));
+		}
+		/*
+		 * The whole image, read from its storage, and a view of part of it
+		 */
+		final Map<String, ImgPlus<?>> map = new HashMap<String, ImgPlus<?>>();
+		map.put("Color", new ImgPlus<ARGBType>(img, "Color", new AxisType [] { Axes.X, Axes.Y }));
+		map.put("Tile", new ImgPlus<ARGBType>(new ImgView<ARGBType>(
+				Views.interval(img, new long [] { 2, 1 }, new long [] { 5, 4 }), null),
+				"Tile", new AxisType [] { Axes.X, Axes.Y }));
+		final ZMsg msg = RunReq.create("session", "Not a pipeline", map);
+		msg.unwrap();
+		assertEquals("run-request-1", AbstractReply.popString(msg));
+		AbstractReply.popString(msg);
+		final JsonArray header = popArray(msg);
+		for (int i=0; i<header.size(); i++) {
+			final boolean isTile = header.getJsonArray(i).getString(0).equals("Tile");
+			final int width = isTile? 4 : 8;
+			final int height = isTile? 4 : 6;
+			final int offset = isTile? 2 : 0;
+			final JsonArray axes = header.getJsonArray(i).getJsonArray(1);
+			assertEquals(3, axes.size());
+			assertEquals(Axes.CHANNEL.toString(), axes.getJsonArray(2).getString(0));
+			assertEquals(3, axes.getJsonArray(2).getInt(1));
+			assertEquals(1, axes.getJsonArray(2).getInt(2));
+			assertEquals(height * 3, axes.getJsonArray(0).getInt(2));
+			final DoubleBuffer data = ByteBuffer.wrap(msg.pop().getData()).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+			assertEquals(width * height * 3, data.remaining());
+			for (int x=0; x<width; x++) {
+				for (int y=0; y<height; y++) {
+					final int idx = (x * height + y) * 3;
+					assertEquals((x + offset) / 255.0, data.get(idx), 1E-12);
+					assertEquals((y + offset / 2) / 255.0, data.get(idx+1), 1E-12);
+					assertEquals(1.0, data.get(idx+2), 1E-12);
+				}
+			}
+		}
+		assertTrue(msg.isEmpty());
+	}
+
+	@Test
+	public void testRunChannels() throws Exception {
+		/*
+		 * A 3-channel image with the channel axis between X and Y
+		 */
+		final ImgPlus<UnsignedShortType> image = new ImgPlus<UnsignedShortType>(
+				new PlanarImgFactory<UnsignedShortType>().create(new long [] { 12, 3, 10 }, new UnsignedShortType()),
+				"Image", new AxisType [] { Axes.X, Axes.CHANNEL, Axes.Y });
+		image.setValidBits(12);
+		final Cursor<UnsignedShortType> cursor = image.localizingCursor();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			cursor.get().set(cursor.getIntPosition(0) + 100 * cursor.getIntPosition(1) + 1000 * cursor.getIntPosition(2));
+		}
+		final Map<Integer, String> channelNames = new HashMap<Integer, String>();
+		channelNames.put(2, "DNA");
+		channelNames.put(0, "GFP");
+		final Map<String, ImgPlus<?>> map = ImageViews.splitChannels(image, channelNames);
+		assertEquals(2, map.size());
+		final ZMsg msg = RunReq.create("session", "Not a pipeline", map);
+		msg.unwrap();
+		assertEquals("run-request-1", AbstractReply.popString(msg));
+		AbstractReply.popString(msg);
+		final JsonArray header = popArray(msg);
+		assertEquals(2, header.size());
+		for (int i=0; i<header.size(); i++) {
+			final int index = header.getJsonArray(i).getString(0).equals("DNA")? 2 : 0;
+			final JsonArray axes = header.getJsonArray(i).getJsonArray(1);
+			assertEquals(2, axes.size());
+			assertEquals(Axes.X.toString(), axes.getJsonArray(0).getString(0));
+			assertEquals(12, axes.getJsonArray(0).getInt(1));
+			assertEquals(Axes.Y.toString(), axes.getJsonArray(1).getString(0));
+			assertEquals(10, axes.getJsonArray(1).getInt(1));
+			final DoubleBuffer data = ByteBuffer.wrap(msg.pop().getData()).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+			assertEquals(120, data.remaining());
+			for (int x=0; x<12; x++) {
+				for (int y=0; y<10; y++) {
+					assertEquals((x + 100 * index + 1000 * y) / 4096.0, data.get(x * 10 + y), 0);
+				}
+			}
+		}
+		assertTrue(msg.isEmpty());
+	}
+
+	@Test
+	public void testRunSharedFrames() throws Exception {
+		assertTrue(WorkerCapabilities.fromJson(WorkerCapabilities.CLIENT.toJson()).isSharedFramesSupported());
+		assertFalse(WorkerCapabilities.LEGACY.isSharedFramesSupported());
+		final AxisType [] axes = new AxisType [] { Axes.X, Axes.Y };
+		final ImgPlus<DoubleType> raw = makeImgPlus(new long [] { 3, 2 }, "Raw", axes);
+		final ImgPlus<DoubleType> other = makeImgPlus(new long [] { 2, 2 }, "Other", axes);
+		/*
+		 * The same ImgPlus twice, another ImgPlus of the same Img and
+		 * a different image
+		 */
+		final Map<String, ImgPlus<?>> map = new LinkedHashMap<String, ImgPlus<?>>();
+		map.put("Raw", raw);
+		map.put("ForIllum", raw);
+		map.put("Other", other);
+		map.put("Copy", new ImgPlus<DoubleType>(raw.getImg(), "Copy", axes));
+		for (boolean shared:new boolean [] { false, true }) {
+			final ZMsg msg = RunReq.create("session", "Not a pipeline", map, new ImageEncoding(null, shared));
+			msg.unwrap();
+			assertEquals("run-request-1", AbstractReply.popString(msg));
+			AbstractReply.popString(msg);
+			final JsonArray header = popArray(msg);
+			assertEquals(4, header.size());
+			assertEquals(shared? 2 : 4, msg.size());
+			final byte [] rawData = msg.pop().getData();
+			assertEquals(6 * 8, rawData.length);
+			for (int i=1; i<4; i++) {
+				final JsonArray slot = header.getJsonArray(i);
+				if (slot.getString(0).equals("Other")) {
+					assertEquals(2, slot.size());
+					assertEquals(4 * 8, msg.pop().getData().length);
+				} else if (shared) {
+					assertEquals(3, slot.size());
+					assertEquals("Raw", slot.getJsonObject(2).getString("same-as"));
+					assertEquals(header.getJsonArray(0).get(1), slot.get(1));
+				} else {
+					assertEquals(2, slot.size());
+					assertArrayEquals(rawData, msg.pop().getData());
+				}
+			}
+			assertTrue(msg.isEmpty());
+		}
+	}
+
+	@Test
+	public void testRunSharedFloat32() throws Exception {
+		/*
+		 * A frame shared by channels sent as doubles and as floats holds floats
+		 */
+		final AxisType [] axes = new AxisType [] { Axes.X, Axes.Y };
+		final ImgPlus<DoubleType> raw = makeImgPlus(new long [] { 3, 2 }, "Raw", axes);
+		final Map<String, ImgPlus<?>> map = new LinkedHashMap<String, ImgPlus<?>>();
+		map.put("Raw", raw);
+		map.put("ForIllum", raw);
+		for (boolean shared:new boolean [] { false, true }) {
+			final ImageEncoding encoding = new ImageEncoding(
+					null, shared, false, false, Collections.singleton("ForIllum"));
+			final ZMsg msg = RunReq.create("session", "Not a pipeline", map, encoding);
+			msg.unwrap();
+			assertEquals("run-request-1", AbstractReply.popString(msg));
+			AbstractReply.popString(msg);
+			final JsonArray header = popArray(msg);
+			assertEquals(shared? 1 : 2, msg.size());
+			assertEquals("float32", header.getJsonArray(0).getJsonObject(2).getString("encoding"));
+			final JsonObject description = header.getJsonArray(1).getJsonObject(2);
+			if (shared) {
+				assertEquals("Raw", description.getString("same-as"));
+			} else {
+				assertEquals("float32", description.getString("encoding"));
+			}
+			while (! msg.isEmpty()) assertEquals(6 * 4, msg.pop().getData().length);
+		}
+	}
+
+	@Test
+	public void testRunPacked() throws Exception {
+		final MockClientServerPair mock = new MockClientServerPair();
+		try {
+			assertNull(mock.error);
+			final String pipeline = "Not a pipeline";
+			final String [] channels = { "Foo", "Bar" };
+			final AxisType [] axes = new AxisType[] { Axes.X, Axes.Y };
+			/*
+			 * A 12-bit image and one that claims 12 bits but has a
+			 * pixel that doesn't fit.
+			 */
+			final Random rnd = new Random(1234);
+			final Map<String, ImgPlus<?>> map = new Hashtable<String, ImgPlus<?>>();
+			for (String channel:channels) {
+				final ImgPlus<UnsignedShortType> imgPlus = new ImgPlus<UnsignedShortType>(
+						new ArrayImgFactory<UnsignedShortType>().create(new long [] { 33, 20 }, new UnsignedShortType()),
+						channel, axes);
+				imgPlus.setValidBits(12);
+				for (UnsignedShortType t:imgPlus) t.set(rnd.nextInt(4096));
+				map.put(channel, imgPlus);
+			}
+			@SuppressWarnings("unchecked")
+			final ImgPlus<UnsignedShortType> bar = (ImgPlus<UnsignedShortType>)map.get("Bar");
+			bar.firstElement().set(5000);
+			Future<Object> client = mock.runOnClient(new RunWithBridge() {
+				
+				@Override
+				public void run(IKnimeBridge bridge) {
+					try {
+						bridge.loadPipeline(pipeline);
+						bridge.run(map);
+						assertEquals(2, bridge.getNumberOfRows("Nuclei"));
+					} catch (Exception e) {
+						e.printStackTrace();
+						Assert.fail();
+					}
+				}
+			});
+			handlePipelineReq(mock, pipeline, channels).get();
+			Future<Object> server = mock.runOnServer(new RunWithSockets() {
+				
+				@Override
+				public void run(Socket socket) {
+					ZMsg msg = ZMsg.recvMsg(socket);
+					ZFrame client = msg.unwrap();
+					assertEquals("run-request-1", AbstractReply.popString(msg));
+					assertEquals(pipeline, AbstractReply.popString(msg));
+					final JsonArray header = popArray(msg);
+					assertEquals(2, header.size());
+					for (int i=0; i<header.size(); i++) {
+						final JsonArray slot = header.getJsonArray(i);
+						final String channel = slot.getString(0);
+						final byte [] frame = msg.pop().getData();
+						if (channel.equals("Foo")) {
+							assertEquals(3, slot.size());
+							assertEquals("packed", slot.getJsonObject(2).getString("encoding"));
+							assertEquals(12, slot.getJsonObject(2).getInt("bits"));
+							assertEquals(33 * 20 * 12 / 8, frame.length);
+						} else {
+							assertEquals(2, slot.size());
+							assertEquals(33 * 20 * 8, frame.length);
+						}
+						final double [] data;
+						try {
+							data = MockClientServerPair.decodeImage(slot, frame);
+						} catch (ProtocolException e) {
+							e.printStackTrace();
+							Assert.fail();
+							return;
+						}
+						@SuppressWarnings("unchecked")
+						final RandomAccess<UnsignedShortType> ra = ((ImgPlus<UnsignedShortType>)map.get(channel)).randomAccess();
+						for (int x=0; x<33; x++) {
+							ra.setPosition(x, 0);
+							for (int y=0; y<20; y++) {
+								ra.setPosition(y, 1);
+								assertEquals(ra.get().get() / 4096.0, data[x * 20 + y], 0);
+							}
+						}
+					}
+					assertTrue(msg.isEmpty());
+					sendRunReply(socket, client, 1, 2);
+				}
+			});
+			runMockPair(mock, client, server, false);
+		} finally {
+			mock.stop();
+		}
+	}
+
+	@Test
+	public void testRunFloat32() throws Exception {
+		final MockClientServerPair mock = new MockClientServerPair(
+				new BridgeConfig.Builder().setFloat32Channels(Collections.singleton("Foo")).build());
+		try {
+			assertNull(mock.error);
+			final String pipeline = "Not a pipeline";
+			final String [] channels = { "Foo", "Bar" };
+			final AxisType [] axes = new AxisType[] { Axes.X, Axes.Y };
+			final Map<String, ImgPlus<?>> map = new Hashtable<String, ImgPlus<?>>();
+			map.put("Foo", makeImgPlus(new long[] {33, 20}, "Foo", axes));
+			map.put("Bar", makeImgPlus(new long[] {33, 20}, "Bar", axes));
+			Future<Object> client = mock.runOnClient(new RunWithBridge() {
+				
+				@Override
+				public void run(IKnimeBridge bridge) {
+					try {
+						assertTrue(((KnimeBridgeImpl)bridge).getEncoding().isFloat32("Foo"));
+						assertFalse(((KnimeBridgeImpl)bridge).getEncoding().isFloat32("Bar"));
+						bridge.loadPipeline(pipeline);
+						bridge.run(map);
+						assertEquals(2, bridge.getNumberOfRows("Nuclei"));
+					} catch (Exception e) {
+						e.printStackTrace();
+						Assert.fail();
+					}
+				}
+			});
+			handlePipelineReq(mock, pipeline, channels).get();
+			Future<Object> server = mock.runOnServer(new RunWithSockets() {
+				
+				@Override
+				public void run(Socket socket) {
+					ZMsg msg = ZMsg.recvMsg(socket);
+					ZFrame client = msg.unwrap();
+					assertEquals("run-request-1", AbstractReply.popString(msg));
+					assertEquals(pipeline, AbstractReply.popString(msg));
+					final JsonArray header = popArray(msg);
+					assertEquals(2, header.size());
+					for (int i=0; i<header.size(); i++) {
+						final JsonArray slot = header.getJsonArray(i);
+						final String channel = slot.getString(0);
+						final byte [] frame = msg.pop().getData();
+						final boolean float32 = channel.equals("Foo");
+						if (float32) {
+							assertEquals(3, slot.size());
+							assertEquals("float32", slot.getJsonObject(2).getString("encoding"));
+							assertEquals(33 * 20 * 4, frame.length);
+						} else {
+							assertEquals(2, slot.size());
+							assertEquals(33 * 20 * 8, frame.length);
+						}
+						final double [] data;
+						try {
+							data = MockClientServerPair.decodeImage(slot, frame);
+						} catch (ProtocolException e) {
+							e.printStackTrace();
+							Assert.fail();
+							return;
+						}
+						@SuppressWarnings("unchecked")
+						final RandomAccess<DoubleType> ra = ((ImgPlus<DoubleType>)map.get(channel)).randomAccess();
+						for (int x=0; x<33; x++) {
+							ra.setPosition(x, 0);
+							for (int y=0; y<20; y++) {
+								ra.setPosition(y, 1);
+								final double expected = ra.get().get();
+								assertEquals(float32? (float)expected : expected, data[x * 20 + y], 0);
+							}
+						}
+					}
+					assertTrue(msg.isEmpty());
+					sendRunReply(socket, client, 1, 2);
+				}
+			});
+			runMockPair(mock, client, server, false);
+		} finally {
+			mock.stop();
+		}
+	}
+
+	@Test
+	public void testCompressedRun() throws Exception {
+		final MockClientServerPair mock = new MockClientServerPair(
+				new BridgeConfig.Builder().setCompression(true).build());
+		try {
+			assertNull(mock.error);
+			final String pipeline = "Not a pipeline";
+			final String [] channels = { "Foo", "Bar" };
+			final AxisType [] axes = new AxisType[] { Axes.X, Axes.Y };
+			final Map<String, ImgPlus<?>> map = new Hashtable<String, ImgPlus<?>>();
+			map.put("Foo", makeImgPlus(new long[] {64, 48}, "Foo", axes));
+			map.put("Bar", makeImgPlus(new long[] {32, 40}, "Bar", axes));
+			Future<Object> client = mock.runOnClient(new RunWithBridge() {
+				
+				@Override
+				public void run(IKnimeBridge bridge) {
+					try {
+						assertNotNull(((KnimeBridgeImpl)bridge).getCodec());
+						bridge.loadPipeline(pipeline);
+						bridge.run(map);
+						assertEquals(2000, bridge.getNumberOfRows("Nuclei"));
+					} catch (Exception e) {
+						e.printStackTrace();
+						Assert.fail();
+					}
+				}
+			});
+			handlePipelineReq(mock, pipeline, channels).get();
+			Future<Object> server = mock.runOnServer(new RunWithSockets() {
+				
+				@Override
+				public void run(Socket socket) {
+					ZMsg msg = ZMsg.recvMsg(socket);
+					ZFrame client = msg.unwrap();
+					assertEquals("run-request-1", AbstractReply.popString(msg));
+					assertEquals(pipeline, AbstractReply.popString(msg));
+					final JsonArray header = popArray(msg);
+					assertEquals(2, header.size());
+					for (int i=0; i<header.size(); i++) {
+						final JsonArray slot = header.getJsonArray(i);
+						assertEquals(3, slot.size());
+						final ImgPlus<?> imgPlus = map.get(slot.getString(0));
+						final byte [] bytes;
+						try {
+							bytes = FrameCodec.decompress(slot.getJsonObject(2), msg.pop().getData());
+						} catch (ProtocolException e) {
+							e.printStackTrace();
+							Assert.fail();
+							return;
+						}
+						assertEquals(imgPlus.size() * 8, bytes.length);
+						final DoubleBuffer data = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+						@SuppressWarnings("unchecked")
+						final RandomAccess<DoubleType> ra = ((ImgPlus<DoubleType>)imgPlus).randomAccess();
+						final int height = (int)imgPlus.dimension(1);
+						for (int x=0; x<imgPlus.dimension(0); x++) {
+							ra.setPosition(x, 0);
+							for (int y=0; y<height; y++) {
+								ra.setPosition(y, 1);
+								assertEquals(ra.get().get(), data.get(x * height + y), 0);
+							}
+						}
+					}
+					assertTrue(msg.isEmpty());
+					/*
+					 * Reply with a compressed data frame
+					 */
+					final byte [] reply = makeMeasurementData(1, 2000);
+					final JsonArray metadata = makeMeasurementMetadata(2000);
+					final JsonArrayBuilder wrapper = Json.createArrayBuilder();
+					for (int i=0; i<metadata.size(); i++) wrapper.add(metadata.get(i));
+					wrapper.add(FrameCodec.describe(reply.length, 4));
+					ZMsg msgOut = new ZMsg();
+					msgOut.add("run-reply-1");
+					msgOut.add(wrapper.build().toString());
+					msgOut.add(new FrameCodec().compress(reply, 4));
+					msgOut.wrap(client);
+					msgOut.send(socket);
+				}
+			});
+			runMockPair(mock, client, server, false);
+		} finally {
+			mock.stop();
+		}
+	}
+}
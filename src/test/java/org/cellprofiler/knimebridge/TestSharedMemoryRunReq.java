@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge;
+
+import static org.cellprofiler.knimebridge.BridgeTestSupport.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.RandomAccess;
+import net.imglib2.type.numeric.real.DoubleType;
+
+import org.cellprofiler.knimebridge.MockClientServerPair.RunWithBridge;
+import org.cellprofiler.knimebridge.MockClientServerPair.RunWithSockets;
+import org.cellprofiler.knimebridge.message.AbstractReply;
+import org.junit.Assert;
+import org.junit.Test;
+import org.zeromq.ZFrame;
+import org.zeromq.ZMQ.Socket;
+import org.zeromq.ZMsg;
+
+public class TestSharedMemoryRunReq {
+	@Test
+	public void testSharedMemoryRun() throws Exception {
+		final File directory = File.createTempFile("knimebridge-test", "");
+		assertTrue(directory.delete());
+		assertTrue(directory.mkdir());
+		final MockClientServerPair mock = new MockClientServerPair(
+				new BridgeConfig.Builder().setSharedMemoryDirectory(directory).build());
+		try {
+			assertNull(mock.error);
+			final String pipeline = "Not a pipeline";
+			final String [] channels = { "Foo", "Bar" };
+			final AxisType [] axes = new AxisType[] { Axes.X, Axes.Y };
+			final Map<String, ImgPlus<?>> map = new Hashtable<String, ImgPlus<?>>();
+			map.put("Foo", makeImgPlus(new long[] {20, 37}, "Foo", axes));
+			map.put("Bar", makeImgPlus(new long[] {31, 18}, "Bar", axes));
+			Future<Object> client = mock.runOnClient(new RunWithBridge() {
+				
+				@Override
+				public void run(IKnimeBridge bridge) {
+					try {
+						bridge.loadPipeline(pipeline);
+						bridge.run(map);
+						assertEquals(3, bridge.getNumberOfRows("Nuclei"));
+					} catch (Exception e) {
+						e.printStackTrace();
+						Assert.fail();
+					}
+				}
+			});
+			handlePipelineReq(mock, pipeline, channels).get();
+			Future<Object> server = mock.runOnServer(new RunWithSockets() {
+				
+				@Override
+				public void run(Socket socket) {
+					ZMsg msg = ZMsg.recvMsg(socket);
+					ZFrame client = msg.unwrap();
+					assertEquals("shm-run-request-1", AbstractReply.popString(msg));
+					assertEquals(pipeline, AbstractReply.popString(msg));
+					final JsonArray header = popArray(msg);
+					final JsonObject handle = Json.createReader(new StringReader(AbstractReply.popString(msg))).readObject();
+					assertTrue(msg.isEmpty());
+					final File file = new File(handle.getString("path"));
+					assertEquals(directory, file.getParentFile());
+					final JsonArray segments = handle.getJsonArray("segments");
+					assertEquals(2, segments.size());
+					try {
+						final RandomAccessFile raf = new RandomAccessFile(file, "r");
+						try {
+							for (int i=0; i<header.size(); i++) {
+								@SuppressWarnings("unchecked")
+								final ImgPlus<DoubleType> imgPlus =
+									(ImgPlus<DoubleType>)map.get(header.getJsonArray(i).getString(0));
+								final long offset = segments.getJsonArray(i).getJsonNumber(0).longValue();
+								final byte [] bytes = new byte[segments.getJsonArray(i).getInt(1)];
+								assertEquals(imgPlus.size() * 8, bytes.length);
+								raf.seek(offset);
+								raf.readFully(bytes);
+								final DoubleBuffer data = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+								final RandomAccess<DoubleType> ra = imgPlus.randomAccess();
+								final int height = (int)imgPlus.dimension(1);
+								for (int x=0; x<imgPlus.dimension(0); x++) {
+									ra.setPosition(x, 0);
+									for (int y=0; y<height; y++) {
+										ra.setPosition(y, 1);
+										assertEquals(ra.get().get(), data.get(x * height + y), 0);
+									}
+								}
+							}
+						} finally {
+							raf.close();
+						}
+					} catch (IOException e) {
+						e.printStackTrace();
+						Assert.fail();
+					}
+					sendRunReply(socket, client, 1, 3);
+				}
+			});
+			runMockPair(mock, client, server, false);
+			/*
+			 * The pixel file is reclaimed once the reply arrives.
+			 */
+			assertEquals(0, directory.list().length);
+		} finally {
+			mock.stop();
+			for (File file:directory.listFiles()) file.delete();
+			directory.delete();
+		}
+	}
+}
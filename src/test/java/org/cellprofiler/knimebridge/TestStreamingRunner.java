@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge;
+
+import static org.cellprofiler.knimebridge.BridgeTestSupport.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.json.JsonArray;
+
+import net.imagej.ImgPlus;
+
+import org.cellprofiler.knimebridge.MockClientServerPair.RunWithBridge;
+import org.cellprofiler.knimebridge.MockClientServerPair.RunWithSockets;
+import org.cellprofiler.knimebridge.message.AbstractReply;
+import org.junit.Assert;
+import org.junit.Test;
+import org.zeromq.ZFrame;
+import org.zeromq.ZMQ.Socket;
+import org.zeromq.ZMsg;
+
+public class TestStreamingRunner {
+	@Test
+	public void testStreamingRunner() {
+		MockClientServerPair mock = new MockClientServerPair();
+		assertNull(mock.error);
+		final String pipeline = "Not a pipeline";
+		final String [] channels = { "Foo", "Bar" };
+		loadPipeline(mock, pipeline, channels);
+		final int nImageSets = 5;
+		final List<Map<String, ImgPlus<?>>> imageSets = new ArrayList<Map<String, ImgPlus<?>>>();
+		for (int i=0; i<nImageSets; i++) {
+			imageSets.add(makeImageSet(16, 16+i, "Foo", "Bar"));
+		}
+		final Future<Object> client = mock.runOnClient(new RunWithBridge() {
+			
+			@Override
+			public void run(IKnimeBridge bridge) {
+				final List<Integer> indices = new ArrayList<Integer>();
+				try {
+					new StreamingRunner(bridge).run(imageSets.iterator(), new StreamingRunner.ResultHandler() {
+						
+						@Override
+						public void onResult(int index, IRunResult result) {
+							indices.add(index);
+							assertEquals(index+1, result.getNumberOfRows("Nuclei"));
+							int [] imageNumber = result.getIntMeasurements(
+									new FeatureDescriptionImpl(KBConstants.IMAGE, KBConstants.IMAGE_NUMBER, Integer.class));
+							assertEquals(index+1, imageNumber[0]);
+						}
+					});
+				} catch (Exception e) {
+					e.printStackTrace();
+					Assert.fail();
+				}
+				assertEquals(nImageSets, indices.size());
+				for (int i=0; i<nImageSets; i++) assertEquals(i, indices.get(i).intValue());
+			}
+		});
+		final Future<Object> server = mock.runOnServer(new RunWithSockets() {
+			
+			@Override
+			public void run(Socket socket) {
+				for (int i=0; i<nImageSets; i++) {
+					ZMsg msg = ZMsg.recvMsg(socket);
+					ZFrame client = msg.unwrap();
+					assertEquals("run-request-1", AbstractReply.popString(msg));
+					assertEquals(pipeline, AbstractReply.popString(msg));
+					JsonArray images = popArray(msg);
+					assertEquals(16+i, images.getJsonArray(0).getJsonArray(1).getJsonArray(1).getInt(1));
+					sendRunReply(socket, client, i+1, i+1);
+				}
+			}
+		});
+		runMockPair(mock, client, server);
+	}
+
+	@Test
+	public void testStreamingRunnerTimeout() throws Exception {
+		MockClientServerPair mock = new MockClientServerPair();
+		assertNull(mock.error);
+		loadPipeline(mock, PIPELINE, CHANNELS);
+		final List<Map<String, ImgPlus<?>>> imageSets = new ArrayList<Map<String, ImgPlus<?>>>();
+		for (int i=0; i<20; i++) {
+			imageSets.add(makeImageSet(16, 16, CHANNELS));
+		}
+		final Future<Object> client = mock.runOnClient(new RunWithBridge() {
+			
+			@Override
+			public void run(IKnimeBridge bridge) {
+				bridge.setRequestTimeout(300);
+				try {
+					new StreamingRunner(bridge, 2).run(imageSets.iterator(), new StreamingRunner.ResultHandler() {
+						
+						@Override
+						public void onResult(int index, IRunResult result) {
+							Assert.fail();
+						}
+					});
+					Assert.fail();
+				} catch (RequestTimeoutException e) {
+				} catch (Exception e) {
+					e.printStackTrace();
+					Assert.fail();
+				}
+			}
+		});
+		final Future<Object> server = mock.runOnServer(new RunWithSockets() {
+			
+			@Override
+			public void run(Socket socket) {
+				/*
+				 * Answer the first request only after the client gave up,
+				 * then acknowledge its cancel request.
+				 */
+				ZMsg msg = ZMsg.recvMsg(socket);
+				ZFrame client = msg.unwrap();
+				assertEquals("run-request-1", AbstractReply.popString(msg));
+				try {
+					Thread.sleep(600);
+				} catch (InterruptedException e) {
+					Assert.fail();
+				}
+				sendRunReply(socket, client, 1, 1);
+				msg = ZMsg.recvMsg(socket);
+				client = msg.unwrap();
+				assertEquals("cancel-request-1", AbstractReply.popString(msg));
+				ZMsg msgOut = new ZMsg();
+				msgOut.add("cancel-reply-1");
+				msgOut.wrap(client);
+				msgOut.send(socket);
+			}
+		});
+		server.get(10, TimeUnit.SECONDS);
+		client.get(10, TimeUnit.SECONDS);
+		mock.stop();
+	}
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge;
+
+import static org.cellprofiler.knimebridge.BridgeTestSupport.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.net.URI;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import javax.json.Json;
+
+import net.imagej.ImgPlus;
+
+import org.cellprofiler.knimebridge.MockClientServerPair.RunWithBridge;
+import org.cellprofiler.knimebridge.MockClientServerPair.RunWithSockets;
+import org.cellprofiler.knimebridge.message.AbstractReply;
+import org.junit.Assert;
+import org.junit.Test;
+import org.zeromq.ZFrame;
+import org.zeromq.ZMQ.Socket;
+import org.zeromq.ZMsg;
+
+public class TestWorkerCapabilities {
+	@Test
+	public void testWorkerCapabilities() throws Exception {
+		final WorkerCapabilities legacy = WorkerCapabilities.fromJson(null);
+		assertSame(WorkerCapabilities.LEGACY, legacy);
+		assertEquals(WorkerCapabilities.LEGACY_VERSION, legacy.getVersion());
+		assertTrue(legacy.supportsEncoding(WorkerCapabilities.ENCODING_FLOAT64));
+		assertTrue(legacy.getCodecs().isEmpty());
+		assertFalse(legacy.isBatchSupported());
+		assertTrue(legacy.acceptsFrame(Long.MAX_VALUE));
+		/*
+		 * Missing entries are those of a legacy worker, unknown ones are ignored
+		 */
+		final WorkerCapabilities partial = WorkerCapabilities.fromJson(Json.createObjectBuilder()
+				.add("version", 2).add("batch", true).add("max-frame-size", 1000)
+				.add("something-new", "whatever").build());
+		assertEquals(2, partial.getVersion());
+		assertTrue(partial.isBatchSupported());
+		assertFalse(partial.isSharedMemorySupported());
+		assertFalse(partial.isRunByReferenceSupported());
+		assertFalse(partial.isHeartbeatSupported());
+		assertFalse(partial.isComputeTimeReported());
+		assertTrue(partial.acceptsFrame(1000));
+		assertFalse(partial.acceptsFrame(1001));
+		assertEquals(legacy.getEncodings(), partial.getEncodings());
+		final WorkerCapabilities roundTrip = WorkerCapabilities.fromJson(WorkerCapabilities.CLIENT.toJson());
+		assertEquals(WorkerCapabilities.CLIENT.toString(), roundTrip.toString());
+		try {
+			WorkerCapabilities.fromJson(Json.createObjectBuilder().add("batch", "yes").build());
+			fail();
+		} catch (ProtocolException e) {
+		}
+		/*
+		 * The mock worker reports its capabilities when connecting
+		 */
+		final MockClientServerPair mock = new MockClientServerPair();
+		try {
+			assertNull(mock.error);
+			mock.runOnClient(new RunWithBridge() {
+				
+				@Override
+				public void run(IKnimeBridge bridge) {
+					assertEquals(MockClientServerPair.CAPABILITIES.toString(),
+							bridge.getWorkerCapabilities().toString());
+				}
+			}).get();
+		} finally {
+			mock.stop();
+		}
+	}
+
+	@Test
+	public void testFrameLimit() {
+		final MockClientServerPair mock = new MockClientServerPair(BridgeConfig.DEFAULT,
+				new WorkerCapabilities.Builder().setMaxFrameSize(1000).build());
+		assertNull(mock.error);
+		loadPipeline(mock, PIPELINE, CHANNELS);
+		/*
+		 * Each 16 x 16 channel is 2048 bytes of doubles, too large
+		 * for the worker, so the request is not sent. 8 x 8 fits.
+		 */
+		final Map<String, ImgPlus<?>> large = makeImageSet(16, 16, CHANNELS);
+		final Map<String, ImgPlus<?>> small = makeImageSet(8, 8, CHANNELS);
+		final Future<Object> client = mock.runOnClient(new RunWithBridge() {
+			
+			@Override
+			public void run(IKnimeBridge bridge) {
+				try {
+					bridge.run(large);
+					Assert.fail();
+				} catch (ProtocolException e) {
+				} catch (Exception e) {
+					e.printStackTrace();
+					Assert.fail();
+				}
+				try {
+					bridge.run(small);
+				} catch (Exception e) {
+					e.printStackTrace();
+					Assert.fail();
+				}
+			}
+		});
+		final Future<Object> server = mock.runOnServer(new RunWithSockets() {
+			
+			@Override
+			public void run(Socket socket) {
+				ZMsg msg = ZMsg.recvMsg(socket);
+				ZFrame client = msg.unwrap();
+				assertEquals("run-request-1", AbstractReply.popString(msg));
+				assertEquals(PIPELINE, AbstractReply.popString(msg));
+				assertEquals(8, popArray(msg).getJsonArray(0).getJsonArray(1).getJsonArray(0).getInt(1));
+				sendRunReply(socket, client, 1, 1);
+			}
+		});
+		runMockPair(mock, client, server);
+	}
+
+	@Test
+	public void testUnsupportedFeatures() throws Exception {
+		final File directory = new File(System.getProperty("java.io.tmpdir"));
+		final MockClientServerPair mock = new MockClientServerPair(
+				new BridgeConfig.Builder().setSharedMemoryDirectory(directory).build(),
+				new WorkerCapabilities.Builder().build());
+		assertNull(mock.error);
+		loadPipeline(mock, PIPELINE, CHANNELS);
+		final Map<String, ImgPlus<?>> map = makeImageSet(16, 16, CHANNELS);
+		final Map<String, ImageReference> references = Collections.singletonMap(
+				"Foo", new ImageReference(new URI("file:///data/plate1/A01.tif")));
+		final Future<Object> client = mock.runOnClient(new RunWithBridge() {
+			
+			@Override
+			public void run(IKnimeBridge bridge) {
+				/*
+				 * The worker can't take images by reference, so that
+				 * request is not sent, and it can't read shared memory,
+				 * so the pixels are sent in the run request.
+				 */
+				try {
+					bridge.runByReference(references);
+					Assert.fail();
+				} catch (ProtocolException e) {
+				} catch (Exception e) {
+					e.printStackTrace();
+					Assert.fail();
+				}
+				try {
+					bridge.run(map);
+					assertEquals(1, bridge.getNumberOfRows("Nuclei"));
+				} catch (Exception e) {
+					e.printStackTrace();
+					Assert.fail();
+				}
+			}
+		});
+		final Future<Object> server = mock.runOnServer(new RunWithSockets() {
+			
+			@Override
+			public void run(Socket socket) {
+				ZMsg msg = ZMsg.recvMsg(socket);
+				ZFrame client = msg.unwrap();
+				assertEquals("run-request-1", AbstractReply.popString(msg));
+				sendRunReply(socket, client, 1, 1);
+			}
+		});
+		runMockPair(mock, client, server);
+	}
+}
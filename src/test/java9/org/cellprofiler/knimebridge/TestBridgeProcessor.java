@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2015, Broad Institute
+ * All rights reserved.
+ *
+ * Published under a BSD license, see LICENSE for details
+ */
+package org.cellprofiler.knimebridge;
+
+import static org.cellprofiler.knimebridge.BridgeTestSupport.*;
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.cellprofiler.knimebridge.MockClientServerPair.RunWithBridge;
+import org.cellprofiler.knimebridge.MockClientServerPair.RunWithSockets;
+import org.cellprofiler.knimebridge.message.AbstractReply;
+import org.junit.Assert;
+import org.junit.Test;
+import org.zeromq.ZFrame;
+import org.zeromq.ZMQ.Socket;
+import org.zeromq.ZMsg;
+
+public class TestBridgeProcessor {
+	/**
+	 * An upstream subscription that records what the processor asks of it
+	 */
+	private static class Upstream implements Flow.Subscription {
+		final BlockingQueue<Long> requests = new LinkedBlockingQueue<Long>();
+		volatile boolean cancelled;
+
+		@Override
+		public void request(long n) {
+			requests.add(n);
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+		}
+	}
+
+	/**
+	 * A downstream subscriber that records the signals it receives.
+	 * Results are recorded by index, completion as -1 and errors as -2.
+	 */
+	private static class Downstream implements Flow.Subscriber<BridgeExecutor.Result> {
+		final BlockingQueue<Integer> signals = new LinkedBlockingQueue<Integer>();
+		volatile Flow.Subscription subscription;
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+		}
+
+		@Override
+		public void onNext(BridgeExecutor.Result result) {
+			assertNull(result.getError());
+			signals.add(result.getIndex());
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			throwable.printStackTrace();
+			signals.add(-2);
+		}
+
+		@Override
+		public void onComplete() {
+			signals.add(-1);
+		}
+	}
+
+	private static IKnimeBridge getBridge(MockClientServerPair mock) throws Exception {
+		final IKnimeBridge [] result = new IKnimeBridge [1];
+		mock.runOnClient(new RunWithBridge() {
+
+			@Override
+			public void run(IKnimeBridge bridge) {
+				result[0] = bridge;
+			}
+		}).get();
+		return result[0];
+	}
+
+	/**
+	 * Answer the next run request, optionally after a latch is released
+	 */
+	private static Future<Object> answerRun(MockClientServerPair mock, final int imageNumber,
+			final CountDownLatch received, final CountDownLatch release) {
+		return mock.runOnServer(new RunWithSockets() {
+
+			@Override
+			public void run(Socket socket) {
+				ZMsg msg = ZMsg.recvMsg(socket);
+				ZFrame client = msg.unwrap();
+				assertEquals("run-request-1", AbstractReply.popString(msg));
+				if (received != null) received.countDown();
+				try {
+					if (release != null) release.await();
+				} catch (InterruptedException e) {
+					Assert.fail();
+				}
+				sendRunReply(socket, client, imageNumber, 1);
+			}
+		});
+	}
+
+	@Test
+	public void testDemand() throws Exception {
+		MockClientServerPair mock = new MockClientServerPair();
+		assertNull(mock.error);
+		loadPipeline(mock, PIPELINE, CHANNELS);
+		final BridgeProcessor processor = new BridgeProcessor(Collections.singletonList(getBridge(mock)));
+		final Upstream upstream = new Upstream();
+		final Downstream downstream = new Downstream();
+		processor.onSubscribe(upstream);
+		processor.subscribe(downstream);
+		/*
+		 * Nothing is requested upstream until there is demand downstream
+		 * and no more than the one bridge can run at a time.
+		 */
+		assertNull(upstream.requests.poll(100, TimeUnit.MILLISECONDS));
+		downstream.subscription.request(5);
+		assertEquals(1L, upstream.requests.poll(1, TimeUnit.SECONDS).longValue());
+		assertNull(upstream.requests.poll(100, TimeUnit.MILLISECONDS));
+		for (int i=0; i<2; i++) {
+			final Future<Object> server = answerRun(mock, i+1, null, null);
+			processor.onNext(makeImageSet(16, 16, CHANNELS));
+			assertEquals(i, downstream.signals.poll(5, TimeUnit.SECONDS).intValue());
+			assertEquals(1L, upstream.requests.poll(1, TimeUnit.SECONDS).longValue());
+			server.get();
+		}
+		processor.onComplete();
+		assertEquals(-1, downstream.signals.poll(1, TimeUnit.SECONDS).intValue());
+		assertFalse(upstream.cancelled);
+		mock.stop();
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		MockClientServerPair mock = new MockClientServerPair();
+		assertNull(mock.error);
+		loadPipeline(mock, PIPELINE, CHANNELS);
+		final BridgeProcessor processor = new BridgeProcessor(Collections.singletonList(getBridge(mock)));
+		final Upstream upstream = new Upstream();
+		final Downstream downstream = new Downstream();
+		processor.onSubscribe(upstream);
+		processor.subscribe(downstream);
+		downstream.subscription.request(1);
+		assertEquals(1L, upstream.requests.poll(1, TimeUnit.SECONDS).longValue());
+		final CountDownLatch received = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Future<Object> server = answerRun(mock, 1, received, release);
+		processor.onNext(makeImageSet(16, 16, CHANNELS));
+		assertTrue(received.await(5, TimeUnit.SECONDS));
+		/*
+		 * Cancel while the image set is being run. Upstream is
+		 * cancelled and the result is not published.
+		 */
+		downstream.subscription.cancel();
+		assertTrue(upstream.cancelled);
+		release.countDown();
+		server.get();
+		downstream.subscription.request(1);
+		processor.onComplete();
+		assertNull(downstream.signals.poll(300, TimeUnit.MILLISECONDS));
+		assertNull(upstream.requests.poll());
+		mock.stop();
+	}
+}